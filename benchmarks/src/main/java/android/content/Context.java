@@ -0,0 +1,8 @@
+package android.content;
+
+/**
+ * Stand-in for the android context, only there so the {@link android.database.sqlite.SQLiteOpenHelper} shim can
+ * be created on a plain JVM.
+ */
+public class Context {
+}
@@ -0,0 +1,20 @@
+package android.database;
+
+/**
+ * Stand-in for the android cursor, the methods the app uses.  See {@link android.database.sqlite.SQLiteOpenHelper}.
+ */
+public interface Cursor {
+    boolean moveToFirst();
+
+    boolean moveToNext();
+
+    boolean isNull(int columnIndex);
+
+    String getString(int columnIndex);
+
+    int getInt(int columnIndex);
+
+    long getLong(int columnIndex);
+
+    void close();
+}
@@ -0,0 +1,29 @@
+package android.database.sqlite;
+
+import android.database.Cursor;
+
+/**
+ * Stand-in for the android database, the methods the app uses.  There is never one to get, see
+ * {@link SQLiteOpenHelper}.
+ */
+public abstract class SQLiteDatabase {
+
+    public interface CursorFactory {
+    }
+
+    public abstract void execSQL(String sql);
+
+    public abstract void execSQL(String sql, Object[] bindArgs);
+
+    public abstract Cursor rawQuery(String sql, String[] selectionArgs);
+
+    public abstract SQLiteStatement compileStatement(String sql);
+
+    public abstract int delete(String table, String whereClause, String[] whereArgs);
+
+    public abstract void beginTransaction();
+
+    public abstract void setTransactionSuccessful();
+
+    public abstract void endTransaction();
+}
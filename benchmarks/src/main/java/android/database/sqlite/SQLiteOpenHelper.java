@@ -0,0 +1,34 @@
+package android.database.sqlite;
+
+import android.content.Context;
+
+/**
+ * Stand-in for the android open helper so the library classes can be loaded on a plain JVM.  There is no SQLite
+ * here, so opening the database always fails the way it does on a device when it can't be opened, which the app
+ * answers by asking the server instead.
+ */
+public abstract class SQLiteOpenHelper {
+    private final String name;
+
+    public SQLiteOpenHelper(Context context, String name, SQLiteDatabase.CursorFactory factory, int version) {
+        this.name = name;
+    }
+
+    public abstract void onCreate(SQLiteDatabase db);
+
+    public abstract void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion);
+
+    public void onOpen(SQLiteDatabase db) {
+    }
+
+    public SQLiteDatabase getWritableDatabase() {
+        throw new SQLiteException("Cannot open " + name + ", there is no SQLite on a plain JVM");
+    }
+
+    public SQLiteDatabase getReadableDatabase() {
+        return getWritableDatabase();
+    }
+
+    public void close() {
+    }
+}
@@ -0,0 +1,18 @@
+package android.database.sqlite;
+
+/**
+ * Stand-in for the android statement, the methods the app uses.  See {@link SQLiteOpenHelper}.
+ */
+public abstract class SQLiteStatement {
+    public abstract void bindNull(int index);
+
+    public abstract void bindLong(int index, long value);
+
+    public abstract void bindString(int index, String value);
+
+    public abstract void clearBindings();
+
+    public abstract void execute();
+
+    public abstract void close();
+}
@@ -0,0 +1,93 @@
+package android.util;
+
+/**
+ * Stand-in for the android logger so the app classes can run on a plain JVM.  Everything below the
+ * level set with the <code>squeezedroid.log</code> system property (<code>error</code> by default) is dropped,
+ * so logging does not show up in the benchmark numbers.
+ */
+public final class Log {
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    private static final int LEVEL = parseLevel(System.getProperty("squeezedroid.log", "error"));
+
+    private Log() {
+    }
+
+    private static int parseLevel(String level) {
+        if ("verbose".equalsIgnoreCase(level)) {
+            return VERBOSE;
+        } else if ("debug".equalsIgnoreCase(level)) {
+            return DEBUG;
+        } else if ("info".equalsIgnoreCase(level)) {
+            return INFO;
+        } else if ("warn".equalsIgnoreCase(level)) {
+            return WARN;
+        } else if ("none".equalsIgnoreCase(level)) {
+            return Integer.MAX_VALUE;
+        }
+        return ERROR;
+    }
+
+    public static boolean isLoggable(String tag, int level) {
+        return level >= LEVEL;
+    }
+
+    private static int log(int level, String tag, String msg, Throwable tr) {
+        if (level < LEVEL) {
+            return 0;
+        }
+        System.err.println(tag + ": " + msg);
+        if (tr != null) {
+            tr.printStackTrace();
+        }
+        return 0;
+    }
+
+    public static int v(String tag, String msg) {
+        return log(VERBOSE, tag, msg, null);
+    }
+
+    public static int v(String tag, String msg, Throwable tr) {
+        return log(VERBOSE, tag, msg, tr);
+    }
+
+    public static int d(String tag, String msg) {
+        return log(DEBUG, tag, msg, null);
+    }
+
+    public static int d(String tag, String msg, Throwable tr) {
+        return log(DEBUG, tag, msg, tr);
+    }
+
+    public static int i(String tag, String msg) {
+        return log(INFO, tag, msg, null);
+    }
+
+    public static int i(String tag, String msg, Throwable tr) {
+        return log(INFO, tag, msg, tr);
+    }
+
+    public static int w(String tag, String msg) {
+        return log(WARN, tag, msg, null);
+    }
+
+    public static int w(String tag, String msg, Throwable tr) {
+        return log(WARN, tag, msg, tr);
+    }
+
+    public static int w(String tag, Throwable tr) {
+        return log(WARN, tag, "", tr);
+    }
+
+    public static int e(String tag, String msg) {
+        return log(ERROR, tag, msg, null);
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        return log(ERROR, tag, msg, tr);
+    }
+}
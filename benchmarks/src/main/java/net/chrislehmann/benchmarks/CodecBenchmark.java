@@ -0,0 +1,91 @@
+package net.chrislehmann.benchmarks;
+
+import net.chrislehmann.util.SerializationUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link SerializationUtils#decode(String)} and {@link SerializationUtils#encode(String)} with the
+ * implementation they replaced ({@link LegacySerializationUtils}).  Each invocation runs over a batch of
+ * field values that look like the titles, artists and paths in a real library.
+ * <p/>
+ * Run with <code>-prof gc</code> to see the allocation rate per operation.
+ *
+ * @author lehmanc
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    private static final int BATCH_SIZE = 256;
+
+    /**
+     * The kind of text in the batch: plain ascii (nothing to decode), ascii with spaces and punctuation,
+     * accented latin, CJK, and text with characters outside the basic plane.
+     */
+    @Param({"plain", "ascii", "latin", "cjk", "supplementary"})
+    public String text;
+
+    private String[] decoded;
+    private String[] encoded;
+    private String[] legacyEncoded;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        decoded = new String[BATCH_SIZE];
+        encoded = new String[BATCH_SIZE];
+        legacyEncoded = new String[BATCH_SIZE];
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            decoded[i] = FixtureText.randomText(random, text, 8 + random.nextInt(40));
+            encoded[i] = SerializationUtils.encode(decoded[i]);
+            legacyEncoded[i] = LegacySerializationUtils.encode(decoded[i]);
+        }
+    }
+
+    @Benchmark
+    public void decode(Blackhole blackhole) {
+        for (String value : encoded) {
+            blackhole.consume(SerializationUtils.decode(value));
+        }
+    }
+
+    @Benchmark
+    public void decodeLegacy(Blackhole blackhole) {
+        for (String value : legacyEncoded) {
+            blackhole.consume(LegacySerializationUtils.decode(value));
+        }
+    }
+
+    @Benchmark
+    public void encode(Blackhole blackhole) {
+        for (String value : decoded) {
+            blackhole.consume(SerializationUtils.encode(value));
+        }
+    }
+
+    @Benchmark
+    public void encodeLegacy(Blackhole blackhole) {
+        for (String value : decoded) {
+            blackhole.consume(LegacySerializationUtils.encode(value));
+        }
+    }
+}
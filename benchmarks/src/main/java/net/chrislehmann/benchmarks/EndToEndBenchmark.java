@@ -0,0 +1,213 @@
+package net.chrislehmann.benchmarks;
+
+import net.chrislehmann.squeezedroid.model.Album;
+import net.chrislehmann.squeezedroid.model.Artist;
+import net.chrislehmann.squeezedroid.model.BrowseResult;
+import net.chrislehmann.squeezedroid.model.Player;
+import net.chrislehmann.squeezedroid.model.PlayerStatus;
+import net.chrislehmann.squeezedroid.model.Song;
+import net.chrislehmann.squeezedroid.service.CliSqueezeService;
+import net.chrislehmann.squeezedroid.service.SimplePlayerStatusHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives the real {@link CliSqueezeService} (connection pool, reader threads, parsing and the event thread)
+ * against a {@link FakeSqueezeServer} on the loopback interface, with the network latency as a parameter.
+ * Times are sampled, so the output has the latency percentiles as well as the throughput.
+ * <ul>
+ * <li><code>playerStatus</code>: a single interactive round trip, for a player nobody is listening to</li>
+ * <li><code>watchedPlayerStatus</code>: the status of a player with a handler, which the server pushes</li>
+ * <li><code>albumSongs</code> / <code>artistAlbums</code>: a page of a browse screen</li>
+ * <li><code>mixed</code>: player status on one thread while three threads page through large song lists,
+ * the way the now playing screen polls while a browse screen loads</li>
+ * <li><code>volumeEvent</code>: from changing the volume to the handler hearing about it through the event stream</li>
+ * <li><code>reconnect</code>: the server drops every connection, then the same as <code>volumeEvent</code>, which
+ * has to wait for the connections to come back</li>
+ * </ul>
+ *
+ * @author lehmanc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EndToEndBenchmark {
+
+    private static final long TIMEOUT_MILLIS = 10 * 1000;
+
+    /**
+     * One way delay added to every response and event.  The jitter is a quarter of it.
+     */
+    @Param({"0", "2", "20"})
+    public int latencyMillis;
+
+    @Param({"10000"})
+    public int tracks;
+
+    private LibraryFixture library;
+    private FakeSqueezeServer server;
+    private CliSqueezeService service;
+    private String playerId;
+    private String unwatchedPlayerId;
+
+    private final BlockingQueue<Integer> volumes = new LinkedBlockingQueue<Integer>();
+    private int volume = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        library = new LibraryFixture(tracks, 4, 42);
+        server = new FakeSqueezeServer(library);
+        //The last two players play in sync, so the players list has a sync group to resolve
+        server.synchronize(library.getPlayers().get(3).id, library.getPlayers().get(2).id);
+        server.start();
+        server.setLatency(latencyMillis, latencyMillis / 4);
+
+        service = new CliSqueezeService(server.getHost(), server.getPort(), 9000);
+        service.connect();
+        if (!server.awaitListeners(1, TIMEOUT_MILLIS)) {
+            throw new IllegalStateException("Event thread did not connect to the server");
+        }
+
+        playerId = library.getPlayers().get(0).id;
+        unwatchedPlayerId = library.getPlayers().get(1).id;
+        service.subscribe(playerId, new SimplePlayerStatusHandler() {
+            public void onVolumeChanged(int newVolume) {
+                volumes.add(newVolume);
+            }
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        service.disconnect();
+        server.stop();
+    }
+
+    /**
+     * Per thread random source, so the threads in a group don't ask for the same page in lock step
+     */
+    @State(Scope.Thread)
+    public static class Pages {
+        final Random random = new Random(Thread.currentThread().getId());
+    }
+
+    @Benchmark
+    public PlayerStatus playerStatus() {
+        return service.getPlayerStatus(unwatchedPlayerId);
+    }
+
+    @Benchmark
+    public PlayerStatus watchedPlayerStatus() {
+        return service.getPlayerStatus(playerId);
+    }
+
+    @Benchmark
+    public BrowseResult<Song> albumSongs(Pages pages) {
+        Album album = new Album();
+        album.setId(String.valueOf(1 + pages.random.nextInt(library.getAlbums().size())));
+        return service.browseSongs(album, 0, 50);
+    }
+
+    @Benchmark
+    public BrowseResult<Album> artistAlbums(Pages pages) {
+        Artist artist = new Artist();
+        artist.setId(String.valueOf(1 + pages.random.nextInt(library.getArtists().size())));
+        return service.browseAlbums(artist, 0, 50);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public PlayerStatus mixedPlayerStatus() {
+        return service.getPlayerStatus(unwatchedPlayerId);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public BrowseResult<Song> mixedBrowse(Pages pages) {
+        Artist artist = new Artist();
+        artist.setId(String.valueOf(1 + pages.random.nextInt(library.getArtists().size())));
+        return service.browseSongs(artist, 0, 500);
+    }
+
+    @Benchmark
+    public int volumeEvent() throws InterruptedException {
+        volume = (volume + 1) % 100;
+        service.changeVolume(playerId, volume);
+        while (true) {
+            Integer heard = volumes.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            if (heard == null) {
+                throw new IllegalStateException("Volume change event did not arrive");
+            }
+            if (heard == volume) {
+                return heard;
+            }
+        }
+    }
+
+    @Benchmark
+    public int reconnect() throws InterruptedException {
+        server.dropConnections();
+        return volumeEvent();
+    }
+
+    /**
+     * Quick check that everything is wired up, without JMH
+     */
+    public static void main(String[] args) throws Exception {
+        EndToEndBenchmark benchmark = new EndToEndBenchmark();
+        benchmark.latencyMillis = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+        benchmark.tracks = 10000;
+        benchmark.setUp();
+        benchmark.service.getMetrics().setEnabled(true);
+        try {
+            Pages pages = new Pages();
+            List<Song> songs = benchmark.albumSongs(pages).getResutls();
+            System.out.println("album songs: " + songs.size() + ", first '" + songs.get(0).getName() + "'");
+            System.out.println("artist albums: " + benchmark.artistAlbums(pages).getResutls().size());
+            System.out.println("status: " + benchmark.playerStatus().getStatus());
+            long polls = benchmark.server.getStatusRequestCount();
+            System.out.println("watched status: " + benchmark.watchedPlayerStatus().getStatus() + ", polled: "
+                    + (benchmark.server.getStatusRequestCount() - polls));
+            long start = System.nanoTime();
+            benchmark.volumeEvent();
+            System.out.println("volume event: " + (System.nanoTime() - start) / 1000 + "us");
+            start = System.nanoTime();
+            benchmark.reconnect();
+            System.out.println("reconnect: " + (System.nanoTime() - start) / 1000 + "us, connected: " + benchmark.service.isConnected()
+                    + ", status: " + benchmark.playerStatus().getStatus());
+            List<Player> players = benchmark.service.getPlayers();
+            System.out.println("players: " + players.size() + ", '" + players.get(3).getName() + "' synced to "
+                    + players.get(3).getSyncronizedPlayers().size() + ", commands answered: " + benchmark.server.getCommandCount());
+            System.out.println("rtt: " + benchmark.service.getHeartbeat().getRttHistogram() + ", rto: "
+                    + benchmark.service.getHeartbeat().getRetransmitTimeoutMillis() + "ms");
+            benchmark.service.getMetrics().getSnapshot().writeTo(new PrintWriter(System.out));
+        } finally {
+            benchmark.tearDown();
+        }
+    }
+}
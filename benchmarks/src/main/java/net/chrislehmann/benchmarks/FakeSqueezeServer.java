@@ -0,0 +1,708 @@
+package net.chrislehmann.benchmarks;
+
+import net.chrislehmann.util.SerializationUtils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for the SqueezeCenter command line interface, serving a {@link LibraryFixture}.  It listens
+ * on a loopback port and answers the commands squeezedroid sends (<code>login</code>, <code>version</code>,
+ * <code>players</code>, <code>syncgroups</code>, the library queries, player <code>status</code>, <code>sync</code>,
+ * the transport controls) with responses in the format of a 7.x server.  Anything else is echoed back, like the real server does.
+ * <p/>
+ * Connections that sent <code>listen</code> or <code>subscribe</code> get the event stream: every command that
+ * changes a player is broadcast to them, plus a <code>playlist newsong</code> event when the current song changes.
+ * A <code>status ... subscribe:&lt;interval&gt;</code> command is answered again (on the same connection) every time
+ * the player changes, until it is sent with <code>subscribe:-</code>.  The interval itself is ignored.
+ * <p/>
+ * Every response and event is held back by the latency plus a random jitter, measured from when the command
+ * arrived.  Responses on one connection still go out in order, and commands pipelined on a connection wait
+ * concurrently, like they would on a real network.
+ *
+ * @author lehmanc
+ */
+public class FakeSqueezeServer {
+
+    public static final String VERSION = "7.5.1";
+
+    private final LibraryFixture library;
+
+    private final Map<Integer, List<LibraryFixture.Track>> tracksByArtist = new HashMap<Integer, List<LibraryFixture.Track>>();
+    private final Map<Integer, List<LibraryFixture.Track>> tracksByGenre = new HashMap<Integer, List<LibraryFixture.Track>>();
+    private final Map<Integer, List<LibraryFixture.Album>> albumsByArtist = new HashMap<Integer, List<LibraryFixture.Album>>();
+    private final Map<Integer, List<LibraryFixture.Album>> albumsByGenre = new HashMap<Integer, List<LibraryFixture.Album>>();
+    private final Map<Integer, List<LibraryFixture.Artist>> artistsByGenre = new HashMap<Integer, List<LibraryFixture.Artist>>();
+
+    /**
+     * The sync group of every synchronized player, keyed on the player id.  Players in the same group share the set.
+     */
+    private final Map<String, Set<String>> syncGroups = new HashMap<String, Set<String>>();
+
+    private final List<ClientConnection> connections = new CopyOnWriteArrayList<ClientConnection>();
+    private final Random random = new Random(42);
+    private final AtomicLong commandCount = new AtomicLong();
+    private final AtomicLong statusRequestCount = new AtomicLong();
+
+    private volatile int latencyMillis = 0;
+    private volatile int jitterMillis = 0;
+    private String username;
+    private String password;
+
+    private ServerSocket serverSocket;
+    private Thread acceptThread;
+    private volatile boolean running = false;
+
+    public FakeSqueezeServer(LibraryFixture library) {
+        this.library = library;
+
+        for (LibraryFixture.Album album : library.getAlbums()) {
+            add(albumsByArtist, album.artist.id, album);
+            add(albumsByGenre, album.genre.id, album);
+            for (LibraryFixture.Track track : album.tracks) {
+                add(tracksByArtist, album.artist.id, track);
+                add(tracksByGenre, album.genre.id, track);
+            }
+        }
+        for (Map.Entry<Integer, List<LibraryFixture.Album>> entry : albumsByGenre.entrySet()) {
+            Set<LibraryFixture.Artist> artists = new LinkedHashSet<LibraryFixture.Artist>();
+            for (LibraryFixture.Album album : entry.getValue()) {
+                artists.add(album.artist);
+            }
+            artistsByGenre.put(entry.getKey(), new ArrayList<LibraryFixture.Artist>(artists));
+        }
+    }
+
+    private static <T> void add(Map<Integer, List<T>> index, int key, T value) {
+        List<T> values = index.get(key);
+        if (values == null) {
+            values = new ArrayList<T>();
+            index.put(key, values);
+        }
+        values.add(value);
+    }
+
+    /**
+     * Starts listening on a free loopback port, see {@link #getPort()}
+     */
+    public void start() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        running = true;
+        acceptThread = new Thread("FakeSqueezeServer accept") {
+            @Override
+            public void run() {
+                while (running) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        socket.setTcpNoDelay(true);
+                        ClientConnection connection = new ClientConnection(socket);
+                        connections.add(connection);
+                        connection.start();
+                    } catch (IOException e) {
+                        if (running) {
+                            System.err.println("FakeSqueezeServer: error accepting connection: " + e);
+                        }
+                    }
+                }
+            }
+        };
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * Closes the server socket and every open connection
+     */
+    public void stop() {
+        running = false;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            //Closing anyway
+        }
+        for (ClientConnection connection : connections) {
+            connection.close();
+        }
+        connections.clear();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public String getHost() {
+        return "127.0.0.1";
+    }
+
+    public LibraryFixture getLibrary() {
+        return library;
+    }
+
+    /**
+     * Sets the delay added to every response and event.  Each one gets a random extra delay between zero and the jitter.
+     */
+    public void setLatency(int latencyMillis, int jitterMillis) {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+    }
+
+    /**
+     * Requires a <code>login</code> with these credentials before anything else.  Connections that send
+     * anything else, or the wrong password, are closed (like the real server does).
+     */
+    public void setCredentials(String username, String password) {
+        this.username = username;
+        this.password = password;
+    }
+
+    /**
+     * Puts the two players in the same sync group
+     */
+    public void synchronize(String playerId, String otherPlayerId) {
+        synchronized (syncGroups) {
+            Set<String> group = syncGroups.get(otherPlayerId);
+            if (group == null) {
+                group = new LinkedHashSet<String>();
+                group.add(otherPlayerId);
+                syncGroups.put(otherPlayerId, group);
+            }
+            unsynchronize(playerId);
+            group.add(playerId);
+            syncGroups.put(playerId, group);
+        }
+    }
+
+    /**
+     * Takes the player out of its sync group
+     */
+    public void unsynchronize(String playerId) {
+        synchronized (syncGroups) {
+            Set<String> group = syncGroups.remove(playerId);
+            if (group != null) {
+                group.remove(playerId);
+                if (group.size() == 1) {
+                    syncGroups.remove(group.iterator().next());
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the ids of the players synced to the player, not including the player itself
+     */
+    public List<String> getSyncedPlayers(String playerId) {
+        List<String> players = new ArrayList<String>();
+        synchronized (syncGroups) {
+            Set<String> group = syncGroups.get(playerId);
+            if (group != null) {
+                for (String id : group) {
+                    if (!id.equals(playerId)) {
+                        players.add(id);
+                    }
+                }
+            }
+        }
+        return players;
+    }
+
+    /**
+     * Sends an event to every connection that is listening.  The event is the (encoded) text after the player id,
+     * i.e. <code>mixer volume 50</code>.
+     */
+    public void sendEvent(String playerId, String event) {
+        broadcast(LibraryFixture.escape(playerId) + " " + event, System.nanoTime());
+    }
+
+    private void broadcast(String line, long received) {
+        for (ClientConnection connection : connections) {
+            if (connection.listening) {
+                connection.write(line, received);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of connections that are receiving events
+     */
+    public int getListenerCount() {
+        int count = 0;
+        for (ClientConnection connection : connections) {
+            if (connection.listening) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Waits until at least count connections are receiving events.  Returns false if that didn't happen in time.
+     */
+    public boolean awaitListeners(int count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (getListenerCount() < count) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+    /**
+     * Closes every open connection but keeps accepting new ones, which is what a short drop in the network looks
+     * like to the client
+     */
+    public void dropConnections() {
+        for (ClientConnection connection : connections) {
+            connection.close();
+        }
+    }
+
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    /**
+     * Returns the number of commands answered since the server started
+     */
+    public long getCommandCount() {
+        return commandCount.get();
+    }
+
+    /**
+     * Returns the number of <code>status</code> commands for a single player that did not change a subscription,
+     * the polls a client makes
+     */
+    public long getStatusRequestCount() {
+        return statusRequestCount.get();
+    }
+
+    private long nextDelayNanos() {
+        int jitter = 0;
+        if (jitterMillis > 0) {
+            synchronized (random) {
+                jitter = random.nextInt(jitterMillis + 1);
+            }
+        }
+        return TimeUnit.MILLISECONDS.toNanos(latencyMillis + jitter);
+    }
+
+    /**
+     * A parsed command line.  The player id (if there is one) is split off, the rest of the tokens are decoded and
+     * split into positional parameters and <code>tag:value</code> parameters.
+     */
+    private class Command {
+        LibraryFixture.Player player;
+        final List<String> positional = new ArrayList<String>();
+        final Map<String, String> tagged = new HashMap<String, String>();
+        final List<String> tokens = new ArrayList<String>();
+        final List<String> echo = new ArrayList<String>();
+
+        Command(String line) {
+            String[] raw = line.trim().split(" +");
+            for (int i = 0; i < raw.length; i++) {
+                String token = SerializationUtils.decode(raw[i]);
+                tokens.add(token);
+                echo.add(LibraryFixture.escape(token));
+                if (i == 0 && library.getPlayer(token) != null) {
+                    player = library.getPlayer(token);
+                    continue;
+                }
+                //Player ids have colons in them too
+                int separator = token.indexOf(':');
+                if (separator > 0 && library.getPlayer(token) == null) {
+                    tagged.put(token.substring(0, separator), token.substring(separator + 1));
+                } else {
+                    positional.add(token);
+                }
+            }
+        }
+
+        String get(int index) {
+            return index < positional.size() ? positional.get(index) : null;
+        }
+
+        int getInt(int index, int defaultValue) {
+            return parseInt(get(index), defaultValue);
+        }
+
+        int getTag(String tag, int defaultValue) {
+            return parseInt(tagged.get(tag), defaultValue);
+        }
+
+        /**
+         * The echo of the command, with the first '?' replaced by the value passed in
+         */
+        String answer(String value) {
+            StringBuilder response = new StringBuilder();
+            boolean replaced = false;
+            for (int i = 0; i < echo.size(); i++) {
+                if (response.length() > 0) {
+                    response.append(' ');
+                }
+                if (!replaced && value != null && "?".equals(tokens.get(i))) {
+                    response.append(value);
+                    replaced = true;
+                } else {
+                    response.append(echo.get(i));
+                }
+            }
+            return response.toString();
+        }
+
+        String echo() {
+            return answer(null);
+        }
+    }
+
+    /**
+     * The records of a <code>syncgroups ?</code> response, one for each group
+     */
+    private String syncGroupsResponse() {
+        StringBuilder response = new StringBuilder();
+        synchronized (syncGroups) {
+            Set<Set<String>> groups = Collections.newSetFromMap(new IdentityHashMap<Set<String>, Boolean>());
+            groups.addAll(syncGroups.values());
+            for (Set<String> group : groups) {
+                StringBuilder ids = new StringBuilder();
+                StringBuilder names = new StringBuilder();
+                for (String id : group) {
+                    ids.append(ids.length() > 0 ? "," : "").append(id);
+                    names.append(names.length() > 0 ? "," : "").append(library.getPlayer(id).name);
+                }
+                response.append(" sync_members%3A").append(LibraryFixture.escape(ids.toString()))
+                        .append(" sync_member_names%3A").append(LibraryFixture.escape(names.toString()));
+            }
+        }
+        return response.toString();
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return (int) Float.parseFloat(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Answers a single command.  Returns null if the connection should be closed.
+     */
+    private String execute(ClientConnection connection, String line, long received) {
+        Command command = new Command(line);
+        String name = command.get(0);
+        if (name == null) {
+            return command.echo();
+        }
+
+        if ("login".equals(name)) {
+            boolean valid = username == null || (username.equals(command.get(1)) && password != null && password.equals(command.get(2)));
+            connection.authenticated = valid;
+            return valid ? "login " + LibraryFixture.escape(command.get(1) == null ? "" : command.get(1)) + " ******" : null;
+        }
+        if (username != null && !connection.authenticated) {
+            return null;
+        }
+
+        if (command.player != null) {
+            return executePlayerCommand(connection, command, name, received);
+        }
+
+        int start = command.getInt(1, 0);
+        int count = command.getInt(2, 0);
+        if ("version".equals(name)) {
+            return command.answer(VERSION);
+        } else if ("listen".equals(name)) {
+            connection.listening = !"0".equals(command.get(1));
+            return command.echo();
+        } else if ("subscribe".equals(name)) {
+            connection.listening = true;
+            return command.echo();
+        } else if ("syncgroups".equals(name)) {
+            //The '?' is not echoed
+            return "syncgroups" + syncGroupsResponse();
+        } else if ("players".equals(name)) {
+            return library.playersResponse(command.echo(), start, count);
+        } else if ("titles".equals(name)) {
+            return library.titlesResponse(command.echo(), findTracks(command), start, count);
+        } else if ("albums".equals(name)) {
+            return library.albumsResponse(command.echo(), findAlbums(command), start, count);
+        } else if ("artists".equals(name)) {
+            List<LibraryFixture.Artist> artists = library.getArtists();
+            if (command.tagged.containsKey("genre_id")) {
+                artists = orEmpty(artistsByGenre.get(command.getTag("genre_id", 0)));
+            }
+            return library.artistsResponse(command.echo(), artists, start, count);
+        } else if ("genres".equals(name)) {
+            return library.genresResponse(command.echo(), start, count);
+        } else if ("musicfolder".equals(name)) {
+            return library.musicFolderResponse(command.echo(), command.getTag("folder_id", 0), start, count);
+        } else if ("playlists".equals(name)) {
+            if ("tracks".equals(command.get(1))) {
+                LibraryFixture.Album album = library.getAlbum(command.getTag("playlist_id", 0) - LibraryFixture.FOLDER_ID_OFFSET);
+                List<LibraryFixture.Track> tracks = album == null ? new ArrayList<LibraryFixture.Track>() : album.tracks;
+                return library.titlesResponse(command.echo(), tracks, command.getInt(2, 0), command.getInt(3, 0));
+            }
+            return library.playlistsResponse(command.echo(), start, count);
+        } else if ("apps".equals(name) || "radios".equals(name)) {
+            return library.appsResponse(command.echo(), start, count);
+        } else if ("search".equals(name)) {
+            String term = command.tagged.get("term");
+            return library.searchResponse(command.echo(), term == null ? "" : term, count);
+        } else if ("songinfo".equals(name)) {
+            LibraryFixture.Track track = library.getTrack(command.getTag("track_id", 0));
+            if (track == null) {
+                return command.echo() + " count%3A0";
+            }
+            return command.echo() + " count%3A2 id%3A" + track.id + " url%3A" + LibraryFixture.escape(track.url);
+        }
+        return command.echo();
+    }
+
+    private String executePlayerCommand(ClientConnection connection, Command command, String name, long received) {
+        LibraryFixture.Player player = command.player;
+        String playerId = LibraryFixture.escape(player.id);
+
+        if ("status".equals(name)) {
+            String subscribe = command.tagged.get("subscribe");
+            if ("-".equals(subscribe)) {
+                connection.statusSubscriptions.remove(player.id);
+                return command.echo();
+            }
+            if (subscribe != null) {
+                connection.statusSubscriptions.put(player.id, command.echo());
+            } else if ("-".equals(command.get(1))) {
+                statusRequestCount.incrementAndGet();
+            }
+            synchronized (player) {
+                return library.statusResponse(command.echo(), player, "-".equals(command.get(1)) ? -1 : command.getInt(1, 0), command.getInt(2, 0));
+            }
+        }
+
+        if ("sync".equals(name)) {
+            String other = command.get(1);
+            if ("?".equals(other)) {
+                List<String> synced = getSyncedPlayers(player.id);
+                StringBuilder value = new StringBuilder();
+                for (String id : synced) {
+                    value.append(value.length() > 0 ? "," : "").append(id);
+                }
+                return command.answer(synced.isEmpty() ? "-" : LibraryFixture.escape(value.toString()));
+            }
+            if ("-".equals(other)) {
+                unsynchronize(player.id);
+            } else if (other != null && library.getPlayer(other) != null) {
+                synchronize(other, player.id);
+            }
+            broadcast(command.echo(), received);
+            pushStatus(player, received);
+            return command.echo();
+        }
+
+        String event = null;
+        synchronized (player) {
+            if ("mixer".equals(name) && "volume".equals(command.get(1))) {
+                player.volume = Math.max(0, Math.min(100, command.getInt(2, player.volume)));
+                event = command.echo();
+            } else if ("pause".equals(name)) {
+                boolean pause = command.get(1) == null ? !"pause".equals(player.mode) : "1".equals(command.get(1));
+                player.mode = pause ? "pause" : "play";
+                event = playerId + " pause " + (pause ? 1 : 0);
+            } else if ("play".equals(name) || "stop".equals(name)) {
+                player.mode = name;
+                event = command.echo();
+            } else if ("time".equals(name)) {
+                player.time = command.getInt(1, player.time);
+                event = command.echo();
+            } else if ("playlist".equals(name)) {
+                String action = command.get(1);
+                if ("index".equals(action) && !player.playlist.isEmpty()) {
+                    player.currentIndex = Math.max(0, Math.min(player.playlist.size() - 1, command.getInt(2, player.currentIndex)));
+                    player.time = 0;
+                    player.mode = "play";
+                    event = playerId + " playlist newsong " + LibraryFixture.escape(player.playlist.get(player.currentIndex).title)
+                            + " " + player.currentIndex;
+                } else if ("shuffle".equals(action)) {
+                    player.shuffle = command.getInt(2, 0);
+                    event = command.echo();
+                } else if ("repeat".equals(action)) {
+                    player.repeat = command.getInt(2, 0);
+                    event = command.echo();
+                } else if ("clear".equals(action)) {
+                    player.playlist.clear();
+                    player.currentIndex = 0;
+                    player.mode = "stop";
+                    event = command.echo();
+                } else if ("delete".equals(action)) {
+                    int index = command.getInt(2, -1);
+                    if (index >= 0 && index < player.playlist.size()) {
+                        player.playlist.remove(index);
+                        player.currentIndex = Math.min(player.currentIndex, Math.max(0, player.playlist.size() - 1));
+                    }
+                    event = command.echo();
+                }
+            }
+        }
+
+        if (event != null) {
+            broadcast(event, received);
+            pushStatus(player, received);
+        }
+        return command.echo();
+    }
+
+    /**
+     * Sends the status of the player to every connection subscribed to it
+     */
+    private void pushStatus(LibraryFixture.Player player, long received) {
+        for (ClientConnection connection : connections) {
+            String echo = connection.statusSubscriptions.get(player.id);
+            if (echo != null) {
+                synchronized (player) {
+                    connection.write(library.statusResponse(echo, player, -1, 1), received);
+                }
+            }
+        }
+    }
+
+    private List<LibraryFixture.Track> findTracks(Command command) {
+        if (command.tagged.containsKey("album_id")) {
+            LibraryFixture.Album album = library.getAlbum(command.getTag("album_id", 0));
+            return album == null ? new ArrayList<LibraryFixture.Track>() : album.tracks;
+        } else if (command.tagged.containsKey("artist_id")) {
+            return orEmpty(tracksByArtist.get(command.getTag("artist_id", 0)));
+        } else if (command.tagged.containsKey("genre_id")) {
+            return orEmpty(tracksByGenre.get(command.getTag("genre_id", 0)));
+        }
+        return library.getTracks();
+    }
+
+    private List<LibraryFixture.Album> findAlbums(Command command) {
+        if (command.tagged.containsKey("artist_id")) {
+            return orEmpty(albumsByArtist.get(command.getTag("artist_id", 0)));
+        } else if (command.tagged.containsKey("genre_id")) {
+            return orEmpty(albumsByGenre.get(command.getTag("genre_id", 0)));
+        }
+        return library.getAlbums();
+    }
+
+    private static <T> List<T> orEmpty(List<T> list) {
+        return list == null ? new ArrayList<T>() : list;
+    }
+
+    /**
+     * A connection from a client.  Commands are read on the connection's own thread, and responses and events
+     * are written by a scheduler once their delay is up.
+     */
+    private class ClientConnection extends Thread {
+        private final Socket socket;
+        private final OutputStream output;
+        private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor();
+
+        volatile boolean listening = false;
+        /**
+         * The echo of the <code>status</code> command each subscribed player was subscribed with
+         */
+        final Map<String, String> statusSubscriptions = new ConcurrentHashMap<String, String>();
+        volatile boolean authenticated = false;
+
+        /**
+         * When the last write is due.  Writes are never scheduled before it, so lines go out in order.
+         */
+        private long lastDue = 0;
+
+        ClientConnection(Socket socket) throws IOException {
+            super("FakeSqueezeServer connection " + socket.getPort());
+            setDaemon(true);
+            this.socket = socket;
+            this.output = socket.getOutputStream();
+        }
+
+        @Override
+        public void run() {
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    long received = System.nanoTime();
+                    String response = execute(this, line, received);
+                    if (response == null) {
+                        break;
+                    }
+                    commandCount.incrementAndGet();
+                    write(response, received);
+                }
+            } catch (IOException e) {
+                //Client went away
+            }
+            //Let anything already scheduled go out first
+            try {
+                writer.execute(new Runnable() {
+                    public void run() {
+                        close();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                //Already closed
+            }
+        }
+
+        void write(final String line, long received) {
+            long due;
+            synchronized (writer) {
+                due = Math.max(received + nextDelayNanos(), lastDue);
+                lastDue = due;
+            }
+            try {
+                writer.schedule(new Runnable() {
+                    public void run() {
+                        try {
+                            output.write((line + "\n").getBytes("UTF-8"));
+                            output.flush();
+                        } catch (IOException e) {
+                            close();
+                        }
+                    }
+                }, due - System.nanoTime(), TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                //Already closed
+            }
+        }
+
+        void close() {
+            connections.remove(this);
+            writer.shutdownNow();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                //Closing anyway
+            }
+        }
+    }
+}
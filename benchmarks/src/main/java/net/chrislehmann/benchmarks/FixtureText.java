@@ -0,0 +1,57 @@
+package net.chrislehmann.benchmarks;
+
+import java.util.Random;
+
+/**
+ * Generates text that looks like the names in a music library.
+ *
+ * @author lehmanc
+ */
+public class FixtureText {
+
+    private static final String[] WORDS = {
+            "love", "night", "blue", "the", "of", "song", "heart", "river", "live", "remastered", "dream", "city"
+    };
+    private static final String[] LATIN = {
+            "café", "über", "señor", "garçon", "björk", "déjà", "où", "smørrebrød", "élan", "müde"
+    };
+    private static final String[] CJK = {
+            "東京", "音楽", "夜", "愛して", "さくら", "사랑", "노래", "星空", "北京"
+    };
+    private static final String[] SUPPLEMENTARY = {
+            "🎵", "🔥", "🌙", "𝄞", "💜"
+    };
+    private static final String PUNCTUATION = "&/:?()'-,.#";
+
+    private FixtureText() {
+    }
+
+    /**
+     * Returns roughly length characters of text of the given kind
+     *
+     * @param kind one of plain, ascii, latin, cjk or supplementary
+     */
+    public static String randomText(Random random, String kind, int length) {
+        StringBuilder text = new StringBuilder(length + 16);
+        while (text.length() < length) {
+            if ("plain".equals(kind)) {
+                text.append(WORDS[random.nextInt(WORDS.length)]);
+                continue;
+            }
+            if (text.length() > 0) {
+                text.append(random.nextInt(6) == 0 ? PUNCTUATION.charAt(random.nextInt(PUNCTUATION.length())) : ' ');
+            }
+            int choice = random.nextInt(3);
+            if (choice == 0 && "latin".equals(kind)) {
+                text.append(LATIN[random.nextInt(LATIN.length)]);
+            } else if (choice == 0 && "cjk".equals(kind)) {
+                text.append(CJK[random.nextInt(CJK.length)]);
+            } else if (choice == 0 && "supplementary".equals(kind)) {
+                text.append(SUPPLEMENTARY[random.nextInt(SUPPLEMENTARY.length)]);
+            } else {
+                text.append(WORDS[random.nextInt(WORDS.length)]);
+            }
+        }
+        return text.toString();
+    }
+}
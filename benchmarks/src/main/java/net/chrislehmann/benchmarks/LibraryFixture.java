@@ -0,0 +1,529 @@
+package net.chrislehmann.benchmarks;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A generated music library and the SqueezeCenter CLI responses for it.  The responses follow the format of
+ * a 7.x server (tag order, escaping, double escaped urls, the player fields in <code>status</code>), so the
+ * parsers see the same shapes they see on a phone.  The library is generated from a fixed seed, so every run
+ * of a benchmark works on exactly the same text.
+ * <p/>
+ * Every album has ten tracks, there is an artist for every fifty tracks and twenty genres.  Most titles are
+ * plain ascii, with some accented, CJK and non-BMP names mixed in.
+ *
+ * @author lehmanc
+ */
+public class LibraryFixture {
+
+    public static final String SONG_TAGS = "aslepPdxKJu";
+    public static final int TRACKS_PER_ALBUM = 10;
+    public static final int TRACKS_PER_ARTIST = 50;
+    public static final int FOLDER_ID_OFFSET = 1000000;
+
+    private static final String[] GENRES = {
+            "Rock", "Pop", "Jazz", "Blues", "Classical", "Electronic", "Hip-Hop", "Folk", "Country", "Reggae",
+            "Soul", "Funk", "Metal", "Punk", "Ambient", "Soundtrack", "World", "Latin", "R&B", "Indie"
+    };
+    private static final String[] PLAYER_NAMES = {
+            "Kitchen", "Living Room", "Bedroom", "Office", "Garage", "Patio", "Bathroom", "Kids' Room"
+    };
+    private static final String[] APPS = {
+            "Pandora", "Last.fm", "Napster", "Slacker", "MP3tunes", "Live365", "RadioIO", "Shoutcast",
+            "Picks", "Podcasts", "Flickr", "Facebook"
+    };
+
+    public static class Artist {
+        public final int id;
+        public final String name;
+
+        Artist(int id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    public static class Genre {
+        public final int id;
+        public final String name;
+
+        Genre(int id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    public static class Album {
+        public final int id;
+        public final String title;
+        public final Artist artist;
+        public final Genre genre;
+        public final List<Track> tracks = new ArrayList<Track>();
+
+        Album(int id, String title, Artist artist, Genre genre) {
+            this.id = id;
+            this.title = title;
+            this.artist = artist;
+            this.genre = genre;
+        }
+    }
+
+    public static class Track {
+        public final int id;
+        public final String title;
+        public final Album album;
+        public final int trackNumber;
+        public final int duration;
+        public final String url;
+
+        Track(int id, String title, Album album, int trackNumber, int duration) {
+            this.id = id;
+            this.title = title;
+            this.album = album;
+            this.trackNumber = trackNumber;
+            this.duration = duration;
+            this.url = "file:///music/" + escape(album.artist.name) + "/" + escape(album.title) + "/"
+                    + (trackNumber < 10 ? "0" : "") + trackNumber + "%20" + escape(title) + ".flac";
+        }
+    }
+
+    public static class Player {
+        public final String id;
+        public final String name;
+        public final String ip;
+
+        public String mode = "stop";
+        public int time = 0;
+        public int volume = 50;
+        public int repeat = 0;
+        public int shuffle = 0;
+        public int currentIndex = 0;
+        public final List<Track> playlist = new ArrayList<Track>();
+
+        Player(String id, String name, String ip) {
+            this.id = id;
+            this.name = name;
+            this.ip = ip;
+        }
+    }
+
+    private final List<Track> tracks = new ArrayList<Track>();
+    private final List<Album> albums = new ArrayList<Album>();
+    private final List<Artist> artists = new ArrayList<Artist>();
+    private final List<Genre> genres = new ArrayList<Genre>();
+    private final List<Player> players = new ArrayList<Player>();
+    private final Map<Integer, Track> tracksById = new HashMap<Integer, Track>();
+
+    public LibraryFixture(int trackCount) {
+        this(trackCount, 3, 42);
+    }
+
+    public LibraryFixture(int trackCount, int playerCount, long seed) {
+        Random random = new Random(seed);
+
+        for (int i = 0; i < GENRES.length; i++) {
+            genres.add(new Genre(i + 1, GENRES[i]));
+        }
+        int artistCount = Math.max(1, trackCount / TRACKS_PER_ARTIST);
+        for (int i = 0; i < artistCount; i++) {
+            artists.add(new Artist(i + 1, randomName(random, 2 + random.nextInt(14))));
+        }
+
+        Album album = null;
+        for (int i = 0; i < trackCount; i++) {
+            if (i % TRACKS_PER_ALBUM == 0) {
+                album = new Album(albums.size() + 1, randomName(random, 4 + random.nextInt(24)),
+                        artists.get(random.nextInt(artists.size())), genres.get(random.nextInt(genres.size())));
+                albums.add(album);
+            }
+            Track track = new Track(i + 1, randomName(random, 4 + random.nextInt(30)), album, album.tracks.size() + 1,
+                    90 + random.nextInt(400));
+            album.tracks.add(track);
+            tracks.add(track);
+            tracksById.put(track.id, track);
+        }
+
+        for (int i = 0; i < playerCount; i++) {
+            Player player = new Player(String.format(Locale.US, "00:04:20:12:%02x:%02x", i / 256, i % 256),
+                    PLAYER_NAMES[i % PLAYER_NAMES.length] + (i >= PLAYER_NAMES.length ? " " + (i / PLAYER_NAMES.length + 1) : ""),
+                    "192.168.1." + (20 + i % 200) + ":3483");
+            if (!tracks.isEmpty()) {
+                int start = random.nextInt(tracks.size());
+                for (int j = 0; j < 20; j++) {
+                    player.playlist.add(tracks.get((start + j) % tracks.size()));
+                }
+                player.currentIndex = random.nextInt(player.playlist.size());
+                player.mode = i % 2 == 0 ? "play" : "pause";
+                player.time = random.nextInt(90);
+            }
+            players.add(player);
+        }
+    }
+
+    private static String randomName(Random random, int length) {
+        int kind = random.nextInt(100);
+        String text = kind < 75 ? "ascii" : kind < 92 ? "latin" : kind < 98 ? "cjk" : "supplementary";
+        String name = FixtureText.randomText(random, text, length);
+        return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+
+    /**
+     * Escapes a value the way the server does (URI::Escape): everything but letters, digits and
+     * <code>-_.!~*'()</code> is written as upper case %XX escapes of its UTF-8 bytes.
+     */
+    public static String escape(String value) {
+        byte[] bytes;
+        try {
+            bytes = value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        StringBuilder escaped = new StringBuilder(bytes.length + 16);
+        for (byte b : bytes) {
+            int c = b & 0xff;
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || "-_.!~*'()".indexOf(c) >= 0) {
+                escaped.append((char) c);
+            } else {
+                escaped.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+                        .append(Character.toUpperCase(Character.forDigit(c & 0xf, 16)));
+            }
+        }
+        return escaped.toString();
+    }
+
+    public List<Track> getTracks() {
+        return Collections.unmodifiableList(tracks);
+    }
+
+    public List<Album> getAlbums() {
+        return Collections.unmodifiableList(albums);
+    }
+
+    public List<Artist> getArtists() {
+        return Collections.unmodifiableList(artists);
+    }
+
+    public List<Genre> getGenres() {
+        return Collections.unmodifiableList(genres);
+    }
+
+    public List<Player> getPlayers() {
+        return Collections.unmodifiableList(players);
+    }
+
+    public Track getTrack(int id) {
+        return tracksById.get(id);
+    }
+
+    public Album getAlbum(int id) {
+        return id > 0 && id <= albums.size() ? albums.get(id - 1) : null;
+    }
+
+    public Player getPlayer(String id) {
+        for (Player player : players) {
+            if (player.id.equals(id)) {
+                return player;
+            }
+        }
+        return null;
+    }
+
+    //
+    // Convenience methods returning the response to the command the app sends
+    //
+
+    public String titles(int start, int count) {
+        return titlesResponse("titles " + start + " " + count + " tags%3A" + SONG_TAGS, tracks, start, count);
+    }
+
+    public String albums(int start, int count) {
+        return albumsResponse("albums " + start + " " + count + " tags%3Alaj", albums, start, count);
+    }
+
+    public String artists(int start, int count) {
+        return artistsResponse("artists " + start + " " + count, artists, start, count);
+    }
+
+    public String genres(int start, int count) {
+        return genresResponse("genres " + start + " " + count, start, count);
+    }
+
+    public String players(int start, int count) {
+        return playersResponse("players " + start + " " + count, start, count);
+    }
+
+    public String status(Player player, int start, int count) {
+        return statusResponse(escape(player.id) + " status " + (start < 0 ? "-" : String.valueOf(start)) + " " + count + " tags%3A" + SONG_TAGS,
+                player, start, count);
+    }
+
+    public String search(String term, int count) {
+        return searchResponse("search 0 " + count + " term%3A" + escape(term), term, count);
+    }
+
+    public String musicFolder(int start, int count) {
+        return musicFolderResponse("musicfolder " + start + " " + count, 0, start, count);
+    }
+
+    public String apps(int start, int count) {
+        return appsResponse("apps " + start + " " + count, start, count);
+    }
+
+    public String playlists(int start, int count) {
+        return playlistsResponse("playlists " + start + " " + count, start, count);
+    }
+
+    public String appItems(Player player, String cmd, int start, int count) {
+        return appItemsResponse(escape(player.id) + " " + cmd + " items " + start + " " + count, start, count);
+    }
+
+    //
+    // Responses for any echo
+    //
+
+    /**
+     * Like the server's <code>titles</code>, the count comes after the records
+     */
+    public String titlesResponse(String echo, List<Track> items, int start, int count) {
+        StringBuilder response = new StringBuilder(echo);
+        for (int i = start; i < Math.min(items.size(), start + count); i++) {
+            appendSong(response, items.get(i));
+        }
+        return response.append(" count%3A").append(items.size()).toString();
+    }
+
+    public String albumsResponse(String echo, List<Album> items, int start, int count) {
+        StringBuilder response = new StringBuilder(echo).append(" count%3A").append(items.size());
+        for (int i = start; i < Math.min(items.size(), start + count); i++) {
+            Album album = items.get(i);
+            response.append(" id%3A").append(album.id)
+                    .append(" album%3A").append(escape(album.title))
+                    .append(" artwork_track_id%3A").append(album.tracks.get(0).id)
+                    .append(" artist%3A").append(escape(album.artist.name));
+        }
+        return response.toString();
+    }
+
+    /**
+     * The count comes after the records, as the server does for some commands
+     */
+    public String artistsResponse(String echo, List<Artist> items, int start, int count) {
+        StringBuilder response = new StringBuilder(echo);
+        for (int i = start; i < Math.min(items.size(), start + count); i++) {
+            Artist artist = items.get(i);
+            response.append(" id%3A").append(artist.id).append(" artist%3A").append(escape(artist.name));
+        }
+        return response.append(" count%3A").append(items.size()).toString();
+    }
+
+    public String genresResponse(String echo, int start, int count) {
+        StringBuilder response = new StringBuilder(echo).append(" count%3A").append(genres.size());
+        for (int i = start; i < Math.min(genres.size(), start + count); i++) {
+            Genre genre = genres.get(i);
+            response.append(" id%3A").append(genre.id).append(" genre%3A").append(escape(genre.name));
+        }
+        return response.toString();
+    }
+
+    public String playersResponse(String echo, int start, int count) {
+        StringBuilder response = new StringBuilder(echo).append(" count%3A").append(players.size());
+        for (int i = start; i < Math.min(players.size(), start + count); i++) {
+            Player player = players.get(i);
+            response.append(" playerindex%3A").append(i)
+                    .append(" playerid%3A").append(escape(player.id))
+                    .append(" uuid%3A").append(String.format(Locale.US, "%032x", player.id.hashCode() & 0xffffffffL))
+                    .append(" ip%3A").append(escape(player.ip))
+                    .append(" name%3A").append(escape(player.name))
+                    .append(" model%3Areceiver displaytype%3Anone canpoweroff%3A1")
+                    .append(" connected%3A1 isplaying%3A").append("play".equals(player.mode) ? 1 : 0)
+                    .append(" power%3A1");
+        }
+        return response.toString();
+    }
+
+    /**
+     * Response to <code>status</code>.  A negative start means '-', which returns just the current song.
+     */
+    public String statusResponse(String echo, Player player, int start, int count) {
+        StringBuilder response = new StringBuilder(echo);
+        response.append(" player_name%3A").append(escape(player.name))
+                .append(" player_connected%3A1 player_ip%3A").append(escape(player.ip))
+                .append(" power%3A1 signalstrength%3A0")
+                .append(" mode%3A").append(player.mode);
+        if (!player.playlist.isEmpty()) {
+            Track current = player.playlist.get(player.currentIndex);
+            response.append(" time%3A").append(player.time).append(".").append(player.time % 10)
+                    .append(" rate%3A1 duration%3A").append(current.duration).append(" can_seek%3A1");
+        }
+        response.append(" mixer%20volume%3A").append(player.volume)
+                .append(" playlist%20repeat%3A").append(player.repeat)
+                .append(" playlist%20shuffle%3A").append(player.shuffle)
+                .append(" playlist%20mode%3Aoff seq_no%3A0");
+        if (!player.playlist.isEmpty()) {
+            response.append(" playlist_cur_index%3A").append(player.currentIndex)
+                    .append(" playlist_timestamp%3A1285012345.123");
+        }
+        response.append(" playlist_tracks%3A").append(player.playlist.size());
+
+        int first = start < 0 ? player.currentIndex : start;
+        int last = start < 0 ? Math.min(player.playlist.size(), first + 1) : Math.min(player.playlist.size(), start + count);
+        for (int i = first; i < last; i++) {
+            response.append(" playlist%20index%3A").append(i);
+            appendSong(response, player.playlist.get(i));
+        }
+        return response.toString();
+    }
+
+    public String searchResponse(String echo, String term, int count) {
+        String lowerTerm = term.toLowerCase(Locale.US);
+        List<Artist> matchingArtists = new ArrayList<Artist>();
+        for (Artist artist : artists) {
+            if (artist.name.toLowerCase(Locale.US).contains(lowerTerm)) {
+                matchingArtists.add(artist);
+            }
+        }
+        List<Album> matchingAlbums = new ArrayList<Album>();
+        for (Album album : albums) {
+            if (album.title.toLowerCase(Locale.US).contains(lowerTerm)) {
+                matchingAlbums.add(album);
+            }
+        }
+        List<Genre> matchingGenres = new ArrayList<Genre>();
+        for (Genre genre : genres) {
+            if (genre.name.toLowerCase(Locale.US).contains(lowerTerm)) {
+                matchingGenres.add(genre);
+            }
+        }
+        List<Track> matchingTracks = new ArrayList<Track>();
+        for (Track track : tracks) {
+            if (track.title.toLowerCase(Locale.US).contains(lowerTerm)) {
+                matchingTracks.add(track);
+            }
+        }
+
+        StringBuilder response = new StringBuilder(echo).append(" count%3A")
+                .append(matchingArtists.size() + matchingAlbums.size() + matchingGenres.size() + matchingTracks.size());
+        if (!matchingArtists.isEmpty()) {
+            response.append(" contributors_count%3A").append(matchingArtists.size());
+            for (int i = 0; i < Math.min(count, matchingArtists.size()); i++) {
+                response.append(" contributor_id%3A").append(matchingArtists.get(i).id)
+                        .append(" contributor%3A").append(escape(matchingArtists.get(i).name));
+            }
+        }
+        if (!matchingAlbums.isEmpty()) {
+            response.append(" albums_count%3A").append(matchingAlbums.size());
+            for (int i = 0; i < Math.min(count, matchingAlbums.size()); i++) {
+                response.append(" album_id%3A").append(matchingAlbums.get(i).id)
+                        .append(" album%3A").append(escape(matchingAlbums.get(i).title));
+            }
+        }
+        if (!matchingGenres.isEmpty()) {
+            response.append(" genres_count%3A").append(matchingGenres.size());
+            for (int i = 0; i < Math.min(count, matchingGenres.size()); i++) {
+                response.append(" genre_id%3A").append(matchingGenres.get(i).id)
+                        .append(" genre%3A").append(escape(matchingGenres.get(i).name));
+            }
+        }
+        if (!matchingTracks.isEmpty()) {
+            response.append(" tracks_count%3A").append(matchingTracks.size());
+            for (int i = 0; i < Math.min(count, matchingTracks.size()); i++) {
+                response.append(" track_id%3A").append(matchingTracks.get(i).id)
+                        .append(" track%3A").append(escape(matchingTracks.get(i).title));
+            }
+        }
+        return response.toString();
+    }
+
+    /**
+     * Response to <code>musicfolder</code>.  The top level has a folder per album, folder ids are the album id
+     * plus {@link #FOLDER_ID_OFFSET}.
+     */
+    public String musicFolderResponse(String echo, int folderId, int start, int count) {
+        StringBuilder response = new StringBuilder(echo);
+        if (folderId >= FOLDER_ID_OFFSET && folderId - FOLDER_ID_OFFSET <= albums.size()) {
+            List<Track> items = albums.get(folderId - FOLDER_ID_OFFSET - 1).tracks;
+            response.append(" count%3A").append(items.size());
+            for (int i = start; i < Math.min(items.size(), start + count); i++) {
+                Track track = items.get(i);
+                response.append(" id%3A").append(track.id)
+                        .append(" filename%3A").append(escape((track.trackNumber < 10 ? "0" : "") + track.trackNumber + " " + track.title + ".flac"))
+                        .append(" type%3Atrack");
+            }
+        } else {
+            response.append(" count%3A").append(albums.size());
+            for (int i = start; i < Math.min(albums.size(), start + count); i++) {
+                Album album = albums.get(i);
+                response.append(" id%3A").append(FOLDER_ID_OFFSET + album.id)
+                        .append(" filename%3A").append(escape(album.title))
+                        .append(" type%3Afolder");
+            }
+        }
+        return response.toString();
+    }
+
+    public String appsResponse(String echo, int start, int count) {
+        StringBuilder response = new StringBuilder(echo).append(" count%3A").append(APPS.length);
+        for (int i = start; i < Math.min(APPS.length, start + count); i++) {
+            String cmd = APPS[i].toLowerCase(Locale.US).replaceAll("[^a-z0-9]", "");
+            response.append(" icon%3A").append(escape("plugins/" + cmd + "/html/images/icon.png"))
+                    .append(" cmd%3A").append(cmd)
+                    .append(" weight%3A").append(10 * i)
+                    .append(" name%3A").append(escape(APPS[i]))
+                    .append(" type%3A").append(i % 4 == 3 ? "opml" : "xmlbrowser");
+        }
+        return response.toString();
+    }
+
+    /**
+     * Response to <code>playlists</code>.  There is a saved playlist for every album, named after it.
+     */
+    public String playlistsResponse(String echo, int start, int count) {
+        StringBuilder response = new StringBuilder(echo).append(" count%3A").append(albums.size());
+        for (int i = start; i < Math.min(albums.size(), start + count); i++) {
+            response.append(" id%3A").append(albums.get(i).id + FOLDER_ID_OFFSET)
+                    .append(" playlist%3A").append(escape(albums.get(i).title));
+        }
+        return response.toString();
+    }
+
+    /**
+     * Response to <code>&lt;app&gt; items</code>.  The menu has an entry for every track, like a large
+     * podcast or station list.
+     */
+    public String appItemsResponse(String echo, int start, int count) {
+        StringBuilder response = new StringBuilder(echo).append(" title%3A").append(escape("Stations"))
+                .append(" count%3A").append(tracks.size());
+        for (int i = start; i < Math.min(tracks.size(), start + count); i++) {
+            Track track = tracks.get(i);
+            response.append(" id%3A").append(Integer.toHexString(track.album.id)).append('.').append(track.trackNumber)
+                    .append(" name%3A").append(escape(track.title))
+                    .append(" type%3Aaudio")
+                    .append(" image%3A").append(escape("http://images.example.com/" + track.album.id + ".jpg"))
+                    .append(" isaudio%3A1 hasitems%3A0");
+        }
+        return response.toString();
+    }
+
+    /**
+     * Appends the record for a single song, with the tags in {@link #SONG_TAGS}
+     */
+    public void appendSong(StringBuilder response, Track track) {
+        Album album = track.album;
+        response.append(" id%3A").append(track.id)
+                .append(" title%3A").append(escape(track.title))
+                .append(" artist%3A").append(escape(album.artist.name))
+                .append(" artist_id%3A").append(album.artist.id)
+                .append(" album%3A").append(escape(album.title))
+                .append(" album_id%3A").append(album.id)
+                .append(" genre%3A").append(escape(album.genre.name))
+                .append(" duration%3A").append(track.duration).append(".").append(track.id % 1000)
+                .append(" artwork_track_id%3A").append(album.tracks.get(0).id)
+                .append(" url%3A").append(escape(track.url));
+    }
+}
@@ -0,0 +1,136 @@
+package net.chrislehmann.squeezedroid.service;
+
+import net.chrislehmann.benchmarks.LibraryFixture;
+import net.chrislehmann.squeezedroid.model.PlayerStatus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes a batch of event lines through {@link EventThread#handleEvent(String)}: matching the line, applying it to
+ * the status of the player, looking up the handlers for the player and calling them.  The status the thread loads
+ * for events it can't apply (new songs, players that reconnect) is either a fixed object (<code>cached</code>, just
+ * the matching and dispatch) or parsed from a status response (<code>parsed</code>, what the app pays for those
+ * events apart from the round trip to the server).
+ *
+ * @author lehmanc
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventMatchingBenchmark {
+
+    private static final int BATCH_SIZE = 1024;
+    private static final int PLAYERS = 8;
+
+    @Param({"cached", "parsed"})
+    public String statusUpdate;
+
+    private String[] events;
+    private BenchmarkEventThread eventThread;
+    private int callbacks;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        LibraryFixture library = new LibraryFixture(1000, PLAYERS, 42);
+
+        final CliSqueezeService service = new CliSqueezeService("localhost", 9090, 9000);
+        final String statusResponse = library.status(library.getPlayers().get(0), -1, 1);
+        final PlayerStatus status = service.parsePlayerStatus(statusResponse);
+        eventThread = new BenchmarkEventThread("parsed".equals(statusUpdate) ? service : null, statusResponse, status);
+        //Load the status as soon as it is needed, so the batch measures all of the work
+        eventThread.setCoalescingWindowMillis(0);
+
+        //Half of the players have a couple of screens listening to them, the rest have nobody
+        PlayerStatusHandler handler = new SimplePlayerStatusHandler() {
+            public void onTimeChanged(int newPosition) {
+                callbacks += newPosition;
+            }
+
+            public void onVolumeChanged(int newVolume) {
+                callbacks += newVolume;
+            }
+
+            public void onSongChanged(PlayerStatus status) {
+                callbacks += status.getCurrentIndex();
+            }
+        };
+        for (int i = 0; i < PLAYERS / 2; i++) {
+            eventThread.subscribe(library.getPlayers().get(i).id, handler);
+            eventThread.subscribe(library.getPlayers().get(i).id, new SimplePlayerStatusHandler());
+        }
+
+        events = new String[BATCH_SIZE];
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            LibraryFixture.Player player = library.getPlayers().get(random.nextInt(PLAYERS));
+            events[i] = LibraryFixture.escape(player.id) + " " + randomEvent(random, library);
+        }
+    }
+
+    /**
+     * Mostly time updates, the way a playing server sends them
+     */
+    private String randomEvent(Random random, LibraryFixture library) {
+        int kind = random.nextInt(100);
+        if (kind < 60) {
+            return "time " + random.nextInt(400) + "." + random.nextInt(10);
+        } else if (kind < 75) {
+            return "mixer volume " + random.nextInt(100);
+        } else if (kind < 85) {
+            LibraryFixture.Track track = library.getTracks().get(random.nextInt(library.getTracks().size()));
+            return "playlist newsong " + LibraryFixture.escape(track.title) + " " + random.nextInt(20);
+        } else if (kind < 90) {
+            return "pause " + random.nextInt(2);
+        } else if (kind < 95) {
+            return "playlist shuffle " + random.nextInt(3);
+        } else if (kind < 98) {
+            return "client reconnect";
+        }
+        return "sync -";
+    }
+
+    @Benchmark
+    public int handleEvents() {
+        for (String event : events) {
+            eventThread.handleEvent(event);
+        }
+        return callbacks;
+    }
+
+    /**
+     * Event thread that never connects.  The status is either fixed or parsed from a canned response.
+     */
+    static class BenchmarkEventThread extends EventThread {
+        private final CliSqueezeService service;
+        private final String statusResponse;
+        private final PlayerStatus status;
+
+        BenchmarkEventThread(CliSqueezeService service, String statusResponse, PlayerStatus status) {
+            super("localhost", 9090);
+            this.service = service;
+            this.statusResponse = statusResponse;
+            this.status = status;
+        }
+
+        @Override
+        protected void updateStatus(String playerId) {
+            statusLoaded(playerId, service == null ? status : service.parsePlayerStatus(statusResponse));
+        }
+    }
+}
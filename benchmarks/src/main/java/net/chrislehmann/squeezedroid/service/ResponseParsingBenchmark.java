@@ -0,0 +1,162 @@
+package net.chrislehmann.squeezedroid.service;
+
+import net.chrislehmann.benchmarks.LegacySerializationUtils;
+import net.chrislehmann.benchmarks.LibraryFixture;
+import net.chrislehmann.squeezedroid.model.Song;
+import net.chrislehmann.util.SerializationUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parses full size CLI responses with the {@link SerializationUtils.Unserializer}s in {@link CliSqueezeService}.
+ * Each list response holds the whole (generated) library, as if the app paged through it with one huge page,
+ * so the score divided by the number of records gives the cost per record.
+ * <p/>
+ * <code>songsLegacyRegex</code> parses the same titles response with the regular expression the service used
+ * before the tokenizer, as a baseline.
+ *
+ * @author lehmanc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+public class ResponseParsingBenchmark {
+
+    private static final Pattern LEGACY_SONGS_PATTERN = Pattern
+            .compile(" id%3A([^ ]*) .*?title%3A([^ ]*) .*?(artist%3A([^ ]*) )*.*?(artist_id%3A([^ ]*) )*.*?(album%3A([^ ]*) )*.*?(album_id%3A([^ ]*) )*.*?duration%3A([^ ]*).*?( remote%3A([^ ]*))*.*?( artwork_url%3A([^ ]*))*.*?( artwork_track_id%3A([^ ]*))*.*?( url%3A([^ ]*))*");
+
+    @Param({"1000", "10000", "100000"})
+    public int tracks;
+
+    private CliSqueezeService service;
+
+    private String titles;
+    private String albums;
+    private String artists;
+    private String genres;
+    private String folders;
+    private String playlists;
+    private String players;
+    private String apps;
+    private String appItems;
+    private String status;
+    private String search;
+
+    private Application application;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        service = new CliSqueezeService("localhost", 9090, 9000);
+
+        LibraryFixture library = new LibraryFixture(tracks, 8, 42);
+        LibraryFixture.Player player = library.getPlayers().get(0);
+        titles = library.titles(0, tracks);
+        albums = library.albums(0, tracks);
+        artists = library.artists(0, tracks);
+        genres = library.genres(0, tracks);
+        folders = library.musicFolder(0, tracks);
+        playlists = library.playlists(0, tracks);
+        players = library.players(0, tracks);
+        apps = library.apps(0, tracks);
+        appItems = library.appItems(player, "podcast", 0, tracks);
+        status = library.status(player, -1, 1);
+        //A single letter matches a good part of the library
+        search = library.search("a", tracks);
+
+        application = new Application();
+        application.setCmd("podcast");
+    }
+
+    @Benchmark
+    public Object songs() {
+        return SerializationUtils.unserializeList(titles, "id", service.songUnserializer);
+    }
+
+    @Benchmark
+    public Object songsLegacyRegex() {
+        List<Song> songs = new ArrayList<Song>();
+        Matcher matcher = LEGACY_SONGS_PATTERN.matcher(titles);
+        while (matcher.find()) {
+            Song song = new Song();
+            song.setId(matcher.group(1));
+            song.setName(LegacySerializationUtils.decode(matcher.group(2)));
+            song.setArtist(LegacySerializationUtils.decode(matcher.group(4)));
+            song.setArtistId(LegacySerializationUtils.decode(matcher.group(6)));
+            song.setAlbum(LegacySerializationUtils.decode(matcher.group(8)));
+            song.setAlbumId(LegacySerializationUtils.decode(matcher.group(10)));
+            song.setServerPath(LegacySerializationUtils.decode(matcher.group(19)));
+            song.setDurationInSeconds((int) Float.parseFloat(matcher.group(11)));
+            songs.add(song);
+        }
+        return songs;
+    }
+
+    @Benchmark
+    public Object albums() {
+        return SerializationUtils.unserializeList(albums, "id", service.albumUnserializer);
+    }
+
+    @Benchmark
+    public Object artists() {
+        return SerializationUtils.unserializeList(artists, "id", service.artistUnserializer);
+    }
+
+    @Benchmark
+    public Object genres() {
+        return SerializationUtils.unserializeList(genres, "id", service.genreUnserializer);
+    }
+
+    @Benchmark
+    public Object folders() {
+        return SerializationUtils.unserializeList(folders, "id", service.folderUnserializer);
+    }
+
+    @Benchmark
+    public Object playlists() {
+        return SerializationUtils.unserializeList(playlists, "id", service.playlistUnserializer);
+    }
+
+    @Benchmark
+    public Object players() {
+        return SerializationUtils.unserializeList(players, "playerid", service.playerUnserializer);
+    }
+
+    @Benchmark
+    public Object applications() {
+        return SerializationUtils.unserializeList(apps, "icon", service.applicationUnserializer);
+    }
+
+    @Benchmark
+    public Object applicationItems() {
+        return SerializationUtils.unserializeList(appItems, "id", service.createApplicationItemUnserializer(application));
+    }
+
+    @Benchmark
+    public Object playerStatus() {
+        return service.parsePlayerStatus(status);
+    }
+
+    @Benchmark
+    public Object searchResult() {
+        return service.parseSearchResult(search);
+    }
+}
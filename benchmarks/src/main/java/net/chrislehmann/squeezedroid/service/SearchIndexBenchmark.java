@@ -0,0 +1,95 @@
+package net.chrislehmann.squeezedroid.service;
+
+import net.chrislehmann.benchmarks.LibraryFixture;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Searches a {@link SearchIndex} of the (generated) library the way search as you type does, 50 results of each
+ * kind.  <code>letter</code> is the first letter typed, which matches a good part of the library, <code>word</code>
+ * and <code>words</code> are the start of the name of a track in the middle of the library and
+ * <code>infix</code> the middle of one of its words.  <code>build</code> indexes the whole library.
+ *
+ * @author lehmanc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+public class SearchIndexBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int tracks;
+
+    private LibraryFixture library;
+    private SearchIndex index;
+
+    private String letter;
+    private String word;
+    private String words;
+    private String infix;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        library = new LibraryFixture(tracks, 1, 42);
+        index = build();
+
+        String[] name = SearchIndex.normalize(library.getTracks().get(tracks / 2).title).substring(1).split(" ");
+        letter = name[0].substring(0, 1);
+        word = name[0].substring(0, Math.min(4, name[0].length()));
+        words = name.length > 1 ? name[0] + " " + name[1].substring(0, 1) : name[0];
+        infix = name[0].length() > 4 ? name[0].substring(1, name[0].length() - 1) : name[0];
+    }
+
+    @Benchmark
+    public SearchIndex build() {
+        SearchIndex.Builder builder = new SearchIndex.Builder();
+        for (LibraryFixture.Genre genre : library.getGenres()) {
+            builder.addGenre(String.valueOf(genre.id), genre.name);
+        }
+        for (LibraryFixture.Artist artist : library.getArtists()) {
+            builder.addArtist(String.valueOf(artist.id), artist.name);
+        }
+        for (LibraryFixture.Album album : library.getAlbums()) {
+            builder.addAlbum(String.valueOf(album.id), album.title);
+        }
+        for (LibraryFixture.Track track : library.getTracks()) {
+            builder.addSong(String.valueOf(track.id), track.title);
+        }
+        return builder.build();
+    }
+
+    @Benchmark
+    public Object letter() {
+        return index.search(letter, 50);
+    }
+
+    @Benchmark
+    public Object word() {
+        return index.search(word, 50);
+    }
+
+    @Benchmark
+    public Object words() {
+        return index.search(words, 50);
+    }
+
+    @Benchmark
+    public Object infix() {
+        return index.search(infix, 50);
+    }
+}
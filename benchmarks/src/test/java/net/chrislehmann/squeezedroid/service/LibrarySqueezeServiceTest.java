@@ -0,0 +1,57 @@
+package net.chrislehmann.squeezedroid.service;
+
+import android.content.Context;
+import net.chrislehmann.squeezedroid.exception.ApplicationException;
+import net.chrislehmann.squeezedroid.model.BrowseResult;
+import net.chrislehmann.squeezedroid.model.Genre;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author lehmanc
+ */
+public class LibrarySqueezeServiceTest {
+
+    @Test
+    public void constructs() {
+        CliSqueezeService server = new CliSqueezeService("localhost", 9090, 9000);
+        LibraryDatabase database = new LibraryDatabase(new Context(), "localhost", "http://localhost:9000");
+
+        LibrarySqueezeService service = new LibrarySqueezeService(server, database);
+
+        assertSame(server, service.getService());
+        assertNotNull(service.getAsyncService());
+        assertNotNull(service.getSync());
+    }
+
+    /**
+     * Until the library has been synced queries go to the server, without opening the database on the caller's thread
+     */
+    @Test
+    public void asksServerUntilSynced() throws Exception {
+        LibraryDatabase database = new LibraryDatabase(new Context(), "localhost", "http://localhost:9000") {
+            @Override
+            public boolean isReady() {
+                throw new AssertionError("Library checked on the caller's thread");
+            }
+        };
+        LibrarySqueezeService service = new LibrarySqueezeService(new CliSqueezeService("localhost", 9090, 9000), database);
+
+        assertFalse(service.isReady());
+        ServiceFuture<BrowseResult<Genre>> genres = service.getAsyncService().browseGenres(null, 0, 10);
+        try {
+            genres.get(1, TimeUnit.SECONDS);
+            fail("Not connected to a server");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ApplicationException);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package net.chrislehmann.util;
+
+import net.chrislehmann.benchmarks.LegacySerializationUtils;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the percent codec against {@link LegacySerializationUtils} on the text the old one handled, and pins down
+ * what it does with the input the old one got wrong.
+ *
+ * @author lehmanc
+ */
+public class SerializationUtilsTest {
+
+    /**
+     * Every character of the basic plane but the surrogates, in chunks so a failure shows where
+     */
+    @Test
+    public void matchesLegacyOnBmpText() {
+        StringBuilder text = new StringBuilder();
+        for (int c = 0; c <= 0xffff; c++) {
+            if (c >= 0xd800 && c <= 0xdfff) {
+                continue;
+            }
+            text.append((char) c);
+            if (text.length() == 256 || c == 0xffff) {
+                assertRoundTrip(text.toString());
+                text.setLength(0);
+            }
+        }
+    }
+
+    @Test
+    public void matchesLegacyOnMixedText() {
+        Random random = new Random(42);
+        String[] words = {"Sigur Rós", "Björk", "坂本龍一", "AC/DC", "50% off", "a+b=c", "€ 10", "tab\there"};
+        for (int i = 0; i < 1000; i++) {
+            StringBuilder text = new StringBuilder();
+            int count = 1 + random.nextInt(8);
+            for (int k = 0; k < count; k++) {
+                text.append(words[random.nextInt(words.length)]).append(' ');
+            }
+            assertRoundTrip(text.toString());
+        }
+    }
+
+    @Test
+    public void encodesSupplementaryCharactersAsFourBytes() {
+        String clef = new String(Character.toChars(0x1d11e));
+        assertEquals("%f0%9d%84%9e", SerializationUtils.encode(clef));
+        assertEquals(clef, SerializationUtils.decode("%f0%9d%84%9e"));
+        assertEquals("a " + clef + " b", SerializationUtils.decode(SerializationUtils.encode("a " + clef + " b")));
+    }
+
+    @Test
+    public void replacesLoneSurrogates() {
+        assertEquals("a%ef%bf%bdb", SerializationUtils.encode("a\ud834b"));
+        assertEquals("a%ef%bf%bd", SerializationUtils.encode("a\udd1e"));
+        assertEquals("a\ufffdb", SerializationUtils.decode(SerializationUtils.encode("a\ud834b")));
+        //A surrogate encoded on its own is not valid UTF-8
+        assertEquals("\ufffd", SerializationUtils.decode("%ed%a0%80"));
+    }
+
+    @Test
+    public void keepsTruncatedEscapes() {
+        assertEquals("100%", SerializationUtils.decode("100%"));
+        assertEquals("a%4", SerializationUtils.decode("a%4"));
+        assertEquals("%zz", SerializationUtils.decode("%zz"));
+        assertEquals("%%", SerializationUtils.decode("%25%"));
+        //A sequence cut short only loses its lead byte, the rest is decoded on its own
+        assertEquals("\ufffd\ufffd", SerializationUtils.decode("%e2%82"));
+        assertEquals("\ufffdx", SerializationUtils.decode("%e2x"));
+    }
+
+    private void assertRoundTrip(String text) {
+        String encoded = SerializationUtils.encode(text);
+        assertEquals("encoding " + text, LegacySerializationUtils.encode(text), encoded);
+        assertEquals("decoding " + encoded, LegacySerializationUtils.decode(encoded), SerializationUtils.decode(encoded));
+        assertEquals("round trip of " + text, text, SerializationUtils.decode(encoded));
+    }
+}
@@ -12,6 +12,9 @@ import android.preference.PreferenceManager;
 import android.util.Log;
 import net.chrislehmann.squeezedroid.service.SqueezeService;
 
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
 
 /**
  * Activity that connects to the server (showing a progress dialog).  If a connection
@@ -55,16 +58,25 @@ public class ConnectToServerActivity extends SqueezedroidActivitySupport {
     private void startConnectionThread() {
         showDialog(DIALOG_CONNECTING);
         Log.d(LOGTAG, "Starting connection thread");
-        _connectionThread = new ConnectionThread();
-        _connectionThread.start();
+        startConnecting();
+    }
+
+    private void startConnecting() {
+        try {
+            _connection = getSqueezeDroidApplication().getIoExecutor().submit(new ConnectionTask());
+        } catch (RejectedExecutionException e) {
+            Log.e(LOGTAG, "Too busy to connect to server", e);
+            removeDialog(DIALOG_CONNECTING);
+            showDialog(DIALOG_ERROR_CONNECTING);
+        }
     }
 
     private void cancelConnectionThread() {
         removeDialog(DIALOG_CONNECTING);
         Log.d(LOGTAG, "Cancelling connection thread");
-        if (_connectionThread != null) {
-            _connectionThread.interrupt();
-            _connectionThread = null;
+        if (_connection != null) {
+            _connection.cancel(true);
+            _connection = null;
         }
     }
 
@@ -77,17 +89,16 @@ public class ConnectToServerActivity extends SqueezedroidActivitySupport {
 
     private SqueezedroidActivitySupport context = this;
 
-    private ConnectionThread _connectionThread;
+    private Future<?> _connection;
 
     /**
-     * Thread responsible for initiating the connection to the server.
+     * Task responsible for initiating the connection to the server, run on the io executor.
      *
      * @author lehmanc
      */
-    private class ConnectionThread extends Thread {
+    private class ConnectionTask implements Runnable {
         public void run() {
             Log.d(LOGTAG, "Starting connection thread");
-            final Thread thisThread = this;
             SqueezeService service = null;
             try {
                 service = getSqueezeDroidApplication().getConnectionManager().getService(context);
@@ -105,7 +116,7 @@ public class ConnectToServerActivity extends SqueezedroidActivitySupport {
             } catch (Exception e) {
                 Log.e(LOGTAG, "Error connecting to server: ", e);
 
-                if (!interrupted() && !isFinishing()) {
+                if (!Thread.currentThread().isInterrupted() && !isFinishing()) {
                     getSqueezeDroidApplication().resetService();
                     runOnUiThread(new Runnable() {
                         public void run() {
@@ -137,8 +148,7 @@ public class ConnectToServerActivity extends SqueezedroidActivitySupport {
 
         public void resultOk(String resultString, Bundle resultMap) {
             getSqueezeDroidApplication().resetService();
-            _connectionThread = new ConnectionThread();
-            _connectionThread.start();
+            startConnecting();
         }
 
         public void resultCancel(String resultString, Bundle resultMap) {
@@ -24,6 +24,8 @@ import net.chrislehmann.squeezedroid.model.PlayerStatus;
 import net.chrislehmann.squeezedroid.model.RepeatMode;
 import net.chrislehmann.squeezedroid.model.ShuffleMode;
 import net.chrislehmann.squeezedroid.model.Song;
+import net.chrislehmann.squeezedroid.service.PlayerStateStore;
+import net.chrislehmann.squeezedroid.service.PlayerStateStore.PlayerState;
 import net.chrislehmann.squeezedroid.service.PlayerStatusHandler;
 import net.chrislehmann.squeezedroid.service.ServerStatusHandler;
 import net.chrislehmann.squeezedroid.service.ServiceConnectionManager.SqueezeServiceAwareThread;
@@ -145,6 +147,7 @@ public class MainActivity extends SqueezedroidActivitySupport {
                 service.unsubscribeAll(onPlayerStatusChanged);
             }
         }, false);
+        getSqueezeDroidApplication().getPlayerStateStore().removeObserver(onPlayerStateChanged);
 
         super.onPause();
     }
@@ -344,8 +347,6 @@ public class MainActivity extends SqueezedroidActivitySupport {
     private void onPlayerChanged() {
         runWithService(new SqueezeServiceAwareThread() {
             public void runWithService(final SqueezeService service) {
-
-                final PlayerStatus status = service.getPlayerStatus(getSelectedPlayer());
                 runOnUiThread(new Runnable() {
                     public void run() {
                         _syncPanel.setPlayer(getSelectedPlayer());
@@ -353,10 +354,16 @@ public class MainActivity extends SqueezedroidActivitySupport {
                         service.unsubscribeAll(onPlayerStatusChanged);
                         service.subscribe(getSelectedPlayer(), onPlayerStatusChanged);
 
+                        //The last known status is shown right away, and the display follows it from there
+                        PlayerStateStore store = getSqueezeDroidApplication().getPlayerStateStore();
+                        store.removeObserver(onPlayerStateChanged);
+                        store.observe(service, getSelectedPlayer(), onPlayerStateChanged, getUiExecutor());
+
+                        if (_playlistListAdapter != null) {
+                            _playlistListAdapter.close();
+                        }
                         _playlistListAdapter = new PlayListAdapter(service, context, getSelectedPlayer());
                         _playlistListAdapter.setPlayer(getSelectedPlayer());
-
-                        updateSongDisplay(status);
                     }
                 });
             }
@@ -407,12 +414,15 @@ public class MainActivity extends SqueezedroidActivitySupport {
             _timeSeekBar.setProgress(status.getCurrentPosition());
             if (status.isPlaying()) {
                 _timeSeekBar.start();
+            } else {
+                _timeSeekBar.pause();
             }
 
             _currentStatus = status;
             updateRepeatMode(status.getRepeatMode());
             updateShuffleMode(status.getShuffleMode());
-        } else {
+        } else if (_currentStatus == null || _currentStatus.getCurrentSong() != null) {
+            _currentStatus = status;
             ImageView nextView = (ImageView) _coverArtImageView.getNextView();
             nextView.setImageBitmap(null);
             _coverArtImageView.showNext();
@@ -427,7 +437,7 @@ public class MainActivity extends SqueezedroidActivitySupport {
 
     private boolean hasCoverImageChanged(final PlayerStatus newStatus) {
         boolean coverImageHasChanged = false;
-        if (_currentStatus == null) {
+        if (_currentStatus == null || _currentStatus.getCurrentSong() == null) {
             coverImageHasChanged = true;
         } else if (_currentStatus.getCurrentSong().getImageUrl() == null && newStatus.getCurrentSong().getImageUrl() != null) {
             coverImageHasChanged = true;
@@ -446,68 +456,36 @@ public class MainActivity extends SqueezedroidActivitySupport {
     };
 
     /**
-     * {@link PlayerStatusHandler} to handle events from the {@link SqueezeService}.  This will update the ui based on
-     * various status change events from the current player
+     * {@link PlayerStateStore.Observer} that updates the ui with each new state of the current player.  Called on the
+     * UI thread.
      */
-    private PlayerStatusHandler onPlayerStatusChanged = new SimplePlayerStatusHandler() {
-        public void onSongChanged(final PlayerStatus status) {
-            runWithService(new SqueezeServiceAwareThread() {
-                public void runWithService(SqueezeService service) {
-                    final BrowseResult<Song> playlist = service.getCurrentPlaylist(getSelectedPlayer(), status.getCurrentIndex(), 2);
-                    runOnUiThread(new Thread() {
-                        public void run() {
-                            // Cache the next album art
-                            updateSongDisplay(status);
-                            if (playlist.getResutls().size() > 1 && playlist.getResutls().get(1).getImageUrl() != null) {
-                                ImageLoader.getInstance().load(null, playlist.getResutls().get(1).getImageUrl());
-                            }
+    private PlayerStateStore.Observer onPlayerStateChanged = new PlayerStateStore.Observer() {
+        public void onStateChanged(PlayerState state) {
+            final PlayerStatus status = state.getStatus();
+            final boolean songChanged = _currentStatus == null || _currentStatus.getCurrentSong() != status.getCurrentSong();
+            updateSongDisplay(status);
+            if (songChanged && status.getCurrentSong() != null) {
+                runWithService(new SqueezeServiceAwareThread() {
+                    public void runWithService(SqueezeService service) {
+                        // Cache the next album art
+                        BrowseResult<Song> playlist = service.getCurrentPlaylist(getSelectedPlayer(), status.getCurrentIndex(), 2);
+                        if (playlist.getResutls().size() > 1 && playlist.getResutls().get(1).getImageUrl() != null) {
+                            ImageLoader.getInstance().load(null, playlist.getResutls().get(1).getImageUrl());
                         }
-                    });
-                }
-            });
-
-        }
-
-        public void onPlay() {
-            runOnUiThread(new Runnable() {
-                public void run() {
-                    _playButton.setImageResource(R.drawable.pause);
-                    _timeSeekBar.start();
-                }
-            });
-        }
-
-        public void onPause() {
-            runOnUiThread(new Runnable() {
-                public void run() {
-                    _playButton.setImageResource(R.drawable.play);
-                    _timeSeekBar.pause();
-                }
-            });
-        }
-
-        public void onStop() {
-            onPause();
+                    }
+                });
+            }
         }
+    };
 
+    /**
+     * {@link PlayerStatusHandler} to handle the current player going away
+     */
+    private PlayerStatusHandler onPlayerStatusChanged = new SimplePlayerStatusHandler() {
         public void onDisconnect() {
             setSelectedPlayer(null);
             getSelectedPlayer();
         }
-
-        ;
-
-        public void onRepeatModeChanged(RepeatMode newMode) {
-            updateRepeatMode(newMode);
-        }
-
-        ;
-
-        public void onShuffleModeChanged(ShuffleMode newMode) {
-            updateShuffleMode(newMode);
-        }
-
-        ;
     };
 
     private Map<ShuffleMode, Integer> shuffleModeToIconMap = new HashMap<ShuffleMode, Integer>() {{
@@ -518,7 +496,6 @@ public class MainActivity extends SqueezedroidActivitySupport {
     }};
 
     private void updateShuffleMode(final ShuffleMode newMode) {
-        _currentStatus.setShuffleMode(newMode);
         runOnUiThread(new Runnable() {
             public void run() {
                 _shuffleButton.setImageResource(shuffleModeToIconMap.get(newMode));
@@ -534,7 +511,6 @@ public class MainActivity extends SqueezedroidActivitySupport {
     }};
 
     private void updateRepeatMode(final RepeatMode newMode) {
-        _currentStatus.setRepeatMode(newMode);
         runOnUiThread(new Runnable() {
             public void run() {
                 _repeatButton.setImageResource(repeatModeToIconMap.get(newMode));
@@ -1,6 +1,7 @@
 package net.chrislehmann.squeezedroid.activity;
 
 import android.os.Bundle;
+import android.util.Log;
 import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.view.Menu;
@@ -14,14 +15,17 @@ import android.widget.AdapterView.OnItemClickListener;
 import android.widget.ListView;
 import net.chrislehmann.squeezedroid.R;
 import net.chrislehmann.squeezedroid.listadapter.PlayListAdapter;
-import net.chrislehmann.squeezedroid.model.PlayerStatus;
 import net.chrislehmann.squeezedroid.model.Song;
+import net.chrislehmann.squeezedroid.service.PlayerStateStore.PlayerState;
+import net.chrislehmann.squeezedroid.service.ServiceCallback;
 import net.chrislehmann.squeezedroid.service.ServiceConnectionManager.SqueezeServiceAwareThread;
 import net.chrislehmann.squeezedroid.service.SqueezeService;
 import net.chrislehmann.squeezedroid.view.NowPlayingInfoPanel;
 
 public class PlayListActivity extends SqueezedroidActivitySupport {
 
+    private static final String LOGTAG = "PlayListActivity";
+
     private static final int CONTEXTMENU_REMOVE_ITEM = 421;
     private static final int CONTEXTMENU_REMOVE_ALBUM = 422;
     private static final int CONTEXTMENU_REMOVE_ARTIST = 423;
@@ -30,6 +34,7 @@ public class PlayListActivity extends SqueezedroidActivitySupport {
     protected ListView listView;
     private NowPlayingInfoPanel _nowPlayingInfoPanel;
     private SqueezedroidActivitySupport _context = this;
+    private PlayListAdapter _playListAdapter;
 
 
     @Override
@@ -47,13 +52,13 @@ public class PlayListActivity extends SqueezedroidActivitySupport {
                 final PlayListAdapter playListAdapter = new PlayListAdapter(service, _context, getSelectedPlayer());
                 playListAdapter.setOnFirstPageLoadedListener(new Runnable() {
                     public void run() {
-                        PlayerStatus status = service.getPlayerStatus(getSelectedPlayer());
-                        listView.setSelection(status.getCurrentIndex());
+                        scrollToCurrentSong(service);
                     }
                 });
 
                 runOnUiThread(new Runnable() {
                     public void run() {
+                        _playListAdapter = playListAdapter;
                         listView.setAdapter(playListAdapter);
                     }
                 });
@@ -67,6 +72,31 @@ public class PlayListActivity extends SqueezedroidActivitySupport {
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        if (_playListAdapter != null) {
+            _playListAdapter.close();
+        }
+        super.onDestroy();
+    }
+
+    /**
+     * Scrolls the list to the current song, using the last known state of the player if there is one
+     */
+    private void scrollToCurrentSong(SqueezeService service) {
+        getSqueezeDroidApplication().getPlayerStateStore().getState(service, getSelectedPlayer()).addCallback(new ServiceCallback<PlayerState>() {
+            public void onSuccess(PlayerState state) {
+                if (state != null) {
+                    listView.setSelection(state.getStatus().getCurrentIndex());
+                }
+            }
+
+            public void onFailure(Exception e) {
+                Log.e(LOGTAG, "Error reading the current song", e);
+            }
+        }, getUiExecutor());
+    }
+
 
     OnCreateContextMenuListener onCreateContextMenu = new OnCreateContextMenuListener() {
 
@@ -141,8 +171,7 @@ public class PlayListActivity extends SqueezedroidActivitySupport {
             case R.id.menuItem_playlistNowPlaying:
                 runWithService(new SqueezeServiceAwareThread() {
                     public void runWithService(SqueezeService service) {
-                        PlayerStatus status = service.getPlayerStatus(getSelectedPlayer());
-                        listView.setSelection(status.getCurrentIndex());
+                        scrollToCurrentSong(service);
                     }
                 });
                 break;
@@ -4,6 +4,9 @@ import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.view.Menu;
@@ -39,6 +42,11 @@ public class SearchActivity extends SqueezedroidActivitySupport {
     private static final int CONTEXTMENU_PLAY_ITEM = 122;
     protected static final int CONTEXTMENU_PLAY_NEXT = 123;
 
+    /**
+     * How long typing has to pause for before what has been typed is searched for
+     */
+    private static final long TYPING_DELAY_MILLIS = 150;
+
     protected ExpandableListView resultsExpandableListView;
     protected EditText searchCriteriaText;
     protected ImageButton searchButton;
@@ -47,6 +55,7 @@ public class SearchActivity extends SqueezedroidActivitySupport {
 
     protected SearchResultExpandableListAdapter adapter = new SearchResultExpandableListAdapter();
     private Context context = this;
+    private Handler handler = new Handler();
 
     /**
      * Called when the activity is first created.
@@ -76,6 +85,7 @@ public class SearchActivity extends SqueezedroidActivitySupport {
             }
         });
         searchButton.setOnClickListener(onSearchButtonClicked);
+        searchCriteriaText.addTextChangedListener(onSearchTextChanged);
 
         resultsExpandableListView.setOnChildClickListener(onChildClicked);
 
@@ -117,41 +127,88 @@ public class SearchActivity extends SqueezedroidActivitySupport {
         }
     };
 
-    OnClickListener onSearchButtonClicked = new OnClickListener() {
-        SqueezeServiceAwareThread doSearch = new SqueezeServiceAwareThread() {
-            public void runWithService(SqueezeService service) {
-                String searchTerms = searchCriteriaText.getText().toString();
-                if (StringUtils.isNotBlank(searchTerms)) {
-                    final SearchResult result = service.search(searchTerms, 50);
-                    if (result != null) {
+    /**
+     * Searches for the terms and shows the results, unless other terms have been typed in the meantime
+     */
+    private class SearchThread implements SqueezeServiceAwareThread {
+        private final String searchTerms;
+        private final boolean hideKeyboard;
+
+        private SearchThread(String searchTerms, boolean hideKeyboard) {
+            this.searchTerms = searchTerms;
+            this.hideKeyboard = hideKeyboard;
+        }
+
+        public void runWithService(SqueezeService service) {
+            final SearchResult result = service.search(searchTerms, 50);
+            if (result != null) {
+                runOnUiThread(new Runnable() {
+                    public void run() {
+                        if (!searchTerms.equals(searchCriteriaText.getText().toString())) {
+                            return;
+                        }
                         adapter.setResult(result);
-                        runOnUiThread(new Runnable() {
-                            public void run() {
-                                searchInstructionsText.setVisibility(View.INVISIBLE);
-                                if (result.getTotalResults() == 0) {
-                                    resultsExpandableListView.setVisibility(View.INVISIBLE);
-                                    noResultsFoundText.setVisibility(View.VISIBLE);
-                                } else {
-                                    resultsExpandableListView.setVisibility(View.VISIBLE);
-                                    noResultsFoundText.setVisibility(View.INVISIBLE);
-                                }
-                                adapter.notifyDataSetChanged();
-                                hideKeyboard();
-                            }
-                        });
+                        searchInstructionsText.setVisibility(View.INVISIBLE);
+                        if (result.getTotalResults() == 0) {
+                            resultsExpandableListView.setVisibility(View.INVISIBLE);
+                            noResultsFoundText.setVisibility(View.VISIBLE);
+                        } else {
+                            resultsExpandableListView.setVisibility(View.VISIBLE);
+                            noResultsFoundText.setVisibility(View.INVISIBLE);
+                        }
+                        adapter.notifyDataSetChanged();
+                        if (hideKeyboard) {
+                            hideKeyboard();
+                        }
                     }
-                }
-
+                });
             }
-        };
+        }
+    }
 
+    private void search(boolean hideKeyboard) {
+        handler.removeCallbacks(searchTyped);
+        String searchTerms = searchCriteriaText.getText().toString();
+        if (StringUtils.isNotBlank(searchTerms)) {
+            runWithService(new SearchThread(searchTerms, hideKeyboard));
+        }
+    }
+
+    OnClickListener onSearchButtonClicked = new OnClickListener() {
         public void onClick(View v) {
+            search(true);
+        }
+    };
 
-            runWithService(doSearch);
+    /**
+     * Searches as the user types, once they stop for {@link #TYPING_DELAY_MILLIS}.  With the library on the device
+     * the results come back right away, otherwise it saves sending a search for every letter.
+     */
+    TextWatcher onSearchTextChanged = new TextWatcher() {
+        public void afterTextChanged(Editable s) {
+            handler.removeCallbacks(searchTyped);
+            handler.postDelayed(searchTyped, TYPING_DELAY_MILLIS);
+        }
 
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        }
+
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+        }
+    };
+
+    private Runnable searchTyped = new Runnable() {
+        public void run() {
+            search(false);
         }
     };
 
+    @Override
+    protected void onDestroy() {
+        handler.removeCallbacks(searchTyped);
+        super.onDestroy();
+    }
+
     private void hideKeyboard() {
         InputMethodManager imm = (InputMethodManager) getSystemService(Context.INPUT_METHOD_SERVICE);
         imm.hideSoftInputFromWindow(searchCriteriaText.getWindowToken(), 0);
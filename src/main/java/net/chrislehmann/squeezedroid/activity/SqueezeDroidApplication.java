@@ -2,24 +2,68 @@ package net.chrislehmann.squeezedroid.activity;
 
 import android.app.Application;
 import net.chrislehmann.squeezedroid.model.Player;
+import net.chrislehmann.squeezedroid.service.PlayerStateStore;
 import net.chrislehmann.squeezedroid.service.ServiceConnectionManager;
+import net.chrislehmann.util.BoundedExecutor;
+import net.chrislehmann.util.BoundedExecutor.RejectionPolicy;
+import net.chrislehmann.util.ImageLoader;
+
+import java.util.ArrayList;
+import java.util.List;
 
 public class SqueezeDroidApplication extends Application
 {
 
    //private static final String LOGTAG = "SqueezeDroidApplication";
-   private ServiceConnectionManager connectionManager = new ServiceConnectionManager();
+
+   /**
+    * Work that talks to the server: connecting, {@link ServiceConnectionManager.SqueezeServiceAwareThread}s and
+    * loading pages of lists.  Callers are told when it is full, so nothing is silently lost.
+    */
+   private final BoundedExecutor ioExecutor = new BoundedExecutor( "io", 4, 64, RejectionPolicy.ABORT );
+   /**
+    * Parsing responses off the connection reader threads.  When it is full the reader parses them itself.
+    */
+   private final BoundedExecutor parseExecutor = new BoundedExecutor( "parse", 2, 128, RejectionPolicy.CALLER_RUNS );
+   /**
+    * Calling the handlers listening to events.  Each handler has its own queue, so this only holds the handlers
+    * that have something to do.  When it is full a handler's notifications wait in its queue until the next one
+    * is posted, the event thread never calls them itself.
+    */
+   private final BoundedExecutor eventExecutor = new BoundedExecutor( "events", 2, 64, RejectionPolicy.ABORT );
+   /**
+    * Downloading album art.  When it is full the oldest request is dropped, it has probably scrolled off the screen.
+    */
+   private final BoundedExecutor imageExecutor = new BoundedExecutor( "image", 4, 64, RejectionPolicy.DISCARD_OLDEST );
+
+   private ServiceConnectionManager connectionManager = new ServiceConnectionManager( ioExecutor, parseExecutor, eventExecutor );
+   /**
+    * The state of the players, shared by every screen
+    */
+   private final PlayerStateStore playerStateStore = new PlayerStateStore();
    private Player selectedPlayer;
 
-   
+   @Override
+   public void onCreate()
+   {
+      super.onCreate();
+      ImageLoader.getInstance().setExecutor( imageExecutor );
+   }
+
    @Override
    public void onTerminate()
    {
+      playerStateStore.reset();
       connectionManager.disconnect();
+      ioExecutor.shutdown();
+      parseExecutor.shutdown();
+      eventExecutor.shutdown();
+      imageExecutor.shutdown();
    }
 
    public void resetService()
    {
+      playerStateStore.reset();
       connectionManager.disconnect();
       selectedPlayer = null;
    }
@@ -33,5 +77,42 @@ public class SqueezeDroidApplication extends Application
    {
       this.connectionManager = connectionManager;
    }
-   
+
+   public PlayerStateStore getPlayerStateStore()
+   {
+      return playerStateStore;
+   }
+
+   public BoundedExecutor getIoExecutor()
+   {
+      return ioExecutor;
+   }
+
+   public BoundedExecutor getParseExecutor()
+   {
+      return parseExecutor;
+   }
+
+   public BoundedExecutor getEventExecutor()
+   {
+      return eventExecutor;
+   }
+
+   public BoundedExecutor getImageExecutor()
+   {
+      return imageExecutor;
+   }
+
+   /**
+    * Returns a snapshot of every pool
+    */
+   public List<BoundedExecutor.Stats> getExecutorStats()
+   {
+      List<BoundedExecutor.Stats> stats = new ArrayList<BoundedExecutor.Stats>();
+      stats.add( ioExecutor.getStats() );
+      stats.add( parseExecutor.getStats() );
+      stats.add( eventExecutor.getStats() );
+      stats.add( imageExecutor.getStats() );
+      return stats;
+   }
 }
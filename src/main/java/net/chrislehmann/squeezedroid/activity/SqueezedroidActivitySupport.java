@@ -15,8 +15,10 @@ import net.chrislehmann.squeezedroid.model.Song;
 import net.chrislehmann.squeezedroid.service.DownloadService;
 import net.chrislehmann.squeezedroid.service.ServiceConnectionManager.SqueezeServiceAwareThread;
 import net.chrislehmann.squeezedroid.service.SqueezeService;
+import net.chrislehmann.util.UiThreadExecutor;
 
 import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * Base activity that contains some methods to manage the {@link SqueezeService} and the
@@ -42,6 +44,7 @@ public class SqueezedroidActivitySupport extends ActivitySupport {
         }
     };
     private boolean lookingForPlayer = false;
+    private final Executor uiExecutor = new UiThreadExecutor(this);
 
 
     @Override
@@ -131,6 +134,14 @@ public class SqueezedroidActivitySupport extends ActivitySupport {
     }
 
 
+    /**
+     * Returns an {@link Executor} that runs on the UI thread of this activity, for the callbacks of the
+     * {@link net.chrislehmann.squeezedroid.service.AsyncSqueezeService}
+     */
+    public Executor getUiExecutor() {
+        return uiExecutor;
+    }
+
     /**
      * Force a connection to the squeezeserver if we are not already connected
      */
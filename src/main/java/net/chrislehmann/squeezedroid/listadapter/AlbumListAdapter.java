@@ -6,6 +6,7 @@ import net.chrislehmann.squeezedroid.R;
 import net.chrislehmann.squeezedroid.model.Album;
 import net.chrislehmann.squeezedroid.model.BrowseResult;
 import net.chrislehmann.squeezedroid.model.Item;
+import net.chrislehmann.squeezedroid.service.RefreshHandler.DataType;
 import net.chrislehmann.squeezedroid.service.SqueezeService;
 import net.chrislehmann.squeezedroid.service.SqueezeService.Sort;
 import net.chrislehmann.util.ImageLoader;
@@ -24,12 +25,14 @@ public class AlbumListAdapter extends PagableAdapter {
 	public AlbumListAdapter(SqueezeService service, Activity parent) {
 		super(parent);
 		_service = service;
+		revalidateOn(service, DataType.LIBRARY);
 		_sort = Sort.TITLE;
 	}
 
 	public AlbumListAdapter(SqueezeService service, Activity parent, Item parentItem, SqueezeService.Sort sort) {
 		super(parent);
 		_service = service;
+		revalidateOn(service, DataType.LIBRARY);
 		_parentItem = parentItem;
 		_sort = sort;
 	}
@@ -45,6 +48,17 @@ public class AlbumListAdapter extends PagableAdapter {
 		return result.getResutls();
 	}
 
+	@Override
+	protected boolean streamPage(int start, int pageSize, PageStream stream) {
+		_service.browseAlbums(_parentItem, start, pageSize, _sort, stream.<Album>forItems());
+		return true;
+	}
+
+	@Override
+	protected void setTotalItems(int totalItems) {
+		numItems = totalItems;
+	}
+
 	@Override
 	public View getView(int position, View convertView, ViewGroup parent) {
 		View view = null;
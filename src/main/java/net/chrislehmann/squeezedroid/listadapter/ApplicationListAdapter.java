@@ -4,6 +4,7 @@ import java.util.List;
 
 import net.chrislehmann.squeezedroid.model.BrowseResult;
 import net.chrislehmann.squeezedroid.service.Application;
+import net.chrislehmann.squeezedroid.service.RefreshHandler.DataType;
 import net.chrislehmann.squeezedroid.service.SqueezeService;
 import android.app.Activity;
 
@@ -16,6 +17,7 @@ public class ApplicationListAdapter extends ItemListAdapter
    {
       super( parent );
       _service = service;
+      revalidateOn( service, DataType.APPLICATIONS );
    }
 
    @Override
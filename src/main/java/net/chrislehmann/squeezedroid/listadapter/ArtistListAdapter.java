@@ -4,6 +4,7 @@ import android.app.Activity;
 import net.chrislehmann.squeezedroid.model.Artist;
 import net.chrislehmann.squeezedroid.model.BrowseResult;
 import net.chrislehmann.squeezedroid.model.Item;
+import net.chrislehmann.squeezedroid.service.RefreshHandler.DataType;
 import net.chrislehmann.squeezedroid.service.SqueezeService;
 
 import java.util.List;
@@ -16,11 +17,13 @@ public class ArtistListAdapter extends PagableAdapter{
 	public ArtistListAdapter(SqueezeService service, Activity parent) {
 		super(parent);
 		_service = service;
+		revalidateOn(service, DataType.LIBRARY);
 	}
 
 	public ArtistListAdapter(SqueezeService service, Activity parent, Item parentItem) {
 		super(parent);
 		_service = service;
+		revalidateOn(service, DataType.LIBRARY);
 		_parentItem = parentItem;
 	}
 
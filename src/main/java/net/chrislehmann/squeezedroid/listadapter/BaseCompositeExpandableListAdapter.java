@@ -25,7 +25,7 @@ public abstract class BaseCompositeExpandableListAdapter extends BaseExpandableL
       @Override
       public void onChanged()
       {
-         _parent.runOnUiThread( new Thread()
+         _parent.runOnUiThread( new Runnable()
          {
             public void run()
             {
@@ -5,6 +5,7 @@ import java.util.List;
 import net.chrislehmann.squeezedroid.model.BrowseResult;
 import net.chrislehmann.squeezedroid.model.Folder;
 import net.chrislehmann.squeezedroid.model.Item;
+import net.chrislehmann.squeezedroid.service.RefreshHandler.DataType;
 import net.chrislehmann.squeezedroid.service.SqueezeService;
 import android.app.Activity;
 
@@ -18,12 +19,14 @@ public class FolderListAdapter extends PagableAdapter
    {
       super( parent );
       _service = service;
+      revalidateOn( service, DataType.LIBRARY );
    }
 
    public FolderListAdapter(SqueezeService service, Activity parent, Folder parentFolder)
    {
       super( parent );
       _service = service;
+      revalidateOn( service, DataType.LIBRARY );
       _parentFolder = parentFolder;
    }
 
@@ -40,5 +43,18 @@ public class FolderListAdapter extends PagableAdapter
       return result.getResutls();
    }
 
+   @Override
+   protected boolean streamPage(int start, int pageSize, PageStream stream)
+   {
+      _service.browseFolders( _parentFolder, start, pageSize, stream.<Item>forItems() );
+      return true;
+   }
+
+   @Override
+   protected void setTotalItems(int totalItems)
+   {
+      numItems = totalItems;
+   }
+
 
 }
@@ -5,6 +5,7 @@ import java.util.List;
 import net.chrislehmann.squeezedroid.model.BrowseResult;
 import net.chrislehmann.squeezedroid.model.Genre;
 import net.chrislehmann.squeezedroid.model.Item;
+import net.chrislehmann.squeezedroid.service.RefreshHandler.DataType;
 import net.chrislehmann.squeezedroid.service.SqueezeService;
 import android.app.Activity;
 
@@ -16,6 +17,7 @@ public class GenreListAdapter extends PagableAdapter {
 	public GenreListAdapter(SqueezeService service, Activity parent, Item parentItem) {
 		super(parent);
 		_service = service;
+		revalidateOn(service, DataType.LIBRARY);
 		_parentItem = parentItem;
 	}
 
@@ -2,33 +2,94 @@ package net.chrislehmann.squeezedroid.listadapter;
 
 import android.app.Activity;
 import android.graphics.drawable.AnimationDrawable;
+import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.BaseAdapter;
 import android.widget.TextView;
 import net.chrislehmann.squeezedroid.R;
+import net.chrislehmann.squeezedroid.activity.SqueezeDroidApplication;
 import net.chrislehmann.squeezedroid.model.Item;
+import net.chrislehmann.squeezedroid.service.BrowseResultHandler;
+import net.chrislehmann.squeezedroid.service.CachingSqueezeService;
+import net.chrislehmann.squeezedroid.service.RefreshHandler;
+import net.chrislehmann.squeezedroid.service.RefreshHandler.DataType;
+import net.chrislehmann.squeezedroid.service.SqueezeService;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 
+/**
+ * Adapter that loads its items a page at a time on the io executor, as they are shown.  The pages and the count
+ * are only ever changed on the UI thread, the pages are read on the io executor and handed over to it.
+ */
 public abstract class PagableAdapter extends BaseAdapter {
+    private static final String LOGTAG = "PagableAdapter";
+
     private Runnable _onFirstPageLoaded;
     private boolean _fistPageLoaded = false;
 
     protected abstract List<? extends Object> createPage(int i, int pageSize);
 
+    /**
+     * Streams the items of the page that starts at start to the stream (see {@link PageStream#forItems()}), so its
+     * rows are shown as they are read instead of once the whole page has been.  Called on the io executor, and
+     * should return right away.  Returns false if the adapter can't stream its items, the page is then built with
+     * {@link #createPage(int, int)}.
+     */
+    protected boolean streamPage(int start, int pageSize, PageStream stream) {
+        return false;
+    }
+
+    /**
+     * Called on the UI thread with the total number of items the server has, once a page that is streamed knows it
+     */
+    protected void setTotalItems(int totalItems) {
+    }
+
     protected int _pageSize = 50;
 
     protected Activity _parent;
 
     protected Map<Integer, List<? extends Object>> _pages = new HashMap<Integer, List<? extends Object>>();
     protected int _count = 1;
+    /**
+     * Goes up every time the pages are reset, pages read before that are dropped
+     */
+    private int _generation = 0;
 
     protected View loadingView;
 
+    /**
+     * Stands in for a page that is being loaded
+     */
+    private static final List<Object> LOADING = new ArrayList<Object>();
+
+    /**
+     * What has arrived of a page that is still streaming
+     */
+    private static class PartialPage extends ArrayList<Object> {
+        private PartialPage(List<Object> items) {
+            super(items);
+        }
+    }
+
+    private DataType _refreshType;
+
+    /**
+     * Reads the pages that are shown again when results of the adapter's type were refreshed
+     */
+    private final RefreshHandler _refreshHandler = new RefreshHandler() {
+        public void onRefreshed(DataType type) {
+            if (type == _refreshType) {
+                revalidate();
+            }
+        }
+    };
+
 
     public PagableAdapter(Activity parent) {
         super();
@@ -40,9 +101,13 @@ public abstract class PagableAdapter extends BaseAdapter {
     }
 
 
+    /**
+     * Drops every page, call on the UI thread
+     */
     public void resetPages() {
         _pages.clear();
         _count = 1;
+        _generation++;
         _fistPageLoaded = false;
         notifyChange();
     }
@@ -51,8 +116,14 @@ public abstract class PagableAdapter extends BaseAdapter {
         int pageNumber = getPageNumber(position);
         List<? extends Object> page = null;
         if (!_pages.containsKey(pageNumber)) {
-            _pages.put(pageNumber, new ArrayList<Item>());
-            new UpdaterThread(pageNumber).start();
+            _pages.put(pageNumber, LOADING);
+            try {
+                ((SqueezeDroidApplication) _parent.getApplication()).getIoExecutor().execute(new PageLoader(pageNumber, _generation));
+            } catch (RejectedExecutionException e) {
+                //Try again the next time the page is shown
+                Log.w(LOGTAG, "Too busy to load page " + pageNumber);
+                _pages.remove(pageNumber);
+            }
         } else {
             page = _pages.get(pageNumber);
         }
@@ -66,6 +137,80 @@ public abstract class PagableAdapter extends BaseAdapter {
     }
 
 
+    /**
+     * Keeps the pages up to date with the results of the type the service refreshes (see {@link RefreshHandler}),
+     * call from the constructor of the subclass.  Only a {@link CachingSqueezeService} hands out results that are
+     * refreshed later, with any other service there is nothing to do.
+     */
+    protected void revalidateOn(SqueezeService service, DataType type) {
+        _refreshType = type;
+        if (service instanceof CachingSqueezeService) {
+            ((CachingSqueezeService) service).addRefreshHandler(_refreshHandler);
+        }
+    }
+
+    /**
+     * Reads the pages that have been loaded again on the io executor, and replaces only the ones that changed.  What
+     * is shown stays until then, unlike {@link #resetPages()}.  Can be called from any thread.
+     */
+    public void revalidate() {
+        _parent.runOnUiThread(new Runnable() {
+            public void run() {
+                revalidateShown();
+            }
+        });
+    }
+
+    private void revalidateShown() {
+        final Map<Integer, List<? extends Object>> shown = new HashMap<Integer, List<? extends Object>>(_pages);
+        final int generation = _generation;
+        try {
+            ((SqueezeDroidApplication) _parent.getApplication()).getIoExecutor().execute(new Runnable() {
+                public void run() {
+                    final Map<Integer, List<? extends Object>> changed = new HashMap<Integer, List<? extends Object>>();
+                    for (Map.Entry<Integer, List<? extends Object>> entry : shown.entrySet()) {
+                        List<? extends Object> old = entry.getValue();
+                        if (old == LOADING || old instanceof PartialPage) {
+                            continue;
+                        }
+                        List<? extends Object> page = createPage(entry.getKey() * _pageSize, _pageSize);
+                        if (!CachingSqueezeService.sameItems(old, page)) {
+                            changed.put(entry.getKey(), page);
+                        }
+                    }
+                    if (changed.isEmpty()) {
+                        return;
+                    }
+                    _parent.runOnUiThread(new Runnable() {
+                        public void run() {
+                            if (generation != _generation) {
+                                return;
+                            }
+                            for (Map.Entry<Integer, List<? extends Object>> entry : changed.entrySet()) {
+                                List<? extends Object> old = _pages.get(entry.getKey());
+                                //Only if the page was not replaced in the meantime
+                                if (old == shown.get(entry.getKey())) {
+                                    _pages.put(entry.getKey(), entry.getValue());
+                                    _count += countOf(entry.getValue()) - countOf(old);
+                                }
+                            }
+                            pagesChanged();
+                        }
+                    });
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(LOGTAG, "Too busy to revalidate pages");
+        }
+    }
+
+    /**
+     * What a page adds to {@link #_count}, there is a loading row after a full page
+     */
+    private int countOf(List<? extends Object> page) {
+        return page.size() < _pageSize ? page.size() - 1 : page.size();
+    }
+
     public void setOnFirstPageLoadedListener(Runnable onLoaded) {
 
         _onFirstPageLoaded = onLoaded;
@@ -104,42 +249,159 @@ public abstract class PagableAdapter extends BaseAdapter {
     }
 
     /**
-     * Thread that calls {@link PagableAdapter#createPage(int, int)} and notifies the gui of changes.
+     * Calls {@link PagableAdapter#createPage(int, int)} on the io executor and hands the page to the gui.
      *
      * @author lehmanc
      */
-    private class UpdaterThread extends Thread {
+    private class PageLoader implements Runnable {
         private int pageNumber;
+        private int generation;
 
-        public UpdaterThread(int pageNumber) {
+        public PageLoader(int pageNumber, int generation) {
             this.pageNumber = pageNumber;
+            this.generation = generation;
         }
 
-        @Override
         public void run() {
-            List<? extends Object> page = createPage(pageNumber * _pageSize, _pageSize);
-            _pages.put(pageNumber, page);
-            _count += page.size();
-            if (page.size() < _pageSize) {
-                _count -= 1;
+            if (streamPage(pageNumber * _pageSize, _pageSize, new PageStream(pageNumber, generation))) {
+                return;
+            }
+            final List<? extends Object> page = createPage(pageNumber * _pageSize, _pageSize);
+            _parent.runOnUiThread(new Runnable() {
+                public void run() {
+                    //Dropped if the pages were reset while it was loading
+                    if (generation != _generation || _pages.get(pageNumber) != LOADING) {
+                        return;
+                    }
+                    _pages.put(pageNumber, page);
+                    _count += page.size();
+                    if (page.size() < _pageSize) {
+                        _count -= 1;
+                    }
+                    pagesChanged();
+                }
+            });
+        }
+    }
+
+    /**
+     * Collects the items of a page as they are streamed, and shows what has arrived so far on the UI thread.  Only
+     * one update of the page waits for the UI thread at a time, it shows everything that arrived until it runs.
+     */
+    protected class PageStream {
+        private final int pageNumber;
+        private final int generation;
+        private final List<Object> items = new ArrayList<Object>();
+        private int totalItems = -1;
+        private boolean done = false;
+        private boolean updating = false;
+        /**
+         * What was last shown of the page and how much that added to the count, only used on the UI thread
+         */
+        private List<Object> shown;
+        private int counted = 0;
+
+        private PageStream(int pageNumber, int generation) {
+            this.pageNumber = pageNumber;
+            this.generation = generation;
+        }
+
+        /**
+         * Returns the handler to pass to the service's streaming browse method
+         */
+        public <T> BrowseResultHandler<T> forItems() {
+            return new BrowseResultHandler<T>() {
+                public void onTotalItems(int count) {
+                    synchronized (PageStream.this) {
+                        totalItems = count;
+                    }
+                    update(false);
+                }
+
+                public void onItem(T item) {
+                    synchronized (PageStream.this) {
+                        items.add(item);
+                    }
+                    update(false);
+                }
+
+                public void onComplete() {
+                    update(true);
+                }
+
+                public void onError(Exception e) {
+                    //Keep what has arrived, like a page the server could not fill
+                    Log.e(LOGTAG, "Error streaming page " + pageNumber, e);
+                    update(true);
+                }
+            };
+        }
+
+        private void update(boolean complete) {
+            synchronized (this) {
+                done |= complete;
+                if (updating) {
+                    return;
+                }
+                updating = true;
             }
+            _parent.runOnUiThread(new Runnable() {
+                public void run() {
+                    show();
+                }
+            });
+        }
 
-            notifyChange();
+        private void show() {
+            List<Object> page;
+            boolean complete;
+            int total;
+            synchronized (this) {
+                updating = false;
+                complete = done;
+                page = complete ? new ArrayList<Object>(items) : new PartialPage(items);
+                total = totalItems;
+            }
+            //Dropped if the pages were reset while it was streaming
+            List<? extends Object> current = _pages.get(pageNumber);
+            if (generation != _generation || (current != LOADING && current != shown)) {
+                return;
+            }
+            if (total >= 0) {
+                setTotalItems(total);
+            }
+            //Until it is complete the loading row stays after the page
+            int count = page.size();
+            if (complete && page.size() < _pageSize) {
+                count -= 1;
+            }
+            _count += count - counted;
+            counted = count;
+            _pages.put(pageNumber, page);
+            shown = page;
+            pagesChanged();
         }
     }
 
     protected void notifyChange() {
-        _parent.runOnUiThread(new Thread() {
+        _parent.runOnUiThread(new Runnable() {
             public void run() {
-                notifyDataSetChanged();
-                
-                if( !_fistPageLoaded && _onFirstPageLoaded != null )
-                {
-                    _fistPageLoaded = true;
-                    _onFirstPageLoaded.run();
-                }
+                pagesChanged();
             }
         });
     }
 
+    /**
+     * Tells the list the pages changed, on the UI thread
+     */
+    private void pagesChanged() {
+        notifyDataSetChanged();
+
+        if( !_fistPageLoaded && _onFirstPageLoaded != null )
+        {
+            _fistPageLoaded = true;
+            _onFirstPageLoaded.run();
+        }
+    }
+
 }
@@ -5,41 +5,53 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
 import net.chrislehmann.squeezedroid.R;
+import net.chrislehmann.squeezedroid.activity.SqueezeDroidApplication;
 import net.chrislehmann.squeezedroid.model.BrowseResult;
 import net.chrislehmann.squeezedroid.model.PlayerStatus;
 import net.chrislehmann.squeezedroid.model.Song;
+import net.chrislehmann.squeezedroid.service.PlayerStateStore;
+import net.chrislehmann.squeezedroid.service.PlayerStateStore.PlayerState;
 import net.chrislehmann.squeezedroid.service.PlayerStatusHandler;
+import net.chrislehmann.squeezedroid.service.RefreshHandler.DataType;
 import net.chrislehmann.squeezedroid.service.SimplePlayerStatusHandler;
 import net.chrislehmann.squeezedroid.service.SqueezeService;
+import net.chrislehmann.util.UiThreadExecutor;
 
 import java.util.ArrayList;
 import java.util.List;
 
 public class PlayListAdapter extends SongListAdapter
 {
+   private static final String LOGTAG = "PlayListAdapter";
+
    private String _player;
    private PlayerStatus _currentStatus;
 
-   private PlayerStatusHandler onPlayerStatusChanged = new SimplePlayerStatusHandler()
+   /**
+    * Marks the current song, called on the UI thread
+    */
+   private PlayerStateStore.Observer onPlayerStateChanged = new PlayerStateStore.Observer()
    {
-
-      public void onSongChanged(PlayerStatus status)
+      public void onStateChanged(PlayerState state)
       {
-         _currentStatus = status;
-         _parent.runOnUiThread(new Runnable() {
-             public void run() {
-                 notifyChange();
-             }
-         });
+         PlayerStatus previous = _currentStatus;
+         _currentStatus = state.getStatus();
+         if ( previous == null || previous.getCurrentIndex() != _currentStatus.getCurrentIndex() )
+         {
+            notifyDataSetChanged();
+         }
       }
+   };
 
+   /**
+    * Keeps showing the old playlist while the new one is read, and only changes the pages that differ
+    */
+   private PlayerStatusHandler onPlayerStatusChanged = new SimplePlayerStatusHandler()
+   {
       public void onPlaylistChanged(PlayerStatus status)
       {
-         _currentStatus = status;
-         _numItems = 1;
-         resetPages();
+         revalidate();
       }
-
    };
 
    public void setPlayer(String player)
@@ -53,10 +65,25 @@ public class PlayListAdapter extends SongListAdapter
    {
       super( service, parent, null );
       _player = player;
-      _currentStatus = service.getPlayerStatus( player );
+      revalidateOn( service, DataType.PLAYLISTS );
+      getPlayerStateStore().observe( service, player, onPlayerStateChanged, new UiThreadExecutor( parent ) );
       service.subscribe( player, onPlayerStatusChanged );
    }
 
+   /**
+    * Stops following the player, call once the adapter is no longer used
+    */
+   public void close()
+   {
+      getPlayerStateStore().removeObserver( onPlayerStateChanged );
+      _service.unsubscribeAll( onPlayerStatusChanged );
+   }
+
+   private PlayerStateStore getPlayerStateStore()
+   {
+      return ( (SqueezeDroidApplication) _parent.getApplication() ).getPlayerStateStore();
+   }
+
    public void updateCount()
    {
        createPage(0, _pageSize);
@@ -3,6 +3,7 @@ package net.chrislehmann.squeezedroid.listadapter;
 import android.app.Activity;
 import net.chrislehmann.squeezedroid.model.BrowseResult;
 import net.chrislehmann.squeezedroid.service.Application;
+import net.chrislehmann.squeezedroid.service.RefreshHandler.DataType;
 import net.chrislehmann.squeezedroid.service.SqueezeService;
 
 import java.util.List;
@@ -16,6 +17,7 @@ public class RadioStationsListAdapter extends ItemListAdapter
    {
       super( parent );
       _service = service;
+      revalidateOn( service, DataType.APPLICATIONS );
    }
 
    @Override
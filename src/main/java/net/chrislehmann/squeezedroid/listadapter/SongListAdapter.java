@@ -9,6 +9,7 @@ import net.chrislehmann.squeezedroid.R;
 import net.chrislehmann.squeezedroid.model.BrowseResult;
 import net.chrislehmann.squeezedroid.model.Item;
 import net.chrislehmann.squeezedroid.model.Song;
+import net.chrislehmann.squeezedroid.service.RefreshHandler.DataType;
 import net.chrislehmann.squeezedroid.service.SqueezeService;
 import net.chrislehmann.util.ImageLoader;
 
@@ -22,6 +23,7 @@ public class SongListAdapter extends PagableAdapter {
     public SongListAdapter(SqueezeService service, Activity parent, Item parentItem) {
         super(parent);
         _service = service;
+        revalidateOn(service, DataType.LIBRARY);
         _parentItem = parentItem;
     }
 
@@ -31,6 +33,17 @@ public class SongListAdapter extends PagableAdapter {
         return result.getResutls();
     }
 
+    @Override
+    protected boolean streamPage(int start, int pageSize, PageStream stream) {
+        _service.browseSongs(_parentItem, start, pageSize, stream.<Song>forItems());
+        return true;
+    }
+
+    @Override
+    protected void setTotalItems(int totalItems) {
+        _numItems = totalItems;
+    }
+
     @Override
     public int getCount() {
         return _numItems;
@@ -17,6 +17,24 @@ public class PlayerStatus
    private ShuffleMode shuffleMode;
    private RepeatMode repeatMode;
 
+   public PlayerStatus()
+   {
+   }
+
+   /**
+    * Creates a copy of the status passed in.  The {@link Song} is shared.
+    */
+   public PlayerStatus(PlayerStatus other)
+   {
+      this.currentSong = other.currentSong;
+      this.currentIndex = other.currentIndex;
+      this.status = other.status;
+      this.currentPosition = other.currentPosition;
+      this.volume = other.volume;
+      this.shuffleMode = other.shuffleMode;
+      this.repeatMode = other.repeatMode;
+   }
+
    public int getCurrentIndex()
    {
       return currentIndex;
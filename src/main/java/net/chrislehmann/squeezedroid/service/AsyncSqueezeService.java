@@ -0,0 +1,62 @@
+package net.chrislehmann.squeezedroid.service;
+
+import net.chrislehmann.squeezedroid.model.Album;
+import net.chrislehmann.squeezedroid.model.ApplicationMenuItem;
+import net.chrislehmann.squeezedroid.model.Artist;
+import net.chrislehmann.squeezedroid.model.BrowseResult;
+import net.chrislehmann.squeezedroid.model.Folder;
+import net.chrislehmann.squeezedroid.model.Genre;
+import net.chrislehmann.squeezedroid.model.Item;
+import net.chrislehmann.squeezedroid.model.Player;
+import net.chrislehmann.squeezedroid.model.PlayerStatus;
+import net.chrislehmann.squeezedroid.model.Playlist;
+import net.chrislehmann.squeezedroid.model.SearchResult;
+import net.chrislehmann.squeezedroid.model.Song;
+import net.chrislehmann.squeezedroid.service.SqueezeService.Sort;
+
+import java.util.List;
+
+/**
+ * Non blocking version of the queries in {@link SqueezeService}.  No method here ever blocks or touches the
+ * network on the caller's thread, so they are safe to call from the UI thread: commands are only queued, the
+ * connections' writer threads write them, and new connections are opened on the connect executor.  The results
+ * are delivered through the returned {@link ServiceFuture}, which fails if the server can't be reached.  No
+ * threads are started per call, the responses are read (and parsed) by the connections' reader threads.
+ * <p/>
+ * The player controls (play, pause, volume, etc) in {@link SqueezeService} already return without waiting,
+ * so they have no counterpart here.
+ *
+ * @author lehmanc
+ */
+public interface AsyncSqueezeService {
+
+    public ServiceFuture<BrowseResult<Genre>> browseGenres(Item parent, int start, int numberOfItems);
+
+    public ServiceFuture<BrowseResult<Item>> browseFolders(Folder parent, int start, int numberOfItems);
+
+    public ServiceFuture<BrowseResult<Artist>> browseArtists(Item parent, int start, int numberOfItems);
+
+    public ServiceFuture<BrowseResult<Album>> browseAlbums(Item parent, int start, int numberOfItems, Sort sort);
+
+    public ServiceFuture<BrowseResult<Song>> browseSongs(Item parent, int start, int numberOfItems);
+
+    public ServiceFuture<BrowseResult<Playlist>> listPlaylists(int start, int numberOfItems);
+
+    public ServiceFuture<BrowseResult<Application>> listApplications(int start, int numberOfItems);
+
+    public ServiceFuture<BrowseResult<Application>> listRadioStations(int start, int numberOfItems);
+
+    public ServiceFuture<BrowseResult<ApplicationMenuItem>> browseApplication(String playerId, Application application, ApplicationMenuItem parent, String query, int start, int numberOfItems);
+
+    public ServiceFuture<PlayerStatus> getPlayerStatus(String playerId);
+
+    public ServiceFuture<BrowseResult<Song>> getCurrentPlaylist(String playerId, Integer start, Integer numberOfItems);
+
+    public ServiceFuture<List<Player>> getPlayers();
+
+    public ServiceFuture<Player> getPlayer(String playerId);
+
+    public ServiceFuture<SearchResult> search(String searchTerms, int numResults);
+
+    public ServiceFuture<List<Song>> getSongsForItem(Item selectedItem);
+}
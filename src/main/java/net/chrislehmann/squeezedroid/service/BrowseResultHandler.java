@@ -0,0 +1,32 @@
+package net.chrislehmann.squeezedroid.service;
+
+import net.chrislehmann.squeezedroid.model.BrowseResult;
+
+/**
+ * Receives the items of a browse request one at a time, as they are read from the server.  This is the
+ * streaming alternative to waiting for a whole {@link BrowseResult}, so the first items can be shown before
+ * the rest of the response has arrived and the response never has to be held in memory all at once.
+ * <p/>
+ * Methods are called on the connection's reader thread, so they should return quickly.
+ *
+ * @author lehmanc
+ */
+public interface BrowseResultHandler<T> {
+
+    /**
+     * Called once, before the first item, with the total number of items the server has for the request.
+     */
+    public void onTotalItems(int totalItems);
+
+    public void onItem(T item);
+
+    /**
+     * Called after the last item has been delivered.
+     */
+    public void onComplete();
+
+    /**
+     * Called if the request failed.  Some items may already have been delivered.
+     */
+    public void onError(Exception e);
+}
@@ -0,0 +1,1178 @@
+package net.chrislehmann.squeezedroid.service;
+
+import android.util.Log;
+import net.chrislehmann.squeezedroid.model.Album;
+import net.chrislehmann.squeezedroid.model.ApplicationMenuItem;
+import net.chrislehmann.squeezedroid.model.Artist;
+import net.chrislehmann.squeezedroid.model.BrowseResult;
+import net.chrislehmann.squeezedroid.model.Folder;
+import net.chrislehmann.squeezedroid.model.Genre;
+import net.chrislehmann.squeezedroid.model.Item;
+import net.chrislehmann.squeezedroid.model.Player;
+import net.chrislehmann.squeezedroid.model.PlayerStatus;
+import net.chrislehmann.squeezedroid.model.Playlist;
+import net.chrislehmann.squeezedroid.model.RepeatMode;
+import net.chrislehmann.squeezedroid.model.SearchResult;
+import net.chrislehmann.squeezedroid.model.ShuffleMode;
+import net.chrislehmann.squeezedroid.model.Song;
+import net.chrislehmann.squeezedroid.service.RefreshHandler.DataType;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * {@link SqueezeService} that keeps the results of the browse methods (genres, artists, albums, songs, folders and
+ * playlists), the current playlists, the applications and radio stations and the players it has fetched, so going
+ * back and forth between screens does not ask the wrapped service for the same page again.  Results are kept by
+ * method, parent item, sort, start and number of items.
+ * <p/>
+ * Results are stale-while-revalidate: each {@link DataType} has a time to live (see
+ * {@link #setTimeToLive(DataType, long)}), and a result older than that is still handed out right away, but fetched
+ * again in the background.  If it turns out to have changed the {@link RefreshHandler}s are told, so the screens
+ * showing it can read it again.  The current playlist of a player goes stale as soon as the server says it changed,
+ * or it is changed through this service.
+ * <p/>
+ * The cache is bounded by the estimated size of the items in it (see {@link #setMaxBytes(long)}), the least
+ * recently used results are dropped first.  Everything is dropped when the server starts or finishes a scan of its
+ * library (see {@link RescanHandler}), and on {@link #disconnect()}.  Empty results are not kept, since that is also
+ * what the wrapped service returns when the server could not be reached.
+ * <p/>
+ * The results handed out are copies, callers are free to change them.
+ *
+ * @author lehmanc
+ */
+public class CachingSqueezeService implements SqueezeService {
+
+    private static final String LOGTAG = "CachingSqueezeService";
+
+    public static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+
+    /**
+     * Rough cost of an item, a player and a string, on top of the characters in it
+     */
+    private static final int ITEM_BYTES = 48;
+    private static final int PLAYER_BYTES = 200;
+    private static final int STRING_BYTES = 40;
+
+    /**
+     * The numbers for the cache at one point in time
+     */
+    public static class Stats {
+        private long hits;
+        private long staleHits;
+        private long misses;
+        private long refreshes;
+        private long evictions;
+        private long invalidations;
+        private int entries;
+        private long bytes;
+        private long maxBytes;
+
+        /**
+         * Number of results handed out from the cache, stale or not
+         */
+        public long getHits() {
+            return hits;
+        }
+
+        /**
+         * Number of results handed out from the cache that were older than their time to live, and fetched again
+         */
+        public long getStaleHits() {
+            return staleHits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        /**
+         * Number of results that were fetched again because they were stale, and had changed
+         */
+        public long getRefreshes() {
+            return refreshes;
+        }
+
+        /**
+         * Number of results dropped to make room for newer ones
+         */
+        public long getEvictions() {
+            return evictions;
+        }
+
+        /**
+         * Number of times everything was dropped because the library changed
+         */
+        public long getInvalidations() {
+            return invalidations;
+        }
+
+        public int getEntries() {
+            return entries;
+        }
+
+        /**
+         * Estimated size of the results in the cache
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getMaxBytes() {
+            return maxBytes;
+        }
+
+        public double getHitRatio() {
+            return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        }
+
+        @Override
+        public String toString() {
+            return "hits=" + hits + " staleHits=" + staleHits + " misses=" + misses + " refreshes=" + refreshes + " evictions="
+                    + evictions + " invalidations=" + invalidations + " entries=" + entries + " bytes=" + bytes + "/" + maxBytes;
+        }
+    }
+
+    private static class Entry {
+        private final Object value;
+        private final long bytes;
+        private long storedAt = System.currentTimeMillis();
+
+        private Entry(Object value, long bytes) {
+            this.value = value;
+            this.bytes = bytes;
+        }
+    }
+
+    private final SqueezeService service;
+    private final AsyncService asyncService;
+
+    /**
+     * In access order, so the first entry is the least recently used
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final Map<DataType, Long> timesToLive = new EnumMap<DataType, Long>(DataType.class);
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private long bytes;
+    private long hits;
+    private long staleHits;
+    private long misses;
+    private long refreshes;
+    private long evictions;
+    private long invalidations;
+
+    /**
+     * Goes up every time the cache is cleared, results of queries sent before that are not kept
+     */
+    private long generation;
+
+    /**
+     * The keys of the results being fetched again
+     */
+    private final Set<String> refreshing = new HashSet<String>();
+
+    /**
+     * Held weakly, so screens that are gone don't have to unsubscribe
+     */
+    private final List<WeakReference<RefreshHandler>> refreshHandlers = new CopyOnWriteArrayList<WeakReference<RefreshHandler>>();
+
+    /**
+     * The handlers subscribed to players, and the {@link PlaylistWatcher}s they were subscribed through
+     */
+    private final Map<PlayerStatusHandler, List<PlaylistWatcher>> watchers = new HashMap<PlayerStatusHandler, List<PlaylistWatcher>>();
+
+    /**
+     * Fetches the stale results again, a thread per refresh if it is not set
+     */
+    private Executor refreshExecutor;
+
+    private final RescanHandler rescanHandler = new RescanHandler() {
+        public void onRescan(boolean done) {
+            Log.d(LOGTAG, "Library changed, forgetting " + getStats().getEntries() + " results");
+            invalidate(true);
+        }
+    };
+
+    public CachingSqueezeService(SqueezeService service) {
+        this.service = service;
+        this.asyncService = new AsyncService(service.getAsyncService());
+        timesToLive.put(DataType.PLAYERS, 10 * 1000L);
+        timesToLive.put(DataType.PLAYLISTS, 10 * 1000L);
+        timesToLive.put(DataType.APPLICATIONS, 10 * 60 * 1000L);
+        timesToLive.put(DataType.LIBRARY, 60 * 60 * 1000L);
+    }
+
+    public SqueezeService getService() {
+        return service;
+    }
+
+    /**
+     * Sets the executor stale results are fetched again on
+     */
+    public void setRefreshExecutor(Executor refreshExecutor) {
+        this.refreshExecutor = refreshExecutor;
+    }
+
+    public synchronized Stats getStats() {
+        Stats stats = new Stats();
+        stats.hits = hits;
+        stats.staleHits = staleHits;
+        stats.misses = misses;
+        stats.refreshes = refreshes;
+        stats.evictions = evictions;
+        stats.invalidations = invalidations;
+        stats.entries = entries.size();
+        stats.bytes = bytes;
+        stats.maxBytes = maxBytes;
+        return stats;
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Sets the estimated size the results in the cache may take up, dropping the least recently used ones if they
+     * take up more already
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trim();
+    }
+
+    public synchronized long getTimeToLive(DataType type) {
+        return timesToLive.get(type);
+    }
+
+    /**
+     * Sets how long results of the type are handed out without fetching them again.  0 fetches them again every time
+     * (after handing out the last one).
+     */
+    public synchronized void setTimeToLive(DataType type, long millis) {
+        timesToLive.put(type, millis);
+    }
+
+    /**
+     * Drops everything in the cache
+     */
+    public void invalidate() {
+        invalidate(false);
+    }
+
+    private synchronized void invalidate(boolean libraryChanged) {
+        entries.clear();
+        bytes = 0;
+        generation++;
+        if (libraryChanged) {
+            invalidations++;
+        }
+    }
+
+    /**
+     * Makes the results with keys starting with the prefix stale, they are fetched again the next time they are asked for
+     */
+    private synchronized void markStale(String prefix) {
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                entry.getValue().storedAt = 0;
+            }
+        }
+    }
+
+    private static String key(String method, Item parent, Sort sort, int start, int numberOfItems) {
+        StringBuilder key = new StringBuilder(method);
+        key.append(' ');
+        if (parent != null) {
+            key.append(parent.getClass().getSimpleName()).append(':').append(parent.getId());
+        }
+        key.append(' ').append(sort).append(' ').append(start).append(' ').append(numberOfItems);
+        return key.toString();
+    }
+
+    private static String playlistKey(String playerId) {
+        return "playlist " + playerId + " ";
+    }
+
+    private static String playlistKey(String playerId, Integer start, Integer numberOfItems) {
+        return playlistKey(playerId) + start + " " + numberOfItems;
+    }
+
+    private static String playersKey(boolean removeDuplicatePlayers) {
+        return "players " + removeDuplicatePlayers;
+    }
+
+    /**
+     * Returns a copy of the cached result, or null if there is none.  If the result is stale it is fetched again
+     * with the query in the background.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T get(String key, DataType type, Query<T> query) {
+        T value;
+        boolean stale;
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            stale = System.currentTimeMillis() - entry.storedAt >= timesToLive.get(type);
+            if (stale) {
+                staleHits++;
+            }
+            value = (T) copy(entry.value);
+        }
+        if (stale) {
+            refresh(key, type, query);
+        }
+        return value;
+    }
+
+    private synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Keeps a copy of the result, unless the cache has been cleared since the query was sent.  Returns true if it
+     * replaced a different result.
+     */
+    private synchronized boolean put(String key, Object value, long queryGeneration) {
+        if (isEmpty(value) || queryGeneration != generation) {
+            return false;
+        }
+        Entry previous = entries.get(key);
+        if (previous != null && sameValue(previous.value, value)) {
+            previous.storedAt = System.currentTimeMillis();
+            return false;
+        }
+        long size = estimateBytes(key, value);
+        if (previous != null) {
+            entries.remove(key);
+            bytes -= previous.bytes;
+        }
+        if (size <= maxBytes) {
+            entries.put(key, new Entry(copy(value), size));
+            bytes += size;
+            trim();
+        }
+        return previous != null;
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            bytes -= iterator.next().getValue().bytes;
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Fetches a stale result again on the refresh executor, and tells the {@link RefreshHandler}s if it changed
+     */
+    private void refresh(final String key, final DataType type, final Query<?> query) {
+        final long queryGeneration;
+        synchronized (this) {
+            if (!refreshing.add(key)) {
+                return;
+            }
+            queryGeneration = generation;
+        }
+        Runnable refresh = new Runnable() {
+            public void run() {
+                boolean changed = false;
+                try {
+                    changed = put(key, query.query(), queryGeneration);
+                } catch (RuntimeException e) {
+                    Log.e(LOGTAG, "Error refreshing " + key, e);
+                } finally {
+                    refreshed(key, changed);
+                }
+                if (changed) {
+                    Log.d(LOGTAG, "Refreshed " + key);
+                    for (WeakReference<RefreshHandler> reference : refreshHandlers) {
+                        RefreshHandler handler = reference.get();
+                        if (handler == null) {
+                            refreshHandlers.remove(reference);
+                        } else {
+                            handler.onRefreshed(type);
+                        }
+                    }
+                }
+            }
+        };
+        try {
+            Executor executor = refreshExecutor;
+            if (executor != null) {
+                executor.execute(refresh);
+            } else {
+                new Thread(refresh, "CacheRefresh " + key).start();
+            }
+        } catch (RejectedExecutionException e) {
+            refreshed(key, false);
+        }
+    }
+
+    private synchronized void refreshed(String key, boolean changed) {
+        refreshing.remove(key);
+        if (changed) {
+            refreshes++;
+        }
+    }
+
+    private static boolean isEmpty(Object value) {
+        if (value instanceof BrowseResult) {
+            List<?> results = ((BrowseResult<?>) value).getResutls();
+            return results == null || results.isEmpty();
+        }
+        return value == null || ((List<?>) value).isEmpty();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object copy(Object value) {
+        if (value instanceof BrowseResult) {
+            BrowseResult<Item> result = (BrowseResult<Item>) value;
+            BrowseResult<Item> copy = new BrowseResult<Item>();
+            copy.setResutls(new ArrayList<Item>(result.getResutls()));
+            copy.setTotalItems(result.getTotalItems());
+            return copy;
+        }
+        return new ArrayList<Object>((List<Object>) value);
+    }
+
+    private static boolean sameValue(Object a, Object b) {
+        if (a instanceof BrowseResult && b instanceof BrowseResult) {
+            BrowseResult<?> first = (BrowseResult<?>) a;
+            BrowseResult<?> second = (BrowseResult<?>) b;
+            return first.getTotalItems() == second.getTotalItems() && sameItems(first.getResutls(), second.getResutls());
+        }
+        return a instanceof List && b instanceof List && sameItems((List<?>) a, (List<?>) b);
+    }
+
+    /**
+     * True if the lists hold the same items ({@link Item}s or {@link Player}s with the same ids and names) in the
+     * same order
+     */
+    public static boolean sameItems(List<?> a, List<?> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            if (!sameItem(a.get(i), b.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean sameItem(Object a, Object b) {
+        if (a instanceof Item && b instanceof Item) {
+            Item first = (Item) a;
+            Item second = (Item) b;
+            return a.getClass() == b.getClass() && equal(first.getId(), second.getId()) && equal(first.getName(), second.getName());
+        }
+        if (a instanceof Player && b instanceof Player) {
+            Player first = (Player) a;
+            Player second = (Player) b;
+            return equal(first.getId(), second.getId()) && equal(first.getName(), second.getName())
+                    && sameItems(first.getSyncronizedPlayers(), second.getSyncronizedPlayers());
+        }
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static long estimateBytes(String key, Object value) {
+        long size = STRING_BYTES + 2 * key.length();
+        List<?> items = value instanceof BrowseResult ? ((BrowseResult<?>) value).getResutls() : (List<?>) value;
+        for (Object item : items) {
+            size += item instanceof Item ? estimateBytes((Item) item) : PLAYER_BYTES;
+        }
+        return size;
+    }
+
+    static long estimateBytes(Item item) {
+        long size = ITEM_BYTES + estimateBytes(item.getId()) + estimateBytes(item.getName())
+                + estimateBytes(item.getImageUrl()) + estimateBytes(item.getImageThumbnailUrl());
+        if (item instanceof Album) {
+            size += estimateBytes(((Album) item).getArtist());
+        } else if (item instanceof Song) {
+            Song song = (Song) item;
+            size += estimateBytes(song.getArtist()) + estimateBytes(song.getArtistId()) + estimateBytes(song.getAlbum())
+                    + estimateBytes(song.getAlbumId()) + estimateBytes(song.getYear()) + estimateBytes(song.getServerPath());
+        }
+        return size;
+    }
+
+    private static long estimateBytes(String string) {
+        return string == null ? 0 : STRING_BYTES + 2 * string.length();
+    }
+
+    /**
+     * A query of the wrapped service
+     */
+    private abstract class Query<T> {
+        abstract T query();
+    }
+
+    private <T> T cached(String key, DataType type, Query<T> query) {
+        T result = get(key, type, query);
+        if (result == null) {
+            long queryGeneration = getGeneration();
+            result = query.query();
+            put(key, result, queryGeneration);
+        }
+        return result;
+    }
+
+    private <T> ServiceFuture<T> cachedAsync(final String key, final long queryGeneration, ServiceFuture<T> future) {
+        future.addCallback(new ServiceCallback<T>() {
+            public void onSuccess(T value) {
+                put(key, value, queryGeneration);
+            }
+
+            public void onFailure(Exception e) {
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Passes the cached result to the handler if there is one, returns false if the query has to be sent
+     */
+    private <T extends Item> boolean cachedStream(String key, DataType type, Query<BrowseResult<T>> query, BrowseResultHandler<T> handler) {
+        BrowseResult<T> result = get(key, type, query);
+        if (result == null) {
+            return false;
+        }
+        handler.onTotalItems(result.getTotalItems());
+        for (T item : result.getResutls()) {
+            handler.onItem(item);
+        }
+        handler.onComplete();
+        return true;
+    }
+
+    /**
+     * Passes the items on to the handler, and keeps them once they have all been read
+     */
+    private <T extends Item> BrowseResultHandler<T> keeping(final String key, final BrowseResultHandler<T> handler) {
+        final long queryGeneration = getGeneration();
+        return new BrowseResultHandler<T>() {
+            private final BrowseResult<T> result = new BrowseResult<T>();
+
+            public void onTotalItems(int totalItems) {
+                result.setTotalItems(totalItems);
+                handler.onTotalItems(totalItems);
+            }
+
+            public void onItem(T item) {
+                result.getResutls().add(item);
+                handler.onItem(item);
+            }
+
+            public void onComplete() {
+                put(key, result, queryGeneration);
+                handler.onComplete();
+            }
+
+            public void onError(Exception e) {
+                handler.onError(e);
+            }
+        };
+    }
+
+    private Query<BrowseResult<Genre>> genres(final Item parent, final int start, final int numberOfItems) {
+        return new Query<BrowseResult<Genre>>() {
+            BrowseResult<Genre> query() {
+                return service.browseGenres(parent, start, numberOfItems);
+            }
+        };
+    }
+
+    private Query<BrowseResult<Item>> folders(final Folder parent, final int start, final int numberOfItems) {
+        return new Query<BrowseResult<Item>>() {
+            BrowseResult<Item> query() {
+                return service.browseFolders(parent, start, numberOfItems);
+            }
+        };
+    }
+
+    private Query<BrowseResult<Artist>> artists(final Item parent, final int start, final int numberOfItems) {
+        return new Query<BrowseResult<Artist>>() {
+            BrowseResult<Artist> query() {
+                return service.browseArtists(parent, start, numberOfItems);
+            }
+        };
+    }
+
+    private Query<BrowseResult<Album>> albums(final Item parent, final int start, final int numberOfItems, final Sort sort) {
+        return new Query<BrowseResult<Album>>() {
+            BrowseResult<Album> query() {
+                return service.browseAlbums(parent, start, numberOfItems, sort);
+            }
+        };
+    }
+
+    private Query<BrowseResult<Song>> songs(final Item parent, final int start, final int numberOfItems) {
+        return new Query<BrowseResult<Song>>() {
+            BrowseResult<Song> query() {
+                return service.browseSongs(parent, start, numberOfItems);
+            }
+        };
+    }
+
+    private Query<BrowseResult<Playlist>> playlists(final int start, final int numberOfItems) {
+        return new Query<BrowseResult<Playlist>>() {
+            BrowseResult<Playlist> query() {
+                return service.listPlaylists(start, numberOfItems);
+            }
+        };
+    }
+
+    private Query<BrowseResult<Application>> applications(final int start, final int numberOfItems) {
+        return new Query<BrowseResult<Application>>() {
+            BrowseResult<Application> query() {
+                return service.listApplications(start, numberOfItems);
+            }
+        };
+    }
+
+    private Query<BrowseResult<Application>> radioStations(final int start, final int numberOfItems) {
+        return new Query<BrowseResult<Application>>() {
+            BrowseResult<Application> query() {
+                return service.listRadioStations(start, numberOfItems);
+            }
+        };
+    }
+
+    private Query<BrowseResult<Song>> currentPlaylist(final String playerId, final Integer start, final Integer numberOfItems) {
+        return new Query<BrowseResult<Song>>() {
+            BrowseResult<Song> query() {
+                return service.getCurrentPlaylist(playerId, start, numberOfItems);
+            }
+        };
+    }
+
+    private Query<List<Player>> players(final boolean removeDuplicatePlayers) {
+        return new Query<List<Player>>() {
+            List<Player> query() {
+                return service.getPlayers(removeDuplicatePlayers);
+            }
+        };
+    }
+
+    public BrowseResult<Genre> browseGenres(Item parent, int start, int numberOfItems) {
+        return cached(key("genres", parent, null, start, numberOfItems), DataType.LIBRARY, genres(parent, start, numberOfItems));
+    }
+
+    public BrowseResult<Item> browseFolders(Folder parent, int start, int numberOfItems) {
+        return cached(key("folders", parent, null, start, numberOfItems), DataType.LIBRARY, folders(parent, start, numberOfItems));
+    }
+
+    public void browseFolders(Folder parent, int start, int numberOfItems, BrowseResultHandler<Item> handler) {
+        String key = key("folders", parent, null, start, numberOfItems);
+        if (!cachedStream(key, DataType.LIBRARY, folders(parent, start, numberOfItems), handler)) {
+            service.browseFolders(parent, start, numberOfItems, keeping(key, handler));
+        }
+    }
+
+    public BrowseResult<Artist> browseArtists(Item parent, int start, int numberOfItems) {
+        return cached(key("artists", parent, null, start, numberOfItems), DataType.LIBRARY, artists(parent, start, numberOfItems));
+    }
+
+    public BrowseResult<Album> browseAlbums(Item parent, int start, int numberOfItems) {
+        return browseAlbums(parent, start, numberOfItems, Sort.TITLE);
+    }
+
+    public BrowseResult<Album> browseAlbums(Item parent, int start, int numberOfItems, Sort sort) {
+        return cached(key("albums", parent, sort, start, numberOfItems), DataType.LIBRARY, albums(parent, start, numberOfItems, sort));
+    }
+
+    public void browseAlbums(Item parent, int start, int numberOfItems, Sort sort, BrowseResultHandler<Album> handler) {
+        String key = key("albums", parent, sort, start, numberOfItems);
+        if (!cachedStream(key, DataType.LIBRARY, albums(parent, start, numberOfItems, sort), handler)) {
+            service.browseAlbums(parent, start, numberOfItems, sort, keeping(key, handler));
+        }
+    }
+
+    public BrowseResult<Song> browseSongs(Item parent, int start, int numberOfItems) {
+        return cached(key("songs", parent, null, start, numberOfItems), DataType.LIBRARY, songs(parent, start, numberOfItems));
+    }
+
+    public void browseSongs(Item parent, int start, int numberOfItems, BrowseResultHandler<Song> handler) {
+        String key = key("songs", parent, null, start, numberOfItems);
+        if (!cachedStream(key, DataType.LIBRARY, songs(parent, start, numberOfItems), handler)) {
+            service.browseSongs(parent, start, numberOfItems, keeping(key, handler));
+        }
+    }
+
+    public BrowseResult<Playlist> listPlaylists(int start, int numberOfItems) {
+        return cached(key("playlists", null, null, start, numberOfItems), DataType.PLAYLISTS, playlists(start, numberOfItems));
+    }
+
+    public BrowseResult<Application> listApplications(int start, int numberOfItems) {
+        return cached(key("apps", null, null, start, numberOfItems), DataType.APPLICATIONS, applications(start, numberOfItems));
+    }
+
+    public BrowseResult<Application> listRadioStations(int start, int numberOfItems) {
+        return cached(key("radios", null, null, start, numberOfItems), DataType.APPLICATIONS, radioStations(start, numberOfItems));
+    }
+
+    public BrowseResult<ApplicationMenuItem> browseApplication(String playerId, Application application, int start, int numberOfItems) {
+        return service.browseApplication(playerId, application, start, numberOfItems);
+    }
+
+    public BrowseResult<ApplicationMenuItem> browseApplication(String playerId, Application application, ApplicationMenuItem parent, int start, int numberOfItems) {
+        return service.browseApplication(playerId, application, parent, start, numberOfItems);
+    }
+
+    public BrowseResult<ApplicationMenuItem> browseApplication(String playerId, Application application, ApplicationMenuItem parent, String query, int start, int numberOfItems) {
+        return service.browseApplication(playerId, application, parent, query, start, numberOfItems);
+    }
+
+    public PlayerStatus getPlayerStatus(String playerId) {
+        return service.getPlayerStatus(playerId);
+    }
+
+    public BrowseResult<Song> getCurrentPlaylist(String playerId, Integer start, Integer numberOfItems) {
+        return cached(playlistKey(playerId, start, numberOfItems), DataType.PLAYLISTS, currentPlaylist(playerId, start, numberOfItems));
+    }
+
+    public List<Player> getPlayers() {
+        return getPlayers(false);
+    }
+
+    public List<Player> getPlayers(boolean removeDuplicatePlayers) {
+        return cached(playersKey(removeDuplicatePlayers), DataType.PLAYERS, players(removeDuplicatePlayers));
+    }
+
+    public Player getPlayer(String playerId) {
+        return service.getPlayer(playerId);
+    }
+
+    public void addItem(String playerId, Item item) {
+        markStale(playlistKey(playerId));
+        service.addItem(playerId, item);
+    }
+
+    public void playItem(String playerId, Item item) {
+        markStale(playlistKey(playerId));
+        service.playItem(playerId, item);
+    }
+
+    public void playItemNext(String playerId, Item item) {
+        markStale(playlistKey(playerId));
+        service.playItemNext(playerId, item);
+    }
+
+    public void removeItem(String playerId, int playlistIndex) {
+        markStale(playlistKey(playerId));
+        service.removeItem(playerId, playlistIndex);
+    }
+
+    public void removeAllItemsByArtist(String playerId, String artistId) {
+        markStale(playlistKey(playerId));
+        service.removeAllItemsByArtist(playerId, artistId);
+    }
+
+    public void removeAllItemsInAlbum(String playerId, String albumId) {
+        markStale(playlistKey(playerId));
+        service.removeAllItemsInAlbum(playerId, albumId);
+    }
+
+    public void togglePower(String playerId) {
+        service.togglePower(playerId);
+    }
+
+    public void play(String playerId) {
+        service.play(playerId);
+    }
+
+    public void pause(String playerId) {
+        service.pause(playerId);
+    }
+
+    public void togglePause(String playerId) {
+        service.togglePause(playerId);
+    }
+
+    public void stop(String playerId) {
+        service.stop(playerId);
+    }
+
+    public void jump(String playerId, String position) {
+        service.jump(playerId, position);
+    }
+
+    /**
+     * Connects to the server and starts listening for scans of its library
+     */
+    public void connect() {
+        service.connect();
+        //Connecting again without disconnecting first (after a failed attempt) must not subscribe twice
+        service.removeRescanHandler(rescanHandler);
+        service.addRescanHandler(rescanHandler);
+    }
+
+    /**
+     * Disconnects from the server and drops everything in the cache, the library may change while we are away
+     */
+    public void disconnect() {
+        service.removeRescanHandler(rescanHandler);
+        invalidate();
+        synchronized (watchers) {
+            watchers.clear();
+        }
+        service.disconnect();
+    }
+
+    public boolean isConnected() {
+        return service.isConnected();
+    }
+
+    public void subscribe(ServerStatusHandler handler) {
+        service.subscribe(handler);
+    }
+
+    public void unsubscribe(ServerStatusHandler handler) {
+        service.unsubscribe(handler);
+    }
+
+    public void addRescanHandler(RescanHandler handler) {
+        service.addRescanHandler(handler);
+    }
+
+    public void removeRescanHandler(RescanHandler handler) {
+        service.removeRescanHandler(handler);
+    }
+
+    /**
+     * Adds a handler told about results that were handed out stale being fetched again and found to have changed.
+     * The handler is held weakly, keep a reference to it for as long as it should be told.
+     */
+    public void addRefreshHandler(RefreshHandler handler) {
+        for (WeakReference<RefreshHandler> reference : refreshHandlers) {
+            if (reference.get() == handler) {
+                return;
+            }
+        }
+        refreshHandlers.add(new WeakReference<RefreshHandler>(handler));
+    }
+
+    public void removeRefreshHandler(RefreshHandler handler) {
+        for (WeakReference<RefreshHandler> reference : refreshHandlers) {
+            if (reference.get() == handler || reference.get() == null) {
+                refreshHandlers.remove(reference);
+            }
+        }
+    }
+
+    /**
+     * The handler is subscribed through a {@link PlaylistWatcher}, so the playlist of the player goes stale before
+     * the handler hears it changed
+     */
+    public void subscribe(String playerId, PlayerStatusHandler handler) {
+        PlaylistWatcher watcher = null;
+        synchronized (watchers) {
+            List<PlaylistWatcher> subscribed = watchers.get(handler);
+            if (subscribed == null) {
+                subscribed = new ArrayList<PlaylistWatcher>();
+                watchers.put(handler, subscribed);
+            }
+            for (PlaylistWatcher existing : subscribed) {
+                if (existing.playerId.equals(playerId)) {
+                    watcher = existing;
+                }
+            }
+            if (watcher == null) {
+                watcher = new PlaylistWatcher(playerId, handler);
+                subscribed.add(watcher);
+            }
+        }
+        service.subscribe(playerId, watcher);
+    }
+
+    public void unsubscribe(String playerId, PlayerStatusHandler handler) {
+        PlaylistWatcher watcher = null;
+        synchronized (watchers) {
+            List<PlaylistWatcher> subscribed = watchers.get(handler);
+            if (subscribed != null) {
+                for (Iterator<PlaylistWatcher> i = subscribed.iterator(); i.hasNext(); ) {
+                    PlaylistWatcher existing = i.next();
+                    if (existing.playerId.equals(playerId)) {
+                        watcher = existing;
+                        i.remove();
+                    }
+                }
+                if (subscribed.isEmpty()) {
+                    watchers.remove(handler);
+                }
+            }
+        }
+        service.unsubscribe(playerId, watcher != null ? watcher : handler);
+    }
+
+    public void unsubscribeAll(PlayerStatusHandler handler) {
+        List<PlaylistWatcher> subscribed;
+        synchronized (watchers) {
+            subscribed = watchers.remove(handler);
+        }
+        if (subscribed == null) {
+            service.unsubscribeAll(handler);
+            return;
+        }
+        for (PlaylistWatcher watcher : subscribed) {
+            service.unsubscribeAll(watcher);
+        }
+    }
+
+    public void seekTo(String playerId, int time) {
+        service.seekTo(playerId, time);
+    }
+
+    public void changeVolume(String playerId, int volumeLevel) {
+        service.changeVolume(playerId, volumeLevel);
+    }
+
+    public void unsynchronize(String playerId) {
+        markStale("players ");
+        service.unsynchronize(playerId);
+    }
+
+    public void synchronize(String playerId, String playerIdToSyncTo) {
+        markStale("players ");
+        service.synchronize(playerId, playerIdToSyncTo);
+    }
+
+    public void setShuffleMode(String playerId, ShuffleMode mode) {
+        markStale(playlistKey(playerId));
+        service.setShuffleMode(playerId, mode);
+    }
+
+    public void setRepeatMode(String playerId, RepeatMode mode) {
+        service.setRepeatMode(playerId, mode);
+    }
+
+    public SearchResult search(String searchTerms, int numResults) {
+        return service.search(searchTerms, numResults);
+    }
+
+    public void clearPlaylist(String playerId) {
+        markStale(playlistKey(playerId));
+        service.clearPlaylist(playerId);
+    }
+
+    public List<Song> getSongsForItem(Item item) {
+        return service.getSongsForItem(item);
+    }
+
+    public AsyncSqueezeService getAsyncService() {
+        return asyncService;
+    }
+
+    /**
+     * Passes the events of a player on to a handler, making the playlist of the player stale first when the server
+     * says it changed
+     */
+    private class PlaylistWatcher implements PlayerStatusHandler {
+        private final String playerId;
+        private final PlayerStatusHandler handler;
+
+        private PlaylistWatcher(String playerId, PlayerStatusHandler handler) {
+            this.playerId = playerId;
+            this.handler = handler;
+        }
+
+        public void onPlaylistChanged(PlayerStatus status) {
+            markStale(playlistKey(playerId));
+            handler.onPlaylistChanged(status);
+        }
+
+        public void onSongChanged(PlayerStatus status) {
+            handler.onSongChanged(status);
+        }
+
+        public void onTimeChanged(int newPosition) {
+            handler.onTimeChanged(newPosition);
+        }
+
+        public void onVolumeChanged(int newVolume) {
+            handler.onVolumeChanged(newVolume);
+        }
+
+        public void onPause() {
+            handler.onPause();
+        }
+
+        public void onPlay() {
+            handler.onPlay();
+        }
+
+        public void onStop() {
+            handler.onStop();
+        }
+
+        public void onPlayerSynchronized(String playerId, String syncronizedPlayerId) {
+            markStale("players ");
+            handler.onPlayerSynchronized(playerId, syncronizedPlayerId);
+        }
+
+        public void onPlayerUnsynchronized() {
+            markStale("players ");
+            handler.onPlayerUnsynchronized();
+        }
+
+        public void onDisconnect() {
+            handler.onDisconnect();
+        }
+
+        public void onShuffleModeChanged(ShuffleMode newMode) {
+            markStale(playlistKey(playerId));
+            handler.onShuffleModeChanged(newMode);
+        }
+
+        public void onRepeatModeChanged(RepeatMode newMode) {
+            handler.onRepeatModeChanged(newMode);
+        }
+
+        @Override
+        public String toString() {
+            return handler.toString();
+        }
+    }
+
+    /**
+     * The queries without the waiting, answered from the same cache
+     */
+    private class AsyncService implements AsyncSqueezeService {
+        private final AsyncSqueezeService server;
+
+        private AsyncService(AsyncSqueezeService server) {
+            this.server = server;
+        }
+
+        public ServiceFuture<BrowseResult<Genre>> browseGenres(Item parent, int start, int numberOfItems) {
+            String key = key("genres", parent, null, start, numberOfItems);
+            BrowseResult<Genre> result = get(key, DataType.LIBRARY, genres(parent, start, numberOfItems));
+            if (result != null) {
+                return ServiceFuture.completed(result);
+            }
+            return cachedAsync(key, getGeneration(), server.browseGenres(parent, start, numberOfItems));
+        }
+
+        public ServiceFuture<BrowseResult<Item>> browseFolders(Folder parent, int start, int numberOfItems) {
+            String key = key("folders", parent, null, start, numberOfItems);
+            BrowseResult<Item> result = get(key, DataType.LIBRARY, folders(parent, start, numberOfItems));
+            if (result != null) {
+                return ServiceFuture.completed(result);
+            }
+            return cachedAsync(key, getGeneration(), server.browseFolders(parent, start, numberOfItems));
+        }
+
+        public ServiceFuture<BrowseResult<Artist>> browseArtists(Item parent, int start, int numberOfItems) {
+            String key = key("artists", parent, null, start, numberOfItems);
+            BrowseResult<Artist> result = get(key, DataType.LIBRARY, artists(parent, start, numberOfItems));
+            if (result != null) {
+                return ServiceFuture.completed(result);
+            }
+            return cachedAsync(key, getGeneration(), server.browseArtists(parent, start, numberOfItems));
+        }
+
+        public ServiceFuture<BrowseResult<Album>> browseAlbums(Item parent, int start, int numberOfItems, Sort sort) {
+            String key = key("albums", parent, sort, start, numberOfItems);
+            BrowseResult<Album> result = get(key, DataType.LIBRARY, albums(parent, start, numberOfItems, sort));
+            if (result != null) {
+                return ServiceFuture.completed(result);
+            }
+            return cachedAsync(key, getGeneration(), server.browseAlbums(parent, start, numberOfItems, sort));
+        }
+
+        public ServiceFuture<BrowseResult<Song>> browseSongs(Item parent, int start, int numberOfItems) {
+            String key = key("songs", parent, null, start, numberOfItems);
+            BrowseResult<Song> result = get(key, DataType.LIBRARY, songs(parent, start, numberOfItems));
+            if (result != null) {
+                return ServiceFuture.completed(result);
+            }
+            return cachedAsync(key, getGeneration(), server.browseSongs(parent, start, numberOfItems));
+        }
+
+        public ServiceFuture<BrowseResult<Playlist>> listPlaylists(int start, int numberOfItems) {
+            String key = key("playlists", null, null, start, numberOfItems);
+            BrowseResult<Playlist> result = get(key, DataType.PLAYLISTS, playlists(start, numberOfItems));
+            if (result != null) {
+                return ServiceFuture.completed(result);
+            }
+            return cachedAsync(key, getGeneration(), server.listPlaylists(start, numberOfItems));
+        }
+
+        public ServiceFuture<BrowseResult<Application>> listApplications(int start, int numberOfItems) {
+            String key = key("apps", null, null, start, numberOfItems);
+            BrowseResult<Application> result = get(key, DataType.APPLICATIONS, applications(start, numberOfItems));
+            if (result != null) {
+                return ServiceFuture.completed(result);
+            }
+            return cachedAsync(key, getGeneration(), server.listApplications(start, numberOfItems));
+        }
+
+        public ServiceFuture<BrowseResult<Application>> listRadioStations(int start, int numberOfItems) {
+            String key = key("radios", null, null, start, numberOfItems);
+            BrowseResult<Application> result = get(key, DataType.APPLICATIONS, radioStations(start, numberOfItems));
+            if (result != null) {
+                return ServiceFuture.completed(result);
+            }
+            return cachedAsync(key, getGeneration(), server.listRadioStations(start, numberOfItems));
+        }
+
+        public ServiceFuture<BrowseResult<ApplicationMenuItem>> browseApplication(String playerId, Application application, ApplicationMenuItem parent, String query, int start, int numberOfItems) {
+            return server.browseApplication(playerId, application, parent, query, start, numberOfItems);
+        }
+
+        public ServiceFuture<PlayerStatus> getPlayerStatus(String playerId) {
+            return server.getPlayerStatus(playerId);
+        }
+
+        public ServiceFuture<BrowseResult<Song>> getCurrentPlaylist(String playerId, Integer start, Integer numberOfItems) {
+            String key = playlistKey(playerId, start, numberOfItems);
+            BrowseResult<Song> result = get(key, DataType.PLAYLISTS, currentPlaylist(playerId, start, numberOfItems));
+            if (result != null) {
+                return ServiceFuture.completed(result);
+            }
+            return cachedAsync(key, getGeneration(), server.getCurrentPlaylist(playerId, start, numberOfItems));
+        }
+
+        public ServiceFuture<List<Player>> getPlayers() {
+            String key = playersKey(false);
+            List<Player> result = get(key, DataType.PLAYERS, players(false));
+            if (result != null) {
+                return ServiceFuture.completed(result);
+            }
+            return cachedAsync(key, getGeneration(), server.getPlayers());
+        }
+
+        public ServiceFuture<Player> getPlayer(String playerId) {
+            return server.getPlayer(playerId);
+        }
+
+        public ServiceFuture<SearchResult> search(String searchTerms, int numResults) {
+            return server.search(searchTerms, numResults);
+        }
+
+        public ServiceFuture<List<Song>> getSongsForItem(Item item) {
+            return server.getSongsForItem(item);
+        }
+    }
+}
@@ -0,0 +1,577 @@
+package net.chrislehmann.squeezedroid.service;
+
+import android.util.Log;
+import net.chrislehmann.squeezedroid.exception.ApplicationException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A single connection to the SqueezeCenter command line interface that allows many commands to be
+ * in flight at once.  Sending a command only queues it, a writer thread writes it to the socket, so sending never
+ * blocks the caller.  A reader thread matches every response line to the oldest pending command it echoes (see
+ * {@link CommandFuture#matches(String)}).
+ * <p/>
+ * Responses are read straight from the socket's bytes.  Only the echo of the command is read before the
+ * response is matched, so the records of a {@link StreamingCommandFuture} can be handed over one at a time
+ * while the rest of the line is still arriving.
+ * <p/>
+ * If the connection is lost, all pending commands fail and the {@link ServerStatusHandler} passed to
+ * {@link #setDisconnectHandler(ServerStatusHandler)} is notified.  With a {@link Heartbeat} set, the connection is
+ * probed when it is idle, so it is found to be lost even if nothing is being sent down it.
+ *
+ * @author lehmanc
+ */
+public class CliConnection {
+
+    private static final String LOGTAG = "CliConnection";
+
+    private String host;
+    private int port;
+
+    private Socket socket;
+    private Writer writer;
+    private InputStream input;
+    private ReaderThread readerThread;
+    private WriterThread writerThread;
+
+    /**
+     * Commands that have been sent but not answered yet, in the order they were sent.
+     */
+    private final List<CommandFuture> pending = new LinkedList<CommandFuture>();
+
+    /**
+     * Commands that have been sent but not written yet.  Both lists are only changed while holding the lock on
+     * {@link #pending}, so their order always matches the order on the wire.
+     */
+    private final LinkedList<CommandFuture> unwritten = new LinkedList<CommandFuture>();
+
+    private ServerStatusHandler disconnectHandler;
+    private volatile boolean closing = false;
+
+    private Heartbeat heartbeat;
+    private volatile long lastReadAt = System.currentTimeMillis();
+    private final Heartbeat.Target heartbeatTarget = new Heartbeat.Target() {
+        public long getLastReadAt() {
+            return lastReadAt;
+        }
+
+        public boolean isBusy() {
+            return isWaitingForAnswer();
+        }
+
+        public void sendProbe() {
+            final Heartbeat.Target target = this;
+            send(Heartbeat.PROBE_COMMAND, new CommandCallback() {
+                public void onResponse(String response) {
+                    heartbeat.probeAnswered(target);
+                }
+
+                public void onError(Exception e) {
+                    //Lost anyway, or the heartbeat will find out
+                }
+            });
+        }
+
+        public void probeTimedOut() {
+            Log.e(LOGTAG, "Connection to " + host + ":" + port + " did not answer, disconnecting from server");
+            connectionLost();
+        }
+
+        @Override
+        public String toString() {
+            return "connection to " + host + ":" + port;
+        }
+    };
+
+    public CliConnection(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Opens the socket and starts the reader and writer threads.  Throws an {@link ApplicationException} if
+     * the connection cannot be made.
+     */
+    public void connect() {
+        try {
+            socket = new Socket(host, port);
+            writer = new OutputStreamWriter(socket.getOutputStream());
+            input = socket.getInputStream();
+        } catch (Exception e) {
+            throw new ApplicationException("Cannot connect to host '" + host + "' at port '" + port, e);
+        }
+        closing = false;
+        lastReadAt = System.currentTimeMillis();
+        readerThread = new ReaderThread();
+        readerThread.start();
+        writerThread = new WriterThread();
+        writerThread.start();
+        if (heartbeat != null) {
+            heartbeat.add(heartbeatTarget);
+        }
+    }
+
+    public boolean isConnected() {
+        return socket != null && socket.isConnected() && !closing;
+    }
+
+    /**
+     * Sends the command to the server without waiting for the response.
+     *
+     * @return a {@link CommandFuture} that will be completed when the response arrives.
+     */
+    public CommandFuture send(String command) {
+        return send(new CommandFuture(command));
+    }
+
+    /**
+     * Queues the command the future was created for to be written, without waiting for it to be written or
+     * answered.  Never blocks.
+     *
+     * @return the future passed in
+     */
+    public CommandFuture send(CommandFuture future) {
+        boolean queued = false;
+        synchronized (pending) {
+            if (!closing && writer != null) {
+                pending.add(future);
+                unwritten.add(future);
+                pending.notifyAll();
+                queued = true;
+            }
+        }
+
+        if (!queued) {
+            future.fail(new ApplicationException("Not connected to server, cannot send '" + future.getCommand() + "'"));
+        }
+        return future;
+    }
+
+    /**
+     * Sends the command to the server, executing the callback when the response arrives.
+     */
+    public CommandFuture send(String command, CommandCallback callback) {
+        CommandFuture future = send(command);
+        future.addCallback(callback);
+        return future;
+    }
+
+    /**
+     * True if a command that is still being waited for has not been answered.  Commands that timed out (and were
+     * cancelled) don't count, so the {@link Heartbeat} probes a connection that only has those left.  They stay
+     * pending so their response, if it ever arrives, is still matched to them.
+     */
+    private boolean isWaitingForAnswer() {
+        synchronized (pending) {
+            for (CommandFuture future : pending) {
+                if (!future.isDone()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of commands that are waiting for a response.  Commands that timed out (and were cancelled)
+     * are not waited for any more, so they don't count.
+     */
+    public int getPendingCount() {
+        int count = 0;
+        synchronized (pending) {
+            for (CommandFuture future : pending) {
+                if (!future.isDone()) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Closes the connection.  Any pending commands will fail.  The disconnect handler
+     * is not notified, since the caller asked for this.
+     */
+    public void disconnect() {
+        closing = true;
+        if (heartbeat != null) {
+            heartbeat.remove(heartbeatTarget);
+        }
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.e(LOGTAG, "Error closing socket", e);
+            }
+        }
+        if (readerThread != null) {
+            readerThread.interrupt();
+            readerThread = null;
+        }
+        failPending(new ApplicationException("Connection to server closed"));
+        synchronized (pending) {
+            writer = null;
+            input = null;
+            //Wakes the writer thread up, so it sees we are closing
+            pending.notifyAll();
+        }
+        writerThread = null;
+    }
+
+    private void connectionLost() {
+        if (!closing) {
+            disconnect();
+            if (disconnectHandler != null) {
+                disconnectHandler.onDisconnect();
+            }
+        }
+    }
+
+    private void failPending(Exception e) {
+        List<CommandFuture> toFail;
+        synchronized (pending) {
+            toFail = new ArrayList<CommandFuture>(pending);
+            pending.clear();
+            unwritten.clear();
+        }
+        for (CommandFuture future : toFail) {
+            future.fail(e);
+        }
+    }
+
+    /**
+     * Finds (and removes) the pending command the response line belongs to, or returns null if it doesn't belong
+     * to any.  Handing it to some other command would complete that with the wrong answer, so it is discarded.
+     * <p/>
+     * Cancelled commands sent before the one that matched are removed too, the server has answered them already
+     * if it ever will.
+     */
+    private CommandFuture takeMatching(String line) {
+        synchronized (pending) {
+            int index = 0;
+            for (CommandFuture future : pending) {
+                if (future.matches(line)) {
+                    for (Iterator<CommandFuture> it = pending.subList(0, index).iterator(); it.hasNext(); ) {
+                        if (it.next().isDone()) {
+                            it.remove();
+                        }
+                    }
+                    pending.remove(future);
+                    return future;
+                }
+                index++;
+            }
+        }
+        return null;
+    }
+
+    public void setDisconnectHandler(ServerStatusHandler disconnectHandler) {
+        this.disconnectHandler = disconnectHandler;
+    }
+
+    /**
+     * Sets the {@link Heartbeat} that probes the connection while it is idle, before {@link #connect()}
+     */
+    public void setHeartbeat(Heartbeat heartbeat) {
+        this.heartbeat = heartbeat;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Thread that writes the commands that have been sent, in order.  Commands that were cancelled before their
+     * turn are not written at all.
+     */
+    private class WriterThread extends Thread {
+        private final Writer out = writer;
+
+        public WriterThread() {
+            super("CliConnection writer " + host + ":" + port);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                CommandFuture future;
+                synchronized (pending) {
+                    while (!closing && unwritten.isEmpty()) {
+                        try {
+                            pending.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (closing || writer != out) {
+                        return;
+                    }
+                    future = unwritten.removeFirst();
+                    if (future.isDone()) {
+                        pending.remove(future);
+                        continue;
+                    }
+                }
+
+                String command = future.getCommand();
+                try {
+                    out.write(command + "\n");
+                    out.flush();
+                    future.written(command.length() + 1);
+                } catch (IOException e) {
+                    if (!closing) {
+                        Log.e(LOGTAG, "Error writing command, disconnecting from server", e);
+                        connectionLost();
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Thread that reads responses and hands them to the {@link CommandFuture} they belong to.
+     */
+    private class ReaderThread extends Thread {
+        private static final int END_OF_STREAM = -1;
+
+        private final InputStream in = input;
+        private final byte[] buffer = new byte[8192];
+        private int position = 0;
+        private int limit = 0;
+
+        /**
+         * Bytes read into the buffer so far, and the number of them that had been used when the current response
+         * started
+         */
+        private long filled = 0;
+        private long responseStart = 0;
+
+        /**
+         * Holds the response line, or for streamed responses just the record being read.
+         */
+        private final StringBuilder line = new StringBuilder(1024);
+
+        public ReaderThread() {
+            super("CliConnection reader " + host + ":" + port);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!isInterrupted() && readResponse()) {
+                }
+            } catch (IOException e) {
+                if (!closing) {
+                    Log.e(LOGTAG, "Error reading response", e);
+                }
+            }
+
+            //disconnect() closes the socket before it interrupts us, so check both
+            if (closing || isInterrupted()) {
+                Log.d(LOGTAG, "Connection to " + host + ":" + port + " closed, stopping reader");
+            } else {
+                Log.e(LOGTAG, "Error reading response, disconnecting from server");
+                connectionLost();
+            }
+        }
+
+        /**
+         * Reads a single response.  Returns false if the end of the stream has been reached.
+         */
+        private boolean readResponse() throws IOException {
+            line.setLength(0);
+            responseStart = consumed();
+
+            //Read the echo of the command, up to the first tagged parameter, to find out which command this is for
+            int terminator;
+            int taggedTokenStart = -1;
+            int index = 0;
+            do {
+                int tokenStart = line.length();
+                terminator = readToken(line);
+                if (index > 0 && isTagged(line, tokenStart)) {
+                    taggedTokenStart = tokenStart;
+                    break;
+                }
+                index++;
+                if (terminator == ' ') {
+                    line.append(' ');
+                }
+            } while (terminator == ' ');
+
+            if (terminator == END_OF_STREAM) {
+                return false;
+            }
+            if (line.length() == 0) {
+                return true;
+            }
+
+            String echo = line.toString();
+            CommandFuture future = takeMatching(echo);
+            if (future != null) {
+                future.answered();
+            }
+            if (future instanceof StreamingCommandFuture) {
+                return streamRecords((StreamingCommandFuture<?>) future, taggedTokenStart, terminator);
+            }
+
+            if (terminator == ' ') {
+                line.append(' ');
+                terminator = readToEndOfLine(line);
+            }
+            if (terminator == END_OF_STREAM) {
+                if (future != null) {
+                    future.fail(new ApplicationException("Connection closed while reading response to '" + future.getCommand() + "'"));
+                }
+                return false;
+            }
+
+            String response = line.toString();
+            if (future != null) {
+                future.responseRead(consumed() - responseStart);
+                future.complete(response);
+            } else {
+                Log.w(LOGTAG, "Discarding unexpected response '" + response + "'");
+            }
+            return true;
+        }
+
+        /**
+         * Reads the rest of a list response, handing each record to the future as soon as the tag that starts the
+         * next record arrives.  The line buffer starts out holding the echo of the command and the first tagged
+         * token (if the line didn't end in the echo).
+         */
+        private boolean streamRecords(StreamingCommandFuture<?> future, int tokenStart, int terminator) throws IOException {
+            StringBuilder header = new StringBuilder();
+            boolean inRecord = false;
+
+            if (tokenStart < 0) {
+                header.append(line);
+                line.setLength(0);
+            } else {
+                header.append(line, 0, tokenStart);
+                line.delete(0, tokenStart);
+                tokenStart = 0;
+                while (true) {
+                    if (isTag(line, tokenStart, future.getRecordTag())) {
+                        if (inRecord) {
+                            future.record(line, 0, tokenStart);
+                        } else {
+                            header.append(line, 0, tokenStart);
+                            future.header(header, false);
+                            inRecord = true;
+                        }
+                        line.delete(0, tokenStart);
+                        tokenStart = 0;
+                    }
+                    if (terminator != ' ') {
+                        break;
+                    }
+                    line.append(' ');
+                    tokenStart = line.length();
+                    terminator = readToken(line);
+                }
+            }
+
+            if (terminator == END_OF_STREAM) {
+                future.fail(new ApplicationException("Connection closed while reading response to '" + future.getCommand() + "'"));
+                return false;
+            }
+
+            if (inRecord) {
+                future.lastRecord(line, 0, line.length());
+            } else {
+                header.append(line);
+                future.header(header, true);
+            }
+            future.responseRead(consumed() - responseStart);
+            future.complete(header.toString().trim());
+            return true;
+        }
+
+        /**
+         * Appends the next token to the buffer and returns what ended it: a space, a newline or {@link #END_OF_STREAM}.
+         */
+        private int readToken(StringBuilder to) throws IOException {
+            while (true) {
+                int b = read();
+                if (b == END_OF_STREAM || b == ' ' || b == '\n') {
+                    return b;
+                }
+                if (b != '\r') {
+                    //Everything but the separators is percent encoded, so each byte is a character
+                    to.append((char) b);
+                }
+            }
+        }
+
+        private int readToEndOfLine(StringBuilder to) throws IOException {
+            int terminator;
+            do {
+                terminator = readToken(to);
+                if (terminator == ' ') {
+                    to.append(' ');
+                }
+            } while (terminator == ' ');
+            return terminator;
+        }
+
+        private int read() throws IOException {
+            if (position == limit) {
+                limit = in.read(buffer, 0, buffer.length);
+                position = 0;
+                lastReadAt = System.currentTimeMillis();
+                if (limit <= 0) {
+                    limit = 0;
+                    return END_OF_STREAM;
+                }
+                filled += limit;
+            }
+            return buffer[position++] & 0xff;
+        }
+
+        /**
+         * Returns the number of bytes that have been read from the socket and used
+         */
+        private long consumed() {
+            return filled - (limit - position);
+        }
+
+        private boolean isTagged(CharSequence s, int start) {
+            for (int i = start; i + 2 < s.length(); i++) {
+                if (s.charAt(i) == '%' && s.charAt(i + 1) == '3' && (s.charAt(i + 2) == 'A' || s.charAt(i + 2) == 'a')) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean isTag(CharSequence s, int start, String tag) {
+            int separator = start + tag.length();
+            if (separator + 3 > s.length() || s.charAt(separator) != '%' || s.charAt(separator + 1) != '3' || s.charAt(separator + 2) != 'A') {
+                return false;
+            }
+            for (int i = 0; i < tag.length(); i++) {
+                if (s.charAt(start + i) != tag.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,437 @@
+package net.chrislehmann.squeezedroid.service;
+
+import android.util.Log;
+import net.chrislehmann.squeezedroid.exception.ApplicationException;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Bounded pool of authenticated {@link CliConnection}s.  One connection is reserved for interactive
+ * commands (transport controls, volume, player status) so they are never stuck behind a large library
+ * query.  Bulk commands are spread over the remaining connections, which are opened on demand up to
+ * {@link #getMaxBulkConnections()}.  If every bulk connection already has {@link #getMaxPipelineDepth()}
+ * commands in flight, the command is queued until one of them finishes.
+ * <p/>
+ * Sending never blocks the caller.  Bulk connections are opened (and logged into) one at a time on a thread of
+ * their own, which nothing waiting for a command can hold up.  Commands that arrive meanwhile are queued or
+ * pipelined on the connections that are already open.
+ *
+ * @author lehmanc
+ */
+public class CliConnectionPool {
+
+    private static final String LOGTAG = "CliConnectionPool";
+    private static final long LOGIN_TIMEOUT_MILLIS = 10 * 1000;
+
+    /**
+     * The lane a command is sent down.
+     */
+    public enum Lane {
+        INTERACTIVE, BULK
+    }
+
+    /**
+     * Snapshot of the state of the pool
+     */
+    public static class Stats {
+        private int connections;
+        private int inUse;
+        private int waiting;
+        private long connectCount;
+        private long averageConnectMillis;
+        private long maxConnectMillis;
+
+        public int getConnections() {
+            return connections;
+        }
+
+        /**
+         * Number of connections that have at least one command in flight
+         */
+        public int getInUse() {
+            return inUse;
+        }
+
+        /**
+         * Number of commands queued for a bulk connection to become available
+         */
+        public int getWaiting() {
+            return waiting;
+        }
+
+        public long getConnectCount() {
+            return connectCount;
+        }
+
+        public long getAverageConnectMillis() {
+            return averageConnectMillis;
+        }
+
+        public long getMaxConnectMillis() {
+            return maxConnectMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "connections=" + connections + " inUse=" + inUse + " waiting=" + waiting
+                    + " connects=" + connectCount + " avgConnectMs=" + averageConnectMillis + " maxConnectMs=" + maxConnectMillis;
+        }
+    }
+
+    private String host;
+    private int port;
+    private String username;
+    private String password;
+
+    private int maxBulkConnections = 3;
+    private int maxPipelineDepth = 4;
+
+    private CliConnection interactiveConnection;
+    private final List<CliConnection> bulkConnections = new ArrayList<CliConnection>();
+    private final Object bulkLock = new Object();
+    /**
+     * Bulk commands waiting for a connection, oldest first
+     */
+    private final LinkedList<CommandFuture> queued = new LinkedList<CommandFuture>();
+    private boolean opening = false;
+
+    private long connectCount = 0;
+    private long totalConnectMillis = 0;
+    private long maxConnectMillis = 0;
+
+    private ServerStatusHandler disconnectHandler;
+    private Heartbeat heartbeat;
+    private volatile boolean closed = true;
+
+    public CliConnectionPool(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Opens the interactive connection.  Bulk connections are opened when they are first needed.
+     * Throws an {@link ApplicationException} if the connection cannot be made.
+     */
+    public void connect() {
+        closed = false;
+        interactiveConnection = openConnection();
+        interactiveConnection.setDisconnectHandler(new ServerStatusHandler() {
+            public void onDisconnect() {
+                connectionLost();
+            }
+        });
+    }
+
+    public boolean isConnected() {
+        CliConnection current = interactiveConnection;
+        return !closed && current != null && current.isConnected();
+    }
+
+    /**
+     * Sends the command down the requested lane without waiting for the response.
+     */
+    public CommandFuture send(String command, Lane lane) {
+        return send(new CommandFuture(command), lane);
+    }
+
+    /**
+     * Sends the command the future was created for down the requested lane without waiting for the response.
+     * A bulk command may be queued until a connection is free.
+     */
+    public CommandFuture send(CommandFuture future, Lane lane) {
+        if (lane == Lane.INTERACTIVE) {
+            CliConnection connection = interactiveConnection;
+            if (connection == null || closed) {
+                future.fail(new ApplicationException("Not connected to server"));
+            } else {
+                connection.send(future);
+            }
+            return future;
+        }
+
+        synchronized (bulkLock) {
+            if (!closed) {
+                queued.add(future);
+            }
+        }
+        if (closed) {
+            future.fail(new ApplicationException("Not connected to server"));
+            return future;
+        }
+        dispatchQueued();
+        return future;
+    }
+
+    /**
+     * Closes every connection in the pool
+     */
+    public void disconnect() {
+        closed = true;
+        if (interactiveConnection != null) {
+            interactiveConnection.disconnect();
+            interactiveConnection = null;
+        }
+        List<CliConnection> toClose;
+        List<CommandFuture> toFail;
+        synchronized (bulkLock) {
+            toClose = new ArrayList<CliConnection>(bulkConnections);
+            bulkConnections.clear();
+            toFail = new ArrayList<CommandFuture>(queued);
+            queued.clear();
+        }
+        for (CliConnection connection : toClose) {
+            connection.disconnect();
+        }
+        ApplicationException closedException = new ApplicationException("Connection to server closed");
+        for (CommandFuture future : toFail) {
+            future.fail(closedException);
+        }
+    }
+
+    public Stats getStats() {
+        Stats stats = new Stats();
+        CliConnection interactive = interactiveConnection;
+        if (interactive != null) {
+            stats.connections++;
+            if (interactive.getPendingCount() > 0) {
+                stats.inUse++;
+            }
+        }
+        synchronized (bulkLock) {
+            for (CliConnection connection : bulkConnections) {
+                stats.connections++;
+                if (connection.getPendingCount() > 0) {
+                    stats.inUse++;
+                }
+            }
+            stats.waiting = queued.size();
+            stats.connectCount = connectCount;
+            stats.averageConnectMillis = connectCount == 0 ? 0 : totalConnectMillis / connectCount;
+            stats.maxConnectMillis = maxConnectMillis;
+        }
+        return stats;
+    }
+
+    /**
+     * Sends the queued bulk commands down the connections that have room for them, oldest first, and starts opening
+     * another connection if there is room for one.  Whatever can't be sent yet stays queued until a command finishes
+     * or a connection has been opened.
+     */
+    private void dispatchQueued() {
+        while (true) {
+            CommandFuture next = null;
+            CliConnection connection = null;
+            boolean open = false;
+            synchronized (bulkLock) {
+                while (!queued.isEmpty() && queued.getFirst().isDone()) {
+                    //Cancelled while it was waiting
+                    queued.removeFirst();
+                }
+                if (closed || queued.isEmpty()) {
+                    return;
+                }
+
+                CliConnection leastBusy = null;
+                for (CliConnection candidate : bulkConnections) {
+                    if (leastBusy == null || candidate.getPendingCount() < leastBusy.getPendingCount()) {
+                        leastBusy = candidate;
+                    }
+                }
+                //Prefer an idle connection, then a new one, then pipelining on the least busy one
+                if (leastBusy != null && leastBusy.getPendingCount() == 0) {
+                    connection = leastBusy;
+                } else {
+                    if (bulkConnections.size() < maxBulkConnections && !opening) {
+                        opening = true;
+                        open = true;
+                    }
+                    if (leastBusy != null && leastBusy.getPendingCount() < maxPipelineDepth) {
+                        connection = leastBusy;
+                    }
+                }
+                if (connection != null) {
+                    next = queued.removeFirst();
+                }
+            }
+
+            if (open) {
+                openBulkConnection();
+            }
+            if (connection == null) {
+                return;
+            }
+            next.addCallback(onBulkCommandFinished);
+            connection.send(next);
+        }
+    }
+
+    /**
+     * Opens another bulk connection on a thread of its own and sends the queued commands down it.  Not on a shared
+     * executor, its threads may all be waiting for the commands that are queued for this connection.
+     */
+    private void openBulkConnection() {
+        Runnable open = new Runnable() {
+            public void run() {
+                CliConnection connection = null;
+                ApplicationException error = null;
+                try {
+                    connection = openConnection();
+                    final CliConnection newConnection = connection;
+                    connection.setDisconnectHandler(new ServerStatusHandler() {
+                        public void onDisconnect() {
+                            removeBulkConnection(newConnection);
+                        }
+                    });
+                } catch (ApplicationException e) {
+                    Log.e(LOGTAG, "Error opening bulk connection to " + host + ":" + port, e);
+                    error = e;
+                }
+                opened(connection, error);
+            }
+        };
+        new Thread(open, "CliConnectionPool connect " + host + ":" + port).start();
+    }
+
+    /**
+     * Adds the connection that was opened, or if it could not be and there is no other connection to send them
+     * down fails the queued commands
+     */
+    private void opened(CliConnection connection, ApplicationException error) {
+        boolean close = false;
+        List<CommandFuture> toFail = null;
+        synchronized (bulkLock) {
+            opening = false;
+            if (connection != null) {
+                if (closed) {
+                    close = true;
+                } else {
+                    bulkConnections.add(connection);
+                }
+            } else if (bulkConnections.isEmpty()) {
+                toFail = new ArrayList<CommandFuture>(queued);
+                queued.clear();
+            }
+        }
+        if (close) {
+            connection.disconnect();
+        }
+        if (toFail != null) {
+            for (CommandFuture future : toFail) {
+                future.fail(error);
+            }
+        }
+        dispatchQueued();
+    }
+
+    private void removeBulkConnection(CliConnection connection) {
+        Log.w(LOGTAG, "Lost bulk connection to " + host + ":" + port + ", it will be reopened when needed");
+        synchronized (bulkLock) {
+            bulkConnections.remove(connection);
+        }
+        dispatchQueued();
+    }
+
+    private CliConnection openConnection() {
+        long start = System.currentTimeMillis();
+        CliConnection connection = new CliConnection(host, port);
+        connection.setHeartbeat(heartbeat);
+        connection.connect();
+        if (username != null && password != null) {
+            try {
+                connection.send("login " + username + " " + password).get(LOGIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                connection.disconnect();
+                throw new ApplicationException("Timed out logging into server", e);
+            } catch (ExecutionException e) {
+                connection.disconnect();
+                throw new ApplicationException("Error logging into server", e);
+            } catch (InterruptedException e) {
+                connection.disconnect();
+                Thread.currentThread().interrupt();
+                throw new ApplicationException("Interrupted logging into server", e);
+            }
+        }
+
+        long elapsed = System.currentTimeMillis() - start;
+        synchronized (bulkLock) {
+            connectCount++;
+            totalConnectMillis += elapsed;
+            maxConnectMillis = Math.max(maxConnectMillis, elapsed);
+        }
+        Log.d(LOGTAG, "Opened connection to " + host + ":" + port + " in " + elapsed + "ms");
+        return connection;
+    }
+
+    private void connectionLost() {
+        if (!closed) {
+            disconnect();
+            if (disconnectHandler != null) {
+                disconnectHandler.onDisconnect();
+            }
+        }
+    }
+
+    /**
+     * Sends the next queued commands whenever a bulk command finishes
+     */
+    private CommandCallback onBulkCommandFinished = new CommandCallback() {
+        public void onResponse(String response) {
+            dispatchQueued();
+        }
+
+        public void onError(Exception e) {
+            dispatchQueued();
+        }
+    };
+
+    /**
+     * Sets the handler that is notified if the interactive connection is lost.
+     */
+    public void setDisconnectHandler(ServerStatusHandler disconnectHandler) {
+        this.disconnectHandler = disconnectHandler;
+    }
+
+    /**
+     * Sets the {@link Heartbeat} that probes the connections while they are idle, before {@link #connect()}
+     */
+    public void setHeartbeat(Heartbeat heartbeat) {
+        this.heartbeat = heartbeat;
+    }
+
+    public int getMaxBulkConnections() {
+        return maxBulkConnections;
+    }
+
+    public void setMaxBulkConnections(int maxBulkConnections) {
+        this.maxBulkConnections = maxBulkConnections;
+    }
+
+    public int getMaxPipelineDepth() {
+        return maxPipelineDepth;
+    }
+
+    public void setMaxPipelineDepth(int maxPipelineDepth) {
+        this.maxPipelineDepth = maxPipelineDepth;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    public void setPassword(String password) {
+        this.password = password;
+    }
+}
@@ -0,0 +1,397 @@
+package net.chrislehmann.squeezedroid.service;
+
+import net.chrislehmann.squeezedroid.service.ServiceFuture.Transformer;
+import net.chrislehmann.util.LatencyHistogram;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+
+/**
+ * Counters and latency histograms for the commands sent to the server, by type of command (<code>status</code>,
+ * <code>titles</code>, <code>mixer volume</code>...).  For each type it keeps
+ * <ul>
+ * <li>queue wait: from the command being sent until it was written to the socket</li>
+ * <li>round trip: from the command being written until the echo of the command was read back</li>
+ * <li>parse: turning the response into model objects.  List responses are parsed as they are read, so for them this
+ * is from the echo being read until the last record was parsed.</li>
+ * <li>bytes written and read, the largest response, and the number of errors and timeouts</li>
+ * </ul>
+ * Nothing is recorded until the metrics are {@link #setEnabled(boolean) enabled}, while they are disabled the only
+ * cost is checking a flag when a command is sent.  Take a {@link #getSnapshot() snapshot} to show them, or
+ * {@link Snapshot#writeTo(Writer) write it} to a file.
+ *
+ * @author lehmanc
+ */
+public class CliMetrics {
+
+    private static final String UNKNOWN = "unknown";
+
+    /**
+     * The numbers for one type of command
+     */
+    public static class CommandStats {
+        private final String name;
+        private long count;
+        private long errors;
+        private long timeouts;
+        private long bytesWritten;
+        private long bytesRead;
+        private long maxResponseBytes;
+        private LatencyHistogram.Snapshot queueWait;
+        private LatencyHistogram.Snapshot roundTrip;
+        private LatencyHistogram.Snapshot parse;
+
+        private CommandStats(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Number of responses read
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Number of commands that failed, i.e. because the connection was lost.  Cancelled commands are not counted.
+         */
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * Number of times the response did not arrive in time
+         */
+        public long getTimeouts() {
+            return timeouts;
+        }
+
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        public long getBytesRead() {
+            return bytesRead;
+        }
+
+        public long getAverageResponseBytes() {
+            return count == 0 ? 0 : bytesRead / count;
+        }
+
+        public long getMaxResponseBytes() {
+            return maxResponseBytes;
+        }
+
+        public LatencyHistogram.Snapshot getQueueWait() {
+            return queueWait;
+        }
+
+        public LatencyHistogram.Snapshot getRoundTrip() {
+            return roundTrip;
+        }
+
+        public LatencyHistogram.Snapshot getParse() {
+            return parse;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": count=" + count + " errors=" + errors + " timeouts=" + timeouts + " bytesWritten=" + bytesWritten
+                    + " bytesRead=" + bytesRead + " avgResponseBytes=" + getAverageResponseBytes() + " maxResponseBytes=" + maxResponseBytes
+                    + "\n  queue wait: " + queueWait + "\n  round trip: " + roundTrip + "\n  parse: " + parse;
+        }
+    }
+
+    /**
+     * The numbers for every type of command at one point in time
+     */
+    public static class Snapshot {
+        private final long takenAt = System.currentTimeMillis();
+        private final List<CommandStats> commands;
+        private final long events;
+        private final long eventBytes;
+
+        private Snapshot(List<CommandStats> commands, long events, long eventBytes) {
+            this.commands = commands;
+            this.events = events;
+            this.eventBytes = eventBytes;
+        }
+
+        public long getTakenAt() {
+            return takenAt;
+        }
+
+        /**
+         * Returns the numbers for each type of command, the busiest first
+         */
+        public List<CommandStats> getCommands() {
+            return commands;
+        }
+
+        /**
+         * Number of lines read from the event connection
+         */
+        public long getEvents() {
+            return events;
+        }
+
+        public long getEventBytes() {
+            return eventBytes;
+        }
+
+        public long getBytesWritten() {
+            long total = 0;
+            for (CommandStats command : commands) {
+                total += command.getBytesWritten();
+            }
+            return total;
+        }
+
+        /**
+         * Returns the bytes read from the command connections and the event connection
+         */
+        public long getBytesRead() {
+            long total = eventBytes;
+            for (CommandStats command : commands) {
+                total += command.getBytesRead();
+            }
+            return total;
+        }
+
+        /**
+         * Writes the snapshot as text, one block per type of command
+         */
+        public void writeTo(Writer writer) throws IOException {
+            writer.write("metrics at " + takenAt + ": bytesWritten=" + getBytesWritten() + " bytesRead=" + getBytesRead()
+                    + " events=" + events + " eventBytes=" + eventBytes + "\n");
+            for (CommandStats command : commands) {
+                writer.write(command.toString());
+                writer.write("\n");
+            }
+            writer.flush();
+        }
+    }
+
+    /**
+     * What is being counted for one type of command
+     */
+    private static class Counters {
+        private final LatencyHistogram queueWait = new LatencyHistogram();
+        private final LatencyHistogram roundTrip = new LatencyHistogram();
+        private final LatencyHistogram parse = new LatencyHistogram();
+        private long count;
+        private long errors;
+        private long timeouts;
+        private long bytesWritten;
+        private long bytesRead;
+        private long maxResponseBytes;
+
+        private synchronized CommandStats getStats(String name) {
+            CommandStats stats = new CommandStats(name);
+            stats.count = count;
+            stats.errors = errors;
+            stats.timeouts = timeouts;
+            stats.bytesWritten = bytesWritten;
+            stats.bytesRead = bytesRead;
+            stats.maxResponseBytes = maxResponseBytes;
+            stats.queueWait = queueWait.getSnapshot();
+            stats.roundTrip = roundTrip.getSnapshot();
+            stats.parse = parse.getSnapshot();
+            return stats;
+        }
+    }
+
+    private final Map<String, Counters> counters = new ConcurrentHashMap<String, Counters>();
+    private final Object eventLock = new Object();
+    private long events;
+    private long eventBytes;
+    private volatile boolean enabled = false;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts or stops recording.  What has been recorded so far is kept, see {@link #reset()}.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Forgets everything recorded so far
+     */
+    public void reset() {
+        counters.clear();
+        synchronized (eventLock) {
+            events = 0;
+            eventBytes = 0;
+        }
+    }
+
+    public Snapshot getSnapshot() {
+        List<CommandStats> commands = new ArrayList<CommandStats>();
+        for (Map.Entry<String, Counters> entry : counters.entrySet()) {
+            commands.add(entry.getValue().getStats(entry.getKey()));
+        }
+        Collections.sort(commands, new Comparator<CommandStats>() {
+            public int compare(CommandStats a, CommandStats b) {
+                return a.getCount() == b.getCount() ? a.getName().compareTo(b.getName()) : (a.getCount() > b.getCount() ? -1 : 1);
+            }
+        });
+        synchronized (eventLock) {
+            return new Snapshot(commands, events, eventBytes);
+        }
+    }
+
+    /**
+     * Starts recording the command of the future, if the metrics are enabled.  Called just before it is sent.
+     */
+    void track(CommandFuture future) {
+        if (enabled) {
+            future.track(this, commandType(future.getCommand()));
+        }
+    }
+
+    /**
+     * Returns the parser, timing it if the command of the future is being recorded
+     */
+    <T> Transformer<String, T> timeParse(final CommandFuture future, final Transformer<String, T> parser) {
+        if (!future.isTracked()) {
+            return parser;
+        }
+        return new Transformer<String, T>() {
+            public T transform(String value) {
+                long start = System.nanoTime();
+                try {
+                    return parser.transform(value);
+                } finally {
+                    parsed(future, System.nanoTime() - start);
+                }
+            }
+        };
+    }
+
+    /**
+     * Counts a timeout on the command the future (or the future it is waiting for) belongs to
+     */
+    void timedOut(Future<?> future) {
+        if (!enabled) {
+            return;
+        }
+        while (future instanceof ServiceFuture) {
+            future = ((ServiceFuture<?>) future).getSource();
+        }
+        String type = future instanceof CommandFuture ? ((CommandFuture) future).getType() : null;
+        Counters command = counters(type != null ? type : UNKNOWN);
+        synchronized (command) {
+            command.timeouts++;
+        }
+    }
+
+    /**
+     * Counts a line read from the event connection
+     */
+    void eventRead(int bytes) {
+        if (enabled) {
+            synchronized (eventLock) {
+                events++;
+                eventBytes += bytes;
+            }
+        }
+    }
+
+    void written(CommandFuture future, int bytes, long queueWaitNanos) {
+        Counters command = counters(future.getType());
+        synchronized (command) {
+            command.bytesWritten += bytes;
+            command.queueWait.recordNanos(queueWaitNanos);
+        }
+    }
+
+    void answered(CommandFuture future, long roundTripNanos) {
+        Counters command = counters(future.getType());
+        synchronized (command) {
+            command.roundTrip.recordNanos(roundTripNanos);
+        }
+    }
+
+    void completed(CommandFuture future, long responseBytes, long streamedParseNanos) {
+        Counters command = counters(future.getType());
+        synchronized (command) {
+            command.count++;
+            command.bytesRead += responseBytes;
+            command.maxResponseBytes = Math.max(command.maxResponseBytes, responseBytes);
+            if (streamedParseNanos >= 0) {
+                command.parse.recordNanos(streamedParseNanos);
+            }
+        }
+    }
+
+    void failed(CommandFuture future) {
+        Counters command = counters(future.getType());
+        synchronized (command) {
+            command.errors++;
+        }
+    }
+
+    private void parsed(CommandFuture future, long parseNanos) {
+        Counters command = counters(future.getType());
+        synchronized (command) {
+            command.parse.recordNanos(parseNanos);
+        }
+    }
+
+    private Counters counters(String type) {
+        Counters command = counters.get(type);
+        if (command == null) {
+            synchronized (counters) {
+                command = counters.get(type);
+                if (command == null) {
+                    command = new Counters();
+                    counters.put(type, command);
+                }
+            }
+        }
+        return command;
+    }
+
+    /**
+     * Returns the name of the command without the player id and arguments, i.e. <code>mixer volume</code> for
+     * <code>00:04:20:12:34:56 mixer volume 50</code>
+     */
+    static String commandType(String command) {
+        String[] tokens = command.split(" ", 4);
+        int start = 0;
+        if (tokens.length > 1 && (tokens[0].indexOf(':') >= 0 || tokens[0].indexOf("%3A") >= 0)) {
+            start = 1;
+        }
+        String type = tokens[start];
+        //These take a sub command, which is what is interesting
+        if (("playlist".equals(type) || "mixer".equals(type) || "playlists".equals(type)) && start + 1 < tokens.length
+                && isWord(tokens[start + 1])) {
+            type = type + " " + tokens[start + 1];
+        }
+        return type;
+    }
+
+    private static boolean isWord(String token) {
+        for (int i = 0; i < token.length(); i++) {
+            if (token.charAt(i) < 'a' || token.charAt(i) > 'z') {
+                return false;
+            }
+        }
+        return token.length() > 0;
+    }
+}
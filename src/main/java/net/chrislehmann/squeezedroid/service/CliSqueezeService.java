@@ -11,30 +11,29 @@ import net.chrislehmann.squeezedroid.model.Folder;
 import net.chrislehmann.squeezedroid.model.Genre;
 import net.chrislehmann.squeezedroid.model.Item;
 import net.chrislehmann.squeezedroid.model.Player;
-import net.chrislehmann.squeezedroid.model.PlayerIdEqualsPredicate;
 import net.chrislehmann.squeezedroid.model.PlayerStatus;
 import net.chrislehmann.squeezedroid.model.Playlist;
 import net.chrislehmann.squeezedroid.model.RepeatMode;
 import net.chrislehmann.squeezedroid.model.SearchResult;
 import net.chrislehmann.squeezedroid.model.ShuffleMode;
 import net.chrislehmann.squeezedroid.model.Song;
-import net.chrislehmann.util.ImageLoader;
+import net.chrislehmann.squeezedroid.service.CliConnectionPool.Lane;
+import net.chrislehmann.squeezedroid.service.CommandScheduler.Priority;
+import net.chrislehmann.squeezedroid.service.ServiceFuture.Continuation;
+import net.chrislehmann.squeezedroid.service.ServiceFuture.Transformer;
 import net.chrislehmann.util.SerializationUtils;
 import net.chrislehmann.util.SerializationUtils.Unserializer;
-import org.apache.commons.collections.CollectionUtils;
+import net.chrislehmann.util.TagTokenizer;
 import org.apache.commons.lang.StringUtils;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -48,6 +47,9 @@ public class CliSqueezeService implements SqueezeService {
 
     private static final String LOGTAG = "SQUEEZE";
     private static final String SONG_TAGS = "aslepPdxKJu";
+    private static final long DEFAULT_COALESCING_INTERVAL_MILLIS = 100;
+    private static final int DEFAULT_STATUS_SUBSCRIPTION_INTERVAL = 30;
+    private static final int MAX_PENDING_COMMANDS = 64;
 
     /**
      * Host to connect to
@@ -59,38 +61,34 @@ public class CliSqueezeService implements SqueezeService {
     private int cliPort = 9090;
     private int httpPort = 9000;
 
-    private Socket clientSocket;
-    private Writer clientWriter;
-    private BufferedReader clientReader;
+    private CliConnectionPool connectionPool;
+    /**
+     * Brings the connection pool back if it is lost, commands sent in the meantime wait for it in pendingCommands
+     */
+    private ConnectionSupervisor supervisor;
+    private final List<PendingCommand> pendingCommands = new ArrayList<PendingCommand>();
+    private final Object connectionMutex = new Object();
+    /**
+     * Probes idle connections and keeps the round trip time the command timeouts are worked out from.  Kept across
+     * connections, the server is usually as far away as it was the last time.
+     */
+    private final Heartbeat heartbeat = new Heartbeat();
+    private final CliMetrics metrics = new CliMetrics();
+    /**
+     * Identical queries made while one is on its way share it, i.e. a status asked for by several screens at once
+     */
+    private final SingleFlight inFlight = new SingleFlight();
 
     private String username;
     private String password;
 
-    private EventThread eventThread;
-    private BlockingQueue<Runnable> commandQueue = new LinkedBlockingQueue<Runnable>();
-
-
-    private class CommandThread extends Thread {
-        public void run() {
-            try {
-                while (!isInterrupted()) {
-                    Runnable r = commandQueue.take();
-                    if (!isInterrupted()) {
-                        r.run();
-                    }
-                }
-            } catch (InterruptedException e) {
-                //just finish...
-            }
-
-        }
-
-        ;
-    }
-
-    ;
-
-    private CommandThread commandThread;
+    private volatile EventThread eventThread;
+    private final PlayerTopology playerTopology = new PlayerTopology();
+    private final CommandScheduler commandScheduler = new CommandScheduler(DEFAULT_COALESCING_INTERVAL_MILLIS);
+    private final AsyncService asyncService = new AsyncService();
+    private Executor parseExecutor = ServiceFuture.SAME_THREAD;
+    private Executor eventExecutor = ServiceFuture.SAME_THREAD;
+    private int statusSubscriptionInterval = DEFAULT_STATUS_SUBSCRIPTION_INTERVAL;
 
     public CliSqueezeService(String host, int cliPort, int httpPort) {
         super();
@@ -99,125 +97,208 @@ public class CliSqueezeService implements SqueezeService {
         this.httpPort = httpPort;
     }
 
-    private Pattern countPattern = Pattern.compile(" count%3A([^ ]*)");
-    private Pattern artistsResponsePattern = Pattern.compile("id%3A([^ ]*) artist%3A([^ ]*)");
-    private Pattern genresResponsePattern = Pattern.compile("id%3A([^ ]*) genre%3A([^ ]*)");
-    private Pattern applicationItemPattern = Pattern.compile("id%3A([^ ]*) name%3A([^ ]*) .*?(type%3A([^ ]*) )*.*?(image%3A([^ ]*) )*.*?isaudio%3A([^ ]*) hasitems%3A([^ ]*)");
-
-    private Pattern albumsResponsePattern = Pattern.compile("id%3A([^ ]*) album%3A([^ ]*)( artwork_track_id%3A([0-9]+)){0,1}( artist%3A([^ ]*)){0,1}");
-    private Pattern playersResponsePattern = Pattern.compile("playerid%3A([^ ]*) uuid%3A([^ ]*) ip%3A([^ ]*) name%3A([^ ]*)");
-    private Pattern songsResponsePattern = Pattern
-            .compile(" id%3A([^ ]*) .*?title%3A([^ ]*) .*?(artist%3A([^ ]*) )*.*?(artist_id%3A([^ ]*) )*.*?(album%3A([^ ]*) )*.*?(album_id%3A([^ ]*) )*.*?duration%3A([^ ]*).*?( remote%3A([^ ]*))*.*?( artwork_url%3A([^ ]*))*.*?( artwork_track_id%3A([^ ]*))*.*?( url%3A([^ ]*))*");
-    private Pattern playlistCountPattern = Pattern.compile("playlist_tracks%3A([^ ]*)");
-    private Pattern playerStatusResponsePattern = Pattern.compile(" mode%3A([^ ]*) .*?(time%3A([^ ]*))* .*?mixer%20volume%3A([^ ]*) .*?playlist%20repeat%3A([^ ]*) .*?playlist%20shuffle%3A([^ ]*) .*?playlist_cur_index%3A([0-9]*)");
-    private Pattern syncgroupsResponsePattern = Pattern.compile("sync (.*)");
     private Pattern versionResponsePattern = Pattern.compile("version ([0-9|.]+)");
 
-    private Pattern foldersResponsePattern = Pattern.compile("id%3A([^ ]*) filename%3A([^ ]*) type%3A([^ ]*)");
-
-    private Pattern appsResponsePattern = Pattern.compile("icon%3A([^ ]*) cmd%3A([^ ]*) weight%3A([^ ]*) name%3A([^ ]*) type%3Axmlbrowser");
-
-    private Pattern searchResultResponsePattern = Pattern.compile("count%3A([^ ]*).*?( contributors_count%3A([^ ]*))*.*?( albums_count%3A([^ ]*))*.*?( genres_count%3A([^ ]*))*.*?( tracks_count%3A([^ ]*))*");
-
-    private Pattern artistSearchResultResponsePattern = Pattern.compile("contributor_id%3A([^ ]*) contributor%3A([^ ]*)");
-    private Pattern albumSearchResultResponsePattern = Pattern.compile("album_id%3A([^ ]*) album%3A([^ ]*)");
-    private Pattern genreSearchResultResponsePattern = Pattern.compile("genre_id%3A([^ ]*) genre%3A([^ ]*)");
-    private Pattern songSearchResultResponsePattern = Pattern.compile("song_id%3A([^ ]*) song%3A([^ ]*)");
-
-    private Pattern playlistResponsePattern = Pattern.compile("id%3A([^ ]*) playlist%3A([^ ]*)");
-
-    private Pattern urlPattern = Pattern.compile("url%3A([^ ]*)");
-
-    private Unserializer<Song> songUnserializer = new SerializationUtils.Unserializer<Song>() {
-        public Song unserialize(Matcher matcher) {
+    /**
+     * Reads songs from <code>titles</code>, <code>playlists tracks</code> and <code>status</code> responses.  Each
+     * record starts with the <code>id</code> tag.
+     */
+    Unserializer<Song> songUnserializer = new SerializationUtils.Unserializer<Song>() {
+        public Song unserialize(TagTokenizer record) {
             Song song = new Song();
-            song.setId(matcher.group(1));
-            song.setName(SerializationUtils.decode(matcher.group(2)));
-            if (matcher.group(3) != null) {
-                song.setArtist(SerializationUtils.decode(matcher.group(4)));
-            }
-            if (matcher.group(6) != null) {
-                song.setArtistId(SerializationUtils.decode(matcher.group(6)));
-            }
-            song.setAlbum(SerializationUtils.decode(matcher.group(8)));
-            if (matcher.group(9) != null) {
-                song.setAlbumId(SerializationUtils.decode(matcher.group(10)));
-            }
-
-
-            if (matcher.group(12) != null && "1".equals(matcher.group(13))) {
-                song.setRadioStation(true);
+            String artworkUrl = null;
+            String artworkTrackId = null;
+            String album = null;
+            while (record.nextTag()) {
+                if (record.isTag("id")) {
+                    song.setId(record.getValue());
+                } else if (record.isTag("title")) {
+                    song.setName(record.getDecodedValue());
+                } else if (record.isTag("artist")) {
+                    song.setArtist(record.getDecodedValue());
+                } else if (record.isTag("artist_id")) {
+                    song.setArtistId(record.getDecodedValue());
+                } else if (record.isTag("album")) {
+                    album = record.getDecodedValue();
+                } else if (record.isTag("album_id")) {
+                    song.setAlbumId(record.getDecodedValue());
+                } else if (record.isTag("duration")) {
+                    song.setDurationInSeconds(record.getIntValue(0));
+                } else if (record.isTag("remote")) {
+                    song.setRadioStation(record.valueEquals("1"));
+                } else if (record.isTag("artwork_url")) {
+                    artworkUrl = record.getDecodedValue();
+                } else if (record.isTag("artwork_track_id")) {
+                    artworkTrackId = record.getValue();
+                } else if (record.isTag("url")) {
+                    song.setServerPath(record.getDecodedValue());
+                }
             }
+            song.setAlbum(album == null ? "" : album);
 
             //set the artwork images
-            if (matcher.group(15) != null) {
-                song.setImageUrl(SerializationUtils.decode(matcher.group(15)));
+            if (artworkUrl != null) {
+                song.setImageUrl(artworkUrl);
             } else {
-                String artId = song.getId();
-                if (matcher.group(17) != null) {
-                    artId = matcher.group(17);
-                }
-
+                String artId = artworkTrackId != null ? artworkTrackId : song.getId();
                 song.setImageThumbnailUrl("http://" + host + ":" + httpPort + "/music/" + artId + "/cover_50x50_o");
                 song.setImageUrl("http://" + host + ":" + httpPort + "/music/" + artId + "/cover_320x320_o");
-
-            }
-            if (matcher.group(18) != null) {
-                song.setServerPath(SerializationUtils.decode(matcher.group(19)));
             }
             song.setUrl("http://" + host + ":" + httpPort + "/music/" + song.getId() + "/download");
-
-            try {
-                Float duration = Float.parseFloat(matcher.group(11));
-                song.setDurationInSeconds(duration.intValue());
-            } catch (NumberFormatException e) {
-            }
             return song;
         }
     };
 
+    /**
+     * A command sent while reconnecting, it is sent once the connection is back
+     */
+    private static class PendingCommand {
+        private final CommandFuture future;
+        private final Lane lane;
+
+        private PendingCommand(CommandFuture future, Lane lane) {
+            this.future = future;
+            this.lane = lane;
+        }
+    }
+
     /**
      * Connect to the squeezecenter server and log in if required. Will throw an
      * {@link ApplicationException} if the connection fails.
+     * <p/>
+     * If the connection is lost afterwards it is brought back in the background, keeping the subscriptions.  Only
+     * if that does not work out are the {@link ServerStatusHandler}s told we were disconnected.
      */
     public void connect() {
-        try {
-            clientSocket = new Socket(host, cliPort);
-            clientWriter = new OutputStreamWriter(clientSocket.getOutputStream());
-            clientReader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-
-            clientSocket.setSoTimeout(10 * 1000);
-        } catch (Exception e) {
-            throw new ApplicationException("Cannot connect to host '" + host + "' at port '" + cliPort, e);
-        }
-        if (username != null && password != null) {
-            executeCommand("login " + username + " " + password);
-            ImageLoader.getInstance().setCredentials(username, password);
-        }
-        //Check for a valid 'version' response to make sure we are actually connected.
-        String response = executeCommand("version ?");
-        Matcher matcher = null;
-        if (response != null) {
-            matcher = versionResponsePattern.matcher(response);
-        }
-        if (response == null || !matcher.matches()) {
-            clientSocket = null;
-            clientWriter = null;
-            clientWriter = null;
-            throw new ApplicationException("Cannot log into server");
+        heartbeat.start();
+        CliConnectionPool newPool = openPool();
+        PoolReconnector reconnector = new PoolReconnector();
+        ConnectionSupervisor newSupervisor = new ConnectionSupervisor(host + ":" + cliPort, reconnector, reconnector);
+        reconnector.supervisor = newSupervisor;
+        synchronized (connectionMutex) {
+            connectionPool = newPool;
+            supervisor = newSupervisor;
         }
 
         eventThread = new EventThread(host, cliPort);
         eventThread.setUsername(username);
         eventThread.setPassword(password);
         eventThread.setService(this);
+        eventThread.setPlayerTopology(playerTopology);
+        eventThread.setDispatchExecutor(eventExecutor);
+        eventThread.setHeartbeat(heartbeat);
+        eventThread.setMetrics(metrics);
+        if (statusSubscriptionInterval > 0) {
+            eventThread.setStatusSubscription("status - 1 tags:" + SONG_TAGS, statusSubscriptionInterval, new Transformer<String, PlayerStatus>() {
+                public PlayerStatus transform(String response) {
+                    return parsePlayerStatus(response);
+                }
+            });
+        }
+
+        eventThread.start();
+        commandScheduler.start();
 
-        commandThread = new CommandThread();
+    }
 
+    /**
+     * Opens a pool of connections and checks for a valid 'version' response to make sure we are actually connected.
+     * Throws an {@link ApplicationException} if we aren't.
+     */
+    private CliConnectionPool openPool() {
+        final CliConnectionPool newPool = new CliConnectionPool(host, cliPort);
+        newPool.setUsername(username);
+        newPool.setPassword(password);
+        newPool.setDisconnectHandler(new ServerStatusHandler() {
+            public void onDisconnect() {
+                connectionLost(newPool);
+            }
+        });
+        newPool.setHeartbeat(heartbeat);
+        newPool.connect();
 
-        eventThread.start();
-        commandThread.start();
+        String response = null;
+        try {
+            long start = System.currentTimeMillis();
+            response = newPool.send(Heartbeat.PROBE_COMMAND, Lane.INTERACTIVE).get(heartbeat.getCommandTimeoutMillis(Lane.INTERACTIVE), TimeUnit.MILLISECONDS);
+            heartbeat.addSample(System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            Log.e(LOGTAG, "Error reading server version", e);
+        }
+        if (response == null || !versionResponsePattern.matcher(response).matches()) {
+            newPool.disconnect();
+            throw new ApplicationException("Cannot log into server");
+        }
+        return newPool;
+    }
 
+    /**
+     * Called when the pool can no longer be used, starts bringing it back
+     */
+    private void connectionLost(CliConnectionPool lost) {
+        synchronized (connectionMutex) {
+            if (lost == null || lost != connectionPool) {
+                //Already replaced, or we disconnected
+                return;
+            }
+            //Reconnecting before dropping the pool, so commands sent in between wait rather than fail
+            if (supervisor != null) {
+                supervisor.connectionLost();
+            }
+            connectionPool = null;
+        }
+        lost.disconnect();
+    }
+
+    /**
+     * Opens a new pool each time the {@link ConnectionSupervisor} asks, and gives up on the server if it can't
+     */
+    private class PoolReconnector implements ConnectionSupervisor.Connector, ConnectionSupervisor.Listener {
+        private ConnectionSupervisor supervisor;
+
+        public void connect() throws Exception {
+            CliConnectionPool newPool = openPool();
+            List<PendingCommand> toSend;
+            synchronized (connectionMutex) {
+                if (CliSqueezeService.this.supervisor != supervisor) {
+                    //We disconnected while it was connecting
+                    newPool.disconnect();
+                    return;
+                }
+                connectionPool = newPool;
+                toSend = new ArrayList<PendingCommand>(pendingCommands);
+                pendingCommands.clear();
+            }
+            for (PendingCommand pending : toSend) {
+                if (!pending.future.isDone()) {
+                    newPool.send(pending.future, pending.lane);
+                }
+            }
+        }
+
+        public void onReconnected(int attempts, long downMillis) {
+        }
+
+        public void onGaveUp(Exception lastError) {
+            boolean current;
+            synchronized (connectionMutex) {
+                current = CliSqueezeService.this.supervisor == supervisor;
+            }
+            if (current) {
+                disconnect();
+            }
+        }
+    }
+
+    private void failPendingCommands(Exception e) {
+        List<PendingCommand> toFail;
+        synchronized (connectionMutex) {
+            toFail = new ArrayList<PendingCommand>(pendingCommands);
+            pendingCommands.clear();
+        }
+        for (PendingCommand pending : toFail) {
+            pending.future.fail(e);
+        }
     }
 
     /**
@@ -225,149 +306,423 @@ public class CliSqueezeService implements SqueezeService {
      * error occours
      */
     public void disconnect() {
-        if (clientSocket != null && clientSocket.isConnected()) {
+        CliConnectionPool oldPool;
+        ConnectionSupervisor oldSupervisor;
+        synchronized (connectionMutex) {
+            oldPool = connectionPool;
+            oldSupervisor = supervisor;
+            connectionPool = null;
+            supervisor = null;
+        }
+        if (oldSupervisor != null) {
+            oldSupervisor.close();
+        }
+        heartbeat.stop();
+        failPendingCommands(new ApplicationException("Disconnected from server"));
+        if (oldPool != null) {
             try {
-                clientSocket.close();
-                clientReader = null;
-                clientWriter = null;
+                oldPool.disconnect();
             } catch (Exception e) {
                 throw new ApplicationException("Error closing socket", e);
             }
-            clientSocket = null;
         }
 
         if (eventThread != null) {
             eventThread.disconnect();
             eventThread = null;
         }
-        if (commandThread != null) {
-            commandThread.interrupt();
-        }
+        commandScheduler.stop();
+        //Events will be missed until we connect again
+        playerTopology.invalidate();
     }
 
+    /**
+     * True if we are connected, or have lost the connection and are bringing it back
+     */
     public boolean isConnected() {
-        return clientSocket != null && clientSocket.isConnected();
+        synchronized (connectionMutex) {
+            if (supervisor != null && supervisor.isReconnecting()) {
+                return true;
+            }
+            return connectionPool != null && connectionPool.isConnected();
+        }
     }
 
-    synchronized private String executeCommand(String command) {
-        String response = null;
+    /**
+     * True if the connection was lost and is being brought back
+     */
+    public boolean isReconnecting() {
+        synchronized (connectionMutex) {
+            return supervisor != null && supervisor.isReconnecting();
+        }
+    }
+
+    /**
+     * Returns the {@link Heartbeat}, which has the round trip times to the server
+     */
+    public Heartbeat getHeartbeat() {
+        return heartbeat;
+    }
+
+    /**
+     * Returns the {@link CliMetrics} of the commands sent to the server.  They are disabled until
+     * {@link CliMetrics#setEnabled(boolean)} is called.
+     */
+    public CliMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the {@link SingleFlight} that identical queries share, which counts the commands it saved
+     */
+    public SingleFlight getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Returns a snapshot of the state of the connection pool, or null if we are not connected
+     */
+    public CliConnectionPool.Stats getConnectionPoolStats() {
+        CliConnectionPool current = connectionPool;
+        return current == null ? null : current.getStats();
+    }
+
+    /**
+     * Returns a snapshot of the queue of fire and forget commands with the given priority
+     */
+    public CommandScheduler.Stats getCommandSchedulerStats(Priority priority) {
+        return commandScheduler.getStats(priority);
+    }
+
+    private String executeCommand(String command) {
+        return executeCommand(command, Lane.BULK);
+    }
+
+    /**
+     * Sends a command down the given {@link Lane} and waits for the response.  Any number of threads can
+     * call this at the same time, the commands are pipelined over the pooled connections.  Returns null
+     * (and cancels the command) if the response does not arrive within the timeout {@link Heartbeat} gives the lane.
+     */
+    private String executeCommand(String command, Lane lane) {
         Log.d(LOGTAG, "Sending command: " + command);
-        if (writeCommand(command)) {
-            response = readResponse();
+        String response = waitFor(sendCommand(command, lane), null, lane);
+        if (response != null) {
             Log.d(LOGTAG, "Response from squeezeserver: " + response);
         }
         return response;
     }
 
-    private void executeAsyncCommand(final String commandString) {
+    /**
+     * Waits for the future of a bulk command.  Returns the fallback (and cancels the future if it timed out) if
+     * there was a problem.
+     */
+    private <T> T waitFor(Future<T> future, T fallback) {
+        return waitFor(future, fallback, Lane.BULK);
+    }
+
+    /**
+     * Waits for the future of a command sent down the lane, for as long as the {@link Heartbeat} says it should
+     * take.  Returns the fallback (and cancels the future if it timed out) if there was a problem.
+     * <p/>
+     * A slow command does not mean the connection is gone, the server may just be busy, so only that command is
+     * given up on.  Whether the connection is still alive is up to the {@link Heartbeat}'s probes.
+     */
+    private <T> T waitFor(Future<T> future, T fallback, Lane lane) {
+        try {
+            return future.get(heartbeat.getCommandTimeoutMillis(lane), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            Log.e(LOGTAG, "Timeout waiting for response, giving up on the command");
+            metrics.timedOut(future);
+            future.cancel(false);
+        } catch (ExecutionException e) {
+            Log.e(LOGTAG, "Error reading response", e.getCause());
+        } catch (CancellationException e) {
+            Log.d(LOGTAG, "Request was cancelled");
+        } catch (InterruptedException e) {
+            Log.e(LOGTAG, "Interrupted waiting for response");
+            Thread.currentThread().interrupt();
+        }
+        return fallback;
+    }
+
+    /**
+     * Sends a command down the given {@link Lane} without waiting for the response.  The returned
+     * {@link CommandFuture} will be completed (or failed) on the connection's reader thread.
+     */
+    CommandFuture sendCommand(String command, Lane lane) {
+        return send(new CommandFuture(command), lane);
+    }
+
+    /**
+     * Sends the command of the future down the lane.  While reconnecting the command waits (up to
+     * {@link #MAX_PENDING_COMMANDS} of them) and is sent once the connection is back.
+     */
+    private CommandFuture send(CommandFuture future, Lane lane) {
+        metrics.track(future);
+        CliConnectionPool current;
+        synchronized (connectionMutex) {
+            current = connectionPool;
+            if (current == null && supervisor != null && supervisor.isReconnecting()) {
+                if (pendingCommands.size() < MAX_PENDING_COMMANDS) {
+                    pendingCommands.add(new PendingCommand(future, lane));
+                } else {
+                    future.fail(new ApplicationException("Reconnecting to server, too many commands waiting to send '" + future.getCommand() + "'"));
+                }
+                return future;
+            }
+        }
+        if (current == null) {
+            future.fail(new ApplicationException("Not connected to server, cannot send '" + future.getCommand() + "'"));
+            return future;
+        }
+        return current.send(future, lane);
+    }
+
+    /**
+     * Sends a command, executing the {@link CommandCallback} when the response arrives.
+     */
+    CommandFuture sendCommand(String command, Lane lane, CommandCallback callback) {
+        CommandFuture future = sendCommand(command, lane);
+        future.addCallback(callback);
+        return future;
+    }
+
+    /**
+     * Sends a command with a list response down the given {@link Lane}.  The response is parsed as it is read,
+     * and each item is passed to the handler as soon as its record has arrived.
+     *
+     * @param recordTag the (encoded) tag every record in the response starts with
+     * @param countTag  the (encoded) tag in the response that holds the total number of items
+     */
+    <T> CommandFuture streamCommand(String command, Lane lane, String recordTag, String countTag, Unserializer<T> unserializer, BrowseResultHandler<T> handler) {
+        Log.d(LOGTAG, "Sending streaming command: " + command);
+        return send(new StreamingCommandFuture<T>(command, recordTag, countTag, unserializer, handler), lane);
+    }
+
+    private <T extends Item> ServiceFuture<BrowseResult<T>> browse(String command, String recordTag, Unserializer<T> unserializer) {
+        return browse(command, Lane.BULK, recordTag, "count", unserializer);
+    }
+
+    /**
+     * Streams a list command into a {@link BrowseResult}.  The future completes once the whole response has been read.
+     * If the same command is already on its way its result is shared.
+     */
+    private <T extends Item> ServiceFuture<BrowseResult<T>> browse(final String command, final Lane lane, final String recordTag, final String countTag, final Unserializer<T> unserializer) {
+        return inFlight.run("browse " + command, new SingleFlight.Call<BrowseResult<T>>() {
+            public ServiceFuture<BrowseResult<T>> call() {
+                return sendBrowse(command, lane, recordTag, countTag, unserializer);
+            }
+        });
+    }
+
+    private <T extends Item> ServiceFuture<BrowseResult<T>> sendBrowse(String command, Lane lane, String recordTag, String countTag, Unserializer<T> unserializer) {
+        final ServiceFuture<BrowseResult<T>> result = new ServiceFuture<BrowseResult<T>>();
+        final BrowseResult<T> browseResult = new BrowseResult<T>();
+        final List<T> items = new ArrayList<T>();
+        CommandFuture future = streamCommand(command, lane, recordTag, countTag, unserializer, new BrowseResultHandler<T>() {
+            public void onTotalItems(int total) {
+                browseResult.setTotalItems(total);
+            }
+
+            public void onItem(T item) {
+                items.add(item);
+            }
+
+            public void onComplete() {
+                browseResult.setResutls(items);
+                result.complete(browseResult);
+            }
+
+            public void onError(Exception e) {
+                result.fail(e);
+            }
+        });
+        result.setSource(future);
+        return result;
+    }
+
+    /**
+     * Sends a command and parses the response with the transformer, on the parse executor.  If the same command is
+     * already on its way its (parsed) result is shared.
+     */
+    private <T> ServiceFuture<T> request(final String command, final Lane lane, final Transformer<String, T> parser) {
+        return inFlight.run("request " + command, new SingleFlight.Call<T>() {
+            public ServiceFuture<T> call() {
+                return sendRequest(command, lane, parser);
+            }
+        });
+    }
+
+    private <T> ServiceFuture<T> sendRequest(String command, Lane lane, Transformer<String, T> parser) {
+        Log.d(LOGTAG, "Sending command: " + command);
+        final ServiceFuture<String> response = new ServiceFuture<String>();
+        CommandFuture future = sendCommand(command, lane, new CommandCallback() {
+            public void onResponse(String result) {
+                response.complete(result);
+            }
+
+            public void onError(Exception e) {
+                response.fail(e);
+            }
+        });
+        response.setSource(future);
+        return response.transform(metrics.timeParse(future, parser), parseExecutor);
+    }
+
+    private void executeAsyncCommand(String commandString, Priority priority) {
+        executeAsyncCommand(commandString, Lane.INTERACTIVE, priority);
+    }
+
+    private void executeAsyncCommand(final String commandString, final Lane lane, Priority priority) {
         Runnable command = new Runnable() {
             public void run() {
-                executeCommand(commandString);
+                executeCommand(commandString, lane);
             }
         };
-        commandQueue.add(command);
+        submit(priority, null, command);
     }
 
-
-    private String readResponse() {
-        String response = null;
-        try {
-            if (clientReader != null) {
-                response = clientReader.readLine();
+    /**
+     * Queues an interactive command that replaces any command with the same key that has not been sent yet
+     * (see {@link CoalescingCommandQueue})
+     */
+    private void executeCoalescedCommand(String key, final String commandString) {
+        submit(Priority.INTERACTIVE, key, new Runnable() {
+            public void run() {
+                executeCommand(commandString, Lane.INTERACTIVE);
             }
-        } catch (SocketTimeoutException sto) {
-            Log.e(LOGTAG, "Timeout reading socket, disconnecting from server");
-        } catch (IOException e) {
-            Log.e(LOGTAG, "error reading response", e);
-        }
+        });
+    }
 
-        //Disconnect from the server if we don't have a response.
-        if (response == null) {
-            Log.e(LOGTAG, "Error reading response, disconnecting from server");
-            this.disconnect();
+    private void submit(Priority priority, String key, Runnable command) {
+        if (!commandScheduler.submit(priority, key, command)) {
+            Log.e(LOGTAG, "Too many " + priority + " commands waiting, dropped one");
         }
-        return response;
     }
 
-    private boolean writeCommand(String command) {
-        boolean written = false;
-        try {
-            if (clientWriter != null) {
-                clientWriter.write(command + "\n");
-                clientWriter.flush();
-                written = true;
+    /**
+     * A <code>playlist index</code> command.  Relative jumps that are still pending add up, so pressing 'next'
+     * three times still skips three songs.
+     */
+    private class JumpCommand implements CoalescingCommandQueue.MergeableCommand {
+        private final String playerId;
+        private final String position;
+
+        JumpCommand(String playerId, String position) {
+            this.playerId = playerId;
+            this.position = position;
+        }
+
+        private boolean isRelative() {
+            return position.startsWith("+") || position.startsWith("-");
+        }
+
+        public Runnable merge(Runnable pending) {
+            if (!isRelative() || !(pending instanceof JumpCommand)) {
+                return this;
             }
-        } catch (IOException e) {
-            Log.e(LOGTAG, "Error writing response, disconnecting from server");
-            disconnect();
+            JumpCommand previous = (JumpCommand) pending;
+            try {
+                int offset = Integer.parseInt(position.substring(1)) * (position.startsWith("-") ? -1 : 1);
+                if (previous.isRelative()) {
+                    int previousOffset = Integer.parseInt(previous.position.substring(1)) * (previous.position.startsWith("-") ? -1 : 1);
+                    int total = previousOffset + offset;
+                    return new JumpCommand(playerId, (total < 0 ? "-" : "+") + Math.abs(total));
+                }
+                return new JumpCommand(playerId, String.valueOf(Math.max(0, Integer.parseInt(previous.position) + offset)));
+            } catch (NumberFormatException e) {
+                return this;
+            }
+        }
+
+        public void run() {
+            executeCommand(playerId + " playlist index " + position, Lane.INTERACTIVE);
         }
-        return written;
     }
 
+    /**
+     * Sets the minimum time between two volume changes, seeks or jumps for the same player.  Changes made in between
+     * are collapsed into a single command holding the latest value.
+     */
+    public void setCoalescingIntervalMillis(long intervalMillis) {
+        commandScheduler.setMinIntervalMillis(intervalMillis);
+    }
+
+
     public BrowseResult<Item> browseFolders(Folder parent, int start, int numberOfItems) {
+        return waitFor(asyncService.browseFolders(parent, start, numberOfItems), new BrowseResult<Item>());
+    }
+
+    public void browseFolders(Folder parent, int start, int numberOfItems, BrowseResultHandler<Item> handler) {
+        streamCommand(getFoldersCommand(parent, start, numberOfItems), Lane.BULK, "id", "count", folderUnserializer, handler);
+    }
+
+    private String getFoldersCommand(Folder parent, int start, int numberOfItems) {
         String command = "musicfolder " + start + " " + numberOfItems;
         if (parent != null) {
             command += " folder_id:" + parent.getId();
         }
-
-        String result = executeCommand(command);
-        BrowseResult<Item> browseResult = new BrowseResult<Item>();
-        if (result != null) {
-
-            Unserializer<Item> unserializer = new Unserializer<Item>() {
-                public Item unserialize(Matcher matcher) {
-                    String id = matcher.group(1);
-                    String title = SerializationUtils.decode(matcher.group(2));
-                    String type = matcher.group(3);
-                    Item item = new Item();
-                    if (SqueezeDroidConstants.FolderObjectTypes.DIRECTORY.equals(type)) {
-                        item = new Folder();
-                    } else if (SqueezeDroidConstants.FolderObjectTypes.TRACK.equals(type)) {
-                        item = new Song();
-                    }
-
-                    item.setId(id);
-                    item.setName(title);
-                    return item;
+        return command;
+    }
+
+    Unserializer<Item> folderUnserializer = new Unserializer<Item>() {
+        public Item unserialize(TagTokenizer record) {
+            String id = null;
+            String title = null;
+            String type = null;
+            while (record.nextTag()) {
+                if (record.isTag("id")) {
+                    id = record.getValue();
+                } else if (record.isTag("filename")) {
+                    title = record.getDecodedValue();
+                } else if (record.isTag("type")) {
+                    type = record.getValue();
                 }
-            };
-
-            List<Item> items = SerializationUtils.unserializeList(foldersResponsePattern, result, unserializer);
-            browseResult.setResutls(items);
-            browseResult.setTotalItems(unserializeCount(result));
+            }
+            Item item = new Item();
+            if (SqueezeDroidConstants.FolderObjectTypes.DIRECTORY.equals(type)) {
+                item = new Folder();
+            } else if (SqueezeDroidConstants.FolderObjectTypes.TRACK.equals(type)) {
+                item = new Song();
+            }
 
+            item.setId(id);
+            item.setName(title);
+            return item;
         }
-        return browseResult;
-    }
+    };
 
     public BrowseResult<Genre> browseGenres(Item parent, int start, int numberOfItems) {
+        return waitFor(asyncService.browseGenres(parent, start, numberOfItems), new BrowseResult<Genre>());
+    }
 
-        String command = "genres " + start + " " + numberOfItems;
-        Unserializer<Genre> unserializer = new Unserializer<Genre>() {
-
-            public Genre unserialize(Matcher matcher) {
-                Genre genre = new Genre();
-                genre.setId(matcher.group(1));
-                genre.setName(SerializationUtils.decode(matcher.group(2)));
-                return genre;
+    Unserializer<Genre> genreUnserializer = new Unserializer<Genre>() {
+        public Genre unserialize(TagTokenizer record) {
+            Genre genre = new Genre();
+            while (record.nextTag()) {
+                if (record.isTag("id")) {
+                    genre.setId(record.getValue());
+                } else if (record.isTag("genre")) {
+                    genre.setName(record.getDecodedValue());
+                }
             }
-        };
-        BrowseResult<Genre> browseResult = new BrowseResult<Genre>();
-        String result = executeCommand(command);
-        if (result != null) {
-            List<Genre> genres = SerializationUtils.unserializeList(genresResponsePattern, result, unserializer);
-            browseResult.setResutls(genres);
-            browseResult.setTotalItems(unserializeCount(result));
+            return genre;
         }
-        return browseResult;
-    }
-
+    };
 
     public BrowseResult<Album> browseAlbums(Item parent, int start, int numberOfItems) {
         return browseAlbums(parent, start, numberOfItems, Sort.TITLE);
     }
 
     public BrowseResult<Album> browseAlbums(Item parent, int start, int numberOfItems, Sort sort) {
+        return waitFor(asyncService.browseAlbums(parent, start, numberOfItems, sort), new BrowseResult<Album>());
+    }
+
+    public void browseAlbums(Item parent, int start, int numberOfItems, Sort sort, BrowseResultHandler<Album> handler) {
+        streamCommand(getAlbumsCommand(parent, start, numberOfItems, sort), Lane.BULK, "id", "count", albumUnserializer, handler);
+    }
+
+    private String getAlbumsCommand(Item parent, int start, int numberOfItems, Sort sort) {
         String command = "albums " + start + " " + numberOfItems;
         if (parent instanceof Artist) {
             command += " artist_id:" + parent.getId();
@@ -381,59 +736,69 @@ public class CliSqueezeService implements SqueezeService {
         }
 
         command += " tags:laj";
-        String result = executeCommand(command);
-        BrowseResult<Album> browseResult = new BrowseResult<Album>();
-
-        if (result != null) {
-            List<Album> albums = SerializationUtils.unserializeList(albumsResponsePattern, result, new Unserializer<Album>() {
-                public Album unserialize(Matcher matcher) {
-                    Album album = new Album();
-                    album.setId(matcher.group(1));
-                    album.setName(SerializationUtils.decode(matcher.group(2)));
-                    album.setArtist(SerializationUtils.decode(matcher.group(6)));
-                    if (matcher.group(4) != null) {
-                        album.setImageThumbnailUrl("http://" + host + ":" + httpPort + "/music/" + matcher.group(4) + "/cover_50x50_o");
-                        album.setImageUrl("http://" + host + ":" + httpPort + "/music/" + matcher.group(4) + "/cover_480x480_o");
-                    }
-                    return album;
+        return command;
+    }
+
+    Unserializer<Album> albumUnserializer = new Unserializer<Album>() {
+        public Album unserialize(TagTokenizer record) {
+            Album album = new Album();
+            String artist = null;
+            while (record.nextTag()) {
+                if (record.isTag("id")) {
+                    album.setId(record.getValue());
+                } else if (record.isTag("album")) {
+                    album.setName(record.getDecodedValue());
+                } else if (record.isTag("artist")) {
+                    artist = record.getDecodedValue();
+                } else if (record.isTag("artwork_track_id") && record.getIntValue(-1) >= 0) {
+                    String artworkTrackId = record.getValue();
+                    album.setImageThumbnailUrl("http://" + host + ":" + httpPort + "/music/" + artworkTrackId + "/cover_50x50_o");
+                    album.setImageUrl("http://" + host + ":" + httpPort + "/music/" + artworkTrackId + "/cover_480x480_o");
                 }
-            });
-
-            browseResult.setTotalItems(unserializeCount(result));
-            browseResult.setResutls(albums);
+            }
+            album.setArtist(artist == null ? "" : artist);
+            return album;
         }
-        return browseResult;
-    }
+    };
 
     public BrowseResult<Artist> browseArtists(Item parent, int start, int numberOfItems) {
-        String command = "artists " + start + " " + numberOfItems;
-        if (parent instanceof Genre) {
-            command += " genre_id:" + parent.getId();
-        }
-
-        BrowseResult<Artist> browseResult = new BrowseResult<Artist>();
-        String result = executeCommand(command);
-        if (result != null) {
-            Matcher matcher = artistsResponsePattern.matcher(result);
+        return waitFor(asyncService.browseArtists(parent, start, numberOfItems), new BrowseResult<Artist>());
+    }
 
-            List<Artist> artists = new ArrayList<Artist>();
-            while (matcher.find()) {
-                Artist artist = new Artist();
-                artist.setId(matcher.group(1));
-                artist.setName(SerializationUtils.decode(matcher.group(2)));
-                artists.add(artist);
+    Unserializer<Artist> artistUnserializer = new Unserializer<Artist>() {
+        public Artist unserialize(TagTokenizer record) {
+            Artist artist = new Artist();
+            while (record.nextTag()) {
+                if (record.isTag("id")) {
+                    artist.setId(record.getValue());
+                } else if (record.isTag("artist")) {
+                    artist.setName(record.getDecodedValue());
+                }
             }
+            return artist;
+        }
+    };
 
-            browseResult.setResutls(artists);
-            browseResult.setTotalItems(unserializeCount(result));
+    public BrowseResult<Song> browseSongs(Item parent, int start, int numberOfItems) {
+        return waitFor(asyncService.browseSongs(parent, start, numberOfItems), new BrowseResult<Song>());
+    }
+
+    public void browseSongs(Item parent, int start, int numberOfItems, BrowseResultHandler<Song> handler) {
+        String command = getSongsCommand(parent, start, numberOfItems);
+        if (command == null) {
+            handler.onTotalItems(0);
+            handler.onComplete();
+        } else {
+            streamCommand(command, Lane.BULK, "id", "count", songUnserializer, handler);
         }
-        return browseResult;
     }
 
-    public BrowseResult<Song> browseSongs(Item parent, int start, int numberOfItems) {
+    /**
+     * Returns the command that lists the songs in the parent, or null if the type of the parent is not supported
+     */
+    private String getSongsCommand(Item parent, int start, int numberOfItems) {
         String command = "titles " + start + " " + numberOfItems + " tags:" + SONG_TAGS;
         String parentCommandString = "";
-        BrowseResult<Song> browseResult = new BrowseResult<Song>();
 
         if (parent instanceof Artist) {
             parentCommandString = "artist_id:" + parent.getId();
@@ -448,19 +813,10 @@ public class CliSqueezeService implements SqueezeService {
             Log.e(LOGTAG, "Unknown item type, will not return all songs." + parent.getClass());
         }
 
-        if (StringUtils.isNotEmpty(parentCommandString)) {
-            command += " ";
-            command += parentCommandString;
-            String result = executeCommand(command);
-            if (result != null) {
-                List<Song> songs = SerializationUtils.unserializeList(songsResponsePattern, result, songUnserializer);
-                Integer count = unserializeCount(result);
-                browseResult.setTotalItems(count);
-                browseResult.setResutls(songs);
-            }
+        if (StringUtils.isEmpty(parentCommandString)) {
+            return null;
         }
-
-        return browseResult;
+        return command + " " + parentCommandString;
     }
 
     public BrowseResult<ApplicationMenuItem> browseApplication(String playerId, final Application application, ApplicationMenuItem parent, int start, int numberOfItems) {
@@ -472,96 +828,90 @@ public class CliSqueezeService implements SqueezeService {
     }
 
     public BrowseResult<ApplicationMenuItem> browseApplication(String playerId, final Application application, ApplicationMenuItem parent, String query, int start, int numberOfItems) {
-        String command = playerId + " " + application.getCmd() + " items " + start + " " + numberOfItems;
-
-        if (parent != null) {
-            command += " item_id:" + parent.getId();
-        }
-        if (query != null) {
-            command += " search:" + SerializationUtils.encode(query);
-        }
-        String response = executeCommand(command);
-        BrowseResult<ApplicationMenuItem> browseResult = new BrowseResult<ApplicationMenuItem>();
-
-        if (response != null) {
-            List<ApplicationMenuItem> items = SerializationUtils.unserializeList(applicationItemPattern, response, new Unserializer<ApplicationMenuItem>() {
-                public ApplicationMenuItem unserialize(Matcher matcher) {
-                    ApplicationMenuItem item = new ApplicationMenuItem();
-                    item.setId(matcher.group(1));
-                    item.setName(SerializationUtils.decode(matcher.group(2)));
-                    if (matcher.group(3) != null) {
-                        item.setType(SerializationUtils.decode(matcher.group(4)));
-                    }
-                    if (matcher.group(5) != null) {
-                        item.setImageThumbnailUrl(SerializationUtils.decode(matcher.group(6)));
+        return waitFor(asyncService.browseApplication(playerId, application, parent, query, start, numberOfItems), new BrowseResult<ApplicationMenuItem>());
+    }
+
+    Unserializer<ApplicationMenuItem> createApplicationItemUnserializer(final Application application) {
+        return new Unserializer<ApplicationMenuItem>() {
+            public ApplicationMenuItem unserialize(TagTokenizer record) {
+                ApplicationMenuItem item = new ApplicationMenuItem();
+                while (record.nextTag()) {
+                    if (record.isTag("id")) {
+                        item.setId(record.getValue());
+                    } else if (record.isTag("name")) {
+                        item.setName(record.getDecodedValue());
+                    } else if (record.isTag("type")) {
+                        item.setType(record.getDecodedValue());
+                    } else if (record.isTag("image")) {
+                        item.setImageThumbnailUrl(record.getDecodedValue());
+                    } else if (record.isTag("isaudio")) {
+                        item.setPlayable(!record.valueEquals("0"));
+                    } else if (record.isTag("hasitems")) {
+                        item.setHasItems(!record.valueEquals("0"));
                     }
-                    item.setPlayable(!matcher.group(7).equals("0"));
-                    item.setHasItems(!matcher.group(8).equals("0"));
-                    item.setApplication(application);
-                    return item;
                 }
-            });
-            browseResult.setResutls(items);
-            browseResult.setTotalItems(unserializeCount(response));
-        }
-
-        return browseResult;
+                item.setApplication(application);
+                return item;
+            }
+        };
     }
 
     public BrowseResult<Playlist> listPlaylists(int start, int numberOfItems) {
-        BrowseResult<Playlist> browseResult = new BrowseResult<Playlist>();
-
-        String command = "playlists " + start + " " + numberOfItems;
-        String response = executeCommand(command);
-        if (response != null) {
+        return waitFor(asyncService.listPlaylists(start, numberOfItems), new BrowseResult<Playlist>());
+    }
 
-            Unserializer<Playlist> playlistUnserializer = new Unserializer<Playlist>() {
-                public Playlist unserialize(Matcher matcher) {
-                    Playlist list = new Playlist();
-                    list.setId(SerializationUtils.decode(matcher.group(1)));
-                    list.setName(SerializationUtils.decode(matcher.group(2)));
-                    return list;
+    Unserializer<Playlist> playlistUnserializer = new Unserializer<Playlist>() {
+        public Playlist unserialize(TagTokenizer record) {
+            Playlist list = new Playlist();
+            while (record.nextTag()) {
+                if (record.isTag("id")) {
+                    list.setId(record.getDecodedValue());
+                } else if (record.isTag("playlist")) {
+                    list.setName(record.getDecodedValue());
                 }
-            };
-
-            List<Playlist> playlists = SerializationUtils.unserializeList(playlistResponsePattern, response, playlistUnserializer);
-            browseResult.setResutls(playlists);
-            browseResult.setTotalItems(unserializeCount(response));
+            }
+            return list;
         }
-
-        return browseResult;
-
-    }
+    };
 
     public BrowseResult<Application> listApplications(int start, int numberOfItems) {
-        return listRadioStationsOrApplications(start, numberOfItems, "apps");
+        return waitFor(asyncService.listApplications(start, numberOfItems), new BrowseResult<Application>());
     }
 
     public BrowseResult<Application> listRadioStations(int start, int numberOfItems) {
-        return listRadioStationsOrApplications(start, numberOfItems, "radios");
+        return waitFor(asyncService.listRadioStations(start, numberOfItems), new BrowseResult<Application>());
     }
 
-    private BrowseResult<Application> listRadioStationsOrApplications(int start, int numberOfItems, String type) {
+    private ServiceFuture<BrowseResult<Application>> listRadioStationsOrApplications(int start, int numberOfItems, String type) {
         String command = type + " " + start + " " + numberOfItems;
-        String response = executeCommand(command);
-        BrowseResult<Application> browseResult = new BrowseResult<Application>();
-        if (response != null) {
-            List<Application> applications = SerializationUtils.unserializeList(appsResponsePattern, response, new Unserializer<Application>() {
-                public Application unserialize(Matcher matcher) {
-                    Application application = new Application();
-                    application.setImageThumbnailUrl(getIconPath(getBaseHttpPath() + "/" + SerializationUtils.decode(matcher.group(1))));
-                    Log.d(LOGTAG, "App Thumbnail URL: " + application.getImageThumbnailUrl());
-                    application.setImageUrl(getBaseHttpPath() + "/" + SerializationUtils.decode(matcher.group(1)));
-                    application.setCmd(SerializationUtils.decode(matcher.group(2)));
-                    application.setName(SerializationUtils.decode(matcher.group(4)));
-                    return application;
+        //Records start with the icon
+        return browse(command, "icon", applicationUnserializer);
+    }
+
+    /**
+     * Reads an entry in the <code>apps</code> and <code>radios</code> lists.  Only the ones of type 'xmlbrowser'
+     * can be browsed, the rest are skipped.
+     */
+    Unserializer<Application> applicationUnserializer = new Unserializer<Application>() {
+        public Application unserialize(TagTokenizer record) {
+            Application application = new Application();
+            boolean browsable = false;
+            while (record.nextTag()) {
+                if (record.isTag("icon")) {
+                    String icon = record.getDecodedValue();
+                    application.setImageThumbnailUrl(getIconPath(getBaseHttpPath() + "/" + icon));
+                    application.setImageUrl(getBaseHttpPath() + "/" + icon);
+                } else if (record.isTag("cmd")) {
+                    application.setCmd(record.getDecodedValue());
+                } else if (record.isTag("name")) {
+                    application.setName(record.getDecodedValue());
+                } else if (record.isTag("type")) {
+                    browsable = record.valueEquals("xmlbrowser");
                 }
-            });
-            browseResult.setTotalItems(unserializeCount(response));
-            browseResult.setResutls(applications);
+            }
+            return browsable ? application : null;
         }
-        return browseResult;
-    }
+    };
 
     Pattern p = Pattern.compile("(.*)\\.([a-z|A-Z]{3})");
 
@@ -582,138 +932,114 @@ public class CliSqueezeService implements SqueezeService {
         String path = null;
         String response = executeCommand("songinfo 0 100 track_id:" + item.getId() + " tags:u");
         if (response != null) {
-            Matcher matcher = urlPattern.matcher(response);
-            if (matcher.find()) {
-                path = matcher.group(1);
-            }
+            path = SerializationUtils.findValue(response, "url");
         }
         return path;
     }
 
-    private Integer unserializeCount(String result) {
-        Integer numSongs = 0;
-        Matcher countMatcher = countPattern.matcher(result);
-        if (countMatcher.find()) {
-            String countString = countMatcher.group(1);
-            numSongs = Integer.valueOf(countString);
-        } else {
-            android.util.Log.e(this.getClass().getCanonicalName(), "Cannot find match for count from response '" + result + "'");
+    Unserializer<Player> playerUnserializer = new Unserializer<Player>() {
+        public Player unserialize(TagTokenizer record) {
+            Player player = new Player();
+            while (record.nextTag()) {
+                if (record.isTag("playerid")) {
+                    player.setId(record.getDecodedValue());
+                } else if (record.isTag("name")) {
+                    player.setName(record.getDecodedValue());
+                }
+            }
+            return player;
         }
-        return numSongs;
-    }
+    };
 
     public List<Player> getPlayers() {
         return getPlayers(false);
     }
 
+    /**
+     * Returns the players from the {@link PlayerTopology}, loading it first if needed.  The topology never holds
+     * the same player twice, so removeDuplicates makes no difference.
+     */
     public List<Player> getPlayers(boolean removeDuplicates) {
-        String command = new String("players 0 1000");
-        List<Player> players = new ArrayList<Player>();
-        String result = executeCommand(command);
-        if (result != null) {
-            players = SerializationUtils.unserializeList(playersResponsePattern, result, new SerializationUtils.Unserializer<Player>() {
-                public Player unserialize(Matcher matcher) {
-                    Player player = new Player();
-                    player.setId(SerializationUtils.decode(matcher.group(1)));
-                    player.setName(SerializationUtils.decode(matcher.group(4)));
-                    return player;
-                }
-            });
-        }
-
-        List<Player> groupedPlayers = new ArrayList<Player>();
-        List<Player> handledPlayers = new ArrayList<Player>();
-
-        for (Player player : players) {
-            if (!removeDuplicates || CollectionUtils.find(handledPlayers, new PlayerIdEqualsPredicate(player.getId())) == null) {
-                command = player.getId() + " sync ?";
-                String playerSyncResult = executeCommand(command);
-                Matcher matcher = syncgroupsResponsePattern.matcher(playerSyncResult);
-                if (matcher.find()) {
-                    String syncedPlayersString = SerializationUtils.decode(matcher.group(1));
-                    String[] syncedPlayersArray = syncedPlayersString.split(",");
-                    for (int i = 0; i < syncedPlayersArray.length; i++) {
-                        String syncedPlayerId = syncedPlayersArray[i];
-                        Player syncedPlayer = (Player) CollectionUtils.find(players, new PlayerIdEqualsPredicate(syncedPlayerId));
-                        if (syncedPlayer != null) {
-                            player.getSyncronizedPlayers().add(syncedPlayer);
-                        }
-                    }
-                }
-                handledPlayers.add(player);
-                groupedPlayers.add(player);
-            }
-        }
-        return groupedPlayers;
+        return waitFor(asyncService.getPlayers(), playerTopology.getPlayers());
     }
 
     public Player getPlayer(String playerId) {
-        List<Player> players = getPlayers(true);
-        return (Player) CollectionUtils.find(players, new PlayerIdEqualsPredicate(playerId));
+        return waitFor(asyncService.getPlayer(playerId), null);
     }
 
-    public PlayerStatus getPlayerStatus(String playerId) {
-        String command = new String(playerId + " status - 1 tags:" + SONG_TAGS);
-        String result = executeCommand(command);
+    /**
+     * Loads the players and the sync groups into the {@link PlayerTopology}.  Both commands are sent before
+     * waiting for either, so this costs a single round trip.
+     */
+    private ServiceFuture<PlayerTopology> loadPlayerTopology() {
+        ServiceFuture<List<Player>> playersFuture = request("players 0 1000", Lane.INTERACTIVE, new Transformer<String, List<Player>>() {
+            public List<Player> transform(String response) {
+                return SerializationUtils.unserializeList(response, "playerid", playerUnserializer);
+            }
+        });
+        final ServiceFuture<List<List<String>>> syncGroupsFuture = request("syncgroups ?", Lane.INTERACTIVE, new Transformer<String, List<List<String>>>() {
+            public List<List<String>> transform(String response) {
+                return PlayerTopology.parseSyncGroups(response);
+            }
+        });
 
-        PlayerStatus status = new PlayerStatus();
-        if (result != null) {
-
-            Song song = SerializationUtils.unserialize(songsResponsePattern, result, songUnserializer);
-            status.setCurrentSong(song);
-
-
-            Matcher statusMatcher = playerStatusResponsePattern.matcher(result);
-            if (status != null && statusMatcher.find() && statusMatcher.group(1) != null) {
-                Log.d(LOGTAG, "Status: " + statusMatcher.group(1));
-                Log.d(LOGTAG, "Time: " + statusMatcher.group(3));
-                Log.d(LOGTAG, "Volume: " + statusMatcher.group(4));
-                Log.d(LOGTAG, "Repeat: " + statusMatcher.group(5));
-                Log.d(LOGTAG, "Shuffle: " + statusMatcher.group(6));
-                Log.d(LOGTAG, "Playlist Index: " + statusMatcher.group(7));
-
-                status.setStatus(statusMatcher.group(1));
-                status.setCurrentIndex(Integer.parseInt(statusMatcher.group(7)));
-                String positionString = statusMatcher.group(3);
-                try {
-                    if (positionString != null) {
-                        Double d = Double.parseDouble(positionString);
-                        status.setCurrentPosition(d.intValue());
-                    }
-                    if (statusMatcher.group(4) != null) {
-                        Double d = Double.parseDouble(statusMatcher.group(4));
-                        status.setVolume(d.intValue());
+        return playersFuture.then(new Continuation<List<Player>, PlayerTopology>() {
+            public ServiceFuture<PlayerTopology> then(final List<Player> players) {
+                final ServiceFuture<PlayerTopology> loaded = new ServiceFuture<PlayerTopology>();
+                syncGroupsFuture.addCallback(new ServiceCallback<List<List<String>>>() {
+                    public void onSuccess(List<List<String>> syncGroups) {
+                        playerTopology.update(players, syncGroups);
+                        loaded.complete(playerTopology);
                     }
-                } catch (NumberFormatException nfd) {/* Invalid, don't set volume. */
-                }
 
-                status.setRepeatMode(RepeatMode.intToRepeatModeMap.get(statusMatcher.group(5)));
-                status.setShuffleMode(ShuffleMode.intToShuffleModeMap.get(statusMatcher.group(6)));
+                    public void onFailure(Exception e) {
+                        Log.e(LOGTAG, "Error reading sync groups", e);
+                        playerTopology.update(players, new ArrayList<List<String>>());
+                        loaded.complete(playerTopology);
+                    }
+                });
+                return loaded;
             }
+        });
+    }
+
+    public PlayerStatus getPlayerStatus(String playerId) {
+        return waitFor(asyncService.getPlayerStatus(playerId), new PlayerStatus(), Lane.INTERACTIVE);
+    }
 
+    /**
+     * Reads the response to a <code>status</code> command
+     */
+    PlayerStatus parsePlayerStatus(String result) {
+        PlayerStatus status = new PlayerStatus();
+        //The player fields come before the first song in the response
+        TagTokenizer tokenizer = new TagTokenizer(result, "id");
+        while (tokenizer.nextTag()) {
+            if (tokenizer.isTag("mode")) {
+                status.setStatus(tokenizer.getValue());
+            } else if (tokenizer.isTag("time")) {
+                status.setCurrentPosition(tokenizer.getIntValue(0));
+            } else if (tokenizer.isTag("mixer%20volume")) {
+                status.setVolume(tokenizer.getIntValue(status.getVolume()));
+            } else if (tokenizer.isTag("playlist%20repeat")) {
+                status.setRepeatMode(RepeatMode.intToRepeatModeMap.get(tokenizer.getValue()));
+            } else if (tokenizer.isTag("playlist%20shuffle")) {
+                status.setShuffleMode(ShuffleMode.intToShuffleModeMap.get(tokenizer.getValue()));
+            } else if (tokenizer.isTag("playlist_cur_index")) {
+                status.setCurrentIndex(tokenizer.getIntValue(0));
+            }
+        }
+        if (tokenizer.nextRecord()) {
+            status.setCurrentSong(songUnserializer.unserialize(tokenizer));
         }
-        return status;
 
+        Log.d(LOGTAG, "Status: " + status.getStatus() + " Time: " + status.getCurrentPosition() + " Volume: " + status.getVolume()
+                + " Repeat: " + status.getRepeatMode() + " Shuffle: " + status.getShuffleMode() + " Playlist Index: " + status.getCurrentIndex());
+        return status;
     }
 
     public BrowseResult<Song> getCurrentPlaylist(String playerId, Integer start, Integer numberOfItems) {
-        String command = playerId + " status " + start + " " + numberOfItems + " tags:" + SONG_TAGS;
-        String result = executeCommand(command);
-
-        BrowseResult<Song> browseResult = new BrowseResult<Song>();
-        if (result != null) {
-            List<Song> songs = SerializationUtils.unserializeList(songsResponsePattern, result, songUnserializer);
-            browseResult.setResutls(songs);
-
-            Matcher countMatcher = playlistCountPattern.matcher(result);
-            if (countMatcher.find()) {
-                String countString = countMatcher.group(1);
-                browseResult.setTotalItems(Integer.valueOf(countString));
-            } else {
-                android.util.Log.e(this.getClass().getCanonicalName(), "Cannot find match for count from status response '" + result + "'");
-            }
-        }
-        return browseResult;
+        return waitFor(asyncService.getCurrentPlaylist(playerId, start, numberOfItems), new BrowseResult<Song>());
     }
 
     /**
@@ -724,100 +1050,71 @@ public class CliSqueezeService implements SqueezeService {
      * @return
      */
     public SearchResult search(String searchTerm, int numResultsPerCategory) {
-        String result = executeCommand("search 0 " + numResultsPerCategory + " term:" + SerializationUtils.encode(searchTerm));
-
-        SearchResult searchResult = SerializationUtils.unserialize(searchResultResponsePattern, result, new Unserializer<SearchResult>() {
-            public SearchResult unserialize(Matcher matcher) {
-                SearchResult searchResult = new SearchResult();
-                searchResult.setTotalResults(parseIntIfExists(matcher.group(1), 0));
-                searchResult.setTotalArtists(parseIntIfExists(matcher.group(2), 0));
-                searchResult.setTotalAlbums(parseIntIfExists(matcher.group(3), 0));
-                searchResult.setTotalGenres(parseIntIfExists(matcher.group(4), 0));
-                searchResult.setTotalSongs(parseIntIfExists(matcher.group(5), 0));
-                return searchResult;
-            }
-        });
-
-        if (searchResult == null) {
-            searchResult = new SearchResult();
-        }
-
-        List<Song> songs = SerializationUtils.unserializeList(songSearchResultResponsePattern, result, new Unserializer<Song>() {
-            public Song unserialize(Matcher matcher) {
-                Song song = new Song();
-                song.setId(SerializationUtils.decode(matcher.group(1)));
-                song.setName(SerializationUtils.decode(matcher.group(2)));
-                return song;
-            }
-        });
-
-        if (songs != null) {
-            searchResult.setSongs(songs);
-        }
+        return waitFor(asyncService.search(searchTerm, numResultsPerCategory), new SearchResult());
+    }
 
-        List<Album> albums = SerializationUtils.unserializeList(albumSearchResultResponsePattern, result, new Unserializer<Album>() {
-            public Album unserialize(Matcher matcher) {
-                Album album = new Album();
-                album.setId(SerializationUtils.decode(matcher.group(1)));
-                album.setName(SerializationUtils.decode(matcher.group(2)));
-                return album;
-            }
-        });
-        if (albums != null) {
-            searchResult.setAlbums(albums);
-        }
-        List<Artist> artists = SerializationUtils.unserializeList(artistSearchResultResponsePattern, result, new Unserializer<Artist>() {
-            public Artist unserialize(Matcher matcher) {
+    /**
+     * Reads the response to a <code>search</code> command
+     */
+    SearchResult parseSearchResult(String result) {
+        SearchResult searchResult = new SearchResult();
+
+        //Artists, albums, genres and songs are all mixed into one response, so read them in a single pass
+        List<Artist> artists = new ArrayList<Artist>();
+        List<Album> albums = new ArrayList<Album>();
+        List<Genre> genres = new ArrayList<Genre>();
+        List<Song> songs = new ArrayList<Song>();
+        Item current = null;
+
+        TagTokenizer tokenizer = new TagTokenizer(result);
+        while (tokenizer.next()) {
+            if (tokenizer.isTag("count")) {
+                searchResult.setTotalResults(tokenizer.getIntValue(0));
+            } else if (tokenizer.isTag("contributors_count")) {
+                searchResult.setTotalArtists(tokenizer.getIntValue(0));
+            } else if (tokenizer.isTag("albums_count")) {
+                searchResult.setTotalAlbums(tokenizer.getIntValue(0));
+            } else if (tokenizer.isTag("genres_count")) {
+                searchResult.setTotalGenres(tokenizer.getIntValue(0));
+            } else if (tokenizer.isTag("tracks_count")) {
+                searchResult.setTotalSongs(tokenizer.getIntValue(0));
+            } else if (tokenizer.isTag("contributor_id")) {
                 Artist artist = new Artist();
-                artist.setId(SerializationUtils.decode(matcher.group(1)));
-                artist.setName(SerializationUtils.decode(matcher.group(2)));
-                return artist;
-            }
-        });
-        if (artists != null) {
-            searchResult.setArtists(artists);
-        }
-
-        List<Genre> genres = SerializationUtils.unserializeList(genreSearchResultResponsePattern, result, new Unserializer<Genre>() {
-            public Genre unserialize(Matcher matcher) {
+                artist.setId(tokenizer.getDecodedValue());
+                artists.add(artist);
+                current = artist;
+            } else if (tokenizer.isTag("album_id")) {
+                Album album = new Album();
+                album.setId(tokenizer.getDecodedValue());
+                albums.add(album);
+                current = album;
+            } else if (tokenizer.isTag("genre_id")) {
                 Genre genre = new Genre();
-                genre.setId(SerializationUtils.decode(matcher.group(1)));
-                genre.setName(SerializationUtils.decode(matcher.group(2)));
-                return genre;
+                genre.setId(tokenizer.getDecodedValue());
+                genres.add(genre);
+                current = genre;
+            } else if (tokenizer.isTag("song_id") || tokenizer.isTag("track_id")) {
+                Song song = new Song();
+                song.setId(tokenizer.getDecodedValue());
+                songs.add(song);
+                current = song;
+            } else if ((tokenizer.isTag("contributor") && current instanceof Artist)
+                    || (tokenizer.isTag("album") && current instanceof Album)
+                    || (tokenizer.isTag("genre") && current instanceof Genre)
+                    || ((tokenizer.isTag("song") || tokenizer.isTag("track")) && current instanceof Song)) {
+                current.setName(tokenizer.getDecodedValue());
             }
-        });
-        if (genres != null) {
-            searchResult.setGenres(genres);
         }
 
+        searchResult.setArtists(artists);
+        searchResult.setAlbums(albums);
+        searchResult.setGenres(genres);
+        searchResult.setSongs(songs);
         return searchResult;
     }
 
     public List<Song> getSongsForItem(Item item) {
-        List<Song> results = new ArrayList<Song>();
-        if (item instanceof Song) {
-            results.add((Song) item);
-        } else {
-            BrowseResult<Song> result = browseSongs(item, 0, 10000);
-            if (result != null) {
-                results.addAll(result.getResutls());
-            }
-        }
-        return results;
-
-    }
-
-    private int parseIntIfExists(String number, int defaultValue) {
-        int value = defaultValue;
-
-        if (number != null) {
-            try {
-                value = Integer.parseInt(number);
-            } catch (NumberFormatException e) {
-                Log.e(LOGTAG, "Error parsing number '" + number + "'", e);
-            }
-        }
-        return value;
+        return waitFor(asyncService.getSongsForItem(item), new ArrayList<Song>());
     }
 
     public void addItem(String playerId, Item item) {
@@ -851,7 +1148,7 @@ public class CliSqueezeService implements SqueezeService {
         //Handle multiple items (i.e. albums, artists, etc).  Use the 'playlist loadx' command
         if (extraParams != null) {
             command = playerId + " playlist " + multipleItemAction + " " + extraParams + "=" + item.getId();
-            executeAsyncCommand(command);
+            executeAsyncCommand(command, Lane.BULK, Priority.BULK);
         } else {
             //Fall back to the 'play' command
             String path = getPath(item);
@@ -862,7 +1159,7 @@ public class CliSqueezeService implements SqueezeService {
 
         //If it's not empty, execute the command...
         if (StringUtils.isNotEmpty(command)) {
-            executeAsyncCommand(command);
+            executeAsyncCommand(command, Lane.BULK, Priority.BULK);
         }
     }
 
@@ -883,119 +1180,128 @@ public class CliSqueezeService implements SqueezeService {
     }
 
     public void jump(String playerId, String position) {
-        executeAsyncCommand(playerId + " playlist index " + position);
+        submit(Priority.INTERACTIVE, playerId + " playlist index", new JumpCommand(playerId, position));
     }
 
     public void togglePause(String playerId) {
-        executeAsyncCommand(playerId + " pause");
+        executeAsyncCommand(playerId + " pause", Priority.INTERACTIVE);
     }
 
     public void pause(String playerId) {
-        executeAsyncCommand(playerId + " pause 1");
+        executeAsyncCommand(playerId + " pause 1", Priority.INTERACTIVE);
     }
 
     public void play(String playerId) {
-        executeAsyncCommand(playerId + " play");
+        executeAsyncCommand(playerId + " play", Priority.INTERACTIVE);
     }
 
     public void stop(String playerId) {
-        executeAsyncCommand(playerId + " stop");
+        executeAsyncCommand(playerId + " stop", Priority.INTERACTIVE);
     }
 
     public void removeAllItemsByArtist(String playerId, String artistId) {
-        executeAsyncCommand(playerId + " playlistcontrol cmd:delete artist_id:" + artistId);
+        executeAsyncCommand(playerId + " playlistcontrol cmd:delete artist_id:" + artistId, Priority.NORMAL);
     }
 
     public void removeAllItemsInAlbum(String playerId, String albumId) {
-        executeAsyncCommand(playerId + " playlistcontrol cmd:delete album_id:" + albumId);
+        executeAsyncCommand(playerId + " playlistcontrol cmd:delete album_id:" + albumId, Priority.NORMAL);
     }
 
     public void removeItem(String playerId, int playlistIndex) {
-        executeAsyncCommand(playerId + " playlist delete " + playlistIndex);
+        executeAsyncCommand(playerId + " playlist delete " + playlistIndex, Priority.NORMAL);
     }
 
     public void clearPlaylist(String playerId) {
-        executeAsyncCommand(playerId + " playlist clear");
+        executeAsyncCommand(playerId + " playlist clear", Priority.NORMAL);
     }
 
     public void togglePower(String playerId) {
-        executeAsyncCommand(playerId + " power");
+        executeAsyncCommand(playerId + " power", Priority.INTERACTIVE);
     }
 
 
-    public void subscribe(final String playerId, final PlayerStatusHandler handler) {
-        Runnable r = new Runnable() {
-            public void run() {
-                eventThread.subscribe(playerId, handler);
-            }
-        };
-        commandQueue.add(r);
+    /*
+     * Handlers are added to and removed from the event thread straight away, it keeps them in thread safe lists.
+     * Queueing them behind commands would leave a screen without events while a bulk query is running.
+     */
+
+    public void subscribe(String playerId, PlayerStatusHandler handler) {
+        EventThread events = eventThread;
+        if (events == null) {
+            Log.w(LOGTAG, "Not connected, cannot subscribe " + handler + " to player " + playerId);
+            return;
+        }
+        events.subscribe(playerId, handler);
     }
 
-    public void unsubscribe(final String playerId, final PlayerStatusHandler handler) {
-        Runnable r = new Runnable() {
-            public void run() {
-                if (eventThread != null) {
-                    eventThread.unsubscribe(playerId, handler);
-                }
-            }
-        };
-        commandQueue.add(r);
+    public void unsubscribe(String playerId, PlayerStatusHandler handler) {
+        EventThread events = eventThread;
+        if (events != null) {
+            events.unsubscribe(playerId, handler);
+        }
     }
 
-    public void unsubscribeAll(final PlayerStatusHandler handler) {
-        Runnable r = new Runnable() {
-            public void run() {
-                if (eventThread != null) {
-                    eventThread.unsubscribe(handler);
-                }
-            }
-        };
-        commandQueue.add(r);
+    public void unsubscribeAll(PlayerStatusHandler handler) {
+        EventThread events = eventThread;
+        if (events != null) {
+            events.unsubscribe(handler);
+        }
     }
 
     public void seekTo(String playerId, int time) {
-        executeAsyncCommand(playerId + " time " + time);
+        executeCoalescedCommand(playerId + " time", playerId + " time " + time);
     }
 
     public void changeVolume(String playerId, int volumeLevel) {
-        executeAsyncCommand(playerId + " mixer volume " + volumeLevel);
+        executeCoalescedCommand(playerId + " mixer volume", playerId + " mixer volume " + volumeLevel);
     }
 
     public void synchronize(String playerId, String playerIdToSyncTo) {
-        executeAsyncCommand(playerIdToSyncTo + " sync " + playerId);
+        executeAsyncCommand(playerIdToSyncTo + " sync " + playerId, Priority.NORMAL);
     }
 
     public void unsynchronize(String playerId) {
-        executeAsyncCommand(playerId + " sync -");
+        executeAsyncCommand(playerId + " sync -", Priority.NORMAL);
     }
 
     public void setShuffleMode(String playerId, ShuffleMode mode) {
-        executeAsyncCommand(playerId + " playlist shuffle " + mode.getId());
+        executeAsyncCommand(playerId + " playlist shuffle " + mode.getId(), Priority.NORMAL);
     }
 
     public void setRepeatMode(String playerId, RepeatMode mode) {
-        executeAsyncCommand(playerId + " playlist repeat " + mode.getId());
+        executeAsyncCommand(playerId + " playlist repeat " + mode.getId(), Priority.NORMAL);
     }
 
-    public void unsubscribe(final ServerStatusHandler handler) {
-        Runnable r = new Runnable() {
-            public void run() {
-                if (eventThread != null) {
-                    eventThread.unsubscribe(handler);
-                }
-            }
-        };
-        commandQueue.add(r);
+    public void unsubscribe(ServerStatusHandler handler) {
+        EventThread events = eventThread;
+        if (events != null) {
+            events.unsubscribe(handler);
+        }
     }
 
-    public void subscribe(final ServerStatusHandler handler) {
-        Runnable r = new Runnable() {
-            public void run() {
-                eventThread.subscribe(handler);
-            }
-        };
-        commandQueue.add(r);
+    public void subscribe(ServerStatusHandler handler) {
+        EventThread events = eventThread;
+        if (events == null) {
+            Log.w(LOGTAG, "Not connected, cannot subscribe " + handler);
+            return;
+        }
+        events.subscribe(handler);
+    }
+
+    public void addRescanHandler(RescanHandler handler) {
+        EventThread events = eventThread;
+        if (events == null) {
+            Log.w(LOGTAG, "Not connected, cannot subscribe " + handler + " to rescans");
+            return;
+        }
+        events.addRescanHandler(handler);
+    }
+
+    public void removeRescanHandler(RescanHandler handler) {
+        EventThread events = eventThread;
+        if (events != null) {
+            events.removeRescanHandler(handler);
+        }
     }
 
     public String getPassword() {
@@ -1014,4 +1320,167 @@ public class CliSqueezeService implements SqueezeService {
         this.username = username;
     }
 
+    /**
+     * Sets the {@link Executor} responses are parsed on, so the connection's reader thread can get on with reading
+     * the next response.  By default they are parsed on the reader thread.  Lists are always parsed on the reader
+     * thread, as they are read.
+     */
+    public void setParseExecutor(Executor parseExecutor) {
+        this.parseExecutor = parseExecutor;
+    }
+
+    /**
+     * Sets the {@link Executor} {@link PlayerStatusHandler}s are called from, so a slow handler does not hold up
+     * reading events.  By default they are called from the thread reading the events.
+     */
+    public void setEventExecutor(Executor eventExecutor) {
+        this.eventExecutor = eventExecutor;
+    }
+
+    /**
+     * Sets how often (in seconds) the server pushes the status of players with a {@link PlayerStatusHandler} when
+     * nothing has changed.  It pushes it as soon as something changes anyway.  0 turns pushing off, the status is
+     * loaded whenever it is needed instead.  Takes effect on the next connect.
+     */
+    public void setStatusSubscriptionInterval(int statusSubscriptionInterval) {
+        this.statusSubscriptionInterval = statusSubscriptionInterval;
+    }
+
+    public AsyncSqueezeService getAsyncService() {
+        return asyncService;
+    }
+
+    /**
+     * The queries, without the waiting.  The blocking methods of the service wait on these.
+     */
+    private class AsyncService implements AsyncSqueezeService {
+
+        public ServiceFuture<BrowseResult<Genre>> browseGenres(Item parent, int start, int numberOfItems) {
+            String command = "genres " + start + " " + numberOfItems;
+            return browse(command, "id", genreUnserializer);
+        }
+
+        public ServiceFuture<BrowseResult<Item>> browseFolders(Folder parent, int start, int numberOfItems) {
+            return browse(getFoldersCommand(parent, start, numberOfItems), "id", folderUnserializer);
+        }
+
+        public ServiceFuture<BrowseResult<Artist>> browseArtists(Item parent, int start, int numberOfItems) {
+            String command = "artists " + start + " " + numberOfItems;
+            if (parent instanceof Genre) {
+                command += " genre_id:" + parent.getId();
+            }
+            return browse(command, "id", artistUnserializer);
+        }
+
+        public ServiceFuture<BrowseResult<Album>> browseAlbums(Item parent, int start, int numberOfItems, Sort sort) {
+            return browse(getAlbumsCommand(parent, start, numberOfItems, sort), "id", albumUnserializer);
+        }
+
+        public ServiceFuture<BrowseResult<Song>> browseSongs(Item parent, int start, int numberOfItems) {
+            String command = getSongsCommand(parent, start, numberOfItems);
+            if (command == null) {
+                return ServiceFuture.completed(new BrowseResult<Song>());
+            }
+            return browse(command, "id", songUnserializer);
+        }
+
+        public ServiceFuture<BrowseResult<Playlist>> listPlaylists(int start, int numberOfItems) {
+            String command = "playlists " + start + " " + numberOfItems;
+            return browse(command, "id", playlistUnserializer);
+        }
+
+        public ServiceFuture<BrowseResult<Application>> listApplications(int start, int numberOfItems) {
+            return listRadioStationsOrApplications(start, numberOfItems, "apps");
+        }
+
+        public ServiceFuture<BrowseResult<Application>> listRadioStations(int start, int numberOfItems) {
+            return listRadioStationsOrApplications(start, numberOfItems, "radios");
+        }
+
+        public ServiceFuture<BrowseResult<ApplicationMenuItem>> browseApplication(String playerId, Application application, ApplicationMenuItem parent, String query, int start, int numberOfItems) {
+            String command = playerId + " " + application.getCmd() + " items " + start + " " + numberOfItems;
+
+            if (parent != null) {
+                command += " item_id:" + parent.getId();
+            }
+            if (query != null) {
+                command += " search:" + SerializationUtils.encode(query);
+            }
+
+            return browse(command, "id", createApplicationItemUnserializer(application));
+        }
+
+        public ServiceFuture<PlayerStatus> getPlayerStatus(String playerId) {
+            //The server keeps us up to date on players someone is listening to
+            EventThread events = eventThread;
+            PlayerStatus pushed = events == null ? null : events.getPushedStatus(playerId);
+            if (pushed != null) {
+                return ServiceFuture.completed(pushed);
+            }
+            return request(playerId + " status - 1 tags:" + SONG_TAGS, Lane.INTERACTIVE, new Transformer<String, PlayerStatus>() {
+                public PlayerStatus transform(String response) {
+                    return parsePlayerStatus(response);
+                }
+            });
+        }
+
+        public ServiceFuture<BrowseResult<Song>> getCurrentPlaylist(String playerId, Integer start, Integer numberOfItems) {
+            String command = playerId + " status " + start + " " + numberOfItems + " tags:" + SONG_TAGS;
+            return browse(command, Lane.BULK, "id", "playlist_tracks", songUnserializer);
+        }
+
+        /**
+         * Returns the players from the {@link PlayerTopology}, loading it first if needed.
+         */
+        public ServiceFuture<List<Player>> getPlayers() {
+            if (playerTopology.isValid()) {
+                return ServiceFuture.completed(playerTopology.getPlayers());
+            }
+            return loadPlayerTopology().transform(new Transformer<PlayerTopology, List<Player>>() {
+                public List<Player> transform(PlayerTopology topology) {
+                    return topology.getPlayers();
+                }
+            });
+        }
+
+        /**
+         * Looks the player up in the {@link PlayerTopology}.  The players are only loaded again if the topology is out
+         * of date, or the player is not in it (it may have just connected).  Completes with null if there is no such player.
+         */
+        public ServiceFuture<Player> getPlayer(final String playerId) {
+            if (playerTopology.isValid()) {
+                Player player = playerTopology.getPlayer(playerId);
+                if (player != null) {
+                    return ServiceFuture.completed(player);
+                }
+            }
+            return loadPlayerTopology().transform(new Transformer<PlayerTopology, Player>() {
+                public Player transform(PlayerTopology topology) {
+                    return topology.getPlayer(playerId);
+                }
+            });
+        }
+
+        public ServiceFuture<SearchResult> search(String searchTerm, int numResultsPerCategory) {
+            String command = "search 0 " + numResultsPerCategory + " term:" + SerializationUtils.encode(searchTerm);
+            return request(command, Lane.BULK, new Transformer<String, SearchResult>() {
+                public SearchResult transform(String response) {
+                    return parseSearchResult(response);
+                }
+            });
+        }
+
+        public ServiceFuture<List<Song>> getSongsForItem(Item item) {
+            if (item instanceof Song) {
+                List<Song> results = new ArrayList<Song>();
+                results.add((Song) item);
+                return ServiceFuture.completed(results);
+            }
+            return browseSongs(item, 0, 10000).transform(new Transformer<BrowseResult<Song>, List<Song>>() {
+                public List<Song> transform(BrowseResult<Song> result) {
+                    return new ArrayList<Song>(result.getResutls());
+                }
+            });
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,184 @@
+package net.chrislehmann.squeezedroid.service;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Queue of commands waiting to be run, that collapses commands of the same kind.  Commands added with a key
+ * (i.e. the player id and <code>mixer volume</code>) replace the pending command with the same key instead of
+ * queueing up behind it, so dragging a slider leaves at most one volume change waiting, holding the latest value.
+ * <p/>
+ * Commands with the same key are also kept at least {@link #getMinIntervalMillis()} apart.  While a key is waiting
+ * out the interval, commands without a key (or with a different one) are taken first.  Commands without a key are
+ * never collapsed or delayed, and come out in the order they were added.
+ * <p/>
+ * The queue does not block, {@link CommandScheduler} does the waiting.
+ *
+ * @author lehmanc
+ */
+public class CoalescingCommandQueue {
+
+    /**
+     * A command that needs to know about the pending command it replaces, like relative jumps that have to add up
+     */
+    public interface MergeableCommand extends Runnable {
+        /**
+         * Returns the command to run in place of the pending one and this one
+         */
+        Runnable merge(Runnable pending);
+    }
+
+    /**
+     * A queued command.  A command that was collapsed into a pending one keeps the time the pending one was queued.
+     */
+    public static class Entry {
+        private final String key;
+        private final long queuedAt;
+        private Runnable command;
+
+        Entry(String key, Runnable command, long queuedAt) {
+            this.key = key;
+            this.command = command;
+            this.queuedAt = queuedAt;
+        }
+
+        public Runnable getCommand() {
+            return command;
+        }
+
+        public long getQueuedAt() {
+            return queuedAt;
+        }
+    }
+
+    private final LinkedList<Entry> queue = new LinkedList<Entry>();
+    private final Map<String, Entry> pendingByKey = new HashMap<String, Entry>();
+    private final Map<String, Long> lastRunByKey = new HashMap<String, Long>();
+
+    private long minIntervalMillis;
+    private long coalescedCount = 0;
+
+    public CoalescingCommandQueue(long minIntervalMillis) {
+        this.minIntervalMillis = minIntervalMillis;
+    }
+
+    /**
+     * Adds a command that is never collapsed
+     */
+    public void add(Runnable command) {
+        add(null, command);
+    }
+
+    /**
+     * Adds a command, replacing the pending command with the same key if there is one.  The replacement keeps the
+     * place in the queue of the command it replaces.
+     *
+     * @return false if the command was collapsed into a pending one, true if it was added to the end of the queue
+     */
+    public synchronized boolean add(String key, Runnable command) {
+        if (key != null) {
+            Entry pending = pendingByKey.get(key);
+            if (pending != null) {
+                pending.command = command instanceof MergeableCommand ? ((MergeableCommand) command).merge(pending.command) : command;
+                coalescedCount++;
+                return false;
+            }
+        }
+
+        Entry entry = new Entry(key, command, System.currentTimeMillis());
+        queue.add(entry);
+        if (key != null) {
+            pendingByKey.put(key, entry);
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if there is a command with the key waiting, so adding another one will not make the queue longer
+     */
+    public synchronized boolean isPending(String key) {
+        return key != null && pendingByKey.containsKey(key);
+    }
+
+    /**
+     * Returns the first command that is allowed to run at the given time, without removing it, or null if there isn't one
+     */
+    public synchronized Entry peek(long now) {
+        for (Entry entry : queue) {
+            if (getReadyAt(entry) <= now) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes and returns the first command that is allowed to run at the given time, or null if there isn't one
+     */
+    public synchronized Entry poll(long now) {
+        for (Iterator<Entry> it = queue.iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (getReadyAt(entry) <= now) {
+                it.remove();
+                if (entry.key != null) {
+                    pendingByKey.remove(entry.key);
+                    lastRunByKey.put(entry.key, now);
+                }
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns when the next command will be allowed to run, or {@link Long#MAX_VALUE} if the queue is empty
+     */
+    public synchronized long getNextReadyAt() {
+        long nextReady = Long.MAX_VALUE;
+        for (Entry entry : queue) {
+            nextReady = Math.min(nextReady, getReadyAt(entry));
+        }
+        return nextReady;
+    }
+
+    private long getReadyAt(Entry entry) {
+        if (entry.key == null) {
+            return 0;
+        }
+        Long lastRun = lastRunByKey.get(entry.key);
+        return lastRun == null ? 0 : lastRun + minIntervalMillis;
+    }
+
+    /**
+     * Drops every pending command
+     */
+    public synchronized void clear() {
+        queue.clear();
+        pendingByKey.clear();
+        lastRunByKey.clear();
+    }
+
+    public synchronized int size() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the number of commands that were collapsed into a pending command instead of being queued
+     */
+    public synchronized long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    public synchronized long getMinIntervalMillis() {
+        return minIntervalMillis;
+    }
+
+    /**
+     * Sets the minimum time between two commands with the same key
+     */
+    public synchronized void setMinIntervalMillis(long minIntervalMillis) {
+        this.minIntervalMillis = minIntervalMillis;
+    }
+}
@@ -0,0 +1,20 @@
+package net.chrislehmann.squeezedroid.service;
+
+/**
+ * Callback that is notified when the response to a command sent through a {@link CliConnection} arrives.
+ * Callbacks are executed on the connection's reader thread, so they should return quickly.
+ *
+ * @author lehmanc
+ */
+public interface CommandCallback {
+
+    /**
+     * Called with the raw response line the server sent for the command.
+     */
+    public void onResponse(String response);
+
+    /**
+     * Called if the command could not be completed, i.e. because the connection was closed.
+     */
+    public void onError(Exception e);
+}
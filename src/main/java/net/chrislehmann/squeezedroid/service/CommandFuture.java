@@ -0,0 +1,262 @@
+package net.chrislehmann.squeezedroid.service;
+
+import net.chrislehmann.util.SerializationUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * {@link Future} for the response to a single command sent through a {@link CliConnection}.
+ * <p/>
+ * The SqueezeCenter CLI starts every response with an (encoded) echo of the command that
+ * was sent, so the future also knows how to recognize its own response line.  Only the
+ * leading positional tokens are compared (the player id, the command and its fixed arguments),
+ * stopping at the first '?' or tagged parameter, since those are echoed back with different values.
+ *
+ * @author lehmanc
+ */
+public class CommandFuture implements Future<String> {
+
+    private final String command;
+    private final String[] echoTokens;
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final List<CommandCallback> callbacks = new ArrayList<CommandCallback>();
+
+    private String response;
+    private Exception error;
+    private boolean cancelled = false;
+
+    /**
+     * Set while the command is being recorded by {@link CliMetrics}, times are from {@link System#nanoTime()}
+     */
+    private volatile CliMetrics metrics;
+    private String type;
+    private long sentAt;
+    private volatile long writtenAt;
+    private long answeredAt;
+    private long responseBytes;
+
+    public CommandFuture(String command) {
+        this.command = command;
+        this.echoTokens = createEchoTokens(command);
+    }
+
+    private static String[] createEchoTokens(String command) {
+        String[] tokens = command.split(" ");
+        //The password is masked in the echo of the login command.
+        if ("login".equals(tokens[0])) {
+            return new String[]{tokens[0]};
+        }
+
+        int length = 0;
+        while (length < tokens.length) {
+            String token = tokens[length];
+            if ("?".equals(token) || (length > 0 && token.indexOf(':') >= 0)) {
+                break;
+            }
+            length++;
+        }
+
+        String[] echo = new String[length];
+        System.arraycopy(tokens, 0, echo, 0, length);
+        return echo;
+    }
+
+    /**
+     * Returns true if the response line passed in starts with the echo of this command
+     */
+    public boolean matches(String line) {
+        int position = 0;
+        for (String expected : echoTokens) {
+            if (position > line.length()) {
+                return false;
+            }
+            int end = line.indexOf(' ', position);
+            if (end < 0) {
+                end = line.length();
+            }
+            String token = line.substring(position, end);
+            if (!expected.equals(token) && !expected.equals(SerializationUtils.decode(token))) {
+                return false;
+            }
+            position = end + 1;
+        }
+        return true;
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    /**
+     * Starts recording the command in the metrics, under the given type
+     */
+    void track(CliMetrics metrics, String type) {
+        this.type = type;
+        this.sentAt = System.nanoTime();
+        this.metrics = metrics;
+    }
+
+    boolean isTracked() {
+        return metrics != null;
+    }
+
+    /**
+     * Returns the type of command the metrics record it under, or null if it is not being recorded
+     */
+    String getType() {
+        return metrics != null ? type : null;
+    }
+
+    /**
+     * Called once the command has been written to the socket
+     */
+    void written(int bytes) {
+        CliMetrics current = metrics;
+        if (current != null) {
+            writtenAt = System.nanoTime();
+            current.written(this, bytes, writtenAt - sentAt);
+        }
+    }
+
+    /**
+     * Called once the echo of the command has been read back
+     */
+    void answered() {
+        CliMetrics current = metrics;
+        if (current != null) {
+            answeredAt = System.nanoTime();
+            //The answer can be read before the thread that wrote the command has recorded the write
+            current.answered(this, answeredAt - (writtenAt != 0 ? writtenAt : sentAt));
+        }
+    }
+
+    /**
+     * Called with the size of the response once all of it has been read, before the future completes
+     */
+    void responseRead(long bytes) {
+        responseBytes = bytes;
+    }
+
+    /**
+     * Returns how long parsing the response took if that was done while it was read, otherwise -1
+     */
+    long getStreamedParseNanos(long now) {
+        return -1;
+    }
+
+    long getAnsweredAt() {
+        return answeredAt;
+    }
+
+    /**
+     * Adds a {@link CommandCallback} that will be executed when the response arrives.  If the response
+     * is already here, the callback is executed immediately on the calling thread.
+     */
+    public void addCallback(CommandCallback callback) {
+        synchronized (callbacks) {
+            if (done.getCount() > 0) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+        notify(callback);
+    }
+
+    void complete(String response) {
+        synchronized (callbacks) {
+            if (done.getCount() == 0) {
+                return;
+            }
+            this.response = response;
+            done.countDown();
+        }
+        CliMetrics current = metrics;
+        if (current != null) {
+            current.completed(this, responseBytes, getStreamedParseNanos(System.nanoTime()));
+        }
+        notifyCallbacks();
+    }
+
+    void fail(Exception e) {
+        synchronized (callbacks) {
+            if (done.getCount() == 0) {
+                return;
+            }
+            this.error = e;
+            done.countDown();
+        }
+        CliMetrics current = metrics;
+        if (current != null && !cancelled) {
+            current.failed(this);
+        }
+        notifyCallbacks();
+    }
+
+    private void notifyCallbacks() {
+        List<CommandCallback> toNotify;
+        synchronized (callbacks) {
+            toNotify = new ArrayList<CommandCallback>(callbacks);
+            callbacks.clear();
+        }
+        for (CommandCallback callback : toNotify) {
+            notify(callback);
+        }
+    }
+
+    private void notify(CommandCallback callback) {
+        if (error != null) {
+            callback.onError(error);
+        } else {
+            callback.onResponse(response);
+        }
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (callbacks) {
+            if (done.getCount() == 0) {
+                return false;
+            }
+            cancelled = true;
+        }
+        fail(new CancellationException("Command '" + command + "' was cancelled"));
+        return true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    public String get() throws InterruptedException, ExecutionException {
+        done.await();
+        return getResult();
+    }
+
+    public String get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException("Timed out waiting for response to '" + command + "'");
+        }
+        return getResult();
+    }
+
+    private String getResult() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException("Command '" + command + "' was cancelled");
+        }
+        if (error != null) {
+            throw new ExecutionException(error);
+        }
+        return response;
+    }
+}
@@ -0,0 +1,338 @@
+package net.chrislehmann.squeezedroid.service;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the fire and forget commands of the {@link CliSqueezeService} on a small set of worker threads, by priority.
+ * <ul>
+ * <li>{@link Priority#INTERACTIVE}: transport controls, volume, seeking.  The user is waiting to hear the result.</li>
+ * <li>{@link Priority#NORMAL}: syncing, shuffle/repeat, removing from the playlist and event subscriptions.</li>
+ * <li>{@link Priority#BULK}: adding albums/artists to the playlist, which can take the server a while.</li>
+ * </ul>
+ * Commands of one priority run one at a time and in order, so a <code>pause</code> never overtakes the
+ * <code>play</code> before it.  One worker only ever runs interactive commands, so a pause is not stuck behind
+ * a large playlist add.  The other workers take the highest priority command that is ready, but a command
+ * moves up a priority for every {@link #getAgingMillis()} it has been waiting, so bulk work is never starved.
+ * <p/>
+ * Each priority holds at most {@link #getCapacity()} commands.  When it is full, {@link #submit} drops the new
+ * command right away rather than wait for room, since it is called from the UI thread.  Commands with a key are
+ * collapsed into the pending command with the same key (see {@link CoalescingCommandQueue}), so they never take
+ * up room.
+ *
+ * @author lehmanc
+ */
+public class CommandScheduler {
+
+    private static final String LOGTAG = "CommandScheduler";
+
+    public enum Priority {
+        INTERACTIVE, NORMAL, BULK
+    }
+
+    /**
+     * Snapshot of one priority
+     */
+    public static class Stats {
+        private int depth;
+        private boolean running;
+        private long submitted;
+        private long coalesced;
+        private long rejected;
+        private long completed;
+        private long averageWaitMillis;
+        private long maxWaitMillis;
+
+        /**
+         * Number of commands waiting to run
+         */
+        public int getDepth() {
+            return depth;
+        }
+
+        /**
+         * True if a command of this priority is running right now
+         */
+        public boolean isRunning() {
+            return running;
+        }
+
+        public long getSubmitted() {
+            return submitted;
+        }
+
+        /**
+         * Number of commands that were collapsed into a pending command with the same key
+         */
+        public long getCoalesced() {
+            return coalesced;
+        }
+
+        /**
+         * Number of commands that were dropped because the queue was full
+         */
+        public long getRejected() {
+            return rejected;
+        }
+
+        public long getCompleted() {
+            return completed;
+        }
+
+        /**
+         * Average time from being queued to starting to run
+         */
+        public long getAverageWaitMillis() {
+            return averageWaitMillis;
+        }
+
+        public long getMaxWaitMillis() {
+            return maxWaitMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "depth=" + depth + " running=" + running + " submitted=" + submitted + " coalesced=" + coalesced
+                    + " rejected=" + rejected + " completed=" + completed + " avgWaitMs=" + averageWaitMillis + " maxWaitMs=" + maxWaitMillis;
+        }
+    }
+
+    /**
+     * The queue and counters of one priority
+     */
+    private static class Lane {
+        final Priority priority;
+        final CoalescingCommandQueue queue;
+        boolean running = false;
+        long submitted = 0;
+        long rejected = 0;
+        long started = 0;
+        long completed = 0;
+        long totalWaitMillis = 0;
+        long maxWaitMillis = 0;
+
+        Lane(Priority priority, long minIntervalMillis) {
+            this.priority = priority;
+            this.queue = new CoalescingCommandQueue(minIntervalMillis);
+        }
+    }
+
+    private class Worker extends Thread {
+        private final boolean interactiveOnly;
+
+        Worker(String name, boolean interactiveOnly) {
+            super(name);
+            this.interactiveOnly = interactiveOnly;
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                Lane lane;
+                CoalescingCommandQueue.Entry entry;
+                synchronized (CommandScheduler.this) {
+                    try {
+                        lane = nextLane(this);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    entry = lane.queue.poll(System.currentTimeMillis());
+                    started(lane, entry);
+                }
+
+                try {
+                    entry.getCommand().run();
+                } catch (Exception e) {
+                    Log.e(LOGTAG, "Error running " + lane.priority + " command", e);
+                } finally {
+                    synchronized (CommandScheduler.this) {
+                        lane.running = false;
+                        lane.completed++;
+                        CommandScheduler.this.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    private final Lane[] lanes;
+    private final List<Worker> workers = new ArrayList<Worker>();
+
+    private int workerCount = 2;
+    private int capacity = 64;
+    private long agingMillis = 500;
+
+    public CommandScheduler(long minIntervalMillis) {
+        Priority[] priorities = Priority.values();
+        lanes = new Lane[priorities.length];
+        for (int i = 0; i < priorities.length; i++) {
+            lanes[i] = new Lane(priorities[i], minIntervalMillis);
+        }
+    }
+
+    /**
+     * Starts the worker threads.  Commands submitted before the scheduler is started (or while it is stopped)
+     * are kept and run once it starts.
+     */
+    public synchronized void start() {
+        if (!workers.isEmpty()) {
+            return;
+        }
+        for (int i = 0; i < Math.max(2, workerCount); i++) {
+            Worker worker = new Worker(LOGTAG + "-" + i, i == 0);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Stops the worker threads.  Running commands are interrupted, the commands still waiting are kept.
+     */
+    public synchronized void stop() {
+        for (Worker worker : workers) {
+            worker.interrupt();
+        }
+        workers.clear();
+        notifyAll();
+    }
+
+    /**
+     * Queues a command that is never collapsed
+     *
+     * @return false if the queue was full and the command was dropped
+     */
+    public boolean submit(Priority priority, Runnable command) {
+        return submit(priority, null, command);
+    }
+
+    /**
+     * Queues a command, collapsing it into the pending command with the same key if there is one.  Never waits.
+     *
+     * @return false if the queue was full and the command was dropped
+     */
+    public synchronized boolean submit(Priority priority, String key, Runnable command) {
+        Lane lane = lanes[priority.ordinal()];
+        lane.submitted++;
+        if (!lane.queue.isPending(key) && lane.queue.size() >= capacity) {
+            lane.rejected++;
+            Log.w(LOGTAG, "Dropping " + priority + " command, " + lane.queue.size() + " commands already waiting");
+            return false;
+        }
+        lane.queue.add(key, command);
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Waits for a lane with a command that is ready to run and marks it as running
+     */
+    private Lane nextLane(Worker worker) throws InterruptedException {
+        //A worker that was stopped can still be finishing a command after the scheduler was started again
+        while (workers.contains(worker)) {
+            long now = System.currentTimeMillis();
+            Lane best = null;
+            long bestRank = Long.MAX_VALUE;
+            long nextReadyAt = Long.MAX_VALUE;
+            for (Lane lane : lanes) {
+                if (lane.running || (worker.interactiveOnly && lane.priority != Priority.INTERACTIVE)) {
+                    continue;
+                }
+                CoalescingCommandQueue.Entry head = lane.queue.peek(now);
+                if (head == null) {
+                    nextReadyAt = Math.min(nextReadyAt, lane.queue.getNextReadyAt());
+                    continue;
+                }
+                long rank = lane.priority.ordinal() - (now - head.getQueuedAt()) / agingMillis;
+                if (rank < bestRank) {
+                    best = lane;
+                    bestRank = rank;
+                }
+            }
+
+            if (best != null) {
+                best.running = true;
+                return best;
+            }
+            if (nextReadyAt == Long.MAX_VALUE) {
+                wait();
+            } else {
+                wait(Math.max(1, nextReadyAt - now));
+            }
+        }
+        throw new InterruptedException();
+    }
+
+    private void started(Lane lane, CoalescingCommandQueue.Entry entry) {
+        long waited = System.currentTimeMillis() - entry.getQueuedAt();
+        lane.started++;
+        lane.totalWaitMillis += waited;
+        lane.maxWaitMillis = Math.max(lane.maxWaitMillis, waited);
+    }
+
+    public synchronized Stats getStats(Priority priority) {
+        Lane lane = lanes[priority.ordinal()];
+        Stats stats = new Stats();
+        stats.depth = lane.queue.size();
+        stats.running = lane.running;
+        stats.submitted = lane.submitted;
+        stats.coalesced = lane.queue.getCoalescedCount();
+        stats.rejected = lane.rejected;
+        stats.completed = lane.completed;
+        stats.averageWaitMillis = lane.started == 0 ? 0 : lane.totalWaitMillis / lane.started;
+        stats.maxWaitMillis = lane.maxWaitMillis;
+        return stats;
+    }
+
+    /**
+     * Drops every waiting command
+     */
+    public synchronized void clear() {
+        for (Lane lane : lanes) {
+            lane.queue.clear();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Sets the minimum time between two commands with the same key
+     */
+    public synchronized void setMinIntervalMillis(long minIntervalMillis) {
+        for (Lane lane : lanes) {
+            lane.queue.setMinIntervalMillis(minIntervalMillis);
+        }
+        notifyAll();
+    }
+
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    /**
+     * Sets the number of worker threads, at least two.  Takes effect the next time the scheduler is started.
+     */
+    public void setWorkerCount(int workerCount) {
+        this.workerCount = workerCount;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public long getAgingMillis() {
+        return agingMillis;
+    }
+
+    /**
+     * Sets how long a command waits before it is treated as one priority higher
+     */
+    public synchronized void setAgingMillis(long agingMillis) {
+        this.agingMillis = Math.max(1, agingMillis);
+    }
+}
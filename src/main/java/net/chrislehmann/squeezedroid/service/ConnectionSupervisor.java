@@ -0,0 +1,266 @@
+package net.chrislehmann.squeezedroid.service;
+
+import android.util.Log;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Brings a lost connection back.  Once {@link #connectionLost()} is called, the {@link Connector} is tried again
+ * and again on a background thread, waiting longer (see {@link Backoff}) after each failure, until it succeeds or
+ * {@link Backoff#getGiveUpAfterMillis()} has passed without a connection.  The {@link Listener} is told which.
+ * <p/>
+ * Whatever was built on top of the connection (subscriptions, caches) is left alone, so a short drop in the network
+ * only costs the time it takes to connect again.
+ *
+ * @author lehmanc
+ */
+public class ConnectionSupervisor {
+
+    private static final String LOGTAG = "ConnectionSupervisor";
+
+    /**
+     * Makes one attempt at connecting, throwing an exception if it fails
+     */
+    public interface Connector {
+        public void connect() throws Exception;
+    }
+
+    public interface Listener {
+        /**
+         * The connection is back
+         *
+         * @param attempts   the number of attempts it took
+         * @param downMillis how long it was down for
+         */
+        public void onReconnected(int attempts, long downMillis);
+
+        /**
+         * No connection could be made in time, nothing more will be tried
+         */
+        public void onGaveUp(Exception lastError);
+    }
+
+    /**
+     * Exponential backoff with jitter.  The nth wait is a random time between half and all of
+     * <code>initialDelay * 2^n</code>, capped at the maximum delay, so clients that lost the server at the same
+     * moment don't all come back at once.  The first attempt is made almost straight away.
+     */
+    public static class Backoff {
+        private final Random random = new Random();
+        private long initialDelayMillis = 250;
+        private long maxDelayMillis = 30 * 1000;
+        private long giveUpAfterMillis = 5 * 60 * 1000;
+
+        private int attempts = 0;
+        private long startedAt = 0;
+
+        /**
+         * Starts counting again, called once connected
+         */
+        public synchronized void reset() {
+            attempts = 0;
+            startedAt = 0;
+        }
+
+        /**
+         * Returns how long to wait before the next attempt, or -1 if it is time to give up
+         */
+        public synchronized long nextDelayMillis() {
+            long now = System.currentTimeMillis();
+            if (attempts == 0) {
+                startedAt = now;
+            } else if (now - startedAt >= giveUpAfterMillis) {
+                return -1;
+            }
+            long delay;
+            if (attempts == 0) {
+                delay = (long) (random.nextDouble() * Math.min(initialDelayMillis, maxDelayMillis));
+            } else {
+                long cap = Math.min(maxDelayMillis, initialDelayMillis << Math.min(attempts, 20));
+                delay = cap / 2 + (long) (random.nextDouble() * (cap / 2));
+            }
+            attempts++;
+            return delay;
+        }
+
+        public synchronized int getAttempts() {
+            return attempts;
+        }
+
+        /**
+         * Returns when the first attempt was made since the last {@link #reset()}
+         */
+        public synchronized long getStartedAt() {
+            return startedAt;
+        }
+
+        public long getInitialDelayMillis() {
+            return initialDelayMillis;
+        }
+
+        public void setInitialDelayMillis(long initialDelayMillis) {
+            this.initialDelayMillis = initialDelayMillis;
+        }
+
+        public long getMaxDelayMillis() {
+            return maxDelayMillis;
+        }
+
+        public void setMaxDelayMillis(long maxDelayMillis) {
+            this.maxDelayMillis = maxDelayMillis;
+        }
+
+        public long getGiveUpAfterMillis() {
+            return giveUpAfterMillis;
+        }
+
+        public void setGiveUpAfterMillis(long giveUpAfterMillis) {
+            this.giveUpAfterMillis = giveUpAfterMillis;
+        }
+    }
+
+    private final String name;
+    private final Connector connector;
+    private final Listener listener;
+    private final Backoff backoff = new Backoff();
+
+    private ScheduledExecutorService timer;
+    private boolean reconnecting = false;
+    private boolean closed = false;
+    private Exception lastError;
+
+    /**
+     * @param name      used for logging and the name of the thread
+     * @param connector makes each attempt
+     * @param listener  told about the outcome
+     */
+    public ConnectionSupervisor(String name, Connector connector, Listener listener) {
+        this.name = name;
+        this.connector = connector;
+        this.listener = listener;
+    }
+
+    /**
+     * Starts trying to connect again.  Returns false if it already is, or the supervisor has been closed.
+     */
+    public boolean connectionLost() {
+        synchronized (this) {
+            if (reconnecting || closed) {
+                return false;
+            }
+            reconnecting = true;
+            lastError = null;
+            backoff.reset();
+            if (timer == null) {
+                timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, name + "-reconnect");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+        }
+        Log.w(LOGTAG, "Lost connection to " + name + ", reconnecting");
+        scheduleAttempt();
+        return true;
+    }
+
+    /**
+     * True between {@link #connectionLost()} and the connection coming back (or giving up)
+     */
+    public synchronized boolean isReconnecting() {
+        return reconnecting;
+    }
+
+    /**
+     * Stops trying, for good.  The listener is not told.
+     */
+    public void close() {
+        ScheduledExecutorService toStop;
+        synchronized (this) {
+            closed = true;
+            reconnecting = false;
+            toStop = timer;
+            timer = null;
+        }
+        if (toStop != null) {
+            toStop.shutdownNow();
+        }
+    }
+
+    public Backoff getBackoff() {
+        return backoff;
+    }
+
+    private void scheduleAttempt() {
+        long delay = backoff.nextDelayMillis();
+        if (delay < 0) {
+            gaveUp();
+            return;
+        }
+        try {
+            ScheduledExecutorService current;
+            synchronized (this) {
+                current = timer;
+            }
+            if (current == null) {
+                return;
+            }
+            current.schedule(new Runnable() {
+                public void run() {
+                    attempt();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            Log.d(LOGTAG, "Not reconnecting to " + name + ", closed");
+        }
+    }
+
+    private void attempt() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+        }
+        try {
+            connector.connect();
+        } catch (Exception e) {
+            Log.w(LOGTAG, "Attempt " + backoff.getAttempts() + " to reconnect to " + name + " failed: " + e.getMessage());
+            synchronized (this) {
+                lastError = e;
+            }
+            scheduleAttempt();
+            return;
+        }
+
+        int attempts = backoff.getAttempts();
+        long downMillis = System.currentTimeMillis() - backoff.getStartedAt();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            reconnecting = false;
+        }
+        Log.i(LOGTAG, "Reconnected to " + name + " after " + attempts + " attempts, " + downMillis + "ms");
+        listener.onReconnected(attempts, downMillis);
+    }
+
+    private void gaveUp() {
+        Exception error;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            reconnecting = false;
+            error = lastError;
+        }
+        Log.e(LOGTAG, "Giving up reconnecting to " + name + " after " + backoff.getAttempts() + " attempts", error);
+        listener.onGaveUp(error);
+    }
+}
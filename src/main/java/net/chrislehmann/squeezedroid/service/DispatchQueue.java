@@ -0,0 +1,192 @@
+package net.chrislehmann.squeezedroid.service;
+
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Bounded queue of notifications for a single subscriber.  The notifications are run one at a time, in the order
+ * they were posted, on a shared {@link Executor}, so a slow subscriber only holds up its own notifications and
+ * never the thread posting them.
+ * <p/>
+ * What happens to notifications posted while the queue is full is up to the {@link OverflowPolicy}.  Notifications
+ * posted with a key are never dropped, they replace the one with the same key that is still waiting instead (see
+ * {@link #post(String, Runnable)}).
+ *
+ * @author lehmanc
+ */
+public class DispatchQueue implements Runnable {
+
+    private static final String LOGTAG = "DispatchQueue";
+
+    /**
+     * What to do with a notification posted while the queue is full
+     */
+    public enum OverflowPolicy {
+        /**
+         * Drop the notification without a key that has been waiting the longest, the subscriber gets the most
+         * recent ones
+         */
+        DROP_OLDEST,
+        /**
+         * Drop the notification being posted if it has no key, the subscriber gets the ones that were already
+         * waiting
+         */
+        DROP_NEWEST
+    }
+
+    private final String name;
+    private final Executor executor;
+    private final int capacity;
+    private final OverflowPolicy policy;
+
+    private final LinkedList<Notification> queue = new LinkedList<Notification>();
+    private boolean scheduled = false;
+    private boolean closed = false;
+    private long dropped = 0;
+
+    /**
+     * @param name     used when logging
+     * @param executor runs the notifications
+     * @param capacity maximum number of notifications waiting to be run
+     * @param policy   what to do with notifications posted while the queue is full
+     */
+    public DispatchQueue(String name, Executor executor, int capacity, OverflowPolicy policy) {
+        this.name = name;
+        this.executor = executor;
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /**
+     * Queues a notification to be run after the ones already waiting.  Returns false if it was dropped.
+     */
+    public boolean post(Runnable notification) {
+        return post(null, notification);
+    }
+
+    /**
+     * Queues a notification that tells the subscriber about the latest state of something, i.e. the song that is
+     * playing.  A notification with the same key that is still waiting is dropped, since this one is more recent,
+     * and it is never dropped because the queue is full.  There are only ever as many of them waiting as there are
+     * keys, on top of the capacity.
+     *
+     * @param key what the notification is about, or null for a notification that may be dropped
+     */
+    public boolean post(String key, Runnable notification) {
+        boolean accepted = true;
+        synchronized (queue) {
+            if (closed) {
+                return false;
+            }
+            if (key != null) {
+                for (Iterator<Notification> i = queue.iterator(); i.hasNext(); ) {
+                    if (key.equals(i.next().key)) {
+                        i.remove();
+                        break;
+                    }
+                }
+            }
+            if (queue.size() >= capacity) {
+                if (policy == OverflowPolicy.DROP_OLDEST && dropOldest()) {
+                    Log.d(LOGTAG, name + " is full, dropped " + dropped + " notifications so far");
+                } else if (key == null) {
+                    dropped++;
+                    accepted = false;
+                    Log.d(LOGTAG, name + " is full, dropped " + dropped + " notifications so far");
+                }
+            }
+            if (accepted) {
+                queue.addLast(new Notification(key, notification));
+            }
+            if (scheduled) {
+                return accepted;
+            }
+            scheduled = true;
+        }
+
+        try {
+            executor.execute(this);
+        } catch (RejectedExecutionException e) {
+            //Try again with the next notification
+            Log.e(LOGTAG, "Could not schedule notifications for " + name, e);
+            synchronized (queue) {
+                scheduled = false;
+            }
+        }
+        return accepted;
+    }
+
+    /**
+     * Runs the waiting notifications until the queue is empty
+     */
+    public void run() {
+        while (true) {
+            Runnable notification;
+            synchronized (queue) {
+                if (queue.isEmpty()) {
+                    scheduled = false;
+                    return;
+                }
+                notification = queue.removeFirst().notification;
+            }
+            try {
+                notification.run();
+            } catch (RuntimeException e) {
+                Log.e(LOGTAG, "Error running notification for " + name, e);
+            }
+        }
+    }
+
+    /**
+     * Drops the oldest waiting notification without a key, returns false if there is none
+     */
+    private boolean dropOldest() {
+        for (Iterator<Notification> i = queue.iterator(); i.hasNext(); ) {
+            if (i.next().key == null) {
+                i.remove();
+                dropped++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drops the waiting notifications and refuses new ones
+     */
+    public void close() {
+        synchronized (queue) {
+            closed = true;
+            queue.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    /**
+     * Returns the number of notifications dropped because the queue was full
+     */
+    public long getDropped() {
+        synchronized (queue) {
+            return dropped;
+        }
+    }
+
+    private static class Notification {
+        private final String key;
+        private final Runnable notification;
+
+        Notification(String key, Runnable notification) {
+            this.key = key;
+            this.notification = notification;
+        }
+    }
+}
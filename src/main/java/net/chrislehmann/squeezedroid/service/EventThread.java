@@ -3,8 +3,6 @@ package net.chrislehmann.squeezedroid.service;
 import android.util.Log;
 import net.chrislehmann.squeezedroid.exception.ApplicationException;
 import net.chrislehmann.squeezedroid.model.PlayerStatus;
-import net.chrislehmann.squeezedroid.model.RepeatMode;
-import net.chrislehmann.squeezedroid.model.ShuffleMode;
 import net.chrislehmann.util.SerializationUtils;
 
 import java.io.BufferedReader;
@@ -14,25 +12,116 @@ import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.net.Socket;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class EventThread extends Thread
 {
    private static final String LOGTAG = "EventThread";
+   private static final long DEFAULT_COALESCING_WINDOW_MILLIS = 250;
+   private static final long DEFAULT_MAX_COALESCING_DELAY_MILLIS = 2000;
    private Socket _eventSocket;
    private Writer _eventWriter;
    private BufferedReader _eventReader;
 
-   private Object _playerHandlersMutex = new Object();
-   private Object _serverHandlersMutex = new Object();
+   /**
+    * Events for a player whose status has to be loaded before the handlers can be told about them.  Only the latest
+    * event of each kind is kept, so a burst of them (i.e. adding an album to the playlist) ends up as a single
+    * notification with the status as it is after the burst.
+    */
+   private static class PendingLoad
+   {
+      private Map<String, String[]> events = new LinkedHashMap<String, String[]>();
+      /**
+       * Events that came in after the status was requested, it may not include them
+       */
+      private List<String[]> lateEvents = new ArrayList<String[]>();
+      private long firstEventAt;
+      private long lastEventAt;
+      private boolean burst = false;
+      private boolean loading = false;
+
+      public void add(PlayerStatusStore.Change change, String event, String data)
+      {
+         if ( loading )
+         {
+            lateEvents.add( new String[] { event, data } );
+            return;
+         }
+
+         String key = change.name();
+         if ( change == PlayerStatusStore.Change.PLAYLIST )
+         {
+            key = key + " " + data.split( " " )[0];
+         }
+         events.remove( key );
+         events.put( key, new String[] { event, data } );
+
+         lastEventAt = System.currentTimeMillis();
+         if ( firstEventAt == 0 )
+         {
+            firstEventAt = lastEventAt;
+         }
+         burst |= change == PlayerStatusStore.Change.SONG || change == PlayerStatusStore.Change.PLAYLIST;
+      }
+
+      /**
+       * Returns how much longer to wait before loading the status.  Bursts are loaded once there has been a
+       * window without events, or the maximum delay has passed.  Anything else is loaded right away.
+       */
+      public long getLoadDelay(long now, long window, long maxDelay)
+      {
+         if ( !burst || window <= 0 )
+         {
+            return 0;
+         }
+         return Math.min( lastEventAt + window, firstEventAt + maxDelay ) - now;
+      }
+   }
+
+   /**
+    * A handler listening to a player, with the queue its notifications wait in
+    */
+   private static class Subscription
+   {
+      private PlayerStatusHandler handler;
+      private DispatchQueue queue;
+
+      public Subscription(PlayerStatusHandler handler, DispatchQueue queue)
+      {
+         this.handler = handler;
+         this.queue = queue;
+      }
+   }
 
-   private Map<String, List<PlayerStatusHandler>> _playerHandlers = new HashMap<String, List<PlayerStatusHandler>>();
-   private List<ServerStatusHandler> _serverHandlers = new ArrayList<ServerStatusHandler>();
+   /**
+    * Copy on write, so handlers can be added and removed while events are being dispatched
+    */
+   private ConcurrentMap<String, List<Subscription>> _playerHandlers = new ConcurrentHashMap<String, List<Subscription>>();
+   private List<ServerStatusHandler> _serverHandlers = new CopyOnWriteArrayList<ServerStatusHandler>();
+   private List<RescanHandler> _rescanHandlers = new CopyOnWriteArrayList<RescanHandler>();
+
+   /**
+    * Runs the notifications queued for the handlers
+    */
+   private Executor _dispatchExecutor = ServiceFuture.SAME_THREAD;
+   private int _dispatchQueueCapacity = 64;
+   private DispatchQueue.OverflowPolicy _overflowPolicy = DispatchQueue.OverflowPolicy.DROP_OLDEST;
+
+   private Object _statusMutex = new Object();
 
    private String password;
    private String username;
@@ -42,10 +131,95 @@ public class EventThread extends Thread
 
    private Pattern eventPattern = Pattern.compile( "([^ ]*) ([^ ]*) (.*)" );
 
-   protected PlayerStatus _status;
+   /**
+    * Status of the players, kept up to date from the events
+    */
+   private PlayerStatusStore _statusStore = new PlayerStatusStore();
+   /**
+    * Players whose status is (about to be) loaded again, by player id
+    */
+   private Map<String, PendingLoad> _pendingLoads = new HashMap<String, PendingLoad>();
+
+   /**
+    * How long to wait for things to settle down after a new song or playlist event before loading the status
+    */
+   private long _coalescingWindowMillis = DEFAULT_COALESCING_WINDOW_MILLIS;
+   /**
+    * Longest a burst of events can put off loading the status
+    */
+   private long _maxCoalescingDelayMillis = DEFAULT_MAX_COALESCING_DELAY_MILLIS;
+   private ScheduledExecutorService _timer;
+
+   /**
+    * Set when the server should push the status of the players anyone is listening to (the watched players),
+    * instead of us loading it.  The command is the <code>status</code> command without the player id.
+    */
+   private String _statusCommand;
+   private int _statusSubscriptionInterval;
+   private ServiceFuture.Transformer<String, PlayerStatus> _statusParser;
+   /**
+    * Guards the writer.  Starting or stopping the status pushes of a player is decided under it too, so the command
+    * that goes out always matches the handlers that are left.
+    */
+   private Object _writerMutex = new Object();
+   private boolean _listening = false;
+
+   /**
+    * How long to wait between attempts to get the event socket back after it is lost
+    */
+   private ConnectionSupervisor.Backoff _backoff = new ConnectionSupervisor.Backoff();
+   private volatile boolean _closed = false;
+
+   /**
+    * Probes the event socket when no events have arrived for a while, so a dead socket is noticed
+    */
+   private Heartbeat _heartbeat;
+   private CliMetrics _metrics;
+   private volatile long _lastReadAt = System.currentTimeMillis();
+   private final Heartbeat.Target _heartbeatTarget = new Heartbeat.Target()
+   {
+      public long getLastReadAt()
+      {
+         return _lastReadAt;
+      }
+
+      public boolean isBusy()
+      {
+         return false;
+      }
+
+      public void sendProbe()
+      {
+         write( Heartbeat.PROBE_COMMAND );
+      }
+
+      public void probeTimedOut()
+      {
+         Log.e( LOGTAG, "Event socket did not answer, reconnecting" );
+         Socket socket = _eventSocket;
+         if ( socket != null )
+         {
+            try
+            {
+               //The listening loop fails and opens it again
+               socket.close();
+            }
+            catch ( IOException e )
+            {
+               Log.d( LOGTAG, "Error closing event socket", e );
+            }
+         }
+      }
 
+      @Override
+      public String toString()
+      {
+         return "event socket to " + host + ":" + cliPort;
+      }
+   };
 
    private SqueezeService _service;
+   private PlayerTopology _playerTopology;
 
    public EventThread(String host, int cliPort)
    {
@@ -54,19 +228,87 @@ public class EventThread extends Thread
       this.cliPort = cliPort;
    }
 
+   /**
+    * Listens to events until {@link #disconnect()} is called.  If the socket is lost it is opened again, waiting
+    * longer after each failed attempt, and the subscriptions are kept.  Only if it can't be opened again in time
+    * are the {@link ServerStatusHandler}s told we were disconnected.
+    */
    @Override
    public void run()
    {
-      connect();
-      try
+      while ( !isClosed() )
       {
-         listen();
+         try
+         {
+            connect();
+            _backoff.reset();
+            listen();
+         }
+         catch ( Exception e )
+         {
+            //disconnect() closes the socket underneath us, that is not an error
+            if ( isClosed() )
+            {
+               Log.d( LOGTAG, "Event socket closed, stopping" );
+            }
+            else
+            {
+               Log.e( LOGTAG, "Error listening to events from socket", e );
+            }
+         }
+         closeSocket();
+
+         if ( isClosed() )
+         {
+            break;
+         }
+         long delay = _backoff.nextDelayMillis();
+         if ( delay < 0 )
+         {
+            Log.e( LOGTAG, "Giving up reconnecting to the event socket after " + _backoff.getAttempts() + " attempts" );
+            break;
+         }
+         Log.w( LOGTAG, "Lost the event socket, reconnecting in " + delay + "ms" );
+         try
+         {
+            Thread.sleep( delay );
+         }
+         catch ( InterruptedException e )
+         {
+            break;
+         }
       }
-      catch ( Exception e )
+
+      synchronized ( _statusMutex )
       {
-         Log.e( LOGTAG, "Error listening to events from socke", e );
+         _statusStore.clear();
+         _pendingLoads.clear();
+         if ( _timer != null )
+         {
+            _timer.shutdownNow();
+         }
+      }
+
+      if ( !_closed )
+      {
+         //We gave up, disconnect() tells the handlers itself
+         for ( ServerStatusHandler handler : _serverHandlers )
+         {
+            handler.onDisconnect();
+         }
+      }
+   }
+   
+   /**
+    * Closes the socket and forgets what may have changed while it was down.  The statuses the server pushes are
+    * kept, it pushes them again once we are back and the handlers are told about the differences.
+    */
+   private void closeSocket()
+   {
+      if ( _heartbeat != null )
+      {
+         _heartbeat.remove( _heartbeatTarget );
       }
-      
       if ( _eventSocket != null && !_eventSocket.isClosed() )
       {
          try
@@ -81,19 +323,37 @@ public class EventThread extends Thread
 
       _eventSocket = null;
       _eventReader = null;
-      _eventWriter = null;
+      synchronized ( _writerMutex )
+      {
+         _eventWriter = null;
+         _listening = false;
+      }
 
-      synchronized ( _serverHandlersMutex )
+      //Sync and status changes will be missed until we are back
+      if ( _playerTopology != null )
       {
-         for ( ServerStatusHandler handler : _serverHandlers )
+         _playerTopology.invalidate();
+      }
+      synchronized ( _statusMutex )
+      {
+         for ( String playerId : _playerHandlers.keySet() )
          {
-            handler.onDisconnect();
+            if ( !isWatched( playerId ) )
+            {
+               _statusStore.remove( playerId );
+            }
          }
       }
    }
-   
+
+   private boolean isClosed()
+   {
+      return _closed || isInterrupted();
+   }
+
    public void disconnect()
    {
+      _closed = true;
       interrupt();
       if( this._eventSocket != null && this._eventSocket.isConnected() )
       {
@@ -107,54 +367,87 @@ public class EventThread extends Thread
          }
          
       }
-      synchronized ( _serverHandlersMutex )
+      for ( ServerStatusHandler handler : _serverHandlers )
       {
-         for ( ServerStatusHandler handler : _serverHandlers )
-         {
-            handler.onDisconnect();
-         }
+         handler.onDisconnect();
       }
    }
 
    private void listen() throws IOException
    {
       String line = "";
-      while ( line  != null && !isInterrupted() && _eventSocket.isConnected()  ) 
+      while ( line  != null && !isClosed() && _eventSocket.isConnected()  ) 
       {
          Log.v( LOGTAG, "Reading line");
          line = _eventReader.readLine();
+         _lastReadAt = System.currentTimeMillis();
          Log.v( LOGTAG, "Got line '" + line + "'");
-         if ( !isInterrupted() && line != null )
+         if ( !isClosed() && line != null )
          {
-            Matcher matcher = eventPattern.matcher( line );
-            if ( matcher.find() )
+            if ( _metrics != null )
             {
-               String playerId = SerializationUtils.decode( matcher.group( 1 ) );
-               String eventType = SerializationUtils.decode( matcher.group( 2 ) );
-               String data = matcher.group( 3 );
-               notify( eventType, playerId, data );
-
-               //TODO - find a better way of doing this.  Squeezeserver only sends one sync command, 
-               // and it might be associated to a player we are not subscribed too.
-               //
-               //As a hack, just 'fake' a second sync command, swapping the playerid and data.
-               if ( "sync".equals( eventType ) && !data.equals( "-" ) )
-               {
-                  notify( eventType, SerializationUtils.decode( data ), playerId );
-               }
+               _metrics.eventRead( line.length() + 1 );
             }
+            handleEvent( line );
+         }
+      }
+   }
+
+   /**
+    * Parses a single event line and notifies the handlers subscribed to the player it is for
+    */
+   void handleEvent(String line)
+   {
+      if ( line.startsWith( "version " ) )
+      {
+         //Answer to a probe
+         if ( _heartbeat != null )
+         {
+            _heartbeat.probeAnswered( _heartbeatTarget );
+         }
+         return;
+      }
+      if ( line.equals( "rescan" ) || line.startsWith( "rescan " ) || line.startsWith( "wipecache" ) )
+      {
+         libraryChanged( line );
+         return;
+      }
+      Matcher matcher = eventPattern.matcher( line );
+      if ( matcher.find() )
+      {
+         String playerId = SerializationUtils.decode( matcher.group( 1 ) );
+         String eventType = SerializationUtils.decode( matcher.group( 2 ) );
+         String data = matcher.group( 3 );
+         if ( "status".equals( eventType ) )
+         {
+            statusPushed( playerId, line );
+            return;
+         }
+         if ( _playerTopology != null )
+         {
+            _playerTopology.onEvent( playerId, eventType, data );
+         }
+         notify( eventType, playerId, data );
+
+         //TODO - find a better way of doing this.  Squeezeserver only sends one sync command, 
+         // and it might be associated to a player we are not subscribed too.
+         //
+         //As a hack, just 'fake' a second sync command, swapping the playerid and data.
+         if ( "sync".equals( eventType ) && !data.equals( "-" ) )
+         {
+            notify( eventType, SerializationUtils.decode( data ), playerId );
          }
       }
    }
 
    private interface CommandHandler
    {
-      void handleCommand(String playerId, String data, PlayerStatusHandler handler);
+      void handleCommand(String playerId, String data, PlayerStatus status, PlayerStatusHandler handler);
    }
 
    private CommandHandler playListHandler = new CommandHandler()
    {
-      public void handleCommand(String playerId, String data, PlayerStatusHandler handler)
+      public void handleCommand(String playerId, String data, PlayerStatus status, PlayerStatusHandler handler)
       {
          String[] splitData = data.split( " " );
          if ( splitData.length == 0 )
@@ -165,55 +458,45 @@ public class EventThread extends Thread
 
          if ( "newsong".equalsIgnoreCase( action ) )
          {
-            handler.onSongChanged( _status );
+            handler.onSongChanged( status );
          }
 
          if ( "loadtracks".equalsIgnoreCase( action ) || "delete".equalsIgnoreCase( action ) || "deletetracks".equalsIgnoreCase( action ) )
          {
-            handler.onPlaylistChanged( _status );
+            handler.onPlaylistChanged( status );
          }
          if ( "shuffle".equalsIgnoreCase( action ) )
          {
-            ShuffleMode mode = ShuffleMode.intToShuffleModeMap.get( splitData[1] );
-            handler.onShuffleModeChanged( mode );
+            handler.onShuffleModeChanged( status.getShuffleMode() );
          }
          if ( "repeat".equalsIgnoreCase( action ) )
          {
-            RepeatMode mode = RepeatMode.intToRepeatModeMap.get( splitData[1] );
-            handler.onRepeatModeChanged( mode );
+            handler.onRepeatModeChanged( status.getRepeatMode() );
          }
       }
    };
 
    private CommandHandler timeChangeHandler = new CommandHandler()
    {
-      public void handleCommand(String playerId, String data, PlayerStatusHandler handler)
+      public void handleCommand(String playerId, String data, PlayerStatus status, PlayerStatusHandler handler)
       {
-         try
-         {
-            Integer newTime = Integer.parseInt( data );
-            handler.onTimeChanged( newTime );
-
-         }
-         catch ( NumberFormatException e )
-         {/* Invalid time, do not notify */
-         }
+         handler.onTimeChanged( status.getCurrentPosition() );
       }
    };
 
    private CommandHandler playPauseStopHandler = new CommandHandler()
    {
-      public void handleCommand(String playerId, String data, PlayerStatusHandler handler)
+      public void handleCommand(String playerId, String data, PlayerStatus status, PlayerStatusHandler handler)
       {
-         if ( _status.isPaused() )
+         if ( status.isPaused() )
          {
             handler.onPause();
          }
-         if ( _status.isPlaying() )
+         if ( status.isPlaying() )
          {
             handler.onPlay();
          }
-         if ( _status.isStopped() )
+         if ( status.isStopped() )
          {
             handler.onStop();
          }
@@ -223,7 +506,7 @@ public class EventThread extends Thread
 
    private CommandHandler clientHandler = new CommandHandler()
    {
-      public void handleCommand(String playerId, String data, PlayerStatusHandler handler)
+      public void handleCommand(String playerId, String data, PlayerStatus status, PlayerStatusHandler handler)
       {
          if ( "forget".equals( data ) )
          {
@@ -234,7 +517,7 @@ public class EventThread extends Thread
 
    private CommandHandler playerSyncStatusHandler = new CommandHandler()
    {
-      public void handleCommand(String playerId, String data, PlayerStatusHandler handler)
+      public void handleCommand(String playerId, String data, PlayerStatus status, PlayerStatusHandler handler)
       {
          if ( "-".equals( data ) )
          {
@@ -250,21 +533,11 @@ public class EventThread extends Thread
 
    private CommandHandler mixerChangeHandler = new CommandHandler()
    {
-      public void handleCommand(String playerId, String data, PlayerStatusHandler handler)
+      public void handleCommand(String playerId, String data, PlayerStatus status, PlayerStatusHandler handler)
       {
-         String[] parts = data.split( " " );
-         if ( parts.length >= 2 && "volume".equals( parts[0] ) )
+         if ( data.startsWith( "volume " ) )
          {
-
-            try
-            {
-               Integer newVolume = Integer.parseInt( parts[1] );
-               handler.onVolumeChanged( newVolume );
-
-            }
-            catch ( NumberFormatException e )
-            {/* Invalid time, do not notify */
-            }
+            handler.onVolumeChanged( status.getVolume() );
          }
       }
    };
@@ -283,39 +556,430 @@ public class EventThread extends Thread
 
    }
 
+   /**
+    * Applies the event to the status of the player and tells the handlers about it.  If the event can't be
+    * applied, the status is loaded again (only if anyone is listening to the player) and the handlers are told
+    * once it arrives.
+    */
    private void notify(String event, String playerId, String data)
    {
-      synchronized ( _playerHandlersMutex )
+      boolean load;
+      synchronized ( _statusMutex )
       {
          Log.v( LOGTAG, "Got event '" + playerId + ":" + event + "', notifying any handlers that care" );
-         updateStatus( playerId );
-         if ( _playerHandlers.containsKey( playerId ) )
+         load = apply( event, playerId, data );
+         Log.v( LOGTAG, "Done notifying event '" + playerId + ":" + event + "'" );
+      }
+
+      if ( load )
+      {
+         scheduleLoad( playerId );
+      }
+   }
+
+   /**
+    * Does the work for {@link #notify(String, String, String)} while holding the status mutex.  Returns true if
+    * the status of the player should be loaded.
+    */
+   private boolean apply(String event, String playerId, String data)
+   {
+      PlayerStatusStore.Change change = PlayerStatusStore.getChange( event, data );
+      List<Subscription> subscriptions = _playerHandlers.get( playerId );
+      boolean subscribed = subscriptions != null && !subscriptions.isEmpty();
+      if ( "client".equals( event ) )
+      {
+         //A player that (re)connected may be doing anything by now
+         _statusStore.remove( playerId );
+      }
+
+      PlayerStatus previous = _statusStore.get( playerId );
+      if ( change == null || _statusStore.apply( playerId, change, event, data ) )
+      {
+         PlayerStatus status = _statusStore.get( playerId );
+         if ( change == null || !isUnchanged( change, previous, status ) )
          {
-            List<PlayerStatusHandler> handlers = _playerHandlers.get( playerId );
-            for ( PlayerStatusHandler handler : handlers )
+            notifyHandlers( event, playerId, data, status );
+            if ( status != null )
             {
-               Log.v( LOGTAG, "Handler '" + handler + " cares about this player" );
-               if ( handler != null && _commandHandlers.containsKey( event ) )
+               statusChanged( playerId, status );
+            }
+         }
+         return false;
+      }
+
+      boolean watched = subscribed && _statusParser != null;
+      if ( !watched )
+      {
+         _statusStore.remove( playerId );
+      }
+      if ( !subscribed )
+      {
+         return false;
+      }
+      if ( watched && change != PlayerStatusStore.Change.PLAYLIST )
+      {
+         //The server pushes the new status, the handlers are told what changed when it arrives
+         return false;
+      }
+
+      PendingLoad pending = _pendingLoads.get( playerId );
+      boolean load = pending == null;
+      if ( load )
+      {
+         pending = new PendingLoad();
+         _pendingLoads.put( playerId, pending );
+      }
+      pending.add( change, event, data );
+      return load;
+   }
+
+   /**
+    * Returns true if the change made no difference, i.e. the server pushed the new status before the event arrived
+    */
+   private boolean isUnchanged(PlayerStatusStore.Change change, PlayerStatus previous, PlayerStatus status)
+   {
+      switch ( change )
+      {
+         case VOLUME:
+            return previous.getVolume() == status.getVolume();
+         case MODE:
+            return previous.getStatus() != null && previous.getStatus().equals( status.getStatus() );
+         case SHUFFLE:
+            return previous.getShuffleMode() == status.getShuffleMode();
+         case REPEAT:
+            return previous.getRepeatMode() == status.getRepeatMode();
+         default:
+            return false;
+      }
+   }
+
+   /**
+    * Loads the status of the player once its pending events have settled down
+    */
+   private void scheduleLoad(final String playerId)
+   {
+      long delay;
+      synchronized ( _statusMutex )
+      {
+         PendingLoad pending = _pendingLoads.get( playerId );
+         if ( pending == null || pending.loading )
+         {
+            return;
+         }
+         delay = pending.getLoadDelay( System.currentTimeMillis(), _coalescingWindowMillis, _maxCoalescingDelayMillis );
+         if ( delay <= 0 )
+         {
+            pending.loading = true;
+         }
+         else if ( _timer == null )
+         {
+            _timer = Executors.newSingleThreadScheduledExecutor( new ThreadFactory()
+            {
+               public Thread newThread(Runnable runnable)
                {
-                  Log.v( LOGTAG, "Using CommandHandler " + _commandHandlers.get( event ) + "' to handle event" );
-                  try
-                  {
-                      _commandHandlers.get( event ).handleCommand( playerId, data, handler );
-                  } catch (Exception e)
-                  {
-                      Log.e(LOGTAG, "Error calling handler: ", e);
-                  }
+                  Thread thread = new Thread( runnable, "EventThread-timer" );
+                  thread.setDaemon( true );
+                  return thread;
                }
+            } );
+         }
+      }
+
+      if ( delay <= 0 )
+      {
+         if ( isWatched( playerId ) )
+         {
+            //Whatever the server pushed last is as good as loading it
+            statusLoaded( playerId, _statusStore.get( playerId ) );
+         }
+         else
+         {
+            updateStatus( playerId );
+         }
+         return;
+      }
+      try
+      {
+         _timer.schedule( new Runnable()
+         {
+            public void run()
+            {
+               scheduleLoad( playerId );
+            }
+         }, delay, TimeUnit.MILLISECONDS );
+      }
+      catch ( RejectedExecutionException e )
+      {
+         Log.d( LOGTAG, "Not loading status of " + playerId + ", disconnected" );
+      }
+   }
+
+   /**
+    * Queues the event for each handler listening to the player, the handlers are called from the dispatch executor
+    */
+   private void notifyHandlers(final String event, final String playerId, final String data, final PlayerStatus status)
+   {
+      final CommandHandler commandHandler = _commandHandlers.get( event );
+      List<Subscription> subscriptions = _playerHandlers.get( playerId );
+      if ( commandHandler == null || subscriptions == null )
+      {
+         return;
+      }
+      String key = stateKey( event, data );
+      for ( final Subscription subscription : subscriptions )
+      {
+         Log.v( LOGTAG, "Handler '" + subscription.handler + " cares about this player" );
+         subscription.queue.post( key, new Runnable()
+         {
+            public void run()
+            {
+               commandHandler.handleCommand( playerId, data, status, subscription.handler );
             }
+         } );
+      }
+   }
+
+   /**
+    * Returns what part of the player's state the event tells the handlers about, or null if it is not about its
+    * state.  A handler that falls behind only gets the latest of each, instead of missing some (see
+    * {@link DispatchQueue#post(String, Runnable)}).
+    */
+   private static String stateKey(String event, String data)
+   {
+      if ( "playlist".equals( event ) )
+      {
+         String action = data.split( " " )[0].toLowerCase();
+         if ( "newsong".equals( action ) )
+         {
+            return "song";
          }
-         Log.v( LOGTAG, "Done notifying event '" + playerId + ":" + event + "'" );
+         if ( "loadtracks".equals( action ) || "delete".equals( action ) || "deletetracks".equals( action ) )
+         {
+            return "playlist";
+         }
+         if ( "shuffle".equals( action ) || "repeat".equals( action ) )
+         {
+            return action;
+         }
+         return null;
+      }
+      if ( "time".equals( event ) )
+      {
+         return "time";
+      }
+      if ( "mixer".equals( event ) && data.startsWith( "volume " ) )
+      {
+         return "volume";
+      }
+      if ( "play".equals( event ) || "pause".equals( event ) || "stop".equals( event ) )
+      {
+         return "mode";
+      }
+      return null;
+   }
+
+   /**
+    * Loads the status of the player, which should be passed to {@link #statusLoaded(String, PlayerStatus)}.
+    * Called when an event for a player someone is listening to can't be applied to what we know.
+    */
+   protected void updateStatus(final String playerId)
+   {
+      _service.getAsyncService().getPlayerStatus( playerId ).addCallback( new ServiceCallback<PlayerStatus>()
+      {
+         public void onSuccess(PlayerStatus status)
+         {
+            statusLoaded( playerId, status );
+         }
+
+         public void onFailure(Exception e)
+         {
+            Log.e( LOGTAG, "Error loading status of player " + playerId, e );
+            statusLoaded( playerId, null );
+         }
+      } );
+   }
+
+   /**
+    * Stores the freshly loaded status of a player and tells the handlers about the events that were waiting for it.
+    * If the status could not be loaded (null), the events are dropped.
+    */
+   protected void statusLoaded(String playerId, PlayerStatus status)
+   {
+      boolean load = false;
+      synchronized ( _statusMutex )
+      {
+         PendingLoad pending = _pendingLoads.remove( playerId );
+         if ( pending == null || status == null )
+         {
+            return;
+         }
+         _statusStore.put( playerId, status );
+         for ( String[] event : pending.events.values() )
+         {
+            notifyHandlers( event[0], playerId, event[1], status );
+         }
+         statusChanged( playerId, status );
+         for ( String[] event : pending.lateEvents )
+         {
+            load |= apply( event[0], playerId, event[1] );
+         }
+      }
+
+      if ( load )
+      {
+         scheduleLoad( playerId );
+      }
+   }
+
+   /**
+    * Stores a status the server pushed for a watched player, and tells the handlers about anything that changed
+    */
+   private void statusPushed(String playerId, String line)
+   {
+      if ( !isWatched( playerId ) || line.contains( "subscribe%3A-" ) || line.contains( "subscribe:-" ) )
+      {
+         //Answer to unsubscribing, or a push that was on its way when the last handler left
+         return;
+      }
+      PlayerStatus status;
+      try
+      {
+         status = _statusParser.transform( line );
+      }
+      catch ( RuntimeException e )
+      {
+         Log.e( LOGTAG, "Error parsing status pushed for player " + playerId, e );
+         return;
+      }
+
+      synchronized ( _statusMutex )
+      {
+         PlayerStatus previous = _statusStore.getEstimated( playerId );
+         _statusStore.put( playerId, status );
+         if ( previous != null )
+         {
+            notifyChanges( playerId, previous, status );
+         }
+         statusChanged( playerId, status );
+      }
+   }
+
+   /**
+    * Hands the status of the player to the handlers that keep all of it ({@link StatusSnapshotHandler}).  Only the
+    * latest waits for a handler that is behind.  Must hold the status mutex.
+    */
+   private void statusChanged(String playerId, final PlayerStatus status)
+   {
+      List<Subscription> subscriptions = _playerHandlers.get( playerId );
+      if ( subscriptions == null )
+      {
+         return;
+      }
+      for ( Subscription subscription : subscriptions )
+      {
+         if ( subscription.handler instanceof StatusSnapshotHandler )
+         {
+            final StatusSnapshotHandler handler = (StatusSnapshotHandler) subscription.handler;
+            subscription.queue.post( "status", new Runnable()
+            {
+               public void run()
+               {
+                  handler.onStatusChanged( status );
+               }
+            } );
+         }
+      }
+   }
+
+   /**
+    * Tells the handlers of the player about the differences between two statuses, as if the events had come in
+    */
+   private void notifyChanges(String playerId, PlayerStatus previous, PlayerStatus status)
+   {
+      String previousSongId = previous.getCurrentSong() == null ? null : previous.getCurrentSong().getId();
+      String songId = status.getCurrentSong() == null ? null : status.getCurrentSong().getId();
+      if ( previous.getCurrentIndex() != status.getCurrentIndex() || ( songId == null ? previousSongId != null : !songId.equals( previousSongId ) ) )
+      {
+         notifyHandlers( "playlist", playerId, "newsong", status );
+      }
+      else if ( Math.abs( previous.getCurrentPosition() - status.getCurrentPosition() ) > 2 )
+      {
+         notifyHandlers( "time", playerId, String.valueOf( status.getCurrentPosition() ), status );
+      }
+      if ( previous.getVolume() != status.getVolume() )
+      {
+         notifyHandlers( "mixer", playerId, "volume " + status.getVolume(), status );
+      }
+      if ( status.getStatus() != null && !status.getStatus().equals( previous.getStatus() ) )
+      {
+         notifyHandlers( status.getStatus(), playerId, "", status );
+      }
+      if ( status.getShuffleMode() != null && status.getShuffleMode() != previous.getShuffleMode() )
+      {
+         notifyHandlers( "playlist", playerId, "shuffle " + status.getShuffleMode().getId(), status );
+      }
+      if ( status.getRepeatMode() != null && status.getRepeatMode() != previous.getRepeatMode() )
+      {
+         notifyHandlers( "playlist", playerId, "repeat " + status.getRepeatMode().getId(), status );
       }
+   }
+
+   /**
+    * Returns true if the server pushes the status of the player to us
+    */
+   private boolean isWatched(String playerId)
+   {
+      List<Subscription> subscriptions = _playerHandlers.get( playerId );
+      return _statusParser != null && subscriptions != null && !subscriptions.isEmpty();
+   }
+
+   /**
+    * Asks the server to start (or stop) pushing the status of the player.  Does nothing if we are not listening
+    * yet, all the watched players are subscribed to once we are.
+    */
+   private void sendStatusSubscription(String playerId, boolean subscribe)
+   {
+      if ( _statusParser == null )
+      {
+         return;
+      }
+      write( playerId + " " + ( subscribe ? _statusCommand + " subscribe:" + _statusSubscriptionInterval : "status - 1 subscribe:-" ) );
+   }
 
+   /**
+    * Sends a command down the event socket, does nothing if we are not listening
+    */
+   private void write(String command)
+   {
+      synchronized ( _writerMutex )
+      {
+         if ( !_listening )
+         {
+            return;
+         }
+         try
+         {
+            _eventWriter.write( command + "\n" );
+            _eventWriter.flush();
+         }
+         catch ( IOException e )
+         {
+            Log.e( LOGTAG, "Error sending '" + command + "'", e );
+         }
+      }
    }
 
-   protected void updateStatus(String playerId)
+   /**
+    * Returns the status the server last pushed for the player, with the time moved on, or null if it is not watched
+    * or nothing has arrived yet.
+    */
+   public PlayerStatus getPushedStatus(String playerId)
    {
-      _status = _service.getPlayerStatus( playerId );
+      if ( !isWatched( playerId ) )
+      {
+         return null;
+      }
+      return _statusStore.getEstimated( playerId );
    }
 
    private void connect()
@@ -337,10 +1001,26 @@ public class EventThread extends Thread
          
          _eventWriter.write( "listen 1\n" );
          _eventWriter.flush();
-         _eventWriter.write( "subscribe playlist,time,mixer,sync,play,pause,stop,client\n" );
+         _eventWriter.write( "subscribe playlist,time,mixer,sync,play,pause,stop,client,rescan,wipecache\n" );
          _eventWriter.flush();
          Log.v( LOGTAG, "subscribed to events" );
-         
+
+         synchronized ( _writerMutex )
+         {
+            _listening = true;
+            for ( Map.Entry<String, List<Subscription>> entry : _playerHandlers.entrySet() )
+            {
+               if ( !entry.getValue().isEmpty() )
+               {
+                  sendStatusSubscription( entry.getKey(), true );
+               }
+            }
+         }
+         _lastReadAt = System.currentTimeMillis();
+         if ( _heartbeat != null )
+         {
+            _heartbeat.add( _heartbeatTarget );
+         }
 
       }
       catch ( Exception e )
@@ -354,67 +1034,145 @@ public class EventThread extends Thread
 
    public void subscribe(final String playerId, final PlayerStatusHandler handler)
    {
-      synchronized ( _playerHandlersMutex )
+      subscribe( playerId, handler, _overflowPolicy );
+   }
+
+   /**
+    * Subscribes the handler to events for the player.  Its notifications wait in a queue of their own, and the
+    * policy decides which are dropped if the handler can't keep up.
+    */
+   public void subscribe(final String playerId, final PlayerStatusHandler handler, DispatchQueue.OverflowPolicy policy)
+   {
+      Log.v( LOGTAG, "Suscribing to notifications for player " + playerId + " with handler " + handler );
+      List<Subscription> subscriptions = _playerHandlers.get( playerId );
+      if ( subscriptions == null )
       {
-         Log.v( LOGTAG, "Suscribing to notifications for player " + playerId + " with handler " + handler );
-         if ( !_playerHandlers.containsKey( playerId ) )
+         _playerHandlers.putIfAbsent( playerId, new CopyOnWriteArrayList<Subscription>() );
+         subscriptions = _playerHandlers.get( playerId );
+      }
+      boolean first;
+      synchronized ( subscriptions )
+      {
+         for ( Subscription subscription : subscriptions )
          {
-            _playerHandlers.put( playerId, Collections.synchronizedList( new ArrayList<PlayerStatusHandler>() ) );
+            if ( subscription.handler.equals( handler ) )
+            {
+               return;
+            }
          }
-         List<PlayerStatusHandler> handlers = _playerHandlers.get( playerId );
-         if( !handlers.contains(handler))
+         first = subscriptions.isEmpty();
+         DispatchQueue queue = new DispatchQueue( handler + "@" + playerId, _dispatchExecutor, _dispatchQueueCapacity, policy );
+         subscriptions.add( new Subscription( handler, queue ) );
+      }
+      if ( first )
+      {
+         synchronized ( _writerMutex )
          {
-             handlers.add( handler );
+            //Unless the handler left again, or a last handler leaving meanwhile already saw it and kept the status
+            if ( !subscriptions.isEmpty() )
+            {
+               sendStatusSubscription( playerId, true );
+            }
          }
-         Log.v( LOGTAG, "Done subscribing to notifications for player " + playerId + " with handler " + handler );
       }
+      Log.v( LOGTAG, "Done subscribing to notifications for player " + playerId + " with handler " + handler );
    }
 
    public void subscribe(ServerStatusHandler handler)
    {
-      synchronized ( _serverHandlersMutex )
-      {
-         _serverHandlers.add( handler );
-      }
+      _serverHandlers.add( handler );
    }
 
    public void unsubscribe(ServerStatusHandler handler)
    {
-      synchronized ( _serverHandlersMutex )
-      {
-         _serverHandlers.remove( handler );
-      }
+      _serverHandlers.remove( handler );
    }
 
-   public void unsubscribe(final String playerId, final PlayerStatusHandler handler)
+   public void addRescanHandler(RescanHandler handler)
    {
-      synchronized ( _playerHandlersMutex )
+      _rescanHandlers.add( handler );
+   }
+
+   public void removeRescanHandler(RescanHandler handler)
+   {
+      _rescanHandlers.remove( handler );
+   }
+
+   /**
+    * Tells the {@link RescanHandler}s about a <code>rescan</code> or <code>wipecache</code> event
+    */
+   private void libraryChanged(String line)
+   {
+      boolean done = line.startsWith( "rescan done" );
+      Log.d( LOGTAG, "Library changed: '" + line + "'" );
+      for ( RescanHandler handler : _rescanHandlers )
       {
-         Log.v( LOGTAG, "Unsubscribing from all notifactions handled by " + handler + " with player " + playerId );
-         if ( _playerHandlers.containsKey( playerId ) )
+         try
          {
-            List<PlayerStatusHandler> handlers = _playerHandlers.get( playerId );
-            synchronized ( handlers )
-            {
-               handlers.remove( handler );
-            }
+            handler.onRescan( done );
+         }
+         catch ( RuntimeException e )
+         {
+            Log.e( LOGTAG, "Error notifying " + handler + " of a rescan", e );
          }
-         Log.v( LOGTAG, "Done unsubscribing from all notifactions handled by " + handler + " with player " + playerId );
-
       }
    }
 
+   public void unsubscribe(final String playerId, final PlayerStatusHandler handler)
+   {
+      Log.v( LOGTAG, "Unsubscribing from all notifactions handled by " + handler + " with player " + playerId );
+      List<Subscription> subscriptions = _playerHandlers.get( playerId );
+      if ( subscriptions != null )
+      {
+         remove( playerId, subscriptions, handler );
+      }
+      Log.v( LOGTAG, "Done unsubscribing from all notifactions handled by " + handler + " with player " + playerId );
+   }
 
    public void unsubscribe(final PlayerStatusHandler handler)
    {
-      synchronized ( _playerHandlersMutex )
+      Log.d( LOGTAG, "Unsubscribing from all notifactions handled by " + handler );
+      for ( Map.Entry<String, List<Subscription>> entry : _playerHandlers.entrySet() )
       {
-         Log.d( LOGTAG, "Unsubscribing from all notifactions handled by " + handler );
-         for ( List<PlayerStatusHandler> handlerList : _playerHandlers.values() )
+         remove( entry.getKey(), entry.getValue(), handler );
+      }
+      Log.d( LOGTAG, "Done unsubscribing from all notifactions handled by " + handler );
+   }
+
+   /**
+    * Removes the handler from the list, dropping any notifications still waiting for it.  Once nobody is left
+    * listening to the player, the server stops pushing its status.
+    */
+   private void remove(String playerId, List<Subscription> subscriptions, PlayerStatusHandler handler)
+   {
+      boolean last = false;
+      synchronized ( subscriptions )
+      {
+         for ( Subscription subscription : subscriptions )
          {
-            handlerList.remove( handler );
+            if ( subscription.handler.equals( handler ) )
+            {
+               subscriptions.remove( subscription );
+               subscription.queue.close();
+               last = subscriptions.isEmpty();
+            }
+         }
+      }
+      if ( last && _statusParser != null )
+      {
+         synchronized ( _writerMutex )
+         {
+            //A handler that arrived meanwhile keeps the server pushing, and the status it pushed
+            if ( subscriptions.isEmpty() )
+            {
+               sendStatusSubscription( playerId, false );
+               synchronized ( _statusMutex )
+               {
+                  //Events that could not be applied were left to the pushes
+                  _statusStore.remove( playerId );
+               }
+            }
          }
-         Log.d( LOGTAG, "Done unsubscribing from all notifactions handled by " + handler );
       }
    }
 
@@ -428,6 +1186,87 @@ public class EventThread extends Thread
       this.timeChangeHandler = timeChangeHandler;
    }
 
+   public void setPlayerTopology(PlayerTopology playerTopology)
+   {
+      _playerTopology = playerTopology;
+   }
+
+   /**
+    * Sets the executor the handlers are called from.  By default they are called from the thread reading the events.
+    */
+   public void setDispatchExecutor(Executor dispatchExecutor)
+   {
+      _dispatchExecutor = dispatchExecutor;
+   }
+
+   /**
+    * Sets the maximum number of notifications waiting for each handler subscribed from now on
+    */
+   public void setDispatchQueueCapacity(int dispatchQueueCapacity)
+   {
+      _dispatchQueueCapacity = dispatchQueueCapacity;
+   }
+
+   /**
+    * Sets the policy for handlers subscribed from now on without one of their own
+    */
+   public void setOverflowPolicy(DispatchQueue.OverflowPolicy overflowPolicy)
+   {
+      _overflowPolicy = overflowPolicy;
+   }
+
+   /**
+    * Sets how long to wait for a burst of new song and playlist events to settle down before loading the status
+    * of the player and telling the handlers.  0 loads it right away.
+    */
+   public void setCoalescingWindowMillis(long coalescingWindowMillis)
+   {
+      _coalescingWindowMillis = coalescingWindowMillis;
+   }
+
+   /**
+    * Sets the longest a burst of events can put off loading the status, so a long one still shows up now and then
+    */
+   public void setMaxCoalescingDelayMillis(long maxCoalescingDelayMillis)
+   {
+      _maxCoalescingDelayMillis = maxCoalescingDelayMillis;
+   }
+
+   /**
+    * Has the server push the status of the players anyone is listening to, so it never has to be loaded.
+    *
+    * @param statusCommand   the <code>status</code> command to subscribe with, without the player id
+    * @param intervalSeconds how often the server sends the status when nothing changes
+    * @param parser          reads the status from a pushed line
+    */
+   public void setStatusSubscription(String statusCommand, int intervalSeconds, ServiceFuture.Transformer<String, PlayerStatus> parser)
+   {
+      _statusCommand = statusCommand;
+      _statusSubscriptionInterval = intervalSeconds;
+      _statusParser = parser;
+   }
+
+   public void setHeartbeat(Heartbeat heartbeat)
+   {
+      _heartbeat = heartbeat;
+   }
+
+   /**
+    * Sets the {@link CliMetrics} the events read are counted in
+    */
+   public void setMetrics(CliMetrics metrics)
+   {
+      _metrics = metrics;
+   }
+
+   /**
+    * Returns the {@link ConnectionSupervisor.Backoff} used when reconnecting the event socket
+    */
+   public ConnectionSupervisor.Backoff getBackoff()
+   {
+      return _backoff;
+   }
+
    public void setService(SqueezeService service)
    {
       _service = service;
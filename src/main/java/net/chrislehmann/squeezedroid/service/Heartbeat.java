@@ -0,0 +1,260 @@
+package net.chrislehmann.squeezedroid.service;
+
+import android.util.Log;
+import net.chrislehmann.squeezedroid.service.CliConnectionPool.Lane;
+import net.chrislehmann.util.LatencyHistogram;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps an eye on the connections to the server.  A connection nothing has been read from for
+ * {@link #getIdleMillis()} is sent a cheap probe (<code>version ?</code>), and if that is not answered within
+ * {@link #getProbeTimeoutMillis()} the connection is dropped, so a dead connection is found before a user is
+ * stuck waiting on it.
+ * <p/>
+ * The round trips of the probes are kept as a smoothed round trip time and variance (the way TCP does, RFC 6298),
+ * which the command timeouts are worked out from, and in a {@link LatencyHistogram}.
+ *
+ * @author lehmanc
+ */
+public class Heartbeat {
+
+    private static final String LOGTAG = "Heartbeat";
+
+    /**
+     * The probe sent down idle connections
+     */
+    public static final String PROBE_COMMAND = "version ?";
+
+    private static final long DEFAULT_TIMEOUT_MILLIS = 10 * 1000;
+    private static final long MIN_PROBE_TIMEOUT_MILLIS = 2 * 1000;
+    private static final long MIN_INTERACTIVE_TIMEOUT_MILLIS = 3 * 1000;
+    private static final long MAX_INTERACTIVE_TIMEOUT_MILLIS = 10 * 1000;
+    private static final long MIN_BULK_TIMEOUT_MILLIS = 10 * 1000;
+    private static final long MAX_BULK_TIMEOUT_MILLIS = 30 * 1000;
+
+    /**
+     * A connection that can be probed
+     */
+    public interface Target {
+        /**
+         * Returns when something was last read from the connection, from {@link System#currentTimeMillis()}
+         */
+        public long getLastReadAt();
+
+        /**
+         * True if the connection is waiting on an answer to something else, which a probe would be stuck behind.
+         * Commands that were given up on should not count, or a connection stuck on one would never be probed.
+         */
+        public boolean isBusy();
+
+        /**
+         * Sends the probe.  {@link Heartbeat#probeAnswered(Target)} should be called when the answer arrives.
+         */
+        public void sendProbe();
+
+        /**
+         * The probe was not answered in time, the connection should be dropped
+         */
+        public void probeTimedOut();
+    }
+
+    private final Map<Target, Long> probesSentAt = new ConcurrentHashMap<Target, Long>();
+    private final Map<Target, Boolean> targets = new ConcurrentHashMap<Target, Boolean>();
+    private final LatencyHistogram rtts = new LatencyHistogram();
+
+    private long idleMillis = 15 * 1000;
+    private long checkIntervalMillis = 5 * 1000;
+
+    private double smoothedRttMillis = -1;
+    private double rttVarianceMillis = 0;
+
+    private ScheduledExecutorService timer;
+
+    /**
+     * Starts checking the connections that are added
+     */
+    public synchronized void start() {
+        if (timer != null) {
+            return;
+        }
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Heartbeat");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            timer.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    check();
+                }
+            }, checkIntervalMillis, checkIntervalMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            Log.e(LOGTAG, "Could not start the heartbeat", e);
+        }
+    }
+
+    public synchronized void stop() {
+        if (timer != null) {
+            timer.shutdownNow();
+            timer = null;
+        }
+        targets.clear();
+        probesSentAt.clear();
+    }
+
+    public void add(Target target) {
+        targets.put(target, Boolean.TRUE);
+    }
+
+    public void remove(Target target) {
+        targets.remove(target);
+        probesSentAt.remove(target);
+    }
+
+    /**
+     * Called when the answer to the probe sent to the target arrives
+     */
+    public void probeAnswered(Target target) {
+        Long sentAt = probesSentAt.remove(target);
+        if (sentAt != null) {
+            addSample(System.currentTimeMillis() - sentAt);
+        }
+    }
+
+    /**
+     * Adds a round trip to the estimate, i.e. a probe or the <code>version ?</code> sent when connecting
+     */
+    public synchronized void addSample(long rttMillis) {
+        rtts.recordMillis(rttMillis);
+        if (smoothedRttMillis < 0) {
+            smoothedRttMillis = rttMillis;
+            rttVarianceMillis = rttMillis / 2.0;
+        } else {
+            rttVarianceMillis = 0.75 * rttVarianceMillis + 0.25 * Math.abs(smoothedRttMillis - rttMillis);
+            smoothedRttMillis = 0.875 * smoothedRttMillis + 0.125 * rttMillis;
+        }
+    }
+
+    /**
+     * Returns the smoothed round trip time, or -1 if there have been no samples yet
+     */
+    public synchronized long getSmoothedRttMillis() {
+        return smoothedRttMillis < 0 ? -1 : Math.round(smoothedRttMillis);
+    }
+
+    public synchronized long getRttVarianceMillis() {
+        return Math.round(rttVarianceMillis);
+    }
+
+    /**
+     * Returns the longest a round trip should take, the smoothed round trip time plus four times its variance.
+     * -1 if there have been no samples yet.
+     */
+    public synchronized long getRetransmitTimeoutMillis() {
+        if (smoothedRttMillis < 0) {
+            return -1;
+        }
+        return Math.round(smoothedRttMillis + 4 * rttVarianceMillis);
+    }
+
+    /**
+     * Returns how long to wait for a command sent down the lane before deciding the connection is dead.  Interactive
+     * commands are answered straight away, so their timeout follows the round trip time closely.  Bulk commands can
+     * keep the server busy for a while, they only get longer on a slow connection.
+     */
+    public long getCommandTimeoutMillis(Lane lane) {
+        long rto = getRetransmitTimeoutMillis();
+        if (rto < 0) {
+            return DEFAULT_TIMEOUT_MILLIS;
+        }
+        if (lane == Lane.INTERACTIVE) {
+            return clamp(2000 + 4 * rto, MIN_INTERACTIVE_TIMEOUT_MILLIS, MAX_INTERACTIVE_TIMEOUT_MILLIS);
+        }
+        return clamp(MIN_BULK_TIMEOUT_MILLIS + 4 * rto, MIN_BULK_TIMEOUT_MILLIS, MAX_BULK_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Returns how long a probe has to be answered in
+     */
+    public long getProbeTimeoutMillis() {
+        long rto = getRetransmitTimeoutMillis();
+        if (rto < 0) {
+            return DEFAULT_TIMEOUT_MILLIS;
+        }
+        return clamp(4 * rto, MIN_PROBE_TIMEOUT_MILLIS, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    private static long clamp(long value, long min, long max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    /**
+     * Returns the round trip times of the probes so far
+     */
+    public LatencyHistogram.Snapshot getRttHistogram() {
+        return rtts.getSnapshot();
+    }
+
+    /**
+     * Probes the idle targets and drops the ones that did not answer the last probe in time
+     */
+    void check() {
+        long now = System.currentTimeMillis();
+        long probeTimeout = getProbeTimeoutMillis();
+        for (Target target : targets.keySet()) {
+            Long sentAt = probesSentAt.get(target);
+            if (sentAt != null) {
+                if (target.getLastReadAt() > sentAt) {
+                    //Something else arrived after the probe, the connection is alive
+                    probesSentAt.remove(target);
+                } else if (now - sentAt > probeTimeout) {
+                    Log.w(LOGTAG, "Probe not answered in " + (now - sentAt) + "ms, dropping " + target);
+                    remove(target);
+                    try {
+                        target.probeTimedOut();
+                    } catch (RuntimeException e) {
+                        Log.e(LOGTAG, "Error dropping " + target, e);
+                    }
+                }
+            } else if (now - target.getLastReadAt() >= idleMillis && !target.isBusy()) {
+                probesSentAt.put(target, now);
+                try {
+                    target.sendProbe();
+                } catch (RuntimeException e) {
+                    Log.e(LOGTAG, "Error probing " + target, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns how long a connection has to be idle before it is probed
+     */
+    public long getIdleMillis() {
+        return idleMillis;
+    }
+
+    public void setIdleMillis(long idleMillis) {
+        this.idleMillis = idleMillis;
+    }
+
+    public long getCheckIntervalMillis() {
+        return checkIntervalMillis;
+    }
+
+    /**
+     * Sets how often the connections are checked, takes effect the next time the heartbeat is started
+     */
+    public void setCheckIntervalMillis(long checkIntervalMillis) {
+        this.checkIntervalMillis = checkIntervalMillis;
+    }
+}
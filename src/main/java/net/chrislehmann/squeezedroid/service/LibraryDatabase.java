@@ -0,0 +1,513 @@
+package net.chrislehmann.squeezedroid.service;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import net.chrislehmann.squeezedroid.model.Album;
+import net.chrislehmann.squeezedroid.model.Artist;
+import net.chrislehmann.squeezedroid.model.BrowseResult;
+import net.chrislehmann.squeezedroid.model.Genre;
+import net.chrislehmann.squeezedroid.model.Item;
+import net.chrislehmann.squeezedroid.model.Song;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Copy of the music library of one server (genres, artists, albums and tracks) on the device, so it can be browsed
+ * without going to the server.  It is filled by {@link LibrarySync}.
+ * <p/>
+ * Every row keeps its position in the server's own listing, so lists come back in the same order the server would
+ * have sorted them in.  A sync writes into tables of its own, which replace the ones that are browsed in one
+ * transaction once it has finished.  The library can be browsed while it is being synced, and a sync that fails
+ * leaves it as it was.
+ *
+ * @author lehmanc
+ */
+public class LibraryDatabase extends SQLiteOpenHelper {
+
+    private static final int VERSION = 2;
+
+    private static final String KEY_SYNCED_AT = "synced_at";
+    private static final String KEY_LAST_SCAN = "lastscan";
+
+    private static final String[] TABLES = {"genres", "artists", "albums", "tracks"};
+    /**
+     * Prefix of the tables a sync writes into
+     */
+    private static final String SYNC_PREFIX = "sync_";
+
+    private static final String TRACK_COLUMNS = "id, name, artist, artist_id, album, album_id, duration, remote, artwork_url, artwork_track_id, server_path";
+    private static final String ALBUM_COLUMNS = "id, name, artist, artwork_track_id";
+
+    /**
+     * An album as it is stored, with the ids the {@link Album} does not keep
+     */
+    static class AlbumRecord {
+        String id;
+        String name;
+        String artist;
+        String artistId;
+        String artworkTrackId;
+    }
+
+    /**
+     * A track as it is stored, with the ids and artwork keys the {@link Song} does not keep
+     */
+    static class TrackRecord {
+        String id;
+        String name;
+        String artist;
+        String artistId;
+        String album;
+        String albumId;
+        String genreId;
+        int trackNumber;
+        int duration;
+        boolean remote;
+        String artworkUrl;
+        String artworkTrackId;
+        String serverPath;
+    }
+
+    private final String baseHttpPath;
+    private volatile boolean ready = false;
+
+    /**
+     * @param context      used to find the database file
+     * @param host         the server, each server has a library of its own
+     * @param baseHttpPath the web interface of the server (<code>http://host:port</code>), to build the artwork urls
+     */
+    public LibraryDatabase(Context context, String host, String baseHttpPath) {
+        super(context, "library-" + host + ".db", null, VERSION);
+        this.baseHttpPath = baseHttpPath;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE meta (key TEXT PRIMARY KEY, value TEXT)");
+        createTables(db, "");
+        createIndexes(db);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        //It is only a copy, start again
+        db.execSQL("DROP TABLE IF EXISTS meta");
+        dropTables(db, "");
+        dropTables(db, SYNC_PREFIX);
+        onCreate(db);
+    }
+
+    /**
+     * Creates the tables, the ones that are browsed or (with the {@link #SYNC_PREFIX}) the ones a sync writes into.
+     * The position is unique, the server lists each item once.
+     */
+    private static void createTables(SQLiteDatabase db, String prefix) {
+        db.execSQL("CREATE TABLE " + prefix + "genres (id TEXT PRIMARY KEY, name TEXT, position INTEGER UNIQUE)");
+        db.execSQL("CREATE TABLE " + prefix + "artists (id TEXT PRIMARY KEY, name TEXT, position INTEGER UNIQUE)");
+        db.execSQL("CREATE TABLE " + prefix + "albums (id TEXT PRIMARY KEY, name TEXT, artist TEXT, artist_id TEXT, artwork_track_id TEXT, "
+                + "position INTEGER UNIQUE)");
+        db.execSQL("CREATE TABLE " + prefix + "tracks (id TEXT PRIMARY KEY, name TEXT, artist TEXT, artist_id TEXT, album TEXT, album_id TEXT, "
+                + "genre_id TEXT, track_number INTEGER, duration INTEGER, remote INTEGER, artwork_url TEXT, artwork_track_id TEXT, "
+                + "server_path TEXT, position INTEGER UNIQUE)");
+    }
+
+    /**
+     * Creates the indexes the tables that are browsed are searched with.  The tables a sync writes into only get
+     * them once they replace them, so the rows are written faster.
+     */
+    private static void createIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX albums_artist ON albums (artist_id)");
+        db.execSQL("CREATE INDEX tracks_album ON tracks (album_id, track_number)");
+        db.execSQL("CREATE INDEX tracks_artist ON tracks (artist_id)");
+        db.execSQL("CREATE INDEX tracks_genre ON tracks (genre_id)");
+    }
+
+    private static void dropTables(SQLiteDatabase db, String prefix) {
+        for (String table : TABLES) {
+            db.execSQL("DROP TABLE IF EXISTS " + prefix + table);
+        }
+    }
+
+    /**
+     * True once a sync has finished, until then the library is not complete enough to browse
+     */
+    public boolean isReady() {
+        if (!ready) {
+            ready = getMeta(KEY_SYNCED_AT) != null;
+        }
+        return ready;
+    }
+
+    /**
+     * Returns the <code>lastscan</code> of the server when the library was last synced, or null if it never was
+     */
+    public String getLastScan() {
+        return getMeta(KEY_LAST_SCAN);
+    }
+
+    /**
+     * Starts a sync, with empty tables for it to write into.  What an earlier sync that did not finish wrote is
+     * thrown away.
+     */
+    void beginSync() {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            dropTables(db, SYNC_PREFIX);
+            createTables(db, SYNC_PREFIX);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Finishes a sync, replacing the tables that are browsed with the ones it wrote
+     *
+     * @param lastScan the <code>lastscan</code> of the server the sync was started for
+     */
+    void finishSync(String lastScan) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            dropTables(db, "");
+            for (String table : TABLES) {
+                db.execSQL("ALTER TABLE " + SYNC_PREFIX + table + " RENAME TO " + table);
+            }
+            createIndexes(db);
+            setMeta(db, KEY_SYNCED_AT, String.valueOf(System.currentTimeMillis()));
+            setMeta(db, KEY_LAST_SCAN, lastScan);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        ready = true;
+    }
+
+    void putGenres(List<Genre> genres, int start) {
+        putItems("genres", genres, start);
+    }
+
+    void putArtists(List<Artist> artists, int start) {
+        putItems("artists", artists, start);
+    }
+
+    private void putItems(String table, List<? extends Item> items, int start) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO " + SYNC_PREFIX + table + " (id, name, position) VALUES (?, ?, ?)");
+        try {
+            int position = start;
+            for (Item item : items) {
+                bind(insert, 1, item.getId());
+                bind(insert, 2, item.getName());
+                insert.bindLong(3, position++);
+                insert.execute();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            insert.close();
+            db.endTransaction();
+        }
+    }
+
+    void putAlbums(List<AlbumRecord> albums, int start) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO " + SYNC_PREFIX + "albums (id, name, artist, artist_id, "
+                + "artwork_track_id, position) VALUES (?, ?, ?, ?, ?, ?)");
+        try {
+            int position = start;
+            for (AlbumRecord album : albums) {
+                bind(insert, 1, album.id);
+                bind(insert, 2, album.name);
+                bind(insert, 3, album.artist);
+                bind(insert, 4, album.artistId);
+                bind(insert, 5, album.artworkTrackId);
+                insert.bindLong(6, position++);
+                insert.execute();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            insert.close();
+            db.endTransaction();
+        }
+    }
+
+    void putTracks(List<TrackRecord> tracks, int start) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO " + SYNC_PREFIX + "tracks (" + TRACK_COLUMNS + ", genre_id, "
+                + "track_number, position) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        try {
+            int position = start;
+            for (TrackRecord track : tracks) {
+                bind(insert, 1, track.id);
+                bind(insert, 2, track.name);
+                bind(insert, 3, track.artist);
+                bind(insert, 4, track.artistId);
+                bind(insert, 5, track.album);
+                bind(insert, 6, track.albumId);
+                insert.bindLong(7, track.duration);
+                insert.bindLong(8, track.remote ? 1 : 0);
+                bind(insert, 9, track.artworkUrl);
+                bind(insert, 10, track.artworkTrackId);
+                bind(insert, 11, track.serverPath);
+                bind(insert, 12, track.genreId);
+                insert.bindLong(13, track.trackNumber);
+                insert.bindLong(14, position++);
+                insert.execute();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            insert.close();
+            db.endTransaction();
+        }
+    }
+
+    private static void bind(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    public BrowseResult<Genre> getGenres(int start, int numberOfItems) {
+        BrowseResult<Genre> result = new BrowseResult<Genre>();
+        result.setTotalItems(count("SELECT COUNT(*) FROM genres", null));
+        List<Genre> genres = new ArrayList<Genre>();
+        Cursor cursor = getReadableDatabase().rawQuery("SELECT id, name FROM genres ORDER BY position LIMIT ? OFFSET ?",
+                new String[]{String.valueOf(numberOfItems), String.valueOf(start)});
+        try {
+            while (cursor.moveToNext()) {
+                Genre genre = new Genre();
+                genre.setId(cursor.getString(0));
+                genre.setName(cursor.getString(1));
+                genres.add(genre);
+            }
+        } finally {
+            cursor.close();
+        }
+        result.setResutls(genres);
+        return result;
+    }
+
+    /**
+     * Returns the artists, or the artists with tracks in the genre if the parent is a {@link Genre}
+     */
+    public BrowseResult<Artist> getArtists(Item parent, int start, int numberOfItems) {
+        String where = "";
+        String[] args = null;
+        if (parent instanceof Genre) {
+            where = " WHERE id IN (SELECT artist_id FROM tracks WHERE genre_id = ?)";
+            args = new String[]{parent.getId()};
+        }
+
+        BrowseResult<Artist> result = new BrowseResult<Artist>();
+        result.setTotalItems(count("SELECT COUNT(*) FROM artists" + where, args));
+        List<Artist> artists = new ArrayList<Artist>();
+        Cursor cursor = getReadableDatabase().rawQuery("SELECT id, name FROM artists" + where + " ORDER BY position LIMIT ? OFFSET ?",
+                page(args, start, numberOfItems));
+        try {
+            while (cursor.moveToNext()) {
+                Artist artist = new Artist();
+                artist.setId(cursor.getString(0));
+                artist.setName(cursor.getString(1));
+                artists.add(artist);
+            }
+        } finally {
+            cursor.close();
+        }
+        result.setResutls(artists);
+        return result;
+    }
+
+    /**
+     * Returns the albums, or the albums of the parent if it is an {@link Artist} or {@link Genre}
+     */
+    public BrowseResult<Album> getAlbums(Item parent, int start, int numberOfItems) {
+        String where = "";
+        String[] args = null;
+        if (parent instanceof Artist) {
+            //The artist may only be on some of the tracks, i.e. of a compilation
+            where = " WHERE artist_id = ? OR id IN (SELECT album_id FROM tracks WHERE artist_id = ?)";
+            args = new String[]{parent.getId(), parent.getId()};
+        } else if (parent instanceof Genre) {
+            where = " WHERE id IN (SELECT album_id FROM tracks WHERE genre_id = ?)";
+            args = new String[]{parent.getId()};
+        }
+
+        BrowseResult<Album> result = new BrowseResult<Album>();
+        result.setTotalItems(count("SELECT COUNT(*) FROM albums" + where, args));
+        List<Album> albums = new ArrayList<Album>();
+        Cursor cursor = getReadableDatabase().rawQuery("SELECT " + ALBUM_COLUMNS + " FROM albums" + where + " ORDER BY position LIMIT ? OFFSET ?",
+                page(args, start, numberOfItems));
+        try {
+            while (cursor.moveToNext()) {
+                albums.add(toAlbum(cursor));
+            }
+        } finally {
+            cursor.close();
+        }
+        result.setResutls(albums);
+        return result;
+    }
+
+    /**
+     * Returns true if songs of the parent can be listed, i.e. it is an {@link Artist}, {@link Album} or {@link Genre}
+     */
+    public boolean hasSongs(Item parent) {
+        return parent instanceof Artist || parent instanceof Album || parent instanceof Genre;
+    }
+
+    /**
+     * Returns the songs of the parent, see {@link #hasSongs(Item)}.  The songs of an album are in track order.
+     */
+    public BrowseResult<Song> getSongs(Item parent, int start, int numberOfItems) {
+        String where;
+        String order = " ORDER BY position";
+        if (parent instanceof Artist) {
+            where = " WHERE artist_id = ?";
+        } else if (parent instanceof Album) {
+            where = " WHERE album_id = ?";
+            order = " ORDER BY track_number, position";
+        } else if (parent instanceof Genre) {
+            where = " WHERE genre_id = ?";
+        } else {
+            return new BrowseResult<Song>();
+        }
+        String[] args = new String[]{parent.getId()};
+
+        BrowseResult<Song> result = new BrowseResult<Song>();
+        result.setTotalItems(count("SELECT COUNT(*) FROM tracks" + where, args));
+        List<Song> songs = new ArrayList<Song>();
+        Cursor cursor = getReadableDatabase().rawQuery("SELECT " + TRACK_COLUMNS + " FROM tracks" + where + order + " LIMIT ? OFFSET ?",
+                page(args, start, numberOfItems));
+        try {
+            while (cursor.moveToNext()) {
+                songs.add(toSong(cursor));
+            }
+        } finally {
+            cursor.close();
+        }
+        result.setResutls(songs);
+        return result;
+    }
+
+    /**
+     * Adds the names of the genres, artists, albums and tracks to the index, in the order the server sorts them in
+     */
+    public void index(SearchIndex.Builder builder) {
+        Cursor cursor = getReadableDatabase().rawQuery("SELECT id, name FROM genres ORDER BY position", null);
+        try {
+            while (cursor.moveToNext()) {
+                builder.addGenre(cursor.getString(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        cursor = getReadableDatabase().rawQuery("SELECT id, name FROM artists ORDER BY position", null);
+        try {
+            while (cursor.moveToNext()) {
+                builder.addArtist(cursor.getString(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        cursor = getReadableDatabase().rawQuery("SELECT id, name FROM albums ORDER BY position", null);
+        try {
+            while (cursor.moveToNext()) {
+                builder.addAlbum(cursor.getString(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        cursor = getReadableDatabase().rawQuery("SELECT id, name FROM tracks ORDER BY position", null);
+        try {
+            while (cursor.moveToNext()) {
+                builder.addSong(cursor.getString(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Builds the album the way {@link CliSqueezeService} does from an <code>albums</code> response
+     */
+    private Album toAlbum(Cursor cursor) {
+        Album album = new Album();
+        album.setId(cursor.getString(0));
+        album.setName(cursor.getString(1));
+        album.setArtist(cursor.isNull(2) ? "" : cursor.getString(2));
+        if (!cursor.isNull(3)) {
+            String artworkTrackId = cursor.getString(3);
+            album.setImageThumbnailUrl(baseHttpPath + "/music/" + artworkTrackId + "/cover_50x50_o");
+            album.setImageUrl(baseHttpPath + "/music/" + artworkTrackId + "/cover_480x480_o");
+        }
+        return album;
+    }
+
+    /**
+     * Builds the song the way {@link CliSqueezeService} does from a <code>titles</code> response
+     */
+    private Song toSong(Cursor cursor) {
+        Song song = new Song();
+        song.setId(cursor.getString(0));
+        song.setName(cursor.getString(1));
+        song.setArtist(cursor.getString(2));
+        song.setArtistId(cursor.getString(3));
+        song.setAlbum(cursor.isNull(4) ? "" : cursor.getString(4));
+        song.setAlbumId(cursor.getString(5));
+        song.setDurationInSeconds(cursor.getInt(6));
+        song.setRadioStation(cursor.getInt(7) != 0);
+        if (!cursor.isNull(8)) {
+            song.setImageUrl(cursor.getString(8));
+        } else {
+            String artId = cursor.isNull(9) ? song.getId() : cursor.getString(9);
+            song.setImageThumbnailUrl(baseHttpPath + "/music/" + artId + "/cover_50x50_o");
+            song.setImageUrl(baseHttpPath + "/music/" + artId + "/cover_320x320_o");
+        }
+        song.setServerPath(cursor.getString(10));
+        song.setUrl(baseHttpPath + "/music/" + song.getId() + "/download");
+        return song;
+    }
+
+    private static String[] page(String[] args, int start, int numberOfItems) {
+        int length = args == null ? 0 : args.length;
+        String[] paged = new String[length + 2];
+        if (args != null) {
+            System.arraycopy(args, 0, paged, 0, length);
+        }
+        paged[length] = String.valueOf(numberOfItems);
+        paged[length + 1] = String.valueOf(start);
+        return paged;
+    }
+
+    private int count(String sql, String[] args) {
+        Cursor cursor = getReadableDatabase().rawQuery(sql, args);
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private String getMeta(String key) {
+        Cursor cursor = getReadableDatabase().rawQuery("SELECT value FROM meta WHERE key = ?", new String[]{key});
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void setMeta(SQLiteDatabase db, String key, String value) {
+        db.execSQL("INSERT OR REPLACE INTO meta (key, value) VALUES (?, ?)", new Object[]{key, value});
+    }
+}
@@ -0,0 +1,622 @@
+package net.chrislehmann.squeezedroid.service;
+
+import android.util.Log;
+import net.chrislehmann.squeezedroid.model.Album;
+import net.chrislehmann.squeezedroid.model.ApplicationMenuItem;
+import net.chrislehmann.squeezedroid.model.Artist;
+import net.chrislehmann.squeezedroid.model.BrowseResult;
+import net.chrislehmann.squeezedroid.model.Folder;
+import net.chrislehmann.squeezedroid.model.Genre;
+import net.chrislehmann.squeezedroid.model.Item;
+import net.chrislehmann.squeezedroid.model.Player;
+import net.chrislehmann.squeezedroid.model.PlayerStatus;
+import net.chrislehmann.squeezedroid.model.Playlist;
+import net.chrislehmann.squeezedroid.model.RepeatMode;
+import net.chrislehmann.squeezedroid.model.SearchResult;
+import net.chrislehmann.squeezedroid.model.ShuffleMode;
+import net.chrislehmann.squeezedroid.model.Song;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * {@link SqueezeService} that answers the library browse queries (genres, artists, albums by title and songs) from
+ * the {@link LibraryDatabase} on the device instead of the server, once the library has been synced.  Everything
+ * else, and the browse queries until the first sync has finished or if the database fails, goes to the
+ * {@link CliSqueezeService} it wraps.
+ * <p/>
+ * The library is kept up to date by a {@link LibrarySync} while the service is connected.  The {@link RescanHandler}s
+ * are told about the scans of the server, and again once the library has been synced after one.
+ * <p/>
+ * Searches are answered from a {@link SearchIndex} of the names in the library, built in memory when the service is
+ * connected and again after every sync.  Until it has been built they go to the server.
+ *
+ * @author lehmanc
+ */
+public class LibrarySqueezeService implements SqueezeService {
+
+    private static final String LOGTAG = "LibrarySqueezeService";
+
+    private final CliSqueezeService service;
+    private final LibraryDatabase database;
+    private final LibrarySync sync;
+    private final AsyncService asyncService;
+    private final List<RescanHandler> rescanHandlers = new CopyOnWriteArrayList<RescanHandler>();
+    private volatile SearchIndex searchIndex;
+    /**
+     * Whether the library has been synced, so the caller's thread can decide where a query goes without asking the
+     * database.  Checked on the query executor when connecting and after every sync.
+     */
+    private volatile boolean ready = false;
+
+    /**
+     * Runs the queries of the {@link AsyncSqueezeService} and the streaming browse methods, so they return right
+     * away.  If none is set each one gets a thread of its own.
+     */
+    private Executor queryExecutor;
+
+    public LibrarySqueezeService(CliSqueezeService service, LibraryDatabase database) {
+        this.service = service;
+        this.database = database;
+        //Needs the service, it asks the server for what the library can't answer
+        this.asyncService = new AsyncService();
+        this.sync = new LibrarySync(service, database);
+        this.sync.setSyncHandler(new RescanHandler() {
+            public void onRescan(boolean done) {
+                index();
+                for (RescanHandler handler : rescanHandlers) {
+                    handler.onRescan(done);
+                }
+            }
+        });
+    }
+
+    public CliSqueezeService getService() {
+        return service;
+    }
+
+    public LibrarySync getSync() {
+        return sync;
+    }
+
+    /**
+     * Sets the executor the library is queried and indexed on, before connecting.  It is synced on a thread of its
+     * own (see {@link LibrarySync}).
+     */
+    public void setExecutor(Executor executor) {
+        this.queryExecutor = executor;
+    }
+
+    /**
+     * True once the library has been synced and browsing is answered from it
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Runs the task on the query executor, or a thread of its own if there is none
+     */
+    private void runQuery(Runnable task) {
+        Executor executor = queryExecutor;
+        if (executor != null) {
+            executor.execute(task);
+        } else {
+            new Thread(task, "LibraryQuery").start();
+        }
+    }
+
+    /**
+     * Returns the index searches are answered from, or null if it has not been built yet
+     */
+    public SearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+
+    /**
+     * Checks whether the library has been synced and builds the search index from it, on the query executor
+     */
+    private void index() {
+        try {
+            runQuery(new Runnable() {
+                public void run() {
+                    try {
+                        ready = database.isReady();
+                    } catch (RuntimeException e) {
+                        Log.e(LOGTAG, "Error opening library, browsing the server", e);
+                        ready = false;
+                    }
+                    if (!ready) {
+                        return;
+                    }
+                    try {
+                        long start = System.currentTimeMillis();
+                        SearchIndex.Builder builder = new SearchIndex.Builder();
+                        database.index(builder);
+                        searchIndex = builder.build();
+                        Log.d(LOGTAG, "Indexed " + searchIndex.size() + " names in " + (System.currentTimeMillis() - start) + "ms");
+                    } catch (RuntimeException e) {
+                        Log.e(LOGTAG, "Error indexing library, searching the server", e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.e(LOGTAG, "Could not index library", e);
+        }
+    }
+
+    /**
+     * A query of the library
+     */
+    private abstract class Query<T extends Item> {
+        abstract BrowseResult<T> query();
+    }
+
+    /**
+     * Runs the query if the library has been synced.  Returns null if it has not or the query failed, the server
+     * should be asked instead.
+     */
+    private <T extends Item> BrowseResult<T> local(Query<T> query) {
+        try {
+            if (ready) {
+                return query.query();
+            }
+        } catch (RuntimeException e) {
+            Log.e(LOGTAG, "Error querying library, asking the server", e);
+        }
+        return null;
+    }
+
+    /**
+     * Runs the query on the query executor, falling back on the server's future if the library can't answer it
+     */
+    private <T extends Item> ServiceFuture<BrowseResult<T>> localAsync(final Query<T> query, final ServerQuery<T> server) {
+        if (!ready) {
+            return server.query();
+        }
+        sync.checkIfDue();
+        final ServiceFuture<BrowseResult<T>> result = new ServiceFuture<BrowseResult<T>>();
+        try {
+            runQuery(new Runnable() {
+                public void run() {
+                    BrowseResult<T> local = local(query);
+                    if (local != null) {
+                        result.complete(local);
+                    } else {
+                        ServiceFuture<BrowseResult<T>> remote = server.query();
+                        result.setSource(remote);
+                        remote.addCallback(new ServiceCallback<BrowseResult<T>>() {
+                            public void onSuccess(BrowseResult<T> value) {
+                                result.complete(value);
+                            }
+
+                            public void onFailure(Exception e) {
+                                result.fail(e);
+                            }
+                        });
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            return server.query();
+        }
+        return result;
+    }
+
+    /**
+     * Passes the result of the query to the handler on the query executor, or streams it from the server if the
+     * library can't answer it
+     */
+    private <T extends Item> void localStream(final Query<T> query, final BrowseResultHandler<T> handler, final Runnable server) {
+        if (!ready) {
+            server.run();
+            return;
+        }
+        sync.checkIfDue();
+        try {
+            runQuery(new Runnable() {
+                public void run() {
+                    BrowseResult<T> local = local(query);
+                    if (local == null) {
+                        server.run();
+                        return;
+                    }
+                    handler.onTotalItems(local.getTotalItems());
+                    for (T item : local.getResutls()) {
+                        handler.onItem(item);
+                    }
+                    handler.onComplete();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            server.run();
+        }
+    }
+
+    /**
+     * The same query, sent to the server
+     */
+    private interface ServerQuery<T extends Item> {
+        ServiceFuture<BrowseResult<T>> query();
+    }
+
+    private Query<Genre> genres(final int start, final int numberOfItems) {
+        return new Query<Genre>() {
+            BrowseResult<Genre> query() {
+                return database.getGenres(start, numberOfItems);
+            }
+        };
+    }
+
+    private Query<Artist> artists(final Item parent, final int start, final int numberOfItems) {
+        return new Query<Artist>() {
+            BrowseResult<Artist> query() {
+                return database.getArtists(parent, start, numberOfItems);
+            }
+        };
+    }
+
+    private Query<Album> albums(final Item parent, final int start, final int numberOfItems) {
+        return new Query<Album>() {
+            BrowseResult<Album> query() {
+                return database.getAlbums(parent, start, numberOfItems);
+            }
+        };
+    }
+
+    private Query<Song> songs(final Item parent, final int start, final int numberOfItems) {
+        return new Query<Song>() {
+            BrowseResult<Song> query() {
+                return database.hasSongs(parent) ? database.getSongs(parent, start, numberOfItems) : null;
+            }
+        };
+    }
+
+    public BrowseResult<Genre> browseGenres(Item parent, int start, int numberOfItems) {
+        BrowseResult<Genre> result = local(genres(start, numberOfItems));
+        return result != null ? result : service.browseGenres(parent, start, numberOfItems);
+    }
+
+    public BrowseResult<Item> browseFolders(Folder parent, int start, int numberOfItems) {
+        return service.browseFolders(parent, start, numberOfItems);
+    }
+
+    public void browseFolders(Folder parent, int start, int numberOfItems, BrowseResultHandler<Item> handler) {
+        service.browseFolders(parent, start, numberOfItems, handler);
+    }
+
+    public BrowseResult<Artist> browseArtists(Item parent, int start, int numberOfItems) {
+        BrowseResult<Artist> result = local(artists(parent, start, numberOfItems));
+        return result != null ? result : service.browseArtists(parent, start, numberOfItems);
+    }
+
+    public BrowseResult<Album> browseAlbums(Item parent, int start, int numberOfItems) {
+        return browseAlbums(parent, start, numberOfItems, Sort.TITLE);
+    }
+
+    /**
+     * Only the albums sorted by title come from the library, it does not know when albums were added
+     */
+    public BrowseResult<Album> browseAlbums(Item parent, int start, int numberOfItems, Sort sort) {
+        BrowseResult<Album> result = sort == Sort.TITLE ? local(albums(parent, start, numberOfItems)) : null;
+        return result != null ? result : service.browseAlbums(parent, start, numberOfItems, sort);
+    }
+
+    public void browseAlbums(final Item parent, final int start, final int numberOfItems, final Sort sort, final BrowseResultHandler<Album> handler) {
+        Runnable server = new Runnable() {
+            public void run() {
+                service.browseAlbums(parent, start, numberOfItems, sort, handler);
+            }
+        };
+        if (sort == Sort.TITLE) {
+            localStream(albums(parent, start, numberOfItems), handler, server);
+        } else {
+            server.run();
+        }
+    }
+
+    public BrowseResult<Song> browseSongs(Item parent, int start, int numberOfItems) {
+        BrowseResult<Song> result = local(songs(parent, start, numberOfItems));
+        return result != null ? result : service.browseSongs(parent, start, numberOfItems);
+    }
+
+    public void browseSongs(final Item parent, final int start, final int numberOfItems, final BrowseResultHandler<Song> handler) {
+        localStream(songs(parent, start, numberOfItems), handler, new Runnable() {
+            public void run() {
+                service.browseSongs(parent, start, numberOfItems, handler);
+            }
+        });
+    }
+
+    public List<Song> getSongsForItem(Item item) {
+        if (!(item instanceof Song)) {
+            BrowseResult<Song> result = local(songs(item, 0, 10000));
+            if (result != null) {
+                return new ArrayList<Song>(result.getResutls());
+            }
+        }
+        return service.getSongsForItem(item);
+    }
+
+    public BrowseResult<Playlist> listPlaylists(int start, int numberOfItems) {
+        return service.listPlaylists(start, numberOfItems);
+    }
+
+    public BrowseResult<Application> listApplications(int start, int numberOfItems) {
+        return service.listApplications(start, numberOfItems);
+    }
+
+    public BrowseResult<Application> listRadioStations(int start, int numberOfItems) {
+        return service.listRadioStations(start, numberOfItems);
+    }
+
+    public BrowseResult<ApplicationMenuItem> browseApplication(String playerId, Application application, int start, int numberOfItems) {
+        return service.browseApplication(playerId, application, start, numberOfItems);
+    }
+
+    public BrowseResult<ApplicationMenuItem> browseApplication(String playerId, Application application, ApplicationMenuItem parent, int start, int numberOfItems) {
+        return service.browseApplication(playerId, application, parent, start, numberOfItems);
+    }
+
+    public BrowseResult<ApplicationMenuItem> browseApplication(String playerId, Application application, ApplicationMenuItem parent, String query, int start, int numberOfItems) {
+        return service.browseApplication(playerId, application, parent, query, start, numberOfItems);
+    }
+
+    public PlayerStatus getPlayerStatus(String playerId) {
+        return service.getPlayerStatus(playerId);
+    }
+
+    public BrowseResult<Song> getCurrentPlaylist(String playerId, Integer start, Integer numberOfItems) {
+        return service.getCurrentPlaylist(playerId, start, numberOfItems);
+    }
+
+    public List<Player> getPlayers() {
+        return service.getPlayers();
+    }
+
+    public List<Player> getPlayers(boolean removeDuplicatePlayers) {
+        return service.getPlayers(removeDuplicatePlayers);
+    }
+
+    public Player getPlayer(String playerId) {
+        return service.getPlayer(playerId);
+    }
+
+    public void addItem(String playerId, Item item) {
+        service.addItem(playerId, item);
+    }
+
+    public void playItem(String playerId, Item item) {
+        service.playItem(playerId, item);
+    }
+
+    public void playItemNext(String playerId, Item item) {
+        service.playItemNext(playerId, item);
+    }
+
+    public void removeItem(String playerId, int playlistIndex) {
+        service.removeItem(playerId, playlistIndex);
+    }
+
+    public void removeAllItemsByArtist(String playerId, String artistId) {
+        service.removeAllItemsByArtist(playerId, artistId);
+    }
+
+    public void removeAllItemsInAlbum(String playerId, String albumId) {
+        service.removeAllItemsInAlbum(playerId, albumId);
+    }
+
+    public void togglePower(String playerId) {
+        service.togglePower(playerId);
+    }
+
+    public void play(String playerId) {
+        service.play(playerId);
+    }
+
+    public void pause(String playerId) {
+        service.pause(playerId);
+    }
+
+    public void togglePause(String playerId) {
+        service.togglePause(playerId);
+    }
+
+    public void stop(String playerId) {
+        service.stop(playerId);
+    }
+
+    public void jump(String playerId, String position) {
+        service.jump(playerId, position);
+    }
+
+    /**
+     * Connects to the server and starts keeping the library up to date
+     */
+    public void connect() {
+        service.connect();
+        sync.start();
+        if (searchIndex == null) {
+            index();
+        }
+    }
+
+    public void disconnect() {
+        sync.stop();
+        service.disconnect();
+    }
+
+    public boolean isConnected() {
+        return service.isConnected();
+    }
+
+    public void subscribe(ServerStatusHandler handler) {
+        service.subscribe(handler);
+    }
+
+    public void unsubscribe(ServerStatusHandler handler) {
+        service.unsubscribe(handler);
+    }
+
+    public void addRescanHandler(RescanHandler handler) {
+        rescanHandlers.add(handler);
+        service.addRescanHandler(handler);
+    }
+
+    public void removeRescanHandler(RescanHandler handler) {
+        rescanHandlers.remove(handler);
+        service.removeRescanHandler(handler);
+    }
+
+    public void subscribe(String playerId, PlayerStatusHandler handler) {
+        service.subscribe(playerId, handler);
+    }
+
+    public void unsubscribe(String playerId, PlayerStatusHandler handler) {
+        service.unsubscribe(playerId, handler);
+    }
+
+    public void unsubscribeAll(PlayerStatusHandler handler) {
+        service.unsubscribeAll(handler);
+    }
+
+    public void seekTo(String playerId, int time) {
+        service.seekTo(playerId, time);
+    }
+
+    public void changeVolume(String playerId, int volumeLevel) {
+        service.changeVolume(playerId, volumeLevel);
+    }
+
+    public void unsynchronize(String playerId) {
+        service.unsynchronize(playerId);
+    }
+
+    public void synchronize(String playerId, String playerIdToSyncTo) {
+        service.synchronize(playerId, playerIdToSyncTo);
+    }
+
+    public void setShuffleMode(String playerId, ShuffleMode mode) {
+        service.setShuffleMode(playerId, mode);
+    }
+
+    public void setRepeatMode(String playerId, RepeatMode mode) {
+        service.setRepeatMode(playerId, mode);
+    }
+
+    public SearchResult search(String searchTerms, int numResults) {
+        SearchIndex index = searchIndex;
+        if (index != null) {
+            return index.search(searchTerms, numResults);
+        }
+        return service.search(searchTerms, numResults);
+    }
+
+    public void clearPlaylist(String playerId) {
+        service.clearPlaylist(playerId);
+    }
+
+    public AsyncSqueezeService getAsyncService() {
+        return asyncService;
+    }
+
+    /**
+     * The queries without the waiting, from the library where it can answer them
+     */
+    private class AsyncService implements AsyncSqueezeService {
+        private final AsyncSqueezeService server = service.getAsyncService();
+
+        public ServiceFuture<BrowseResult<Genre>> browseGenres(final Item parent, final int start, final int numberOfItems) {
+            return localAsync(genres(start, numberOfItems), new ServerQuery<Genre>() {
+                public ServiceFuture<BrowseResult<Genre>> query() {
+                    return server.browseGenres(parent, start, numberOfItems);
+                }
+            });
+        }
+
+        public ServiceFuture<BrowseResult<Item>> browseFolders(Folder parent, int start, int numberOfItems) {
+            return server.browseFolders(parent, start, numberOfItems);
+        }
+
+        public ServiceFuture<BrowseResult<Artist>> browseArtists(final Item parent, final int start, final int numberOfItems) {
+            return localAsync(artists(parent, start, numberOfItems), new ServerQuery<Artist>() {
+                public ServiceFuture<BrowseResult<Artist>> query() {
+                    return server.browseArtists(parent, start, numberOfItems);
+                }
+            });
+        }
+
+        public ServiceFuture<BrowseResult<Album>> browseAlbums(final Item parent, final int start, final int numberOfItems, final Sort sort) {
+            if (sort != Sort.TITLE) {
+                return server.browseAlbums(parent, start, numberOfItems, sort);
+            }
+            return localAsync(albums(parent, start, numberOfItems), new ServerQuery<Album>() {
+                public ServiceFuture<BrowseResult<Album>> query() {
+                    return server.browseAlbums(parent, start, numberOfItems, sort);
+                }
+            });
+        }
+
+        public ServiceFuture<BrowseResult<Song>> browseSongs(final Item parent, final int start, final int numberOfItems) {
+            return localAsync(songs(parent, start, numberOfItems), new ServerQuery<Song>() {
+                public ServiceFuture<BrowseResult<Song>> query() {
+                    return server.browseSongs(parent, start, numberOfItems);
+                }
+            });
+        }
+
+        public ServiceFuture<BrowseResult<Playlist>> listPlaylists(int start, int numberOfItems) {
+            return server.listPlaylists(start, numberOfItems);
+        }
+
+        public ServiceFuture<BrowseResult<Application>> listApplications(int start, int numberOfItems) {
+            return server.listApplications(start, numberOfItems);
+        }
+
+        public ServiceFuture<BrowseResult<Application>> listRadioStations(int start, int numberOfItems) {
+            return server.listRadioStations(start, numberOfItems);
+        }
+
+        public ServiceFuture<BrowseResult<ApplicationMenuItem>> browseApplication(String playerId, Application application, ApplicationMenuItem parent, String query, int start, int numberOfItems) {
+            return server.browseApplication(playerId, application, parent, query, start, numberOfItems);
+        }
+
+        public ServiceFuture<PlayerStatus> getPlayerStatus(String playerId) {
+            return server.getPlayerStatus(playerId);
+        }
+
+        public ServiceFuture<BrowseResult<Song>> getCurrentPlaylist(String playerId, Integer start, Integer numberOfItems) {
+            return server.getCurrentPlaylist(playerId, start, numberOfItems);
+        }
+
+        public ServiceFuture<List<Player>> getPlayers() {
+            return server.getPlayers();
+        }
+
+        public ServiceFuture<Player> getPlayer(String playerId) {
+            return server.getPlayer(playerId);
+        }
+
+        public ServiceFuture<SearchResult> search(String searchTerms, int numResults) {
+            SearchIndex index = searchIndex;
+            if (index != null) {
+                return ServiceFuture.completed(index.search(searchTerms, numResults));
+            }
+            return server.search(searchTerms, numResults);
+        }
+
+        public ServiceFuture<List<Song>> getSongsForItem(Item item) {
+            if (item instanceof Song) {
+                return server.getSongsForItem(item);
+            }
+            return browseSongs(item, 0, 10000).transform(new ServiceFuture.Transformer<BrowseResult<Song>, List<Song>>() {
+                public List<Song> transform(BrowseResult<Song> result) {
+                    return new ArrayList<Song>(result.getResutls());
+                }
+            });
+        }
+    }
+}
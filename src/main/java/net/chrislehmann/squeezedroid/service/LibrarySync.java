@@ -0,0 +1,443 @@
+package net.chrislehmann.squeezedroid.service;
+
+import android.util.Log;
+import net.chrislehmann.squeezedroid.model.Artist;
+import net.chrislehmann.squeezedroid.model.Genre;
+import net.chrislehmann.squeezedroid.service.CliConnectionPool.Lane;
+import net.chrislehmann.squeezedroid.service.LibraryDatabase.AlbumRecord;
+import net.chrislehmann.squeezedroid.service.LibraryDatabase.TrackRecord;
+import net.chrislehmann.util.SerializationUtils.Unserializer;
+import net.chrislehmann.util.TagTokenizer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Keeps a {@link LibraryDatabase} in step with the library of the server.  The <code>lastscan</code> of the server
+ * (from <code>serverstatus</code>) is checked when the sync is started, when the server says it has finished a scan
+ * and, once the last check is more than {@link #getCheckIntervalMillis()} old, when {@link #checkIfDue()} is called
+ * (i.e. when the library is browsed).  Whenever it differs from the one the library was last synced for the genres,
+ * artists, albums and tracks are read again, {@link #PAGE_SIZE} at a time.  Nothing is read while the server is
+ * still scanning.
+ * <p/>
+ * The checks run one at a time on a low priority thread of their own, a sync can take minutes and should not hold
+ * up a shared pool.  The pages are streamed (see {@link CliSqueezeService#streamCommand}) down the bulk lane so the
+ * interactive commands are not held up, and written one transaction each into the tables of the sync.  If a sync
+ * fails the library is left as it was (see {@link LibraryDatabase}), and it is tried again at the next check.
+ *
+ * @author lehmanc
+ */
+public class LibrarySync {
+
+    private static final String LOGTAG = "LibrarySync";
+
+    public static final int PAGE_SIZE = 500;
+
+    /**
+     * The tags of the tracks, the song tags plus the genre id and track number
+     */
+    private static final String TRACK_TAGS = "aslepdxKJut";
+
+    /**
+     * One of the lists that is copied
+     */
+    private abstract class Table<T> {
+        private final String name;
+
+        private Table(String name) {
+            this.name = name;
+        }
+
+        abstract String getCommand(int start, int numberOfItems);
+
+        abstract Unserializer<T> getUnserializer();
+
+        abstract void write(List<T> page, int start);
+    }
+
+    private final CliSqueezeService service;
+    private final LibraryDatabase database;
+
+    private long checkIntervalMillis = 10 * 60 * 1000;
+    private boolean started = false;
+    /**
+     * A check is queued or running, the thread it runs on once it is running
+     */
+    private boolean checking = false;
+    private Thread checkThread;
+    /**
+     * Another check was asked for while one was running, and whether it has to sync even if nothing changed
+     */
+    private boolean checkAgain = false;
+    private boolean forceNext = false;
+    private volatile long lastCheckAt = 0;
+    private volatile boolean syncing = false;
+    private volatile RescanHandler syncHandler;
+
+    /**
+     * Checks the library as soon as the server has finished scanning it
+     */
+    private final RescanHandler rescanHandler = new RescanHandler() {
+        public void onRescan(boolean done) {
+            if (done) {
+                schedule(false);
+            }
+        }
+    };
+
+    public LibrarySync(CliSqueezeService service, LibraryDatabase database) {
+        this.service = service;
+        this.database = database;
+    }
+
+    /**
+     * Checks the library right away, and again whenever the server has finished scanning it
+     */
+    public void start() {
+        synchronized (this) {
+            if (started) {
+                return;
+            }
+            started = true;
+        }
+        service.addRescanHandler(rescanHandler);
+        schedule(false);
+    }
+
+    /**
+     * Stops syncing, a sync that is running is abandoned
+     */
+    public void stop() {
+        synchronized (this) {
+            if (!started) {
+                return;
+            }
+            started = false;
+            checkAgain = false;
+            if (checkThread != null) {
+                checkThread.interrupt();
+            }
+        }
+        service.removeRescanHandler(rescanHandler);
+    }
+
+    /**
+     * Syncs the library now, even if the server has not scanned it since the last sync
+     */
+    public void syncNow() {
+        schedule(true);
+    }
+
+    /**
+     * Checks the library if it has not been checked for {@link #getCheckIntervalMillis()}.  Returns right away.
+     */
+    public void checkIfDue() {
+        if (System.currentTimeMillis() - lastCheckAt >= checkIntervalMillis) {
+            schedule(false);
+        }
+    }
+
+    private void schedule(boolean force) {
+        synchronized (this) {
+            if (!started) {
+                return;
+            }
+            forceNext |= force;
+            if (checking) {
+                checkAgain = true;
+                return;
+            }
+            checking = true;
+        }
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                runChecks();
+            }
+        }, "LibrarySync");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Runs checks until no more have been asked for
+     */
+    private void runChecks() {
+        while (true) {
+            boolean force;
+            synchronized (this) {
+                if (!started) {
+                    checking = false;
+                    return;
+                }
+                force = forceNext;
+                forceNext = false;
+                checkAgain = false;
+                checkThread = Thread.currentThread();
+            }
+            boolean again = false;
+            try {
+                check(force);
+            } finally {
+                lastCheckAt = System.currentTimeMillis();
+                synchronized (this) {
+                    checkThread = null;
+                    //Don't let an interrupt from stop() end the next check
+                    Thread.interrupted();
+                    again = checkAgain && started;
+                    if (!again) {
+                        checking = false;
+                    }
+                }
+            }
+            if (!again) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * True while the library is being read from the server
+     */
+    public boolean isSyncing() {
+        return syncing;
+    }
+
+    /**
+     * Sets the handler told when a sync has finished, so what was read from the library before can be read again
+     */
+    public void setSyncHandler(RescanHandler syncHandler) {
+        this.syncHandler = syncHandler;
+    }
+
+    private void check(boolean force) {
+        try {
+            TagTokenizer status = new TagTokenizer(execute("serverstatus 0 0"));
+            String lastScan = null;
+            boolean rescanning = false;
+            while (status.nextTag()) {
+                if (status.isTag("lastscan")) {
+                    lastScan = status.getValue();
+                } else if (status.isTag("rescan")) {
+                    rescanning = status.valueEquals("1");
+                }
+            }
+
+            if (rescanning) {
+                Log.d(LOGTAG, "Server is scanning its library, syncing later");
+                return;
+            }
+            if (!force && database.isReady() && lastScan != null && lastScan.equals(database.getLastScan())) {
+                return;
+            }
+            sync(lastScan);
+        } catch (InterruptedException e) {
+            Log.d(LOGTAG, "Library sync stopped");
+        } catch (Exception e) {
+            Log.e(LOGTAG, "Error syncing library, it will be tried again later", e);
+        }
+    }
+
+    private void sync(String lastScan) throws Exception {
+        long start = System.currentTimeMillis();
+        Log.i(LOGTAG, "Syncing library, lastscan " + lastScan + " (was " + database.getLastScan() + ")");
+        syncing = true;
+        try {
+            database.beginSync();
+            copy(genres);
+            copy(artists);
+            copy(albums);
+            copy(tracks);
+            database.finishSync(lastScan);
+        } finally {
+            syncing = false;
+        }
+        Log.i(LOGTAG, "Synced library in " + (System.currentTimeMillis() - start) + "ms");
+        RescanHandler handler = syncHandler;
+        if (handler != null) {
+            handler.onRescan(true);
+        }
+    }
+
+    /**
+     * Copies the table a page at a time
+     */
+    private <T> void copy(Table<T> table) throws Exception {
+        int start = 0;
+        int total;
+        do {
+            final List<T> page = new ArrayList<T>(PAGE_SIZE);
+            final int[] totalItems = {0};
+            CommandFuture future = service.streamCommand(table.getCommand(start, PAGE_SIZE), Lane.BULK, "id", "count", table.getUnserializer(),
+                    new BrowseResultHandler<T>() {
+                        public void onTotalItems(int count) {
+                            totalItems[0] = count;
+                        }
+
+                        public void onItem(T item) {
+                            page.add(item);
+                        }
+
+                        public void onComplete() {
+                        }
+
+                        public void onError(Exception e) {
+                        }
+                    });
+            await(future);
+            table.write(page, start);
+            total = totalItems[0];
+            start += PAGE_SIZE;
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException();
+            }
+        } while (start < total);
+        Log.d(LOGTAG, "Copied " + total + " " + table.name);
+    }
+
+    private String execute(String command) throws Exception {
+        return await(service.sendCommand(command, Lane.BULK));
+    }
+
+    private String await(CommandFuture future) throws Exception {
+        try {
+            return future.get(service.getHeartbeat().getCommandTimeoutMillis(Lane.BULK), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(false);
+            throw e;
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            throw e;
+        } catch (ExecutionException e) {
+            throw (Exception) e.getCause();
+        }
+    }
+
+    private final Table<Genre> genres = new Table<Genre>("genres") {
+        String getCommand(int start, int numberOfItems) {
+            return "genres " + start + " " + numberOfItems;
+        }
+
+        Unserializer<Genre> getUnserializer() {
+            return service.genreUnserializer;
+        }
+
+        void write(List<Genre> page, int start) {
+            database.putGenres(page, start);
+        }
+    };
+
+    private final Table<Artist> artists = new Table<Artist>("artists") {
+        String getCommand(int start, int numberOfItems) {
+            return "artists " + start + " " + numberOfItems;
+        }
+
+        Unserializer<Artist> getUnserializer() {
+            return service.artistUnserializer;
+        }
+
+        void write(List<Artist> page, int start) {
+            database.putArtists(page, start);
+        }
+    };
+
+    private final Unserializer<AlbumRecord> albumUnserializer = new Unserializer<AlbumRecord>() {
+        public AlbumRecord unserialize(TagTokenizer record) {
+            AlbumRecord album = new AlbumRecord();
+            while (record.nextTag()) {
+                if (record.isTag("id")) {
+                    album.id = record.getValue();
+                } else if (record.isTag("album")) {
+                    album.name = record.getDecodedValue();
+                } else if (record.isTag("artist")) {
+                    album.artist = record.getDecodedValue();
+                } else if (record.isTag("artist_id")) {
+                    album.artistId = record.getDecodedValue();
+                } else if (record.isTag("artwork_track_id") && record.getIntValue(-1) >= 0) {
+                    album.artworkTrackId = record.getValue();
+                }
+            }
+            return album;
+        }
+    };
+
+    private final Table<AlbumRecord> albums = new Table<AlbumRecord>("albums") {
+        String getCommand(int start, int numberOfItems) {
+            return "albums " + start + " " + numberOfItems + " tags:lajS";
+        }
+
+        Unserializer<AlbumRecord> getUnserializer() {
+            return albumUnserializer;
+        }
+
+        void write(List<AlbumRecord> page, int start) {
+            database.putAlbums(page, start);
+        }
+    };
+
+    private final Unserializer<TrackRecord> trackUnserializer = new Unserializer<TrackRecord>() {
+        public TrackRecord unserialize(TagTokenizer record) {
+            TrackRecord track = new TrackRecord();
+            while (record.nextTag()) {
+                if (record.isTag("id")) {
+                    track.id = record.getValue();
+                } else if (record.isTag("title")) {
+                    track.name = record.getDecodedValue();
+                } else if (record.isTag("artist")) {
+                    track.artist = record.getDecodedValue();
+                } else if (record.isTag("artist_id")) {
+                    track.artistId = record.getDecodedValue();
+                } else if (record.isTag("album")) {
+                    track.album = record.getDecodedValue();
+                } else if (record.isTag("album_id")) {
+                    track.albumId = record.getDecodedValue();
+                } else if (record.isTag("genre_id")) {
+                    track.genreId = record.getDecodedValue();
+                } else if (record.isTag("tracknum")) {
+                    track.trackNumber = record.getIntValue(0);
+                } else if (record.isTag("duration")) {
+                    track.duration = record.getIntValue(0);
+                } else if (record.isTag("remote")) {
+                    track.remote = record.valueEquals("1");
+                } else if (record.isTag("artwork_url")) {
+                    track.artworkUrl = record.getDecodedValue();
+                } else if (record.isTag("artwork_track_id")) {
+                    track.artworkTrackId = record.getValue();
+                } else if (record.isTag("url")) {
+                    track.serverPath = record.getDecodedValue();
+                }
+            }
+            return track;
+        }
+    };
+
+    private final Table<TrackRecord> tracks = new Table<TrackRecord>("tracks") {
+        String getCommand(int start, int numberOfItems) {
+            return "titles " + start + " " + numberOfItems + " tags:" + TRACK_TAGS;
+        }
+
+        Unserializer<TrackRecord> getUnserializer() {
+            return trackUnserializer;
+        }
+
+        void write(List<TrackRecord> page, int start) {
+            database.putTracks(page, start);
+        }
+    };
+
+    /**
+     * Returns how long a check is good for, see {@link #checkIfDue()}
+     */
+    public long getCheckIntervalMillis() {
+        return checkIntervalMillis;
+    }
+
+    /**
+     * Sets how long a check is good for, see {@link #checkIfDue()}
+     */
+    public void setCheckIntervalMillis(long checkIntervalMillis) {
+        this.checkIntervalMillis = checkIntervalMillis;
+    }
+}
@@ -0,0 +1,367 @@
+package net.chrislehmann.squeezedroid.service;
+
+import android.util.Log;
+import net.chrislehmann.squeezedroid.model.PlayerStatus;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * The state of each player, shared by every screen of the application.  Screens {@link #observe} a player instead
+ * of loading its {@link PlayerStatus} themselves, so moving between them does not go back to the server and they
+ * all show the same thing.
+ * <p/>
+ * Each update of a player replaces its {@link PlayerState} with a new one with a higher version.  New observers are
+ * given the last state right away, and then every newer one.  At most one request for the status of a player is
+ * sent at a time, everyone asking while it is running gets the same result.
+ *
+ * @author lehmanc
+ */
+public class PlayerStateStore {
+
+    private static final String LOGTAG = "PlayerStateStore";
+
+    /**
+     * Told about each new state of a player
+     */
+    public interface Observer {
+        public void onStateChanged(PlayerState state);
+    }
+
+    /**
+     * A version of the status of a player.  The status must not be changed, it is shared by every observer.
+     */
+    public static final class PlayerState {
+        private final String playerId;
+        private final long version;
+        private final PlayerStatus status;
+
+        PlayerState(String playerId, long version, PlayerStatus status) {
+            this.playerId = playerId;
+            this.version = version;
+            this.status = status;
+        }
+
+        public String getPlayerId() {
+            return playerId;
+        }
+
+        /**
+         * Higher for every update, across all players
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        public PlayerStatus getStatus() {
+            return status;
+        }
+    }
+
+    private class Registration {
+        private final Observer observer;
+        private final Executor executor;
+        private long delivered = 0;
+        private boolean removed = false;
+
+        private Registration(Observer observer, Executor executor) {
+            this.observer = observer;
+            this.executor = executor;
+        }
+
+        private void deliver(final PlayerState state) {
+            try {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        synchronized (Registration.this) {
+                            //The executor may run them out of order, never go back to an older state
+                            if (removed || state.getVersion() <= delivered) {
+                                return;
+                            }
+                            delivered = state.getVersion();
+                        }
+                        observer.onStateChanged(state);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                Log.e(LOGTAG, "Could not notify observer of " + state.getPlayerId(), e);
+            }
+        }
+    }
+
+    private final Object lock = new Object();
+    private final Map<String, PlayerState> states = new HashMap<String, PlayerState>();
+    private final Map<String, List<Registration>> registrations = new HashMap<String, List<Registration>>();
+    private final Map<String, StateHandler> handlers = new HashMap<String, StateHandler>();
+    private final Map<String, ServiceFuture<PlayerState>> fetches = new HashMap<String, ServiceFuture<PlayerState>>();
+    private SqueezeService service;
+    private long lastVersion = 0;
+
+    /**
+     * Starts telling the observer, on the executor, about the state of the player.  The last known state is passed
+     * to it right away, if there is none (or it may be stale) it is loaded from the server.
+     */
+    public void observe(SqueezeService service, String playerId, Observer observer, Executor executor) {
+        Registration registration = new Registration(observer, executor);
+        PlayerState last;
+        StateHandler follow = null;
+        bind(service);
+        synchronized (lock) {
+            List<Registration> players = registrations.get(playerId);
+            if (players == null) {
+                players = new ArrayList<Registration>();
+                registrations.put(playerId, players);
+            }
+            players.add(registration);
+            if (!handlers.containsKey(playerId)) {
+                follow = new StateHandler(playerId);
+                handlers.put(playerId, follow);
+            }
+            last = states.get(playerId);
+            if (last != null) {
+                registration.deliver(last);
+            }
+        }
+
+        if (follow != null) {
+            service.subscribe(playerId, follow);
+            //Nothing has kept it up to date while nobody was watching
+            fetch(playerId);
+        }
+    }
+
+    /**
+     * Stops telling the observer about the player
+     */
+    public void removeObserver(String playerId, Observer observer) {
+        removeObservers(playerId, observer);
+    }
+
+    /**
+     * Stops telling the observer about any player
+     */
+    public void removeObserver(Observer observer) {
+        removeObservers(null, observer);
+    }
+
+    private void removeObservers(String playerId, Observer observer) {
+        List<StateHandler> unfollowed = new ArrayList<StateHandler>();
+        SqueezeService current;
+        synchronized (lock) {
+            current = service;
+            Iterator<Map.Entry<String, List<Registration>>> players = registrations.entrySet().iterator();
+            while (players.hasNext()) {
+                Map.Entry<String, List<Registration>> entry = players.next();
+                if (playerId != null && !playerId.equals(entry.getKey())) {
+                    continue;
+                }
+                Iterator<Registration> i = entry.getValue().iterator();
+                while (i.hasNext()) {
+                    Registration registration = i.next();
+                    if (registration.observer == observer) {
+                        synchronized (registration) {
+                            registration.removed = true;
+                        }
+                        i.remove();
+                    }
+                }
+                if (entry.getValue().isEmpty()) {
+                    players.remove();
+                    //The last state is kept, so the next screen can show it while it is loaded again
+                    StateHandler handler = handlers.remove(entry.getKey());
+                    if (handler != null) {
+                        unfollowed.add(handler);
+                    }
+                }
+            }
+        }
+
+        unfollow(current, unfollowed);
+    }
+
+    /**
+     * Returns the last known state of the player, or null if it is not known
+     */
+    public PlayerState getLast(String playerId) {
+        synchronized (lock) {
+            return states.get(playerId);
+        }
+    }
+
+    /**
+     * Returns the state of the player.  If it is being followed and is known this is the last state, otherwise it is
+     * loaded from the server.
+     */
+    public ServiceFuture<PlayerState> getState(SqueezeService service, String playerId) {
+        bind(service);
+        synchronized (lock) {
+            PlayerState last = states.get(playerId);
+            if (last != null && handlers.containsKey(playerId)) {
+                return ServiceFuture.completed(last);
+            }
+        }
+        return fetch(playerId);
+    }
+
+    /**
+     * Loads the status of the player from the server, unless it is already being loaded
+     */
+    public ServiceFuture<PlayerState> refresh(SqueezeService service, String playerId) {
+        bind(service);
+        return fetch(playerId);
+    }
+
+    /**
+     * Forgets every state and stops following the players on the current service.  The observers are kept, their
+     * players are followed again on the next service the store is used with.
+     */
+    public void reset() {
+        SqueezeService previous;
+        List<StateHandler> unfollowed;
+        synchronized (lock) {
+            previous = service;
+            service = null;
+            unfollowed = new ArrayList<StateHandler>(handlers.values());
+            states.clear();
+            fetches.clear();
+        }
+        unfollow(previous, unfollowed);
+    }
+
+    /**
+     * Makes sure the players are followed on the service, moving them over from the service they were followed on
+     * before (if the connection was reset)
+     */
+    private void bind(SqueezeService newService) {
+        SqueezeService previous;
+        List<StateHandler> followed;
+        synchronized (lock) {
+            if (newService == service) {
+                return;
+            }
+            previous = service;
+            service = newService;
+            followed = new ArrayList<StateHandler>(handlers.values());
+            fetches.clear();
+        }
+        unfollow(previous, followed);
+        for (StateHandler handler : followed) {
+            newService.subscribe(handler.playerId, handler);
+            fetch(handler.playerId);
+        }
+    }
+
+    private void unfollow(SqueezeService previous, List<StateHandler> handlers) {
+        if (previous == null) {
+            return;
+        }
+        for (StateHandler handler : handlers) {
+            try {
+                previous.unsubscribe(handler.playerId, handler);
+            } catch (RuntimeException e) {
+                Log.e(LOGTAG, "Error unsubscribing from " + handler.playerId, e);
+            }
+        }
+    }
+
+    private ServiceFuture<PlayerState> fetch(final String playerId) {
+        final ServiceFuture<PlayerState> fetch;
+        final long startVersion;
+        SqueezeService current;
+        synchronized (lock) {
+            ServiceFuture<PlayerState> running = fetches.get(playerId);
+            if (running != null) {
+                return running;
+            }
+            current = service;
+            if (current == null) {
+                return ServiceFuture.failed(new IllegalStateException("Not connected"));
+            }
+            fetch = new ServiceFuture<PlayerState>();
+            fetches.put(playerId, fetch);
+            PlayerState last = states.get(playerId);
+            startVersion = last == null ? 0 : last.getVersion();
+        }
+
+        ServiceFuture<PlayerStatus> request;
+        try {
+            request = current.getAsyncService().getPlayerStatus(playerId);
+        } catch (RuntimeException e) {
+            request = ServiceFuture.failed(e);
+        }
+        fetch.setSource(request);
+        request.addCallback(new ServiceCallback<PlayerStatus>() {
+            public void onSuccess(PlayerStatus status) {
+                PlayerState state;
+                synchronized (lock) {
+                    if (fetches.get(playerId) == fetch) {
+                        fetches.remove(playerId);
+                    }
+                    state = states.get(playerId);
+                    //Events that arrived while it was loading are at least as new as what was loaded
+                    if (status != null && (state == null || state.getVersion() <= startVersion)) {
+                        state = update(playerId, status);
+                    }
+                }
+                fetch.complete(state);
+            }
+
+            public void onFailure(Exception e) {
+                synchronized (lock) {
+                    if (fetches.get(playerId) == fetch) {
+                        fetches.remove(playerId);
+                    }
+                }
+                Log.e(LOGTAG, "Error loading the status of " + playerId, e);
+                fetch.fail(e);
+            }
+        });
+        return fetch;
+    }
+
+    /**
+     * Replaces the state of the player and tells its observers.  Must hold the lock.
+     */
+    private PlayerState update(String playerId, PlayerStatus status) {
+        PlayerState state = new PlayerState(playerId, ++lastVersion, new PlayerStatus(status));
+        states.put(playerId, state);
+        List<Registration> players = registrations.get(playerId);
+        if (players != null) {
+            for (Registration registration : players) {
+                registration.deliver(state);
+            }
+        }
+        return state;
+    }
+
+    private void replace(String playerId, PlayerStatus status) {
+        if (status == null) {
+            fetch(playerId);
+            return;
+        }
+        synchronized (lock) {
+            update(playerId, status);
+        }
+    }
+
+    /**
+     * Follows the status of a player while it has observers.  The event thread works out the status after each
+     * event, the store just keeps what it is given.
+     */
+    private class StateHandler extends SimplePlayerStatusHandler implements StatusSnapshotHandler {
+        private final String playerId;
+
+        private StateHandler(String playerId) {
+            this.playerId = playerId;
+        }
+
+        public void onStatusChanged(PlayerStatus status) {
+            replace(playerId, status);
+        }
+    }
+}
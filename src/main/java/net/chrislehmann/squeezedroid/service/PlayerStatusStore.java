@@ -0,0 +1,235 @@
+package net.chrislehmann.squeezedroid.service;
+
+import net.chrislehmann.squeezedroid.model.PlayerStatus;
+import net.chrislehmann.squeezedroid.model.RepeatMode;
+import net.chrislehmann.squeezedroid.model.ShuffleMode;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The last known {@link PlayerStatus} of each player, kept up to date by applying the events from the server to it.
+ * Volume, time, shuffle, repeat, play/pause/stop and the index of the current song are all in the event itself,
+ * so following them does not need the network.
+ * <p/>
+ * Events that can't be followed this way (a new song, or changes to the playlist) leave the status of the player
+ * stale, it has to be loaded (or pushed by the server) again and {@link #put(String, PlayerStatus)} here.
+ * <p/>
+ * The statuses handed out are never changed, every event replaces the status of the player with an updated copy,
+ * so they can be read from the UI thread while events arrive.
+ *
+ * @author lehmanc
+ */
+public class PlayerStatusStore {
+
+    /**
+     * The part of the status of a player an event changes
+     */
+    public enum Change {
+        TIME, VOLUME, MODE, SHUFFLE, REPEAT, SONG, PLAYLIST
+    }
+
+    private static final String MODE_PLAY = "play";
+    private static final String MODE_PAUSE = "pause";
+    private static final String MODE_STOP = "stop";
+
+    private final Map<String, PlayerStatus> statuses = new HashMap<String, PlayerStatus>();
+    private final Map<String, Long> updatedAt = new HashMap<String, Long>();
+
+    /**
+     * Returns the part of the status the (decoded) event changes, or null if it does not change the status
+     * of a player (i.e. <code>sync</code> or <code>client</code> events).
+     */
+    public static Change getChange(String event, String data) {
+        if ("time".equals(event)) {
+            return Change.TIME;
+        }
+        if ("mixer".equals(event)) {
+            return data != null && data.startsWith("volume ") ? Change.VOLUME : null;
+        }
+        if (MODE_PLAY.equals(event) || MODE_PAUSE.equals(event) || MODE_STOP.equals(event)) {
+            return Change.MODE;
+        }
+        if ("playlist".equals(event)) {
+            String action = data == null ? "" : data.split(" ")[0];
+            if ("shuffle".equals(action)) {
+                return Change.SHUFFLE;
+            }
+            if ("repeat".equals(action)) {
+                return Change.REPEAT;
+            }
+            if ("newsong".equals(action)) {
+                return Change.SONG;
+            }
+            return Change.PLAYLIST;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the last known status of the player, or null if it is not known (or stale)
+     */
+    public synchronized PlayerStatus get(String playerId) {
+        return statuses.get(playerId);
+    }
+
+    /**
+     * Returns the last known status of the player, with the current position moved on by the time that has passed
+     * since then if it is playing.  Returns null if the status is not known.
+     */
+    public synchronized PlayerStatus getEstimated(String playerId) {
+        PlayerStatus status = statuses.get(playerId);
+        if (status == null || !status.isPlaying()) {
+            return status;
+        }
+        PlayerStatus estimated = new PlayerStatus(status);
+        estimated.setCurrentPosition(status.getCurrentPosition() + getElapsedSeconds(playerId));
+        return estimated;
+    }
+
+    private int getElapsedSeconds(String playerId) {
+        return (int) ((System.currentTimeMillis() - updatedAt.get(playerId)) / 1000);
+    }
+
+    /**
+     * Sets the status of a player, freshly loaded from the server
+     */
+    public synchronized void put(String playerId, PlayerStatus status) {
+        statuses.put(playerId, status);
+        updatedAt.put(playerId, System.currentTimeMillis());
+    }
+
+    public synchronized void remove(String playerId) {
+        statuses.remove(playerId);
+        updatedAt.remove(playerId);
+    }
+
+    public synchronized void clear() {
+        statuses.clear();
+        updatedAt.clear();
+    }
+
+    /**
+     * Applies a change, as returned by {@link #getChange(String, String)}, to the status of the player.
+     * Returns false if the status of the player is not known, or the event does not carry enough to follow it.
+     * The status is left as it was, but is stale and should be loaded again.
+     */
+    public synchronized boolean apply(String playerId, Change change, String event, String data) {
+        PlayerStatus current = statuses.get(playerId);
+        if (current == null) {
+            return false;
+        }
+
+        //Start from where it should be by now, so the position stays right across pauses.  Only whole seconds are
+        //moved on, the rest is kept in the time it was updated.
+        PlayerStatus status = new PlayerStatus(current);
+        long positionAt = System.currentTimeMillis();
+        if (current.isPlaying()) {
+            int elapsed = getElapsedSeconds(playerId);
+            status.setCurrentPosition(current.getCurrentPosition() + elapsed);
+            positionAt = updatedAt.get(playerId) + elapsed * 1000L;
+        }
+        String[] parts = data == null ? new String[0] : data.split(" ");
+        boolean applied = false;
+        switch (change) {
+            case TIME:
+                applied = parts.length >= 1 && applyTime(status, parts[0]);
+                positionAt = System.currentTimeMillis();
+                break;
+            case VOLUME:
+                applied = parts.length >= 2 && applyVolume(status, parts[1]);
+                break;
+            case MODE:
+                applied = applyMode(status, event, parts.length >= 1 ? parts[0] : "");
+                break;
+            case SHUFFLE:
+                ShuffleMode shuffleMode = parts.length >= 2 ? ShuffleMode.intToShuffleModeMap.get(parts[1]) : null;
+                if (shuffleMode != null) {
+                    status.setShuffleMode(shuffleMode);
+                    applied = true;
+                }
+                break;
+            case REPEAT:
+                RepeatMode repeatMode = parts.length >= 2 ? RepeatMode.intToRepeatModeMap.get(parts[1]) : null;
+                if (repeatMode != null) {
+                    status.setRepeatMode(repeatMode);
+                    applied = true;
+                }
+                break;
+            case SONG:
+                //playlist newsong <title> <index>, we only know the details of the song if it is the same one again
+                Integer index = parts.length >= 3 ? parseInt(parts[parts.length - 1]) : null;
+                if (index != null) {
+                    applied = index == status.getCurrentIndex() && status.getCurrentSong() != null;
+                    status.setCurrentIndex(index);
+                    status.setCurrentPosition(0);
+                    status.setStatus(MODE_PLAY);
+                    positionAt = System.currentTimeMillis();
+                }
+                break;
+            default:
+                break;
+        }
+
+        if (applied) {
+            statuses.put(playerId, status);
+            updatedAt.put(playerId, positionAt);
+        }
+        return applied;
+    }
+
+    private boolean applyTime(PlayerStatus status, String value) {
+        try {
+            double time = Double.parseDouble(value);
+            if (isRelative(value)) {
+                time += status.getCurrentPosition();
+            }
+            status.setCurrentPosition((int) Math.max(0, time));
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private boolean applyVolume(PlayerStatus status, String value) {
+        Integer volume = parseInt(value);
+        if (volume == null) {
+            return false;
+        }
+        if (isRelative(value)) {
+            volume = Math.max(0, Math.min(100, status.getVolume() + volume));
+        }
+        status.setVolume(volume);
+        return true;
+    }
+
+    private boolean applyMode(PlayerStatus status, String event, String value) {
+        if (MODE_PAUSE.equals(event)) {
+            if ("1".equals(value)) {
+                status.setStatus(MODE_PAUSE);
+            } else if ("0".equals(value)) {
+                status.setStatus(MODE_PLAY);
+            } else if (status.isPlaying()) {
+                //No argument toggles
+                status.setStatus(MODE_PAUSE);
+            } else if (status.isPaused()) {
+                status.setStatus(MODE_PLAY);
+            }
+        } else {
+            status.setStatus(event);
+        }
+        return true;
+    }
+
+    private boolean isRelative(String value) {
+        return value.startsWith("+") || value.startsWith("-");
+    }
+
+    private Integer parseInt(String value) {
+        try {
+            return Integer.valueOf(value.startsWith("+") ? value.substring(1) : value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package net.chrislehmann.squeezedroid.service;
+
+import android.util.Log;
+import net.chrislehmann.squeezedroid.model.Player;
+import net.chrislehmann.util.SerializationUtils;
+import net.chrislehmann.util.TagTokenizer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The players known to the server and how they are synced, indexed by player id.  It is loaded from a
+ * <code>players</code> and a <code>syncgroups ?</code> response, and kept up to date from the <code>sync</code>
+ * and <code>client</code> events, so looking up a player does not need the network.
+ * <p/>
+ * The {@link Player} objects handed out are never changed once a list of synced players has been set on them,
+ * updates replace the list instead, so they can be read from the UI thread while events arrive.
+ * <p/>
+ * If an event comes in that can't be applied (a player we have not seen before, for example), the topology is
+ * marked invalid and should be loaded again with {@link #update(List, List)}.
+ *
+ * @author lehmanc
+ */
+public class PlayerTopology {
+
+    private static final String LOGTAG = "PlayerTopology";
+
+    private final Map<String, Player> players = new LinkedHashMap<String, Player>();
+    private boolean valid = false;
+
+    /**
+     * Returns true if the topology has been loaded and nothing has happened since that it could not follow.
+     */
+    public synchronized boolean isValid() {
+        return valid;
+    }
+
+    public synchronized void invalidate() {
+        valid = false;
+    }
+
+    /**
+     * Replaces everything with the players passed in, synced according to the groups of player ids passed in.
+     */
+    public synchronized void update(List<Player> newPlayers, List<List<String>> syncGroups) {
+        players.clear();
+        for (Player player : newPlayers) {
+            player.setSyncronizedPlayers(new ArrayList<Player>());
+            players.put(player.getId(), player);
+        }
+        for (List<String> group : syncGroups) {
+            setGroup(group);
+        }
+        valid = true;
+    }
+
+    /**
+     * Returns a new list of all the players, in the order the server listed them
+     */
+    public synchronized List<Player> getPlayers() {
+        return new ArrayList<Player>(players.values());
+    }
+
+    /**
+     * Returns the player with the given id, or null if there is no such player
+     */
+    public synchronized Player getPlayer(String playerId) {
+        return players.get(playerId);
+    }
+
+    /**
+     * Applies a (decoded) event from the server.  Only <code>sync</code> and <code>client</code> events change
+     * the topology, the rest are ignored.
+     */
+    public synchronized void onEvent(String playerId, String event, String data) {
+        if (!valid) {
+            return;
+        }
+        if ("sync".equals(event)) {
+            String otherPlayerId = SerializationUtils.decode(data);
+            if ("-".equals(otherPlayerId)) {
+                leaveGroup(playerId);
+            } else if (players.containsKey(playerId) && players.containsKey(otherPlayerId)) {
+                //The other player joins the group of this one
+                leaveGroup(otherPlayerId);
+                Set<String> group = getGroup(playerId);
+                group.add(otherPlayerId);
+                setGroup(group);
+            } else {
+                Log.d(LOGTAG, "Sync event for an unknown player, reloading players");
+                valid = false;
+            }
+        } else if ("client".equals(event)) {
+            String action = data == null ? "" : data.split(" ")[0];
+            if ("forget".equals(action)) {
+                leaveGroup(playerId);
+                players.remove(playerId);
+            } else if ("new".equals(action) || !players.containsKey(playerId)) {
+                //We don't know the name of new players
+                valid = false;
+            }
+        }
+    }
+
+    private Set<String> getGroup(String playerId) {
+        Set<String> group = new LinkedHashSet<String>();
+        Player player = players.get(playerId);
+        if (player != null) {
+            group.add(playerId);
+            for (Player synced : player.getSyncronizedPlayers()) {
+                group.add(synced.getId());
+            }
+        }
+        return group;
+    }
+
+    /**
+     * Syncs every known player in the group to the rest of the group
+     */
+    private void setGroup(Collection<String> group) {
+        for (String id : group) {
+            Player player = players.get(id);
+            if (player != null) {
+                List<Player> synced = new ArrayList<Player>();
+                for (String otherId : group) {
+                    Player other = players.get(otherId);
+                    if (other != null && other != player) {
+                        synced.add(other);
+                    }
+                }
+                player.setSyncronizedPlayers(synced);
+            }
+        }
+    }
+
+    private void leaveGroup(String playerId) {
+        Set<String> group = getGroup(playerId);
+        group.remove(playerId);
+        Player player = players.get(playerId);
+        if (player != null) {
+            player.setSyncronizedPlayers(new ArrayList<Player>());
+        }
+        setGroup(group);
+    }
+
+    /**
+     * Reads the groups of player ids out of a <code>syncgroups ?</code> response
+     */
+    public static List<List<String>> parseSyncGroups(String response) {
+        List<List<String>> groups = new ArrayList<List<String>>();
+        TagTokenizer tokenizer = new TagTokenizer(response);
+        while (tokenizer.find("sync_members")) {
+            List<String> group = new ArrayList<String>();
+            for (String id : tokenizer.getDecodedValue().split(",")) {
+                if (id.length() > 0) {
+                    group.add(id);
+                }
+            }
+            groups.add(group);
+        }
+        return groups;
+    }
+}
@@ -0,0 +1,35 @@
+package net.chrislehmann.squeezedroid.service;
+
+/**
+ * Told when a result that was handed out from a cache while it was out of date has been fetched again and turned
+ * out to have changed.  Whoever is showing results of that type should read them again, they will come from the
+ * cache.  Called on a background thread.
+ *
+ * @author lehmanc
+ */
+public interface RefreshHandler {
+
+    /**
+     * The kinds of results, each with its own time to live
+     */
+    enum DataType {
+        /**
+         * The players and how they are synced
+         */
+        PLAYERS,
+        /**
+         * The current playlists of the players and the saved playlists
+         */
+        PLAYLISTS,
+        /**
+         * The applications and radio stations
+         */
+        APPLICATIONS,
+        /**
+         * Genres, artists, albums, songs and folders
+         */
+        LIBRARY
+    }
+
+    public void onRefreshed(DataType type);
+}
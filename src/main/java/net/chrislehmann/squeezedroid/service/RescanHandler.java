@@ -0,0 +1,15 @@
+package net.chrislehmann.squeezedroid.service;
+
+/**
+ * Told when the server's library changes, i.e. it starts or finishes scanning for music or its cache is wiped.
+ * Called from the event thread, so it should return quickly.
+ *
+ * @author lehmanc
+ */
+public interface RescanHandler {
+
+    /**
+     * @param done false when a scan was started, true when it has finished
+     */
+    public void onRescan(boolean done);
+}
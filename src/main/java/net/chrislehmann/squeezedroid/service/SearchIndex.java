@@ -0,0 +1,550 @@
+package net.chrislehmann.squeezedroid.service;
+
+import net.chrislehmann.squeezedroid.model.Album;
+import net.chrislehmann.squeezedroid.model.Artist;
+import net.chrislehmann.squeezedroid.model.Genre;
+import net.chrislehmann.squeezedroid.model.Item;
+import net.chrislehmann.squeezedroid.model.SearchResult;
+import net.chrislehmann.squeezedroid.model.Song;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Searches the names of the genres, artists, albums and songs of a library in memory, quickly enough to search as
+ * the user types.  Answers with the same {@link SearchResult} the server's <code>search</code> command does, the
+ * items only have their id and name.
+ * <p/>
+ * Names are matched ignoring case and punctuation.  Every word of the search has to be found in the name, words of
+ * {@link #TRIGRAM} letters or more anywhere in a word of the name and shorter ones at the start of one.  The longer
+ * words are looked up in the postings of their trigrams (every three letters in a row of a word), the shorter ones
+ * in a trie of the first letters of the words.  Names that start with the search come first, then the ones whose
+ * words start with the words of the search, then the rest, otherwise they are in the order they were added in.
+ * <p/>
+ * The index is built once with a {@link Builder} and can't be changed after that, it can be searched from any thread.
+ *
+ * @author lehmanc
+ */
+public class SearchIndex {
+
+    /**
+     * The length of the pieces of the words that are indexed
+     */
+    public static final int TRIGRAM = 3;
+
+    private final Names genres;
+    private final Names artists;
+    private final Names albums;
+    private final Names songs;
+
+    private SearchIndex(Builder builder) {
+        genres = builder.genres.build();
+        artists = builder.artists.build();
+        albums = builder.albums.build();
+        songs = builder.songs.build();
+    }
+
+    /**
+     * Collects the names to index.  Not thread safe.
+     */
+    public static class Builder {
+        private final NamesBuilder genres = new NamesBuilder();
+        private final NamesBuilder artists = new NamesBuilder();
+        private final NamesBuilder albums = new NamesBuilder();
+        private final NamesBuilder songs = new NamesBuilder();
+
+        /**
+         * Adds a {@link Genre}, {@link Artist}, {@link Album} or {@link Song}, i.e. from a browse result.  Other items
+         * are ignored.
+         */
+        public Builder add(Item item) {
+            if (item instanceof Genre) {
+                addGenre(item.getId(), item.getName());
+            } else if (item instanceof Artist) {
+                addArtist(item.getId(), item.getName());
+            } else if (item instanceof Album) {
+                addAlbum(item.getId(), item.getName());
+            } else if (item instanceof Song) {
+                addSong(item.getId(), item.getName());
+            }
+            return this;
+        }
+
+        public Builder addAll(List<? extends Item> items) {
+            for (Item item : items) {
+                add(item);
+            }
+            return this;
+        }
+
+        public Builder addGenre(String id, String name) {
+            genres.add(id, name);
+            return this;
+        }
+
+        public Builder addArtist(String id, String name) {
+            artists.add(id, name);
+            return this;
+        }
+
+        public Builder addAlbum(String id, String name) {
+            albums.add(id, name);
+            return this;
+        }
+
+        public Builder addSong(String id, String name) {
+            songs.add(id, name);
+            return this;
+        }
+
+        public SearchIndex build() {
+            return new SearchIndex(this);
+        }
+    }
+
+    /**
+     * Returns the number of names in the index
+     */
+    public int size() {
+        return genres.ids.length + artists.ids.length + albums.ids.length + songs.ids.length;
+    }
+
+    /**
+     * Searches for the genres, artists, albums and songs whose names match the terms
+     *
+     * @param numResults the most of each that are returned, the totals count all of them
+     */
+    public SearchResult search(String searchTerms, int numResults) {
+        SearchResult result = new SearchResult();
+        Query query = new Query(searchTerms);
+        if (query.words.length == 0) {
+            return result;
+        }
+
+        List<Genre> genreResults = new ArrayList<Genre>();
+        result.setTotalGenres(genres.search(query, numResults, genreResults, new Factory<Genre>() {
+            Genre create() {
+                return new Genre();
+            }
+        }));
+        List<Artist> artistResults = new ArrayList<Artist>();
+        result.setTotalArtists(artists.search(query, numResults, artistResults, new Factory<Artist>() {
+            Artist create() {
+                return new Artist();
+            }
+        }));
+        List<Album> albumResults = new ArrayList<Album>();
+        result.setTotalAlbums(albums.search(query, numResults, albumResults, new Factory<Album>() {
+            Album create() {
+                return new Album();
+            }
+        }));
+        List<Song> songResults = new ArrayList<Song>();
+        result.setTotalSongs(songs.search(query, numResults, songResults, new Factory<Song>() {
+            Song create() {
+                return new Song();
+            }
+        }));
+
+        result.setGenres(genreResults);
+        result.setArtists(artistResults);
+        result.setAlbums(albumResults);
+        result.setSongs(songResults);
+        result.setTotalResults(result.getTotalGenres() + result.getTotalArtists() + result.getTotalAlbums() + result.getTotalSongs());
+        return result;
+    }
+
+    /**
+     * Makes the items of the results
+     */
+    private static abstract class Factory<T extends Item> {
+        abstract T create();
+    }
+
+    /**
+     * The search terms, normalized the way the names are
+     */
+    private static class Query {
+        private final String phrase;
+        private final String[] words;
+        private final String[] wordStarts;
+
+        private Query(String searchTerms) {
+            String normalized = normalize(searchTerms == null ? "" : searchTerms);
+            phrase = normalized;
+            words = normalized.length() == 0 ? new String[0] : normalized.substring(1).split(" ");
+            wordStarts = new String[words.length];
+            for (int i = 0; i < words.length; i++) {
+                wordStarts[i] = " " + words[i];
+            }
+        }
+    }
+
+    /**
+     * Lower cases the name and replaces every run of characters that are not letters or digits with one space,
+     * characters outside the BMP are kept as they are.  Apostrophes are dropped, so "don't" is found by "dont".  The
+     * result is empty or starts with a space, so the start of every word follows a space.
+     */
+    static String normalize(String name) {
+        StringBuilder normalized = new StringBuilder(name.length() + 1);
+        boolean space = true;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (Character.isLetterOrDigit(c) || Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+                if (space) {
+                    normalized.append(' ');
+                    space = false;
+                }
+                normalized.append(Character.toLowerCase(c));
+            } else if (c != '\'' && c != '\u2019') {
+                space = true;
+            }
+        }
+        return normalized.toString();
+    }
+
+    private static long trigram(String word, int start) {
+        return ((long) word.charAt(start) << 32) | ((long) word.charAt(start + 1) << 16) | word.charAt(start + 2);
+    }
+
+    /**
+     * A list of ids that only grows, without duplicates as long as they are added in order
+     */
+    private static class Postings {
+        private int[] entries = new int[2];
+        private int size;
+
+        private void add(int entry) {
+            if (size > 0 && entries[size - 1] == entry) {
+                return;
+            }
+            if (size == entries.length) {
+                entries = toArray(size * 2);
+            }
+            entries[size++] = entry;
+        }
+
+        private int[] toArray() {
+            return toArray(size);
+        }
+
+        private int[] toArray(int length) {
+            int[] copy = new int[length];
+            System.arraycopy(entries, 0, copy, 0, size);
+            return copy;
+        }
+    }
+
+    /**
+     * A node of the trie of the starts of the words.  The postings of a node are the names with a word that starts
+     * with the letters on the path to it, and the names that start with them.
+     */
+    private static class Node {
+        private char[] letters = new char[0];
+        private Node[] children = new Node[0];
+        private Postings building = new Postings();
+        private Postings buildingFirst = new Postings();
+        private int[] entries;
+        private int[] firstEntries;
+
+        private Node child(char letter) {
+            int index = Arrays.binarySearch(letters, letter);
+            return index < 0 ? null : children[index];
+        }
+
+        private Node addChild(char letter) {
+            int index = Arrays.binarySearch(letters, letter);
+            if (index >= 0) {
+                return children[index];
+            }
+            index = -index - 1;
+            Node child = new Node();
+            char[] newLetters = new char[letters.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(letters, 0, newLetters, 0, index);
+            System.arraycopy(children, 0, newChildren, 0, index);
+            newLetters[index] = letter;
+            newChildren[index] = child;
+            System.arraycopy(letters, index, newLetters, index + 1, letters.length - index);
+            System.arraycopy(children, index, newChildren, index + 1, children.length - index);
+            letters = newLetters;
+            children = newChildren;
+            return child;
+        }
+
+        private void freeze() {
+            entries = building.toArray();
+            firstEntries = buildingFirst.toArray();
+            building = null;
+            buildingFirst = null;
+            for (Node child : children) {
+                child.freeze();
+            }
+        }
+    }
+
+    private static class NamesBuilder {
+        private final List<String> ids = new ArrayList<String>();
+        private final List<String> names = new ArrayList<String>();
+        private final List<String> keys = new ArrayList<String>();
+        private final Node trie = new Node();
+        private final Map<Long, Postings> trigrams = new HashMap<Long, Postings>();
+
+        private void add(String id, String name) {
+            if (id == null || name == null) {
+                return;
+            }
+            int entry = ids.size();
+            String key = normalize(name);
+            ids.add(id);
+            names.add(name);
+            keys.add(key);
+
+            int start = 1;
+            while (start < key.length()) {
+                int end = key.indexOf(' ', start);
+                if (end < 0) {
+                    end = key.length();
+                }
+                Node node = trie;
+                for (int i = start; i < end && i < start + TRIGRAM - 1; i++) {
+                    node = node.addChild(key.charAt(i));
+                    node.building.add(entry);
+                    if (start == 1) {
+                        node.buildingFirst.add(entry);
+                    }
+                }
+                for (int i = start; i + TRIGRAM <= end; i++) {
+                    Long trigram = trigram(key, i);
+                    Postings postings = trigrams.get(trigram);
+                    if (postings == null) {
+                        postings = new Postings();
+                        trigrams.put(trigram, postings);
+                    }
+                    postings.add(entry);
+                }
+                start = end + 1;
+            }
+        }
+
+        private Names build() {
+            Map<Long, int[]> frozen = new HashMap<Long, int[]>(trigrams.size() * 4 / 3 + 1);
+            for (Map.Entry<Long, Postings> entry : trigrams.entrySet()) {
+                frozen.put(entry.getKey(), entry.getValue().toArray());
+            }
+            trie.freeze();
+            return new Names(ids.toArray(new String[ids.size()]), names.toArray(new String[names.size()]),
+                    keys.toArray(new String[keys.size()]), trie, frozen);
+        }
+    }
+
+    private static final Comparator<int[]> SHORTEST_FIRST = new Comparator<int[]>() {
+        public int compare(int[] a, int[] b) {
+            return a.length - b.length;
+        }
+    };
+
+    /**
+     * The indexed names of one kind of item
+     */
+    private static class Names {
+        private final String[] ids;
+        private final String[] names;
+        private final String[] keys;
+        private final Node trie;
+        private final Map<Long, int[]> trigrams;
+
+        private Names(String[] ids, String[] names, String[] keys, Node trie, Map<Long, int[]> trigrams) {
+            this.ids = ids;
+            this.names = names;
+            this.keys = keys;
+            this.trie = trie;
+            this.trigrams = trigrams;
+        }
+
+        private Node find(String word) {
+            Node node = trie;
+            for (int i = 0; i < word.length() && node != null; i++) {
+                node = node.child(word.charAt(i));
+            }
+            return node;
+        }
+
+        /**
+         * Returns the postings of every word of the query and the trigrams of its long words, or null if one of them
+         * has none
+         */
+        private int[][] postings(Query query) {
+            List<int[]> postings = new ArrayList<int[]>();
+            for (String word : query.words) {
+                if (word.length() < TRIGRAM) {
+                    Node node = find(word);
+                    if (node == null) {
+                        return null;
+                    }
+                    postings.add(node.entries);
+                } else {
+                    for (int i = 0; i + TRIGRAM <= word.length(); i++) {
+                        int[] entries = trigrams.get(trigram(word, i));
+                        if (entries == null) {
+                            return null;
+                        }
+                        postings.add(entries);
+                    }
+                }
+            }
+            int[][] sorted = postings.toArray(new int[postings.size()][]);
+            Arrays.sort(sorted, SHORTEST_FIRST);
+            return sorted;
+        }
+
+        /**
+         * Adds the best matches to the results and returns the number of names that match
+         */
+        private <T extends Item> int search(Query query, int numResults, List<T> results, Factory<T> factory) {
+            if (query.words.length == 1 && query.words[0].length() < TRIGRAM) {
+                Node node = find(query.words[0]);
+                return node == null ? 0 : search(node, numResults, results, factory);
+            }
+
+            int[][] postings = postings(query);
+            if (postings == null) {
+                return 0;
+            }
+
+            //Entries in the shortest postings that are in all the others, checked in order so each list is only
+            //walked forward once
+            int[] candidates = postings[0];
+            int[] positions = new int[postings.length];
+            int[] phrase = new int[numResults];
+            int[] wordStart = new int[numResults];
+            int[] anywhere = new int[numResults];
+            int phraseCount = 0;
+            int wordStartCount = 0;
+            int anywhereCount = 0;
+            int matches = 0;
+
+            candidates:
+            for (int entry : candidates) {
+                for (int i = 1; i < postings.length; i++) {
+                    int position = advance(postings[i], positions[i], entry);
+                    positions[i] = position;
+                    if (position == postings[i].length) {
+                        break candidates;
+                    }
+                    if (postings[i][position] != entry) {
+                        continue candidates;
+                    }
+                }
+
+                String key = keys[entry];
+                if (key.startsWith(query.phrase)) {
+                    matches++;
+                    if (phraseCount < numResults) {
+                        phrase[phraseCount++] = entry;
+                    }
+                    continue;
+                }
+
+                //Once there are enough names that start with the search or its words only a name that starts with
+                //the search can still be one of the results, the rest only have to be counted
+                boolean counting = phraseCount + wordStartCount >= numResults;
+                boolean startsWords = true;
+                for (int i = 0; i < query.words.length; i++) {
+                    String word = query.words[i];
+                    if (word.length() < TRIGRAM) {
+                        //the trie only has entries whose words start with it
+                        continue;
+                    }
+                    if (!counting && key.indexOf(query.wordStarts[i]) >= 0) {
+                        continue;
+                    }
+                    startsWords = false;
+                    if (word.length() > TRIGRAM && key.indexOf(word) < 0) {
+                        //All its trigrams are in the name, but not in a row
+                        continue candidates;
+                    }
+                }
+
+                matches++;
+                if (counting) {
+                    continue;
+                }
+                if (startsWords) {
+                    if (wordStartCount < numResults) {
+                        wordStart[wordStartCount++] = entry;
+                    }
+                } else if (anywhereCount < numResults) {
+                    anywhere[anywhereCount++] = entry;
+                }
+            }
+
+            addResults(phrase, phraseCount, numResults, results, factory);
+            addResults(wordStart, wordStartCount, numResults, results, factory);
+            addResults(anywhere, anywhereCount, numResults, results, factory);
+            return matches;
+        }
+
+        /**
+         * Adds the names that start with the letters of the node and then the ones with another word that does, the
+         * first letters typed.  Everything is in the trie, so nothing has to be checked or counted.
+         */
+        private <T extends Item> int search(Node node, int numResults, List<T> results, Factory<T> factory) {
+            addResults(node.firstEntries, Math.min(node.firstEntries.length, numResults), numResults, results, factory);
+            int[] wordStart = new int[numResults];
+            int wordStartCount = 0;
+            int first = 0;
+            for (int i = 0; i < node.entries.length && results.size() + wordStartCount < numResults; i++) {
+                int entry = node.entries[i];
+                while (first < node.firstEntries.length && node.firstEntries[first] < entry) {
+                    first++;
+                }
+                if (first == node.firstEntries.length || node.firstEntries[first] != entry) {
+                    wordStart[wordStartCount++] = entry;
+                }
+            }
+            addResults(wordStart, wordStartCount, numResults, results, factory);
+            return node.entries.length;
+        }
+
+        private <T extends Item> void addResults(int[] entries, int count, int numResults, List<T> results, Factory<T> factory) {
+            for (int i = 0; i < count && results.size() < numResults; i++) {
+                T item = factory.create();
+                item.setId(ids[entries[i]]);
+                item.setName(names[entries[i]]);
+                results.add(item);
+            }
+        }
+
+        /**
+         * Returns the position of the first entry in the postings from the position on that is not less than the
+         * entry, or the length of the postings if there is none.  Gallops ahead, then searches what it jumped over.
+         */
+        private static int advance(int[] postings, int from, int entry) {
+            int step = 1;
+            int low = from;
+            int high = from;
+            while (high < postings.length && postings[high] < entry) {
+                low = high + 1;
+                high += step;
+                step *= 2;
+            }
+            if (high > postings.length) {
+                high = postings.length;
+            }
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (postings[middle] < entry) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+}
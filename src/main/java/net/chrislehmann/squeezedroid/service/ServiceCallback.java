@@ -0,0 +1,18 @@
+package net.chrislehmann.squeezedroid.service;
+
+/**
+ * Callback that is notified when a {@link ServiceFuture} returned by the {@link AsyncSqueezeService} finishes.
+ * Exactly one of the methods is called, on the executor the callback was added with.
+ *
+ * @author lehmanc
+ */
+public interface ServiceCallback<T> {
+
+    public void onSuccess(T result);
+
+    /**
+     * Called if the request failed, was cancelled (with a {@link java.util.concurrent.CancellationException})
+     * or the connection to the server was lost.
+     */
+    public void onFailure(Exception e);
+}
@@ -9,9 +9,12 @@ import net.chrislehmann.squeezedroid.activity.ActivitySupport.IntentResultCallba
 import net.chrislehmann.squeezedroid.activity.ConnectToServerActivity;
 import net.chrislehmann.squeezedroid.activity.SqueezeDroidConstants;
 import net.chrislehmann.squeezedroid.activity.SqueezedroidActivitySupport;
+import net.chrislehmann.util.ImageLoader;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 public class ServiceConnectionManager {
 
@@ -34,6 +37,22 @@ public class ServiceConnectionManager {
 
     private SqueezeService service;
 
+    private final Executor ioExecutor;
+    private final Executor parseExecutor;
+    private final Executor eventExecutor;
+
+    /**
+     * @param ioExecutor    runs the {@link SqueezeServiceAwareThread}s, queries the library on the device and
+     *                      refreshes stale cached results
+     * @param parseExecutor parses responses for the {@link SqueezeService}
+     * @param eventExecutor calls the {@link PlayerStatusHandler}s of the {@link SqueezeService}
+     */
+    public ServiceConnectionManager(Executor ioExecutor, Executor parseExecutor, Executor eventExecutor) {
+        this.ioExecutor = ioExecutor;
+        this.parseExecutor = parseExecutor;
+        this.eventExecutor = eventExecutor;
+    }
+
     public void disconnect() {
         if (service != null && service.isConnected()) {
             try {
@@ -70,18 +89,21 @@ public class ServiceConnectionManager {
                 }
             }
         } else if (service != null && service.isConnected()) {
-            //Already connected, just run the onConnectHandler they passed in (on a thread)
+            //Already connected, just run the onConnectHandler they passed in (on the io executor)
             if (onConnect != null) {
-                new Thread() {
-                    @Override
-                    public void run() {
-                        try {
-                            onConnect.runWithService(service);
-                        } catch (Exception e) {
-                            Log.e(LOGTAG, "Error executing callback", e);
+                try {
+                    ioExecutor.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                onConnect.runWithService(service);
+                            } catch (Exception e) {
+                                Log.e(LOGTAG, "Error executing callback", e);
+                            }
                         }
-                    }
-                }.start();
+                    });
+                } catch (RejectedExecutionException e) {
+                    Log.e(LOGTAG, "Too busy to run callback, dropping it", e);
+                }
             }
         }
     }
@@ -130,10 +152,21 @@ public class ServiceConnectionManager {
             String serverCliPort = prefs.getString("server_cli_port", "9090");
 
             CliSqueezeService service = new CliSqueezeService(serverIp, Integer.parseInt(serverCliPort), Integer.parseInt(serverWebPort));
-            service.setUsername(prefs.getString("authentication_username", ""));
-            service.setPassword(prefs.getString("authentication_password", ""));
-
-            this.service = service;
+            String username = prefs.getString("authentication_username", "");
+            String password = prefs.getString("authentication_password", "");
+            service.setUsername(username);
+            service.setPassword(password);
+            service.setParseExecutor(parseExecutor);
+            service.setEventExecutor(eventExecutor);
+            ImageLoader.getInstance().setCredentials(username, password);
+
+            //Browse the library from the copy on the device once it has been synced, and keep the pages already shown
+            LibraryDatabase library = new LibraryDatabase(context.getApplicationContext(), serverIp, "http://" + serverIp + ":" + serverWebPort);
+            LibrarySqueezeService libraryService = new LibrarySqueezeService(service, library);
+            libraryService.setExecutor(ioExecutor);
+            CachingSqueezeService cachingService = new CachingSqueezeService(libraryService);
+            cachingService.setRefreshExecutor(ioExecutor);
+            this.service = cachingService;
         }
 
         return service;
@@ -0,0 +1,284 @@
+package net.chrislehmann.squeezedroid.service;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * {@link Future} for the result of an {@link AsyncSqueezeService} request.
+ * <p/>
+ * Instead of blocking in {@link #get()}, callers can add a {@link ServiceCallback} that is run on an
+ * {@link Executor} of their choosing (i.e. the UI thread), or build on the result with {@link #transform} and
+ * {@link #then}.  Cancelling a future also cancels the command it is waiting for, and the futures it was built from.
+ *
+ * @author lehmanc
+ */
+public class ServiceFuture<T> implements Future<T> {
+
+    private static final String LOGTAG = "ServiceFuture";
+
+    /**
+     * Runs callbacks on the thread that completes the future, usually a connection's reader thread.
+     * Callbacks run this way should return quickly.
+     */
+    public static final Executor SAME_THREAD = new Executor() {
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    /**
+     * Turns the result of one future into the result of another
+     */
+    public interface Transformer<T, R> {
+        R transform(T value);
+    }
+
+    /**
+     * Starts the next request once the result of a future is known
+     */
+    public interface Continuation<T, R> {
+        ServiceFuture<R> then(T value);
+    }
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final List<Runnable> listeners = new ArrayList<Runnable>();
+
+    private T value;
+    private Exception error;
+    private boolean cancelled = false;
+    private Future<?> source;
+
+    /**
+     * Returns a future that already has its result
+     */
+    public static <T> ServiceFuture<T> completed(T value) {
+        ServiceFuture<T> future = new ServiceFuture<T>();
+        future.complete(value);
+        return future;
+    }
+
+    public static <T> ServiceFuture<T> failed(Exception e) {
+        ServiceFuture<T> future = new ServiceFuture<T>();
+        future.fail(e);
+        return future;
+    }
+
+    /**
+     * Adds a callback that is run on the thread that completes the future, or right away if it already has.
+     */
+    public void addCallback(ServiceCallback<? super T> callback) {
+        addCallback(callback, SAME_THREAD);
+    }
+
+    /**
+     * Adds a callback that is run on the executor once the future completes.  If the executor refuses to run it,
+     * {@link ServiceCallback#onFailure(Exception)} is called on the thread that completed the future.
+     */
+    public void addCallback(final ServiceCallback<? super T> callback, final Executor executor) {
+        addListener(new Runnable() {
+            public void run() {
+                try {
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            if (error != null) {
+                                callback.onFailure(error);
+                            } else {
+                                callback.onSuccess(value);
+                            }
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    Log.e(LOGTAG, "Error delivering result", e);
+                    callback.onFailure(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns a future for the result of this one, passed through the transformer.  The transformer runs on the
+     * thread that completes this future.
+     */
+    public <R> ServiceFuture<R> transform(Transformer<? super T, ? extends R> transformer) {
+        return transform(transformer, SAME_THREAD);
+    }
+
+    /**
+     * Returns a future for the result of this one, passed through the transformer on the executor.
+     */
+    public <R> ServiceFuture<R> transform(final Transformer<? super T, ? extends R> transformer, Executor executor) {
+        final ServiceFuture<R> result = new ServiceFuture<R>();
+        result.setSource(this);
+        addCallback(new ServiceCallback<T>() {
+            public void onSuccess(T value) {
+                try {
+                    result.complete(transformer.transform(value));
+                } catch (RuntimeException e) {
+                    result.fail(e);
+                }
+            }
+
+            public void onFailure(Exception e) {
+                result.fail(e);
+            }
+        }, executor);
+        return result;
+    }
+
+    /**
+     * Returns a future for the result of the request the continuation starts once this one has finished.
+     */
+    public <R> ServiceFuture<R> then(final Continuation<? super T, R> continuation) {
+        final ServiceFuture<R> result = new ServiceFuture<R>();
+        result.setSource(this);
+        addCallback(new ServiceCallback<T>() {
+            public void onSuccess(T value) {
+                ServiceFuture<R> next;
+                try {
+                    next = continuation.then(value);
+                } catch (RuntimeException e) {
+                    result.fail(e);
+                    return;
+                }
+                result.setSource(next);
+                next.addCallback(new ServiceCallback<R>() {
+                    public void onSuccess(R nextValue) {
+                        result.complete(nextValue);
+                    }
+
+                    public void onFailure(Exception e) {
+                        result.fail(e);
+                    }
+                });
+            }
+
+            public void onFailure(Exception e) {
+                result.fail(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Sets the future (i.e. the {@link CommandFuture}) this one is waiting for, so it is cancelled along with this one
+     */
+    void setSource(Future<?> source) {
+        boolean cancelSource;
+        synchronized (listeners) {
+            this.source = source;
+            cancelSource = cancelled;
+        }
+        if (cancelSource) {
+            source.cancel(false);
+        }
+    }
+
+    /**
+     * Returns the future this one is waiting for, if any
+     */
+    Future<?> getSource() {
+        synchronized (listeners) {
+            return source;
+        }
+    }
+
+    boolean complete(T value) {
+        synchronized (listeners) {
+            if (done.getCount() == 0) {
+                return false;
+            }
+            this.value = value;
+            done.countDown();
+        }
+        notifyListeners();
+        return true;
+    }
+
+    boolean fail(Exception e) {
+        synchronized (listeners) {
+            if (done.getCount() == 0) {
+                return false;
+            }
+            this.error = e;
+            done.countDown();
+        }
+        notifyListeners();
+        return true;
+    }
+
+    private void addListener(Runnable listener) {
+        synchronized (listeners) {
+            if (done.getCount() > 0) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    private void notifyListeners() {
+        List<Runnable> toNotify;
+        synchronized (listeners) {
+            toNotify = new ArrayList<Runnable>(listeners);
+            listeners.clear();
+        }
+        for (Runnable listener : toNotify) {
+            listener.run();
+        }
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        Future<?> toCancel;
+        synchronized (listeners) {
+            if (done.getCount() == 0) {
+                return false;
+            }
+            cancelled = true;
+            toCancel = source;
+        }
+        fail(new CancellationException("Request was cancelled"));
+        if (toCancel != null) {
+            toCancel.cancel(mayInterruptIfRunning);
+        }
+        return true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    public T get() throws InterruptedException, ExecutionException {
+        done.await();
+        return getResult();
+    }
+
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException("Timed out waiting for result");
+        }
+        return getResult();
+    }
+
+    private T getResult() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException("Request was cancelled");
+        }
+        if (error != null) {
+            throw new ExecutionException(error);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,155 @@
+package net.chrislehmann.squeezedroid.service;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Lets identical requests that are made while one is already on its way share it, instead of each sending the same
+ * command.  Requests are identical if they have the same key, i.e. the command string.  Everyone waiting gets the
+ * same parsed result, so it should not be changed.
+ * <p/>
+ * Every caller gets its own {@link ServiceFuture}.  Cancelling it only stops that caller waiting, the command is
+ * cancelled once everyone waiting for it has cancelled.  Once the result is in the next request sends the command
+ * again, nothing is cached.
+ *
+ * @author lehmanc
+ */
+public class SingleFlight {
+
+    /**
+     * Starts the request, if there is none to join
+     */
+    interface Call<T> {
+        ServiceFuture<T> call();
+    }
+
+    /**
+     * A request on its way, and the number of callers waiting for it
+     */
+    private static class Flight<T> {
+        private final ServiceFuture<T> result = new ServiceFuture<T>();
+        private int waiting = 1;
+    }
+
+    private final Map<String, Flight<?>> flights = new HashMap<String, Flight<?>>();
+    private long sent;
+    private long joined;
+
+    /**
+     * Returns the number of requests that were sent
+     */
+    public synchronized long getSent() {
+        return sent;
+    }
+
+    /**
+     * Returns the number of requests that joined one already on its way, the commands that did not have to be sent
+     */
+    public synchronized long getJoined() {
+        return joined;
+    }
+
+    /**
+     * Returns the number of requests on their way
+     */
+    public synchronized int getInFlight() {
+        return flights.size();
+    }
+
+    /**
+     * Joins the request with the key if one is on its way, otherwise starts it with the call
+     */
+    @SuppressWarnings("unchecked")
+    <T> ServiceFuture<T> run(final String key, Call<T> call) {
+        Flight<T> flight;
+        boolean first = false;
+        synchronized (this) {
+            flight = (Flight<T>) flights.get(key);
+            if (flight != null) {
+                flight.waiting++;
+                joined++;
+            } else {
+                flight = new Flight<T>();
+                flights.put(key, flight);
+                sent++;
+                first = true;
+            }
+        }
+        if (first) {
+            start(key, flight, call);
+        }
+        return waitFor(key, flight);
+    }
+
+    private <T> void start(final String key, final Flight<T> flight, Call<T> call) {
+        ServiceFuture<T> request;
+        try {
+            request = call.call();
+        } catch (RuntimeException e) {
+            request = ServiceFuture.failed(e);
+        }
+        flight.result.setSource(request);
+        request.addCallback(new ServiceCallback<T>() {
+            public void onSuccess(T value) {
+                landed(key, flight);
+                flight.result.complete(value);
+            }
+
+            public void onFailure(Exception e) {
+                landed(key, flight);
+                flight.result.fail(e);
+            }
+        });
+    }
+
+    private synchronized void landed(String key, Flight<?> flight) {
+        if (flights.get(key) == flight) {
+            flights.remove(key);
+        }
+    }
+
+    /**
+     * Returns a future of the caller's own for the result of the flight
+     */
+    private <T> ServiceFuture<T> waitFor(final String key, final Flight<T> flight) {
+        final ServiceFuture<T> result = new ServiceFuture<T>();
+        result.setSource(new Ticket(key, flight));
+        flight.result.addCallback(new ServiceCallback<T>() {
+            public void onSuccess(T value) {
+                result.complete(value);
+            }
+
+            public void onFailure(Exception e) {
+                result.fail(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Stands between a caller's future and the flight, so cancelling the caller's future only cancels the command
+     * once nobody else is waiting for it
+     */
+    private class Ticket extends ServiceFuture<Object> {
+        private final String key;
+        private final Flight<?> flight;
+
+        private Ticket(String key, Flight<?> flight) {
+            this.key = key;
+            this.flight = flight;
+            setSource(flight.result);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean last;
+            synchronized (SingleFlight.this) {
+                last = --flight.waiting == 0;
+                if (last) {
+                    landed(key, flight);
+                }
+            }
+            return last && flight.result.cancel(mayInterruptIfRunning);
+        }
+    }
+}
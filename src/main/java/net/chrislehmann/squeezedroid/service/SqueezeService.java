@@ -36,14 +36,31 @@ public interface SqueezeService {
 
     public BrowseResult<Item> browseFolders(Folder parent, int start, int numberOfItems);
 
+    /**
+     * Streaming version of {@link #browseFolders(Folder, int, int)}.  Returns immediately, the items are passed
+     * to the handler as they are read from the server.
+     */
+    public void browseFolders(Folder parent, int start, int numberOfItems, BrowseResultHandler<Item> handler);
+
     public BrowseResult<Artist> browseArtists(Item parent, int start, int numberOfItems);
 
     public BrowseResult<Album> browseAlbums(Item parent, int start, int numberOfItems);
 
     public BrowseResult<Album> browseAlbums(Item parent, int start, int numberOfItems, Sort sort);
 
+    /**
+     * Streaming version of {@link #browseAlbums(Item, int, int, Sort)}.
+     */
+    public void browseAlbums(Item parent, int start, int numberOfItems, Sort sort, BrowseResultHandler<Album> handler);
+
     public BrowseResult<Song> browseSongs(Item parent, int start, int numberOfItems);
 
+    /**
+     * Streaming version of {@link #browseSongs(Item, int, int)}.  Large song lists should use this, since the
+     * response is never held in memory all at once.
+     */
+    public void browseSongs(Item parent, int start, int numberOfItems, BrowseResultHandler<Song> handler);
+
     public BrowseResult<Playlist> listPlaylists(int start, int numberOfItems);
 
     public BrowseResult<Application> listApplications(int start, int numberOfItems);
@@ -100,6 +117,14 @@ public interface SqueezeService {
 
     public void unsubscribe(ServerStatusHandler onServiceStatusChanged);
 
+    /**
+     * Subscribes to the server starting and finishing scans of its library, anything read from the library before
+     * may be out of date
+     */
+    public void addRescanHandler(RescanHandler handler);
+
+    public void removeRescanHandler(RescanHandler handler);
+
     public void subscribe(String playerId, PlayerStatusHandler handler);
 
     public void unsubscribe(String playerId, PlayerStatusHandler handler);
@@ -124,4 +149,9 @@ public interface SqueezeService {
 
     List<Song> getSongsForItem(Item selectedItem);
 
+    /**
+     * Returns the non blocking version of the queries in this service, for use from the UI thread
+     */
+    public AsyncSqueezeService getAsyncService();
+
 }
\ No newline at end of file
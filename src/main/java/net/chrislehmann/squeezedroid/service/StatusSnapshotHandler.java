@@ -0,0 +1,17 @@
+package net.chrislehmann.squeezedroid.service;
+
+import net.chrislehmann.squeezedroid.model.PlayerStatus;
+
+/**
+ * A {@link PlayerStatusHandler} that is also given the whole status of the player every time the events or the
+ * server change it, so it never has to apply the events to a copy of its own.
+ *
+ * @author lehmanc
+ */
+public interface StatusSnapshotHandler extends PlayerStatusHandler {
+
+    /**
+     * @param status the status after the change.  It is shared, and must not be changed.
+     */
+    public void onStatusChanged(PlayerStatus status);
+}
@@ -0,0 +1,127 @@
+package net.chrislehmann.squeezedroid.service;
+
+import android.util.Log;
+import net.chrislehmann.util.SerializationUtils.Unserializer;
+import net.chrislehmann.util.TagTokenizer;
+
+/**
+ * {@link CommandFuture} for a command with a list response that is parsed as it is read from the socket.
+ * The {@link CliConnection} reader hands over one record at a time, which is unserialized and passed on to
+ * the {@link BrowseResultHandler}, so only a single record ever has to be held in memory.  The future itself
+ * completes with the part of the response before the first record.
+ *
+ * @author lehmanc
+ */
+public class StreamingCommandFuture<T> extends CommandFuture {
+
+    private static final String LOGTAG = "StreamingCommandFuture";
+
+    private final String recordTag;
+    private final String countTag;
+    private final Unserializer<T> unserializer;
+    private final BrowseResultHandler<T> handler;
+    private boolean totalFound = false;
+
+    /**
+     * @param recordTag    the (encoded) tag every record in the response starts with
+     * @param countTag     the (encoded) tag before or after the records that holds the total number of items
+     * @param unserializer builds an item from a single record
+     * @param handler      receives the items
+     */
+    public StreamingCommandFuture(String command, String recordTag, String countTag, Unserializer<T> unserializer, final BrowseResultHandler<T> handler) {
+        super(command);
+        this.recordTag = recordTag;
+        this.countTag = countTag;
+        this.unserializer = unserializer;
+        this.handler = handler;
+
+        addCallback(new CommandCallback() {
+            public void onResponse(String response) {
+                handler.onComplete();
+            }
+
+            public void onError(Exception e) {
+                handler.onError(e);
+            }
+        });
+    }
+
+    /**
+     * The records are parsed as they are read, so everything after the echo of the command is parsing
+     */
+    @Override
+    long getStreamedParseNanos(long now) {
+        return now - getAnsweredAt();
+    }
+
+    public String getRecordTag() {
+        return recordTag;
+    }
+
+    /**
+     * Called by the reader with everything before the first record, or the whole response if it has no records.
+     * If the count is not in it, it is looked for after the records, see {@link #lastRecord}.
+     *
+     * @param wholeResponse true if there are no records
+     */
+    void header(CharSequence header, boolean wholeResponse) {
+        if (isDone()) {
+            return;
+        }
+        TagTokenizer tokenizer = new TagTokenizer(header);
+        if (tokenizer.find(countTag)) {
+            total(tokenizer.getIntValue(0));
+        } else if (wholeResponse) {
+            Log.e(LOGTAG, "Cannot find " + countTag + " in response to '" + getCommand() + "'");
+            total(0);
+        }
+    }
+
+    /**
+     * Called by the reader with the last record, which runs to the end of the response.  Some commands put the
+     * count after the records, so it is looked for here if it wasn't in the header.
+     */
+    void lastRecord(CharSequence buffer, int start, int end) {
+        record(buffer, start, end);
+        if (isDone() || totalFound) {
+            return;
+        }
+        TagTokenizer tokenizer = new TagTokenizer(buffer, start, end, null);
+        if (tokenizer.find(countTag)) {
+            total(tokenizer.getIntValue(0));
+        } else {
+            Log.e(LOGTAG, "Cannot find " + countTag + " in response to '" + getCommand() + "'");
+            total(0);
+        }
+    }
+
+    private void total(int count) {
+        totalFound = true;
+        try {
+            handler.onTotalItems(count);
+        } catch (RuntimeException e) {
+            Log.e(LOGTAG, "Error handling response to '" + getCommand() + "'", e);
+        }
+    }
+
+    /**
+     * Called by the reader with the characters of a single record
+     */
+    void record(CharSequence buffer, int start, int end) {
+        if (isDone()) {
+            //Cancelled or timed out, the rest of the response is only being read to get it off the socket.
+            return;
+        }
+        try {
+            TagTokenizer tokenizer = new TagTokenizer(buffer, start, end, recordTag);
+            if (tokenizer.nextRecord()) {
+                T item = unserializer.unserialize(tokenizer);
+                if (item != null) {
+                    handler.onItem(item);
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.e(LOGTAG, "Error handling record in response to '" + getCommand() + "'", e);
+        }
+    }
+}
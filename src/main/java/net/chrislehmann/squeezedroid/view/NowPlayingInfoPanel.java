@@ -10,12 +10,11 @@ import android.widget.RelativeLayout;
 import android.widget.TextView;
 import net.chrislehmann.squeezedroid.R;
 import net.chrislehmann.squeezedroid.activity.SqueezedroidActivitySupport;
-import net.chrislehmann.squeezedroid.model.BrowseResult;
 import net.chrislehmann.squeezedroid.model.PlayerStatus;
 import net.chrislehmann.squeezedroid.model.Song;
-import net.chrislehmann.squeezedroid.service.PlayerStatusHandler;
+import net.chrislehmann.squeezedroid.service.PlayerStateStore;
+import net.chrislehmann.squeezedroid.service.PlayerStateStore.PlayerState;
 import net.chrislehmann.squeezedroid.service.ServiceConnectionManager;
-import net.chrislehmann.squeezedroid.service.SimplePlayerStatusHandler;
 import net.chrislehmann.squeezedroid.service.SqueezeService;
 
 /**
@@ -65,11 +64,7 @@ public class NowPlayingInfoPanel extends RelativeLayout {
 
     public void setParent(SqueezedroidActivitySupport parent) {
         if (_parent != null) {
-            _parent.runWithService(new ServiceConnectionManager.SqueezeServiceAwareThread() {
-                public void runWithService(SqueezeService service) {
-                    service.unsubscribeAll(onPlayerStatusChanged);
-                }
-            });
+            _parent.getSqueezeDroidApplication().getPlayerStateStore().removeObserver(onPlayerStateChanged);
         }
         _parent = parent;
 
@@ -77,14 +72,22 @@ public class NowPlayingInfoPanel extends RelativeLayout {
             public void runWithService(SqueezeService service) {
                 String selectedPlayer = _parent.getSelectedPlayer();
                 if (selectedPlayer != null) {
-                    service.subscribe(selectedPlayer, onPlayerStatusChanged);
-                    PlayerStatus status = service.getPlayerStatus(_parent.getSelectedPlayer());
-                    updateStatus(status);
+                    PlayerStateStore store = _parent.getSqueezeDroidApplication().getPlayerStateStore();
+                    store.observe(service, selectedPlayer, onPlayerStateChanged, _parent.getUiExecutor());
                 }
             }
         });
     }
 
+    @Override
+    protected void onDetachedFromWindow() {
+        //Stop following the player once the activity is gone
+        if (_parent != null) {
+            _parent.getSqueezeDroidApplication().getPlayerStateStore().removeObserver(onPlayerStateChanged);
+        }
+        super.onDetachedFromWindow();
+    }
+
     public void setSong(Song song) {
         _songLabel.setText(song != null ? song.getName() : "");
         _artistLabel.setText(song != null ? song.getArtist() : "");
@@ -113,47 +116,11 @@ public class NowPlayingInfoPanel extends RelativeLayout {
     }
 
     /**
-     * {@link net.chrislehmann.squeezedroid.service.PlayerStatusHandler} to handle events from the
-     * {@link net.chrislehmann.squeezedroid.service.SqueezeService}.  This will update the ui
-     * when the song changes
+     * {@link PlayerStateStore.Observer} that updates the ui when the state of the player changes
      */
-    private PlayerStatusHandler onPlayerStatusChanged = new SimplePlayerStatusHandler() {
-        public void onSongChanged(final PlayerStatus status) {
-            _parent.runWithService(new ServiceConnectionManager.SqueezeServiceAwareThread() {
-                public void runWithService(SqueezeService service) {
-                    final BrowseResult<Song> playlist = service.getCurrentPlaylist(_parent.getSelectedPlayer(), status.getCurrentIndex(), 2);
-                    _parent.runOnUiThread(new Thread() {
-                        public void run() {
-                            updateStatus(status);
-                        }
-                    });
-                }
-            });
-
-        }
-
-        public void onPlay() {
-            _parent.runOnUiThread(new Runnable() {
-                public void run() {
-                    ImageButton playButton = (ImageButton) findViewById(R.id.play_button);
-                    if (playButton != null) {
-                        playButton.setImageResource(R.drawable.pause);
-                    }
-                    ;
-                }
-            });
-        }
-
-        public void onPause() {
-            _parent.runOnUiThread(new Runnable() {
-                public void run() {
-                    ImageButton playButton = (ImageButton) findViewById(R.id.play_button);
-                    if (playButton != null) {
-                        playButton.setImageResource(R.drawable.play);
-                    }
-                    ;
-                }
-            });
+    private PlayerStateStore.Observer onPlayerStateChanged = new PlayerStateStore.Observer() {
+        public void onStateChanged(PlayerState state) {
+            updateStatus(state.getStatus());
         }
     };
 
@@ -13,8 +13,10 @@ import android.widget.Toast;
 import net.chrislehmann.squeezedroid.R;
 import net.chrislehmann.squeezedroid.activity.SqueezedroidActivitySupport;
 import net.chrislehmann.squeezedroid.model.Player;
-import net.chrislehmann.squeezedroid.model.PlayerStatus;
+import net.chrislehmann.squeezedroid.service.PlayerStateStore;
+import net.chrislehmann.squeezedroid.service.PlayerStateStore.PlayerState;
 import net.chrislehmann.squeezedroid.service.PlayerStatusHandler;
+import net.chrislehmann.squeezedroid.service.ServiceCallback;
 import net.chrislehmann.squeezedroid.service.ServiceConnectionManager;
 import net.chrislehmann.squeezedroid.service.SimplePlayerStatusHandler;
 import net.chrislehmann.squeezedroid.service.SqueezeService;
@@ -27,14 +29,14 @@ public class PlayerSyncPanel extends LinearLayout {
     private static final String LOGTAG = "PlayerSyncPanel";
 
     private class Syncronization {
-        public Syncronization(View view, PlayerStatusHandler volumeHandler, PlayerStatusHandler syncHandler) {
+        public Syncronization(View view, PlayerStateStore.Observer volumeObserver, PlayerStatusHandler syncHandler) {
             this.view = view;
-            this.volumeHandler = volumeHandler;
+            this.volumeObserver = volumeObserver;
             this.syncHandler = syncHandler;
         }
 
         public View view;
-        public PlayerStatusHandler volumeHandler;
+        public PlayerStateStore.Observer volumeObserver;
         public PlayerStatusHandler syncHandler;
     }
 
@@ -68,7 +70,7 @@ public class PlayerSyncPanel extends LinearLayout {
             final Syncronization sync = syncronizations.get(playerId);
             public void runWithService(SqueezeService service) {
                 service.unsubscribeAll(sync.syncHandler);
-                service.unsubscribeAll(sync.volumeHandler);
+                getPlayerStateStore().removeObserver(playerId, sync.volumeObserver);
                 parent.runOnUiThread(new Runnable() {
                     public void run() {
                         removeView(sync.view);
@@ -83,32 +85,40 @@ public class PlayerSyncPanel extends LinearLayout {
 
         parent.runWithService(new ServiceConnectionManager.SqueezeServiceAwareThread() {
             public void runWithService(final SqueezeService service) {
-                final Player newPlayer = service.getPlayer(playerId);
-
-                parent.runOnUiThread(new Runnable() {
-                    public void run() {
+                service.getAsyncService().getPlayer(playerId).addCallback(new ServiceCallback<Player>() {
+                    public void onSuccess(Player newPlayer) {
+                        if (newPlayer == null) {
+                            Log.e(LOGTAG, "Player " + playerId + " is not connected to the server");
+                            return;
+                        }
                         addSynchronization(service, newPlayer, true);
                         for (Player syncedPlayer : newPlayer.getSyncronizedPlayers()) {
                             addSynchronization(service, syncedPlayer, false);
                         }
+                        selectedPlayerId = newPlayer.getId();
                     }
-                });
-
 
-                selectedPlayerId = newPlayer.getId();
+                    public void onFailure(Exception e) {
+                        Log.e(LOGTAG, "Error loading player " + playerId, e);
+                    }
+                }, parent.getUiExecutor());
             }
         });
 
     }
 
-    private void addSynchronization(SqueezeService service, Player syncedPlayer, boolean isPrimary) {
-        if (!syncronizations.containsKey(syncedPlayer.getId())) {
+    private PlayerStateStore getPlayerStateStore() {
+        return parent.getSqueezeDroidApplication().getPlayerStateStore();
+    }
 
-            PlayerStatus status = service.getPlayerStatus(syncedPlayer.getId());
+    /**
+     * Adds the controls for a player.  Called on the UI thread, the volume follows the state of the player.
+     */
+    private void addSynchronization(SqueezeService service, final Player syncedPlayer, boolean isPrimary) {
+        if (!syncronizations.containsKey(syncedPlayer.getId())) {
 
             View view = LayoutInflater.from(getContext()).inflate(R.layout.player_sync_control_layout, null);
-            SeekBar volumeSeekBar = (SeekBar) view.findViewById(R.id.volume_seek_bar);
-            volumeSeekBar.setProgress(status.getVolume());
+            final SeekBar volumeSeekBar = (SeekBar) view.findViewById(R.id.volume_seek_bar);
             volumeSeekBar.setOnSeekBarChangeListener(new OnVolumeChangedListener(syncedPlayer.getId()));
 
             ImageButton unsyncButton = (ImageButton) view.findViewById(R.id.unsync_button);
@@ -118,11 +128,11 @@ public class PlayerSyncPanel extends LinearLayout {
                 unsyncButton.setOnClickListener(new OnUnsyncButtonPressedListener(syncedPlayer));
             }
 
-            PlayerStatusHandler volumeHandler = new VolumeChangedStatusHandler(volumeSeekBar);
-            service.subscribe(syncedPlayer.getId(), volumeHandler);
+            PlayerStateStore.Observer volumeObserver = new VolumeObserver(volumeSeekBar);
+            getPlayerStateStore().observe(service, syncedPlayer.getId(), volumeObserver, parent.getUiExecutor());
 
             PlayerStatusHandler syncHandler = new MainPlayerOnSyncHandler();
-            syncronizations.put(syncedPlayer.getId(), new Syncronization(view, volumeHandler, syncHandler));
+            syncronizations.put(syncedPlayer.getId(), new Syncronization(view, volumeObserver, syncHandler));
             service.subscribe(syncedPlayer.getId(), syncHandler);
 
             TextView playerNameLabel = (TextView) view.findViewById(R.id.player_name_text);
@@ -191,16 +201,15 @@ public class PlayerSyncPanel extends LinearLayout {
 
     ;
 
-    private class VolumeChangedStatusHandler extends SimplePlayerStatusHandler {
+    private class VolumeObserver implements PlayerStateStore.Observer {
         private SeekBar seekBar;
 
-        public VolumeChangedStatusHandler(SeekBar seekBar) {
+        public VolumeObserver(SeekBar seekBar) {
             this.seekBar = seekBar;
         }
 
-        @Override
-        public void onVolumeChanged(int newVolume) {
-            this.seekBar.setProgress(newVolume);
+        public void onStateChanged(PlayerState state) {
+            this.seekBar.setProgress(state.getStatus().getVolume());
         }
     }
 
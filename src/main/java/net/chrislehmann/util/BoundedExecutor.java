@@ -0,0 +1,289 @@
+package net.chrislehmann.util;
+
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Named pool of a fixed number of threads with a bounded queue.  Threads are started as work arrives, up to the
+ * limit, and are named after the pool (i.e. <code>io-2</code>) so they are easy to spot in a thread dump.  What
+ * happens once the queue is full is up to the {@link RejectionPolicy}.
+ * <p/>
+ * Keeps track of how long work waits in the queue and how long it takes to run, see {@link #getStats()}.
+ *
+ * @author lehmanc
+ */
+public class BoundedExecutor implements Executor {
+
+    private static final String LOGTAG = "BoundedExecutor";
+
+    /**
+     * What to do with work that arrives while the queue is full
+     */
+    public enum RejectionPolicy {
+        /**
+         * Throw a {@link RejectedExecutionException} back to the caller
+         */
+        ABORT,
+        /**
+         * Run the work on the calling thread, which slows the caller down to the speed of the pool
+         */
+        CALLER_RUNS,
+        /**
+         * Drop the work that has been waiting the longest to make room.  Dropped futures are cancelled.
+         */
+        DISCARD_OLDEST
+    }
+
+    /**
+     * Snapshot of the state of the pool
+     */
+    public static class Stats {
+        private String name;
+        private int threads;
+        private int active;
+        private int largestThreads;
+        private int queued;
+        private long submitted;
+        private long completed;
+        private long rejected;
+        private long discarded;
+        private long averageQueueMillis;
+        private long maxQueueMillis;
+        private long averageRunMillis;
+        private long maxRunMillis;
+
+        public String getName() {
+            return name;
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+
+        /**
+         * Number of threads running work right now
+         */
+        public int getActive() {
+            return active;
+        }
+
+        public int getLargestThreads() {
+            return largestThreads;
+        }
+
+        /**
+         * Amount of work waiting for a thread
+         */
+        public int getQueued() {
+            return queued;
+        }
+
+        public long getSubmitted() {
+            return submitted;
+        }
+
+        public long getCompleted() {
+            return completed;
+        }
+
+        /**
+         * Amount of work that was refused (or run on the caller's thread, for {@link RejectionPolicy#CALLER_RUNS})
+         */
+        public long getRejected() {
+            return rejected;
+        }
+
+        /**
+         * Amount of work that was dropped to make room, for {@link RejectionPolicy#DISCARD_OLDEST}
+         */
+        public long getDiscarded() {
+            return discarded;
+        }
+
+        public long getAverageQueueMillis() {
+            return averageQueueMillis;
+        }
+
+        public long getMaxQueueMillis() {
+            return maxQueueMillis;
+        }
+
+        public long getAverageRunMillis() {
+            return averageRunMillis;
+        }
+
+        public long getMaxRunMillis() {
+            return maxRunMillis;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": threads=" + threads + " active=" + active + " largest=" + largestThreads + " queued=" + queued
+                    + " submitted=" + submitted + " completed=" + completed + " rejected=" + rejected + " discarded=" + discarded
+                    + " avgQueueMs=" + averageQueueMillis + " maxQueueMs=" + maxQueueMillis
+                    + " avgRunMs=" + averageRunMillis + " maxRunMs=" + maxRunMillis;
+        }
+    }
+
+    /**
+     * Work as it sits in the queue, so the time spent waiting can be measured
+     */
+    private class Task implements Runnable {
+        private final Runnable command;
+        private final long queuedAt = System.currentTimeMillis();
+
+        Task(Runnable command) {
+            this.command = command;
+        }
+
+        public void run() {
+            long start = System.currentTimeMillis();
+            try {
+                command.run();
+            } catch (RuntimeException e) {
+                Log.e(LOGTAG, "Error running task in " + name, e);
+            } finally {
+                long end = System.currentTimeMillis();
+                synchronized (statsLock) {
+                    completed++;
+                    totalQueueMillis += start - queuedAt;
+                    maxQueueMillis = Math.max(maxQueueMillis, start - queuedAt);
+                    totalRunMillis += end - start;
+                    maxRunMillis = Math.max(maxRunMillis, end - start);
+                }
+            }
+        }
+    }
+
+    private final String name;
+    private final RejectionPolicy policy;
+    private final ThreadPoolExecutor pool;
+
+    private final Object statsLock = new Object();
+    private long submitted = 0;
+    private long completed = 0;
+    private long rejected = 0;
+    private long discarded = 0;
+    private long totalQueueMillis = 0;
+    private long maxQueueMillis = 0;
+    private long totalRunMillis = 0;
+    private long maxRunMillis = 0;
+
+    /**
+     * @param name          prefix for the names of the threads
+     * @param threads       maximum number of threads
+     * @param queueCapacity maximum amount of work waiting for a thread
+     * @param policy        what to do with work that arrives while the queue is full
+     */
+    public BoundedExecutor(final String name, int threads, int queueCapacity, RejectionPolicy policy) {
+        this.name = name;
+        this.policy = policy;
+
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private int count = 0;
+
+            public synchronized Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + (++count));
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        RejectedExecutionHandler onRejected = new RejectedExecutionHandler() {
+            public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+                rejected(runnable, executor);
+            }
+        };
+        pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueCapacity), threadFactory, onRejected);
+    }
+
+    /**
+     * Runs the command on one of the threads of the pool.
+     *
+     * @throws RejectedExecutionException if the queue is full and the policy is {@link RejectionPolicy#ABORT},
+     *                                    or the pool has been shut down
+     */
+    public void execute(Runnable command) {
+        synchronized (statsLock) {
+            submitted++;
+        }
+        pool.execute(new Task(command));
+    }
+
+    /**
+     * Runs the command on one of the threads of the pool, returning a {@link Future} that can be used to
+     * cancel (and interrupt) it.
+     */
+    public Future<?> submit(Runnable command) {
+        FutureTask<Object> future = new FutureTask<Object>(command, null);
+        execute(future);
+        return future;
+    }
+
+    private void rejected(Runnable runnable, ThreadPoolExecutor executor) {
+        synchronized (statsLock) {
+            rejected++;
+        }
+        if (executor.isShutdown()) {
+            throw new RejectedExecutionException(name + " has been shut down");
+        }
+
+        switch (policy) {
+            case CALLER_RUNS:
+                runnable.run();
+                break;
+            case DISCARD_OLDEST:
+                Runnable oldest = executor.getQueue().poll();
+                if (oldest instanceof Task && ((Task) oldest).command instanceof Future) {
+                    ((Future<?>) ((Task) oldest).command).cancel(false);
+                }
+                synchronized (statsLock) {
+                    discarded++;
+                }
+                executor.execute(runnable);
+                break;
+            default:
+                Log.w(LOGTAG, name + " is full, " + executor.getQueue().size() + " tasks waiting");
+                throw new RejectedExecutionException(name + " is full");
+        }
+    }
+
+    /**
+     * Stops taking new work and interrupts the work that is running.  Work that is still waiting is dropped.
+     */
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Stats getStats() {
+        Stats stats = new Stats();
+        stats.name = name;
+        stats.threads = pool.getPoolSize();
+        stats.active = pool.getActiveCount();
+        stats.largestThreads = pool.getLargestPoolSize();
+        stats.queued = pool.getQueue().size();
+        synchronized (statsLock) {
+            stats.submitted = submitted;
+            stats.completed = completed;
+            stats.rejected = rejected;
+            stats.discarded = discarded;
+            stats.averageQueueMillis = completed == 0 ? 0 : totalQueueMillis / completed;
+            stats.maxQueueMillis = maxQueueMillis;
+            stats.averageRunMillis = completed == 0 ? 0 : totalRunMillis / completed;
+            stats.maxRunMillis = maxRunMillis;
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * 
+ */
+package net.chrislehmann.util;
+
+import android.util.Log;
+import net.chrislehmann.util.ImageLoader.Group;
+
+import java.net.URL;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Downloads the next image in the queue.  One task is run on the image executor for every image queued, if the
+ * image was replaced in the queue in the mean time there may be nothing left for it to do.
+ */
+class DownloadTask implements Runnable
+{
+   private static final String LOGTAG = "ImageLoader.DownloadTask";
+   private BlockingQueue<Group> groupQueue;
+   private ImageCache groupCache;
+
+   public DownloadTask( ImageCache cache, BlockingQueue<Group> queue)
+   {
+      this.groupCache = cache;
+      groupQueue = queue;
+   }
+   
+   public void run()
+   {
+      Group currentGroup = groupQueue.poll();
+      if( currentGroup == null )
+      {
+         return;
+      }
+      try
+      {
+         Log.d( LOGTAG, "Got image group from queue: " + currentGroup.url );
+         if( !groupCache.has( currentGroup.url ) )
+         {
+            groupCache.put( currentGroup.url, new URL( currentGroup.url ) );
+         }
+
+         Runnable threadCallback = new OnDownloadCompleteHandler( this.groupCache, currentGroup );
+         Log.d( LOGTAG, "Download finished for image " + currentGroup.url + ", Executing callback" );
+         currentGroup.handler.post( threadCallback );
+      }
+      catch ( Exception ex )
+      {
+         Log.e( LOGTAG, "Error fetching image", ex );
+      }
+   }
+}
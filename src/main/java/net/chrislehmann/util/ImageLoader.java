@@ -9,17 +9,20 @@ import org.apache.commons.lang.builder.HashCodeBuilder;
 
 import java.net.Authenticator;
 import java.net.PasswordAuthentication;
-import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Singleton that can load {@link ImageView}s with data from a Url and cache them.  The {@link ImageLoader}
  * is backed by some {@link ImageCache} that will cache previously-downloaded images.  By default,
  * the {@link ImageLoader} will try to use the {@link FileImageCache} (if the sd card is writeable), but will
  * fall back on the {@link MemoryImageCache} if needed.
+ * <p/>
+ * Images are downloaded on the {@link Executor} passed to {@link #setExecutor(Executor)}, nothing is downloaded
+ * until there is one.
  *
  * @author lehmanc
  */
@@ -35,15 +38,10 @@ public enum ImageLoader {
     static final String LOGTAG = "ImageLoader";
 
     private BlockingQueue<Group> _queue;
-    private List<DownloadThread> _threads;
-    private int numThreads = 4;
+    private volatile Executor _executor;
+    private volatile boolean _stopped = false;
     ImageCache _cache;
 
-    /**
-     * Group passed to Downlad queue to indicate that the Thread should be stopped
-     */
-    public static final Group STOP_GROUP = new Group(null, null, null);
-
 
     private class UsernamePasswordAuthenticator extends Authenticator {
         String username;
@@ -90,7 +88,17 @@ public enum ImageLoader {
             Log.i(LOGTAG, "Can't write to sd card, Using memory based image cache");
         }
         _queue = new LinkedBlockingQueue<Group>();
-        start();
+    }
+
+    /**
+     * Sets the {@link Executor} images are downloaded on.  Images that were queued before there was one are
+     * downloaded now.
+     */
+    public void setExecutor(Executor executor) {
+        _executor = executor;
+        for (int i = 0; i < _queue.size(); i++) {
+            scheduleDownload();
+        }
     }
 
     /**
@@ -128,31 +136,23 @@ public enum ImageLoader {
 
 
     /**
-     * Clear out the queue of items to be downloaded and stops all of the download threads.  Any calls to {@link ImageLoader#load(ImageView, String)}
+     * Clear out the queue of items to be downloaded.  Any calls to {@link ImageLoader#load(ImageView, String)}
      * will do nothing until {@link ImageLoader#start()} is called
      */
     public void stop() {
+        _stopped = true;
         clearQueue();
-        for (int i = 0; i < numThreads; i++) {
-            _queue.offer(STOP_GROUP);
-        }
     }
 
     /**
-     * Starts all of the download threads.
+     * Starts downloading images again after {@link #stop()}
      */
     public void start() {
-        _threads = new ArrayList<DownloadThread>();
-        for (int i = 0; i < numThreads; i++) {
-            DownloadThread thread = new DownloadThread(_cache, _queue);
-            _threads.add(thread);
-            thread.start();
-        }
-
+        _stopped = false;
     }
 
     protected void queue(ImageView image, String url) {
-        if (image != null) {
+        if (image != null && !_stopped) {
             Iterator<Group> it = _queue.iterator();
             while (it.hasNext()) {
                 Group group = it.next();
@@ -165,7 +165,20 @@ public enum ImageLoader {
             Log.d(LOGTAG, "Queue size before add: " + _queue.size());
             _queue.offer(new Group(image, url, new Handler()));
             Log.d(LOGTAG, "Image added to queue: " + url);
+            scheduleDownload();
+        }
+    }
 
+    private void scheduleDownload() {
+        Executor executor = _executor;
+        if (executor == null) {
+            return;
+        }
+        try {
+            executor.execute(new DownloadTask(_cache, _queue));
+        } catch (RejectedExecutionException e) {
+            //The image stays in the queue, the next download will pick it up
+            Log.w(LOGTAG, "Too many images waiting to download");
         }
     }
 
@@ -0,0 +1,146 @@
+package net.chrislehmann.util;
+
+/**
+ * Histogram of durations in microseconds, cheap enough to record every command.  Each power of two is split into
+ * four buckets, so values (and the percentiles read back) are within 25% of the real ones, from 1us up to about
+ * 19 hours.
+ *
+ * @author lehmanc
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 4;
+    private static final int MAX_EXPONENT = 36;
+    private static final int BUCKETS = SUB_BUCKETS * MAX_EXPONENT;
+
+    /**
+     * Snapshot of a histogram
+     */
+    public static class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long totalMicros;
+        private final long maxMicros;
+
+        private Snapshot(long[] counts, long count, long totalMicros, long maxMicros) {
+            this.counts = counts;
+            this.count = count;
+            this.totalMicros = totalMicros;
+            this.maxMicros = maxMicros;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotalMicros() {
+            return totalMicros;
+        }
+
+        public long getMaxMicros() {
+            return maxMicros;
+        }
+
+        public long getAverageMicros() {
+            return count == 0 ? 0 : totalMicros / count;
+        }
+
+        /**
+         * Returns the value the given fraction (i.e. 0.99) of the samples are at or below.  This is the upper end of
+         * the bucket it falls in, never more than the largest sample.
+         */
+        public long getPercentileMicros(double fraction) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(fraction * count);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] > 0) {
+                    return Math.min(upperBound(i), maxMicros);
+                }
+            }
+            return maxMicros;
+        }
+
+        /**
+         * Returns the number of buckets, for {@link #getBucketCount(int)} and {@link #getBucketUpperMicros(int)}
+         */
+        public int getBuckets() {
+            return counts.length;
+        }
+
+        public long getBucketCount(int bucket) {
+            return counts[bucket];
+        }
+
+        public long getBucketUpperMicros(int bucket) {
+            return upperBound(bucket);
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + " avgUs=" + getAverageMicros() + " p50Us=" + getPercentileMicros(0.5)
+                    + " p90Us=" + getPercentileMicros(0.9) + " p99Us=" + getPercentileMicros(0.99) + " maxUs=" + maxMicros;
+        }
+    }
+
+    private final long[] counts = new long[BUCKETS];
+    private long count = 0;
+    private long totalMicros = 0;
+    private long maxMicros = 0;
+
+    public synchronized void recordMicros(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        counts[bucket(micros)]++;
+        count++;
+        totalMicros += micros;
+        maxMicros = Math.max(maxMicros, micros);
+    }
+
+    public void recordMillis(long millis) {
+        recordMicros(millis * 1000);
+    }
+
+    public void recordNanos(long nanos) {
+        recordMicros(nanos / 1000);
+    }
+
+    public synchronized Snapshot getSnapshot() {
+        return new Snapshot(counts.clone(), count, totalMicros, maxMicros);
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = 0;
+        }
+        count = 0;
+        totalMicros = 0;
+        maxMicros = 0;
+    }
+
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent >= MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (value >> (exponent - 2)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS * (exponent - 1) + sub;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + 1;
+        int sub = bucket % SUB_BUCKETS;
+        long lower = ((long) SUB_BUCKETS + sub) << (exponent - 2);
+        return lower + (1L << (exponent - 2)) - 1;
+    }
+}
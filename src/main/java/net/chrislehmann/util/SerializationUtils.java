@@ -2,152 +2,267 @@ package net.chrislehmann.util;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class SerializationUtils
 {
-   public static <T> List<T> unserializeList(Pattern pattern, String input, Unserializer<T> unserializer)
+   /**
+    * Unserializes every record in a CLI response.  Records start with the (encoded) tag passed in,
+    * the {@link Unserializer} reads the rest of the record through {@link TagTokenizer#nextTag()}.
+    */
+   public static <T> List<T> unserializeList(String input, String recordTag, Unserializer<T> unserializer)
    {
       List<T> items = new ArrayList<T>();
 
-      Matcher matcher = pattern.matcher( input );
-
-      while ( matcher.find() )
+      TagTokenizer tokenizer = new TagTokenizer( input, recordTag );
+      while ( tokenizer.nextRecord() )
       {
-         items.add( unserializer.unserialize( matcher ) );
+         T item = unserializer.unserialize( tokenizer );
+         if ( item != null )
+         {
+            items.add( item );
+         }
       }
 
       return items;
    }
 
-   public static <T> T unserialize(Pattern pattern, String input, Unserializer<T> unserializer)
+   /**
+    * Unserializes the first record in a CLI response, or returns null if there isn't one.
+    */
+   public static <T> T unserialize(String input, String recordTag, Unserializer<T> unserializer)
    {
       T object = null;
-      Matcher matcher = pattern.matcher( input );
-      if ( matcher.find() )
+      TagTokenizer tokenizer = new TagTokenizer( input, recordTag );
+      if ( tokenizer.nextRecord() )
       {
-         object = unserializer.unserialize( matcher );
+         object = unserializer.unserialize( tokenizer );
       }
 
       return object;
    }
 
+   /**
+    * Returns the raw value of the first token in the input with the given tag, or null
+    * if there is no such token.
+    */
+   public static String findValue(String input, String tag)
+   {
+      TagTokenizer tokenizer = new TagTokenizer( input );
+      return tokenizer.find( tag ) ? tokenizer.getValue() : null;
+   }
+
 
    /**
-    * Lifted from http://www.w3.org/International/O-URL-code.html
+    * Decodes a percent encoded (UTF-8) string.  If there is nothing to decode the string passed in is returned.
     * @param s String to decode
-    * @return a decoded string
+    * @return a decoded string, or an empty string if s is null
     */
    public static String decode(String s)
    {
-      StringBuffer sbuf = new StringBuffer();
-      if ( s != null )
+      if ( s == null )
+      {
+         return "";
+      }
+      return decode( s, 0, s.length() );
+   }
+
+   /**
+    * Decodes the characters between start (inclusive) and end (exclusive) without copying them out first.
+    * Escapes are decoded as UTF-8 straight into a per-thread buffer.  Characters outside of the basic plane
+    * become surrogate pairs, and malformed sequences become U+FFFD.  A '%' that is not followed by two hex
+    * digits is kept as it is.
+    */
+   public static String decode(CharSequence s, int start, int end)
+   {
+      int i = start;
+      while ( i < end && s.charAt( i ) != '%' && s.charAt( i ) != '+' )
+      {
+         i++;
+      }
+      if ( i == end )
+      {
+         if ( s instanceof String )
+         {
+            return ((String) s).substring( start, end );
+         }
+         return s.subSequence( start, end ).toString();
+      }
+
+      //Decoding never makes the string longer
+      char[] buffer = getBuffer( end - start );
+      int length = 0;
+      for ( int k = start; k < i; k++ )
       {
+         buffer[length++] = s.charAt( k );
+      }
 
-         int l = s.length();
-         int ch = -1;
-         int b, sumb = 0;
-         for ( int i = 0, more = -1; i < l; i++ )
+      while ( i < end )
+      {
+         char c = s.charAt( i );
+         if ( c == '+' )
+         {
+            buffer[length++] = ' ';
+            i++;
+            continue;
+         }
+         int b = c == '%' ? decodeByte( s, i, end ) : -1;
+         if ( b < 0 )
+         {
+            buffer[length++] = c;
+            i++;
+            continue;
+         }
+         i += 3;
+         if ( b < 0x80 )
          {
-            /* Get next byte b from URL segment s */
-            switch ( ch = s.charAt( i ) )
+            buffer[length++] = (char) b;
+            continue;
+         }
+
+         int more;
+         int codePoint;
+         int min;
+         if ( (b & 0xe0) == 0xc0 )
+         { // 110xxxxx
+            more = 1;
+            codePoint = b & 0x1f;
+            min = 0x80;
+         }
+         else if ( (b & 0xf0) == 0xe0 )
+         { // 1110xxxx
+            more = 2;
+            codePoint = b & 0x0f;
+            min = 0x800;
+         }
+         else if ( (b & 0xf8) == 0xf0 )
+         { // 11110xxx
+            more = 3;
+            codePoint = b & 0x07;
+            min = 0x10000;
+         }
+         else
+         { // stray continuation byte or invalid lead byte
+            buffer[length++] = REPLACEMENT_CHARACTER;
+            continue;
+         }
+
+         int next = i;
+         boolean complete = true;
+         for ( int k = 0; k < more; k++ )
+         {
+            int continuation = decodeByte( s, next, end );
+            if ( continuation < 0 || (continuation & 0xc0) != 0x80 )
             {
-               case '%' :
-                  ch = s.charAt( ++i );
-                  int hb = (Character.isDigit( (char) ch ) ? ch - '0' : 10 + Character.toLowerCase( (char) ch ) - 'a') & 0xF;
-                  ch = s.charAt( ++i );
-                  int lb = (Character.isDigit( (char) ch ) ? ch - '0' : 10 + Character.toLowerCase( (char) ch ) - 'a') & 0xF;
-                  b = (hb << 4) | lb;
-                  break;
-               case '+' :
-                  b = ' ';
-                  break;
-               default :
-                  b = ch;
-            }
-            /* Decode byte b as UTF-8, sumb collects incomplete chars */
-            if ( (b & 0xc0) == 0x80 )
-            { // 10xxxxxx (continuation byte)
-               sumb = (sumb << 6) | (b & 0x3f); // Add 6 bits to sumb
-               if ( --more == 0 )
-                  sbuf.append( (char) sumb ); // Add char to sbuf
-            }
-            else if ( (b & 0x80) == 0x00 )
-            { // 0xxxxxxx (yields 7 bits)
-               sbuf.append( (char) b ); // Store in sbuf
-            }
-            else if ( (b & 0xe0) == 0xc0 )
-            { // 110xxxxx (yields 5 bits)
-               sumb = b & 0x1f;
-               more = 1; // Expect 1 more byte
-            }
-            else if ( (b & 0xf0) == 0xe0 )
-            { // 1110xxxx (yields 4 bits)
-               sumb = b & 0x0f;
-               more = 2; // Expect 2 more bytes
+               complete = false;
+               break;
             }
-            else if ( (b & 0xf8) == 0xf0 )
-            { // 11110xxx (yields 3 bits)
-               sumb = b & 0x07;
-               more = 3; // Expect 3 more bytes
-            }
-            else if ( (b & 0xfc) == 0xf8 )
-            { // 111110xx (yields 2 bits)
-               sumb = b & 0x03;
-               more = 4; // Expect 4 more bytes
-            }
-            else
-            /*if ((b & 0xfe) == 0xfc)*/{ // 1111110x (yields 1 bit)
-               sumb = b & 0x01;
-               more = 5; // Expect 5 more bytes
-            }
-            /* We don't test if the UTF-8 encoding is well-formed */
+            codePoint = (codePoint << 6) | (continuation & 0x3f);
+            next += 3;
+         }
+
+         if ( !complete )
+         {
+            //Only the lead byte is dropped, so whatever comes next is decoded on its own
+            buffer[length++] = REPLACEMENT_CHARACTER;
+         }
+         else if ( codePoint < min || codePoint > 0x10ffff || (codePoint >= 0xd800 && codePoint <= 0xdfff) )
+         {
+            //Overlong encodings, surrogates and values beyond unicode
+            buffer[length++] = REPLACEMENT_CHARACTER;
+            i = next;
+         }
+         else if ( codePoint >= 0x10000 )
+         {
+            codePoint -= 0x10000;
+            buffer[length++] = (char) (0xd800 + (codePoint >> 10));
+            buffer[length++] = (char) (0xdc00 + (codePoint & 0x3ff));
+            i = next;
+         }
+         else
+         {
+            buffer[length++] = (char) codePoint;
+            i = next;
          }
       }
 
-      return sbuf.toString();
+      return new String( buffer, 0, length );
    }
 
+   /**
+    * Returns the byte of the %xx escape at position i, or -1 if there isn't a valid escape there.
+    */
+   private static int decodeByte(CharSequence s, int i, int end)
+   {
+      if ( i + 2 >= end || s.charAt( i ) != '%' )
+      {
+         return -1;
+      }
+      int high = hexValue( s.charAt( i + 1 ) );
+      int low = hexValue( s.charAt( i + 2 ) );
+      if ( high < 0 || low < 0 )
+      {
+         return -1;
+      }
+      return (high << 4) | low;
+   }
+
+   private static int hexValue(char c)
+   {
+      if ( c >= '0' && c <= '9' )
+      {
+         return c - '0';
+      }
+      if ( c >= 'a' && c <= 'f' )
+      {
+         return c - 'a' + 10;
+      }
+      if ( c >= 'A' && c <= 'F' )
+      {
+         return c - 'A' + 10;
+      }
+      return -1;
+   }
+
+   /**
+    * Returns this thread's buffer, making sure it can hold at least size characters.  Buffers over
+    * {@link #MAX_RETAINED_BUFFER} are not kept, so one huge value does not pin the memory forever.
+    */
+   private static char[] getBuffer(int size)
+   {
+      char[] buffer = buffers.get();
+      if ( buffer.length < size )
+      {
+         buffer = new char[Math.max( size, buffer.length * 2 )];
+         if ( buffer.length <= MAX_RETAINED_BUFFER )
+         {
+            buffers.set( buffer );
+         }
+      }
+      return buffer;
+   }
+
+   /**
+    * Builds an object from a single record.  The tokenizer is positioned at the start of the record,
+    * so the first call to {@link TagTokenizer#nextTag()} returns the record tag.  Implementations are
+    * shared between threads, so they should not keep any state of their own.
+    */
    public interface Unserializer<T>
    {
-      T unserialize(Matcher matcher);
+      T unserialize(TagTokenizer record);
    }
    
-   private final static String[] hex = {
-      "%00", "%01", "%02", "%03", "%04", "%05", "%06", "%07",
-      "%08", "%09", "%0a", "%0b", "%0c", "%0d", "%0e", "%0f",
-      "%10", "%11", "%12", "%13", "%14", "%15", "%16", "%17",
-      "%18", "%19", "%1a", "%1b", "%1c", "%1d", "%1e", "%1f",
-      "%20", "%21", "%22", "%23", "%24", "%25", "%26", "%27",
-      "%28", "%29", "%2a", "%2b", "%2c", "%2d", "%2e", "%2f",
-      "%30", "%31", "%32", "%33", "%34", "%35", "%36", "%37",
-      "%38", "%39", "%3a", "%3b", "%3c", "%3d", "%3e", "%3f",
-      "%40", "%41", "%42", "%43", "%44", "%45", "%46", "%47",
-      "%48", "%49", "%4a", "%4b", "%4c", "%4d", "%4e", "%4f",
-      "%50", "%51", "%52", "%53", "%54", "%55", "%56", "%57",
-      "%58", "%59", "%5a", "%5b", "%5c", "%5d", "%5e", "%5f",
-      "%60", "%61", "%62", "%63", "%64", "%65", "%66", "%67",
-      "%68", "%69", "%6a", "%6b", "%6c", "%6d", "%6e", "%6f",
-      "%70", "%71", "%72", "%73", "%74", "%75", "%76", "%77",
-      "%78", "%79", "%7a", "%7b", "%7c", "%7d", "%7e", "%7f",
-      "%80", "%81", "%82", "%83", "%84", "%85", "%86", "%87",
-      "%88", "%89", "%8a", "%8b", "%8c", "%8d", "%8e", "%8f",
-      "%90", "%91", "%92", "%93", "%94", "%95", "%96", "%97",
-      "%98", "%99", "%9a", "%9b", "%9c", "%9d", "%9e", "%9f",
-      "%a0", "%a1", "%a2", "%a3", "%a4", "%a5", "%a6", "%a7",
-      "%a8", "%a9", "%aa", "%ab", "%ac", "%ad", "%ae", "%af",
-      "%b0", "%b1", "%b2", "%b3", "%b4", "%b5", "%b6", "%b7",
-      "%b8", "%b9", "%ba", "%bb", "%bc", "%bd", "%be", "%bf",
-      "%c0", "%c1", "%c2", "%c3", "%c4", "%c5", "%c6", "%c7",
-      "%c8", "%c9", "%ca", "%cb", "%cc", "%cd", "%ce", "%cf",
-      "%d0", "%d1", "%d2", "%d3", "%d4", "%d5", "%d6", "%d7",
-      "%d8", "%d9", "%da", "%db", "%dc", "%dd", "%de", "%df",
-      "%e0", "%e1", "%e2", "%e3", "%e4", "%e5", "%e6", "%e7",
-      "%e8", "%e9", "%ea", "%eb", "%ec", "%ed", "%ee", "%ef",
-      "%f0", "%f1", "%f2", "%f3", "%f4", "%f5", "%f6", "%f7",
-      "%f8", "%f9", "%fa", "%fb", "%fc", "%fd", "%fe", "%ff"
-    };
+   private static final char REPLACEMENT_CHARACTER = '\ufffd';
+   private static final int MAX_RETAINED_BUFFER = 16 * 1024;
+   private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+   private static final ThreadLocal<char[]> buffers = new ThreadLocal<char[]>()
+   {
+      @Override
+      protected char[] initialValue()
+      {
+         return new char[256];
+      }
+   };
 
     /**
      * Encode a string to the "x-www-form-urlencoded" form, enhanced
@@ -167,44 +282,71 @@ public class SerializationUtils
      *        code
      *
      * <li><p>All non-ASCII characters are encoded in two steps: first
-     *        to a sequence of 2 or 3 bytes, using the UTF-8 algorithm;
-     *        secondly each of these bytes is encoded as "%xx".
+     *        to a sequence of 2, 3 or 4 (for surrogate pairs) bytes, using
+     *        the UTF-8 algorithm; secondly each of these bytes is encoded
+     *        as "%xx".  Unpaired surrogates are encoded as U+FFFD.
      * </ul>
      *
+     * If nothing needs to be encoded, the string passed in is returned.
+     *
      * @param s The string to be encoded
      * @return The encoded string
      */
     public static String encode(String s)
     {
-      StringBuffer sbuf = new StringBuffer();
       int len = s.length();
-      for (int i = 0; i < len; i++) {
+      int i = 0;
+      while (i < len && isUnreserved(s.charAt(i))) {
+        i++;
+      }
+      if (i == len) {
+        return s;
+      }
+
+      //Every char becomes at most 9 characters (3 escaped bytes)
+      char[] buffer = getBuffer(len * 9);
+      s.getChars(0, i, buffer, 0);
+      int length = i;
+      for (; i < len; i++) {
         int ch = s.charAt(i);
-        if ('A' <= ch && ch <= 'Z') {     // 'A'..'Z'
-          sbuf.append((char)ch);
-        } else if ('a' <= ch && ch <= 'z') {  // 'a'..'z'
-             sbuf.append((char)ch);
-        } else if ('0' <= ch && ch <= '9') {  // '0'..'9'
-             sbuf.append((char)ch);
-        } else if (ch == ' ') {           // space
-             sbuf.append('+');
-        } else if (ch == '-' || ch == '_'     // unreserved
-            || ch == '.' || ch == '!'
-            || ch == '~' || ch == '*'
-            || ch == '\'' || ch == '('
-            || ch == ')') {
-          sbuf.append((char)ch);
-        } else if (ch <= 0x007f) {        // other ASCII
-             sbuf.append(hex[ch]);
-        } else if (ch <= 0x07FF) {        // non-ASCII <= 0x7FF
-             sbuf.append(hex[0xc0 | (ch >> 6)]);
-             sbuf.append(hex[0x80 | (ch & 0x3F)]);
-        } else {                  // 0x7FF < ch <= 0xFFFF
-             sbuf.append(hex[0xe0 | (ch >> 12)]);
-             sbuf.append(hex[0x80 | ((ch >> 6) & 0x3F)]);
-             sbuf.append(hex[0x80 | (ch & 0x3F)]);
+        if (isUnreserved((char) ch)) {
+          buffer[length++] = (char) ch;
+        } else if (ch == ' ') {               // space
+          buffer[length++] = '+';
+        } else if (ch <= 0x007f) {            // other ASCII
+          length = appendEscaped(buffer, length, ch);
+        } else if (ch <= 0x07FF) {            // non-ASCII <= 0x7FF
+          length = appendEscaped(buffer, length, 0xc0 | (ch >> 6));
+          length = appendEscaped(buffer, length, 0x80 | (ch & 0x3F));
+        } else if (Character.isHighSurrogate((char) ch) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+          int codePoint = Character.toCodePoint((char) ch, s.charAt(++i));
+          length = appendEscaped(buffer, length, 0xf0 | (codePoint >> 18));
+          length = appendEscaped(buffer, length, 0x80 | ((codePoint >> 12) & 0x3F));
+          length = appendEscaped(buffer, length, 0x80 | ((codePoint >> 6) & 0x3F));
+          length = appendEscaped(buffer, length, 0x80 | (codePoint & 0x3F));
+        } else {                              // 0x7FF < ch <= 0xFFFF
+          if (ch >= 0xd800 && ch <= 0xdfff) {
+            ch = REPLACEMENT_CHARACTER;
+          }
+          length = appendEscaped(buffer, length, 0xe0 | (ch >> 12));
+          length = appendEscaped(buffer, length, 0x80 | ((ch >> 6) & 0x3F));
+          length = appendEscaped(buffer, length, 0x80 | (ch & 0x3F));
         }
       }
-      return sbuf.toString();
+      return new String(buffer, 0, length);
+    }
+
+    private static boolean isUnreserved(char ch)
+    {
+      return ('A' <= ch && ch <= 'Z') || ('a' <= ch && ch <= 'z') || ('0' <= ch && ch <= '9')
+          || ch == '-' || ch == '_' || ch == '.' || ch == '!' || ch == '~' || ch == '*' || ch == '\'' || ch == '(' || ch == ')';
+    }
+
+    private static int appendEscaped(char[] buffer, int length, int b)
+    {
+      buffer[length++] = '%';
+      buffer[length++] = HEX_DIGITS[(b >> 4) & 0xf];
+      buffer[length++] = HEX_DIGITS[b & 0xf];
+      return length;
     }
 }
@@ -0,0 +1,223 @@
+package net.chrislehmann.util;
+
+/**
+ * Single-pass tokenizer for SqueezeCenter CLI responses.  A response is a space separated list of
+ * tokens, most of which are tagged values in the form <code>tag%3Avalue</code>.  The tokenizer only
+ * keeps offsets into the input, so walking a response does not allocate anything until a value is
+ * actually asked for.
+ * <p/>
+ * Responses that contain lists are split into records that begin with a known tag (i.e. <code>id</code>
+ * for songs).  When a record tag is given, {@link #nextRecord()} moves to the start of the next record and
+ * {@link #nextTag()} walks the tags inside it, returning false when the next record starts.  Calling
+ * {@link #nextTag()} before the first {@link #nextRecord()} walks the header that precedes the first record.
+ *
+ * @author lehmanc
+ */
+public class TagTokenizer {
+
+    private final CharSequence input;
+    private final int end;
+    private final String recordTag;
+
+    private int position;
+
+    private int tokenStart = -1;
+    private int tokenEnd = -1;
+    private int separator = -1;
+
+    private boolean atRecordStart = false;
+    private boolean firstTagPending = false;
+
+    public TagTokenizer(CharSequence input) {
+        this(input, null);
+    }
+
+    public TagTokenizer(CharSequence input, String recordTag) {
+        this(input, 0, input.length(), recordTag);
+    }
+
+    public TagTokenizer(CharSequence input, int start, int end, String recordTag) {
+        this.input = input;
+        this.position = start;
+        this.end = end;
+        this.recordTag = recordTag;
+    }
+
+    /**
+     * Moves to the next token, tagged or not.  Returns false if there are no more tokens.
+     */
+    public boolean next() {
+        while (position < end && input.charAt(position) == ' ') {
+            position++;
+        }
+        if (position >= end) {
+            tokenStart = tokenEnd = separator = -1;
+            return false;
+        }
+
+        tokenStart = position;
+        separator = -1;
+        while (position < end) {
+            char c = input.charAt(position);
+            if (c == ' ') {
+                break;
+            }
+            if (separator < 0 && c == '%' && position + 2 < end && input.charAt(position + 1) == '3'
+                    && (input.charAt(position + 2) == 'A' || input.charAt(position + 2) == 'a')) {
+                separator = position;
+            }
+            position++;
+        }
+        tokenEnd = position;
+        return true;
+    }
+
+    /**
+     * Moves to the start of the next record.  Any tags left in the current record are skipped.
+     */
+    public boolean nextRecord() {
+        if (firstTagPending) {
+            firstTagPending = false;
+            atRecordStart = false;
+        }
+        while (!atRecordStart && next()) {
+            if (isTag(recordTag)) {
+                atRecordStart = true;
+            }
+        }
+        firstTagPending = atRecordStart;
+        return atRecordStart;
+    }
+
+    /**
+     * Moves to the next token in the current record (or the header, if {@link #nextRecord()} has not been
+     * called yet).  The first call after {@link #nextRecord()} returns the record tag itself.
+     */
+    public boolean nextTag() {
+        if (firstTagPending) {
+            firstTagPending = false;
+            atRecordStart = false;
+            return true;
+        }
+        if (atRecordStart || !next()) {
+            return false;
+        }
+        if (recordTag != null && isTag(recordTag)) {
+            atRecordStart = true;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Moves forward to the next token with the given tag.  Returns false if there isn't one.
+     */
+    public boolean find(String tag) {
+        while (next()) {
+            if (isTag(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the current token is in the <code>tag%3Avalue</code> form
+     */
+    public boolean isTagged() {
+        return separator >= 0;
+    }
+
+    /**
+     * Returns true if the current token has the (still encoded) tag passed in
+     */
+    public boolean isTag(String tag) {
+        if (tag == null || separator < 0 || separator - tokenStart != tag.length()) {
+            return false;
+        }
+        for (int i = 0; i < tag.length(); i++) {
+            if (input.charAt(tokenStart + i) != tag.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the (still encoded) tag of the current token, or null if it is not tagged
+     */
+    public String getTag() {
+        return separator < 0 ? null : input.subSequence(tokenStart, separator).toString();
+    }
+
+    /**
+     * Start of the value of the current token in the input.  For untagged tokens, this is the whole token.
+     */
+    public int getValueStart() {
+        return separator < 0 ? tokenStart : separator + 3;
+    }
+
+    public int getValueEnd() {
+        return tokenEnd;
+    }
+
+    /**
+     * Returns the raw (still encoded) value of the current token
+     */
+    public String getValue() {
+        return input.subSequence(getValueStart(), tokenEnd).toString();
+    }
+
+    /**
+     * Returns the decoded value of the current token
+     */
+    public String getDecodedValue() {
+        return SerializationUtils.decode(input, getValueStart(), tokenEnd);
+    }
+
+    /**
+     * Returns true if the raw value of the current token is equal to the value passed in
+     */
+    public boolean valueEquals(String value) {
+        int start = getValueStart();
+        if (tokenEnd - start != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (input.charAt(start + i) != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses the value of the current token as an integer.  Fractions are truncated, and the default
+     * value is returned if the value is not a number.
+     */
+    public int getIntValue(int defaultValue) {
+        int start = getValueStart();
+        int i = start;
+        boolean negative = false;
+        if (i < tokenEnd && (input.charAt(i) == '-' || input.charAt(i) == '+')) {
+            negative = input.charAt(i) == '-';
+            i++;
+        }
+        if (i >= tokenEnd) {
+            return defaultValue;
+        }
+
+        int value = 0;
+        for (; i < tokenEnd; i++) {
+            char c = input.charAt(i);
+            if (c == '.' && i > start) {
+                break;
+            }
+            if (c < '0' || c > '9') {
+                return defaultValue;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return negative ? -value : value;
+    }
+}
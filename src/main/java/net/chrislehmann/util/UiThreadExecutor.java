@@ -0,0 +1,24 @@
+package net.chrislehmann.util;
+
+import android.app.Activity;
+
+import java.util.concurrent.Executor;
+
+/**
+ * {@link Executor} that runs everything on the UI thread of an {@link Activity}.  Pass it to
+ * {@link net.chrislehmann.squeezedroid.service.ServiceFuture#addCallback} to update views with the result.
+ *
+ * @author lehmanc
+ */
+public class UiThreadExecutor implements Executor {
+
+    private final Activity activity;
+
+    public UiThreadExecutor(Activity activity) {
+        this.activity = activity;
+    }
+
+    public void execute(Runnable command) {
+        activity.runOnUiThread(command);
+    }
+}